@@ -2,8 +2,10 @@ package eg.jconch.cachemap;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
 import jconch.functor.Transformer5;
 
 /**
@@ -13,7 +15,12 @@ import jconch.functor.Transformer5;
  */
 public class NeedsADnsLookup {
 
-    private static final CacheMap<String, String> reverseDnsCache = new CacheMap<String, String>(
+    /**
+     * Unknown hosts are remembered for a minute, so that a burst of look-ups
+     * for a bad address does not go back to DNS each time.
+     */
+    private static final CacheMap<String, String> reverseDnsCache = new CacheMapMaker().maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.HOURS).cacheNulls(1000, 1, TimeUnit.MINUTES).makeCacheMap(
             new Transformer5<String, String>() {
                 public String transform(String dottedQuadObj) {
                     if (dottedQuadObj == null) {
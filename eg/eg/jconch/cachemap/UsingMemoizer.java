@@ -0,0 +1,41 @@
+package eg.jconch.cachemap;
+
+import java.util.concurrent.TimeUnit;
+
+import jconch.cache.Memoized;
+import jconch.cache.Memoizer;
+
+/**
+ * Example of memoizing the same method as {@link UsingTypedMultiKey}, without the key class or the CacheMap.
+ */
+public class UsingMemoizer {
+
+    /**
+     * The settings of the cache go on the API method.
+     */
+    public interface Arbitrary {
+        @Memoized(maximumSize = 1000, expireAfterWrite = 10, unit = TimeUnit.MINUTES)
+        String arbitraryMethod(String str, int i, double d);
+    }
+
+    /**
+     * This is the super-secret implementation, which knows nothing of caching.
+     */
+    private static final class ArbitraryImpl implements Arbitrary {
+        public String arbitraryMethod(final String str, final int i, final double d) {
+            return str + (i + d);
+        }
+    }
+
+    /**
+     * And the proxy that ties it all together.
+     */
+    private final Arbitrary arbitrary = Memoizer.memoize(Arbitrary.class, new ArbitraryImpl());
+
+    /**
+     * This is the public API method.
+     */
+    public String arbitraryMethod(final String str, final int i, final double d) {
+        return arbitrary.arbitraryMethod(str, i, d);
+    }
+}
@@ -0,0 +1,416 @@
+package jconch.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import jconch.lock.SyncLogEqLock;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * A cached look-up which never makes its callers wait for the converter.
+ * {@link #get(Object)} hands back a {@link ListenableFuture} right away, and on
+ * a miss the converter runs on an {@link Executor}. Concurrent requests for
+ * logically equivalent keys share a single in-flight future, so each key is
+ * still only computed once.
+ * </p>
+ * <p>
+ * Callers that must not park a thread register a listener on the future with
+ * {@link ListenableFuture#addListener(Runnable, Executor)}, which runs once the
+ * value is ready, or once the look-up has failed.
+ * </p>
+ * <p>
+ * A look-up that fails is not cached: its future reports the failure to the
+ * callers that were already waiting for it, and the next request for the key
+ * starts a new look-up.
+ * </p>
+ * <p>
+ * Code that wants the plain {@link Map} behavior of a {@link CacheMap} can use
+ * the {@link #synchronous()} view.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <KEY_T>
+ *            The type of the keys in the map, and the arguments for the
+ *            converter.
+ * @param <VAL_T>
+ *            The type of the values in the map, and the return values from the
+ *            converter.
+ * @see CacheMapMaker#makeAsyncCacheMap(Function)
+ */
+public class AsyncCacheMap<KEY_T, VAL_T> {
+
+    private final LocalCache<KEY_T, ListenableFuture<VAL_T>> futures;
+
+    private final Map<KEY_T, VAL_T> synchronousView = new SynchronousView();
+
+    /**
+     * Constructs a new, unbounded instance.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @param executor
+     *            The executor on which the converter is run.
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     */
+    public AsyncCacheMap(final Function<KEY_T, VAL_T> converter, final Executor executor) {
+        this(converter, new CacheMapMaker().executor(executor));
+    }
+
+    /**
+     * Constructs a new instance with the settings of the given maker, whose
+     * executor runs the converter.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @param spec
+     *            The settings for the map.
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the maker asks for refreshing, writing behind or limiting
+     *             loads, which are not supported.
+     */
+    protected AsyncCacheMap(final Function<KEY_T, VAL_T> converter, final CacheMapMaker spec) {
+        if (converter == null) {
+            throw new NullArgumentException("converter");
+        }
+        if (spec == null) {
+            throw new NullArgumentException("spec");
+        }
+        if (spec.getRefreshAfterWriteNanos() != CacheMapMaker.UNSET_INT) {
+            throw new IllegalStateException("refreshAfterWrite is not supported by " + getClass().getName());
+        }
+        if (spec.writesBehind()) {
+            throw new IllegalStateException("writeBehind is not supported by " + getClass().getName());
+        }
+        if (spec.limitsLoads() || spec.timesLoads()) {
+            throw new IllegalStateException("limiting loads is not supported by " + getClass().getName());
+        }
+
+        final Executor executor = spec.getExecutor();
+        futures = new LocalCache<KEY_T, ListenableFuture<VAL_T>>(spec, new Function<KEY_T, ListenableFuture<VAL_T>>() {
+            public ListenableFuture<VAL_T> apply(final KEY_T key) {
+                final LoadTask task = new LoadTask(key, converter);
+                executor.execute(task);
+                return task;
+            }
+        }, null, new SyncLogEqLock<KEY_T>());
+    }
+
+    /**
+     * Provides the future value for the key, starting its computation if it is
+     * neither present nor in flight.
+     *
+     * @param key
+     *            The key to look up.
+     * @return The value's future, which may already be done, and which calls
+     *         back its listeners when it completes.
+     * @throws NullPointerException
+     *             If the key is <code>null</code>.
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             If the executor refuses to run the look-up.
+     */
+    public ListenableFuture<VAL_T> get(final KEY_T key) {
+        final ListenableFuture<VAL_T> future = futures.get(key);
+        if (future.isDone() && hasFailed(future)) {
+            // The look-up failed before it made it into the map, so it did not
+            // get the chance to remove itself.
+            futures.removeIfSame(key, future);
+        }
+        return future;
+    }
+
+    /**
+     * Stores a value, replacing any value or look-up in flight for the key.
+     *
+     * @param key
+     *            The key.
+     * @param value
+     *            The value.
+     * @throws NullPointerException
+     *             If either argument is <code>null</code>.
+     */
+    public void put(final KEY_T key, final VAL_T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        futures.put(key, ListenableFutureTask.completed(value));
+    }
+
+    /**
+     * Discards the entry for the key. A look-up in flight still completes for
+     * the callers that are waiting for it.
+     *
+     * @param key
+     *            The key.
+     */
+    public void remove(final Object key) {
+        futures.remove(key);
+    }
+
+    /**
+     * @return The number of values and look-ups in flight.
+     */
+    public int size() {
+        return futures.size();
+    }
+
+    /**
+     * Provides a snapshot of the activity of this map. A load is counted when
+     * it is started, and its recorded time is only the time it took to start
+     * it: a failure of the look-up itself shows up in the future instead.
+     *
+     * @return The current statistics.
+     * @see CacheMBeans#register(String, AsyncCacheMap)
+     */
+    public CacheStats stats() {
+        return futures.stats();
+    }
+
+    /**
+     * <p>
+     * Provides a view of this map which waits for the values, for code that
+     * calls {@link Map#get(Object)}.
+     * </p>
+     * <p>
+     * If a look-up fails, the view's <code>get</code> rethrows the converter's
+     * unchecked exception, or wraps anything else in a
+     * {@link RuntimeException}. Iterating over the view only visits the values
+     * that are ready.
+     * </p>
+     *
+     * @return The view, which is backed by this map.
+     */
+    public Map<KEY_T, VAL_T> synchronous() {
+        return synchronousView;
+    }
+
+    private static boolean hasFailed(final Future<?> future) {
+        if (future.isCancelled()) {
+            return true;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (final ExecutionException e) {
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for a value, unwrapping what the converter threw.
+     */
+    private static <T> T join(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A look-up in flight, which takes itself out of the map if it fails.
+     */
+    private final class LoadTask extends ListenableFutureTask<VAL_T> {
+
+        private final KEY_T key;
+
+        LoadTask(final KEY_T key, final Function<KEY_T, VAL_T> converter) {
+            super(new Callable<VAL_T>() {
+                public VAL_T call() {
+                    final VAL_T value = converter.apply(key);
+                    if (value == null) {
+                        throw new NullPointerException("converter returned null for key: " + key);
+                    }
+                    return value;
+                }
+            });
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            if (hasFailed(this)) {
+                futures.removeIfSame(key, this);
+            }
+            // Listeners run after the removal, so that a retry starts anew.
+            super.done();
+        }
+    }
+
+    /**
+     * The blocking view of the map.
+     */
+    private final class SynchronousView extends AbstractMap<KEY_T, VAL_T> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public VAL_T get(final Object key) {
+            return join(AsyncCacheMap.this.get((KEY_T) key));
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return futures.containsKey(key);
+        }
+
+        @Override
+        public VAL_T put(final KEY_T key, final VAL_T value) {
+            if (value == null) {
+                throw new NullPointerException("value");
+            }
+            final Future<VAL_T> old = futures.put(key, ListenableFutureTask.completed(value));
+            return ((old != null) && old.isDone() && !hasFailed(old)) ? join(old) : null;
+        }
+
+        @Override
+        public VAL_T remove(final Object key) {
+            final Future<VAL_T> old = futures.remove(key);
+            return ((old != null) && old.isDone() && !hasFailed(old)) ? join(old) : null;
+        }
+
+        @Override
+        public int size() {
+            return futures.size();
+        }
+
+        @Override
+        public void clear() {
+            futures.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<KEY_T, VAL_T>> entrySet() {
+            return new AbstractSet<Map.Entry<KEY_T, VAL_T>>() {
+                @Override
+                public Iterator<Map.Entry<KEY_T, VAL_T>> iterator() {
+                    return new ReadyEntryIterator(futures.entrySet().iterator());
+                }
+
+                @Override
+                public int size() {
+                    return futures.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over the entries whose look-ups have succeeded.
+     */
+    private final class ReadyEntryIterator implements Iterator<Map.Entry<KEY_T, VAL_T>> {
+
+        private final Iterator<Map.Entry<KEY_T, ListenableFuture<VAL_T>>> entries;
+
+        private Map.Entry<KEY_T, VAL_T> next;
+
+        ReadyEntryIterator(final Iterator<Map.Entry<KEY_T, ListenableFuture<VAL_T>>> entries) {
+            this.entries = entries;
+            next = advance();
+        }
+
+        private Map.Entry<KEY_T, VAL_T> advance() {
+            while (entries.hasNext()) {
+                final Map.Entry<KEY_T, ListenableFuture<VAL_T>> entry = entries.next();
+                final Future<VAL_T> future = entry.getValue();
+                if (future.isDone() && !hasFailed(future)) {
+                    return new ReadyEntry(entry.getKey(), join(future));
+                }
+            }
+            return null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<KEY_T, VAL_T> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<KEY_T, VAL_T> result = next;
+            next = advance();
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * An entry of the synchronous view, which writes through to the map.
+     */
+    private final class ReadyEntry implements Map.Entry<KEY_T, VAL_T> {
+
+        private final KEY_T key;
+
+        private VAL_T value;
+
+        ReadyEntry(final KEY_T key, final VAL_T value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public KEY_T getKey() {
+            return key;
+        }
+
+        public VAL_T getValue() {
+            return value;
+        }
+
+        public VAL_T setValue(final VAL_T newValue) {
+            final VAL_T old = value;
+            put(key, newValue);
+            value = newValue;
+            return old;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?, ?> them = (Map.Entry<?, ?>) o;
+            return key.equals(them.getKey()) && value.equals(them.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
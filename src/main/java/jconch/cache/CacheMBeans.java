@@ -0,0 +1,215 @@
+package jconch.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * <p>
+ * Publishes the statistics of cache maps through JMX, so that they can be
+ * watched and graphed per cache. Each map is registered with the platform
+ * MBean server under the name
+ * <code>jconch.cache:type=CacheStats,name="<i>name</i>"</code>, as a
+ * {@link CacheStatsMBean}.
+ * </p>
+ * <p>
+ * The MBean server holds on to the map until it is unregistered, so a map that
+ * is thrown away should be unregistered first.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+public final class CacheMBeans {
+
+    private CacheMBeans() {
+        // Static methods only
+    }
+
+    /**
+     * Registers the statistics of a map.
+     *
+     * @param name
+     *            The name of the cache, which must not already be registered.
+     * @param map
+     *            The map.
+     * @return The name the MBean was registered under.
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If a cache with that name is already registered.
+     */
+    public static ObjectName register(final String name, final CacheMap<?, ?> map) {
+        if (map == null) {
+            throw new NullArgumentException("map");
+        }
+        return register(name, new Source() {
+            CacheStats stats() {
+                return map.stats();
+            }
+        });
+    }
+
+    /**
+     * Registers the statistics of an asynchronous map.
+     *
+     * @param name
+     *            The name of the cache, which must not already be registered.
+     * @param map
+     *            The map.
+     * @return The name the MBean was registered under.
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If a cache with that name is already registered.
+     */
+    public static ObjectName register(final String name, final AsyncCacheMap<?, ?> map) {
+        if (map == null) {
+            throw new NullArgumentException("map");
+        }
+        return register(name, new Source() {
+            CacheStats stats() {
+                return map.stats();
+            }
+        });
+    }
+
+    /**
+     * Unregisters the statistics of a cache, if they are registered.
+     *
+     * @param name
+     *            The name of the cache.
+     * @return Whether a cache with that name was registered.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     */
+    public static boolean unregister(final String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+            return true;
+        } catch (final InstanceNotFoundException e) {
+            return false;
+        } catch (final JMException e) {
+            throw new IllegalStateException("Could not unregister cache " + name, e);
+        }
+    }
+
+    /**
+     * Provides the name under which a cache's statistics are registered.
+     *
+     * @param name
+     *            The name of the cache.
+     * @return The name of its MBean.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     */
+    public static ObjectName objectName(final String name) {
+        if (name == null) {
+            throw new NullArgumentException("name");
+        }
+        final Hashtable<String, String> properties = new Hashtable<String, String>();
+        properties.put("type", "CacheStats");
+        properties.put("name", ObjectName.quote(name));
+        try {
+            return new ObjectName("jconch.cache", properties);
+        } catch (final JMException e) {
+            throw new IllegalArgumentException("Not a valid cache name: " + name, e);
+        }
+    }
+
+    private static ObjectName register(final String name, final Source source) {
+        final ObjectName objectName = objectName(name);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new StandardMBean(source, CacheStatsMBean.class), objectName);
+        } catch (final InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("A cache named " + name + " is already registered", e);
+        } catch (final JMException e) {
+            throw new IllegalStateException("Could not register cache " + name, e);
+        }
+        return objectName;
+    }
+
+    /**
+     * Reads the statistics of one map.
+     */
+    private abstract static class Source implements CacheStatsMBean {
+
+        abstract CacheStats stats();
+
+        public long getRequestCount() {
+            return stats().getRequestCount();
+        }
+
+        public long getHitCount() {
+            return stats().getHitCount();
+        }
+
+        public double getHitRate() {
+            return stats().getHitRate();
+        }
+
+        public long getMissCount() {
+            return stats().getMissCount();
+        }
+
+        public double getMissRate() {
+            return stats().getMissRate();
+        }
+
+        public long getLoadSuccessCount() {
+            return stats().getLoadSuccessCount();
+        }
+
+        public long getLoadFailureCount() {
+            return stats().getLoadFailureCount();
+        }
+
+        public long getTotalLoadTime() {
+            return stats().getTotalLoadTime();
+        }
+
+        public double getAverageLoadPenalty() {
+            return stats().getAverageLoadPenalty();
+        }
+
+        public long getEvictionCount() {
+            return stats().getEvictionCount();
+        }
+
+        public long getSizeEvictionCount() {
+            return stats().getSizeEvictionCount();
+        }
+
+        public long getExpirationCount() {
+            return stats().getExpirationCount();
+        }
+
+        public long getRefreshCount() {
+            return stats().getRefreshCount();
+        }
+
+        public long getRefreshFailureCount() {
+            return stats().getRefreshFailureCount();
+        }
+
+        public long getLoadRejectionCount() {
+            return stats().getLoadRejectionCount();
+        }
+
+        public long getLoadTimeoutCount() {
+            return stats().getLoadTimeoutCount();
+        }
+
+        public long getEstimatedSize() {
+            return stats().getEstimatedSize();
+        }
+    }
+}
@@ -4,9 +4,15 @@ import static java.util.Collections.synchronizedMap;
 import static org.apache.commons.collections.CollectionUtils.transformedCollection;
 import static org.apache.commons.collections.SetUtils.transformedSet;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import jconch.lock.SyncLogEqLock;
+import jconch.stats.HeavyHitters;
 
 import org.apache.commons.collections.keyvalue.TiedMapEntry;
 import org.apache.commons.lang.NullArgumentException;
@@ -26,12 +32,19 @@ import com.google.common.collect.ForwardingMap;
  * onto all possible outputs.
  * </p>
  * <p>
+ * Keys are compared with {@link Object#equals(Object)}, so a key built afresh
+ * for each look-up finds the entry of an equal key. The values of a map built
+ * by the constructors are held softly, and the garbage collector reclaims them
+ * when memory runs short; a map built by a {@link CacheMapMaker} instead
+ * evicts entries according to the maker's settings.
+ * </p>
+ * <p>
  * <b>WARNING:</b> This Map violates the general Map contract in a few ways.
  * <br>
  * First, its behavior is similar to a {@link WeakHashMap}, in that the methods
  * may behave as if a seperate thread is silently removing entries. Because of
  * this, it is not guarantied that calls to {@link #put(Object, Object)} and the
- * like will be honored beyond the life of the "put-ed" object. All of the
+ * like will be honored for long. All of the
  * methods reflect the state of the cache at the moment the method is called,
  * and they cannot be guarantied to be consistant, even in a single threaded
  * environment. <br>
@@ -50,10 +63,28 @@ import com.google.common.collect.ForwardingMap;
  *            The type of the values in the map, and the return values from the
  *            transformer.
  */
-public class CacheMap<KEY_T, VAL_T> extends ForwardingMap<KEY_T, VAL_T> implements Map<KEY_T, VAL_T> {
+public class CacheMap<KEY_T, VAL_T> extends ForwardingMap<KEY_T, VAL_T> implements Map<KEY_T, VAL_T>, Closeable {
 
     private final Map<KEY_T,VAL_T> delegateMap;
 
+    /**
+     * The engine of a map built by a {@link CacheMapMaker}, or
+     * <code>null</code> for a soft-valued map.
+     */
+    private final LocalCache<KEY_T, VAL_T> localCache;
+
+    /**
+     * The statistics of a soft-valued map, or <code>null</code> for a map built
+     * by a {@link CacheMapMaker}, whose engine keeps its own.
+     */
+    private final StatsCounter softStats;
+
+    /**
+     * Counts the keys looked up, or <code>null</code> if they are not
+     * counted.
+     */
+    private volatile HeavyHitters<? super KEY_T> hotKeyTracker;
+
     /**
      * Constructs a new instance of the cache map, which uses its own internal
      * set of locks (see {@link CacheMap#CacheMap(Function, SyncLogEqLock)}).
@@ -85,18 +116,456 @@ public class CacheMap<KEY_T, VAL_T> extends ForwardingMap<KEY_T, VAL_T> implemen
             throw new NullArgumentException("lockFactory");
         }
 
+        softStats = new StatsCounter();
         delegateMap = new MapMaker()
-          .softKeys()
+          .softValues()
           .makeComputingMap(new Function<KEY_T,VAL_T>() { 
             public VAL_T apply(KEY_T key) {
-              synchronized(lockFactory.getLock(key)) {
-                return converter.apply(key);
+              // Every get() counts as a hit, so take this one back.
+              softStats.recordHits(-1);
+              softStats.recordMisses(1);
+              final long start = System.nanoTime();
+              boolean loaded = false;
+              try {
+                synchronized(lockFactory.getLock(key)) {
+                  final VAL_T value = converter.apply(key);
+                  loaded = (value != null);
+                  return value;
+                }
+              } finally {
+                if (loaded) {
+                  softStats.recordLoadSuccess(System.nanoTime() - start);
+                } else {
+                  softStats.recordLoadFailure(System.nanoTime() - start);
+                }
               }
             }
           })
         ;
+        localCache = null;
+    }
+
+    /**
+     * Constructs a new instance of the cache map with the retention settings
+     * of the given maker. Rather than holding its values softly, the map keeps
+     * its entries until those settings call for their eviction.
+     * 
+     * @param converter
+     *            The transformer that implements the caching behavior.
+     * @param lockFactory
+     *            The source to be used for locking behaviors.
+     * @param spec
+     *            The settings for the map.
+     * @throws NullArgumentException
+     *             If any argument is <code>null</code>.
+     * @see CacheMapMaker#makeCacheMap(Function, SyncLogEqLock)
+     */
+    protected CacheMap(final Function<KEY_T, VAL_T> converter, final SyncLogEqLock<KEY_T> lockFactory,
+            final CacheMapMaker spec) {
+        this(converter, null, lockFactory, spec);
+    }
+
+    /**
+     * Constructs a new instance of the cache map with the retention settings
+     * of the given maker, which loads the misses of {@link #getAll(Iterable)}
+     * in bulk.
+     * 
+     * @param converter
+     *            The transformer that implements the caching behavior.
+     * @param bulkLoader
+     *            The function that computes the values of many keys at once,
+     *            or <code>null</code> to compute them one at a time.
+     * @param lockFactory
+     *            The source to be used for locking behaviors.
+     * @param spec
+     *            The settings for the map.
+     * @throws NullArgumentException
+     *             If the converter, lock factory or settings are
+     *             <code>null</code>.
+     * @see CacheMapMaker#makeCacheMap(Function, Function, SyncLogEqLock)
+     */
+    protected CacheMap(final Function<KEY_T, VAL_T> converter,
+            final Function<Collection<KEY_T>, Map<KEY_T, VAL_T>> bulkLoader, final SyncLogEqLock<KEY_T> lockFactory,
+            final CacheMapMaker spec) {
+        if (converter == null) {
+            throw new NullArgumentException("converter");
+        }
+        if (lockFactory == null) {
+            throw new NullArgumentException("lockFactory");
+        }
+        if (spec == null) {
+            throw new NullArgumentException("spec");
+        }
+
+        localCache = new LocalCache<KEY_T, VAL_T>(spec, converter, bulkLoader, lockFactory);
+        delegateMap = localCache;
+        softStats = null;
     }
 
     protected Map<KEY_T,VAL_T> delegate() { return delegateMap; }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public VAL_T get(final Object key) {
+        final HeavyHitters<? super KEY_T> tracker = hotKeyTracker;
+        if (tracker != null) {
+            tracker.offer((KEY_T) key);
+        }
+        if (softStats != null) {
+            softStats.recordHits(1);
+        }
+        return delegateMap.get(key);
+    }
+
+    /**
+     * Starts counting the keys passed to {@link #get(Object)}, to find the
+     * few that dominate the traffic of this map. Unlike {@link #hotKeys(int)},
+     * which ranks the keys the map holds by the estimates of its eviction
+     * policy, the sketch counts every look-up, hit or miss, and reports its
+     * counts. Pass a sketch with a sample rate to keep the cost on
+     * {@link #get(Object)} low; while nothing is tracked, the cost is one
+     * read of a volatile field. The same sketch may be given to the map's
+     * lock factory (see {@link SyncLogEqLock#trackHotKeys(HeavyHitters)}) to
+     * count the keys that loads contend for.
+     * 
+     * @param tracker
+     *            The sketch to count the keys in, or <code>null</code> to stop
+     *            counting.
+     */
+    public void trackHotKeys(final HeavyHitters<? super KEY_T> tracker) {
+        hotKeyTracker = tracker;
+    }
+
+    /**
+     * @return The sketch that counts the keys looked up, or <code>null</code>
+     *         if there is none.
+     */
+    public HeavyHitters<? super KEY_T> getHotKeyTracker() {
+        return hotKeyTracker;
+    }
+
+    /**
+     * <p>
+     * Provides the values for many keys at once. Values that are cached are
+     * returned directly, and the rest are computed together: if the map was
+     * built with a bulk loader, the missing keys are passed to it in a single
+     * call; otherwise each is computed as by {@link #get(Object)}.
+     * </p>
+     * <p>
+     * A key that another <code>getAll</code> is already loading is not loaded
+     * again: this call waits for that load instead. Any key the bulk loader
+     * leaves out of its result is computed by the converter, and any extra
+     * keys it provides are cached as well.
+     * </p>
+     * 
+     * @param keys
+     *            The keys to look up.
+     * @return The values of the keys, in the order they were given.
+     * @throws NullPointerException
+     *             If any key is <code>null</code>.
+     */
+    public Map<KEY_T, VAL_T> getAll(final Iterable<? extends KEY_T> keys) {
+        if (localCache != null) {
+            return localCache.getAll(keys, true);
+        }
+        final Map<KEY_T, VAL_T> result = new LinkedHashMap<KEY_T, VAL_T>();
+        for (final KEY_T key : keys) {
+            if (!result.containsKey(key)) {
+                result.put(key, get(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ranks the keys of this map by how often they were used recently. A map
+     * built by a {@link CacheMapMaker} with a {@link CacheMapMaker#maximumSize(int)
+     * maximum size} estimates this for the sake of eviction; any other map has
+     * no such estimate, and provides its keys in no particular order.
+     * 
+     * @param limit
+     *            The most keys to provide.
+     * @return The hottest keys, hottest first.
+     * @throws IllegalArgumentException
+     *             If the limit is negative.
+     */
+    public List<KEY_T> hotKeys(final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+        if (localCache != null) {
+            return localCache.hotKeys(limit);
+        }
+        final List<KEY_T> keys = new ArrayList<KEY_T>();
+        for (final KEY_T key : delegateMap.keySet()) {
+            if (keys.size() == limit) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Saves the {@link #hotKeys(int) hottest keys} of this map to a file, for
+     * a later map to {@link #preload(File, Serializer, int, long, TimeUnit)
+     * preload}. This is meant to be called on demand or when the application
+     * shuts down. Keys that cannot be serialized are left out. The file is
+     * replaced in a single step, so a failure leaves any previous snapshot in
+     * place.
+     * 
+     * @param file
+     *            The file to write.
+     * @param limit
+     *            The most keys to save.
+     * @param keySerializer
+     *            Converts the keys to bytes.
+     * @return The number of keys saved.
+     * @throws IOException
+     *             If the file cannot be written.
+     * @throws NullArgumentException
+     *             If the file or the serializer is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the limit is negative.
+     */
+    public int saveHotKeys(final File file, final int limit, final Serializer<? super KEY_T> keySerializer)
+            throws IOException {
+        if (file == null) {
+            throw new NullArgumentException("file");
+        }
+        if (keySerializer == null) {
+            throw new NullArgumentException("keySerializer");
+        }
+        return HotKeyFile.write(file, hotKeys(limit), keySerializer);
+    }
+
+    /**
+     * Preloads the keys that an earlier map saved with
+     * {@link #saveHotKeys(File, int, Serializer)}, hottest first, in the
+     * background. Keys that cannot be deserialized are skipped.
+     * 
+     * @param file
+     *            The snapshot to read.
+     * @param keySerializer
+     *            Converts the bytes back to keys.
+     * @param parallelism
+     *            The most keys or batches of keys to load at once.
+     * @param maxTime
+     *            How long the warm-up may take, after which the keys not yet
+     *            loaded are skipped.
+     * @param unit
+     *            The unit of the time.
+     * @return The warm-up, which has already started.
+     * @throws IOException
+     *             If the file cannot be read, or is not a snapshot.
+     * @throws NullArgumentException
+     *             If any object argument is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the parallelism is not positive, or the time is negative.
+     * @see #preload(List, int, long, TimeUnit)
+     */
+    public WarmUp preload(final File file, final Serializer<KEY_T> keySerializer, final int parallelism,
+            final long maxTime, final TimeUnit unit) throws IOException {
+        if (file == null) {
+            throw new NullArgumentException("file");
+        }
+        if (keySerializer == null) {
+            throw new NullArgumentException("keySerializer");
+        }
+        return preload(HotKeyFile.read(file, keySerializer), parallelism, maxTime, unit);
+    }
+
+    /**
+     * Loads the given keys into this map in the background, in order. The
+     * work is spread over at most <code>parallelism</code> tasks on the map's
+     * executor (see {@link CacheMapMaker#executor(java.util.concurrent.Executor)});
+     * a map with a bulk loader loads the keys in batches.
+     * 
+     * @param keys
+     *            The keys to load.
+     * @param parallelism
+     *            The most keys or batches of keys to load at once.
+     * @param maxTime
+     *            How long the warm-up may take, after which the keys not yet
+     *            loaded are skipped.
+     * @param unit
+     *            The unit of the time.
+     * @return The warm-up, which has already started.
+     * @throws NullArgumentException
+     *             If the keys or the unit are <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the parallelism is not positive, or the time is negative.
+     */
+    public WarmUp preload(final List<? extends KEY_T> keys, final int parallelism, final long maxTime,
+            final TimeUnit unit) {
+        if (keys == null) {
+            throw new NullArgumentException("keys");
+        }
+        if (unit == null) {
+            throw new NullArgumentException("unit");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (maxTime < 0) {
+            throw new IllegalArgumentException("maxTime must not be negative: " + maxTime);
+        }
+        final boolean bulk = (localCache != null) && localCache.hasBulkLoader();
+        return new WarmUp(this, keys, bulk ? WarmUp.BULK_BATCH_SIZE : 1, executor(), parallelism,
+                unit.toNanos(maxTime));
+    }
+
+    /**
+     * @return The executor that background work for this map runs on.
+     */
+    Executor executor() {
+        return (localCache != null) ? localCache.executor() : new CacheMapMaker().getExecutor();
+    }
+
+    /**
+     * Writes every value that is waiting for the writer of a map that writes
+     * behind (see {@link CacheMapMaker#writeBehind(CacheWriter, int, long, TimeUnit, int)}),
+     * in the calling thread, and waits for any batch being written in the
+     * background. Any other map has nothing to write.
+     * 
+     * @throws RuntimeException
+     *             Whatever the writer threw. The values it was given stay
+     *             queued.
+     */
+    public void flushWrites() {
+        if (localCache != null) {
+            localCache.flushWrites();
+        }
+    }
+
+    /**
+     * @return The number of keys whose values are waiting for the writer of a
+     *         map that writes behind, or 0 for any other map.
+     * @see #flushWrites()
+     */
+    public int getPendingWriteCount() {
+        return (localCache == null) ? 0 : localCache.pendingWriteCount();
+    }
+
+    /**
+     * Writes out everything the map still owes: the values waiting for the
+     * writer of a map that writes behind, as {@link #flushWrites()} does, and
+     * the changes to the files of a
+     * {@link CacheMapMaker#diskTier(File, long, Serializer, Serializer) disk
+     * tier}, which are forced to the disk. Any other map has nothing to write.
+     * 
+     * @throws RuntimeException
+     *             Whatever the writer threw.
+     */
+    public void flush() {
+        if (localCache != null) {
+            localCache.flush();
+        }
+    }
+
+    /**
+     * Writes out everything the map still owes, as {@link #flush()} does, and
+     * releases the files of its disk tier, so that another map may use their
+     * directory. A map with a disk tier cannot be used once it is closed; any
+     * other map can, but has nothing to release. Closing a map again does
+     * nothing.
+     * 
+     * @throws RuntimeException
+     *             Whatever the writer threw. The files are released anyway.
+     */
+    public void close() {
+        if (localCache != null) {
+            localCache.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Removes every entry at once, in constant time. Rather than visiting the
+     * entries, as {@link #clear()} does, the map records the time of the
+     * invalidation: entries stored before it are treated as absent from then
+     * on, and a value whose load was under way is handed to its caller but
+     * not kept. The invalidated entries are reclaimed as they are looked up,
+     * replaced or evicted, and a few at a time as the map is kept up after
+     * each write; until then, {@link #size()} still counts them, as it counts
+     * expired entries.
+     * </p>
+     * <p>
+     * A map with an {@link CacheMapMaker#offHeap(long, Serializer) off-heap}
+     * or {@link CacheMapMaker#diskTier(File, long, Serializer, Serializer)
+     * disk} tier, and a soft-valued map, are cleared instead.
+     * </p>
+     */
+    public void invalidateAll() {
+        if (localCache == null) {
+            delegateMap.clear();
+        } else {
+            localCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Removes every entry with the given tag at once, in constant time, as
+     * {@link #invalidateAll()} removes every entry. The keys that the map
+     * remembers as {@link CacheMapMaker#cacheNulls(int, long, TimeUnit)
+     * absent} have no tags, and are kept.
+     * 
+     * @param tag
+     *            The tag, as named by the map's {@link Tagger}.
+     * @throws NullArgumentException
+     *             If the tag is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the map does not {@link CacheMapMaker#tags(Tagger) tag}
+     *             its entries.
+     */
+    public void invalidateTag(final Object tag) {
+        if (tag == null) {
+            throw new NullArgumentException("tag");
+        }
+        if (localCache == null) {
+            throw new IllegalStateException("a soft-valued map does not tag its entries");
+        }
+        localCache.invalidateTag(tag);
+    }
+
+    /**
+     * Removes every entry whose key is a {@link jconch.multikey.JConchMultiKey
+     * multikey} with the given component, such as every {@link
+     * jconch.multikey.DuoKey} whose {@link jconch.multikey.UniKey#getKey1()}
+     * is an entity that changed. The entries are found through the index
+     * that the map keeps of the component (see
+     * {@link CacheMapMaker#indexKeyComponents(int...)}), so the time taken
+     * grows with the number of entries removed, not with the size of the map.
+     * Keys that the map remembers as absent are forgotten as well.
+     * 
+     * @param component
+     *            The position of the component, starting from 1.
+     * @param value
+     *            The value of the component, which may be <code>null</code>.
+     * @return The number of entries removed.
+     * @throws IllegalArgumentException
+     *             If the map does not index the component.
+     * @throws IllegalStateException
+     *             If this is a soft-valued map, which keeps no indexes.
+     */
+    public int invalidateWhereKey(final int component, final Object value) {
+        if (localCache == null) {
+            throw new IllegalStateException("a soft-valued map does not index its keys");
+        }
+        return localCache.invalidateWhereKey(component, value);
+    }
+
+    /**
+     * Provides a snapshot of the activity of this map. The counters cost next
+     * to nothing to keep up, so they are always on. A soft-valued map cannot
+     * tell when the garbage collector takes an entry, so it reports no
+     * evictions.
+     * 
+     * @return The current statistics.
+     * @see CacheMBeans#register(String, CacheMap)
+     */
+    public CacheStats stats() {
+        return (localCache == null) ? softStats.snapshot(delegateMap.size()) : localCache.stats();
+    }
+
 }
@@ -0,0 +1,1309 @@
+package jconch.cache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.lock.SyncLogEqLock;
+import jconch.multikey.JConchMultiKey;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+
+/**
+ * <p>
+ * A builder of {@link CacheMap} instances with tunable retention, in the style
+ * of {@link MapMaker}. A map made by this class keeps its entries until its
+ * configured limits say otherwise, rather than leaving retention up to the
+ * garbage collector:
+ * </p>
+ *
+ * <pre>
+ * CacheMap&lt;Integer, Entity&gt; entities = new CacheMapMaker()
+ *     .maximumSize(10000)
+ *     .makeCacheMap(lookup);
+ * </pre>
+ * <p>
+ * Each setting may only be applied once. A single maker may be used to build
+ * any number of maps.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+public final class CacheMapMaker {
+
+    static final int UNSET_INT = -1;
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private int concurrencyLevel = UNSET_INT;
+
+    private int maximumSize = UNSET_INT;
+
+    private long maximumWeight = UNSET_INT;
+
+    private Weigher<?, ?> weigher;
+
+    private long expireAfterWriteNanos = UNSET_INT;
+
+    private long expireAfterAccessNanos = UNSET_INT;
+
+    private long refreshAfterWriteNanos = UNSET_INT;
+
+    private int maxBatchSize = UNSET_INT;
+
+    private long maxBatchDelayNanos = UNSET_INT;
+
+    private int maximumAbsentSize = UNSET_INT;
+
+    private long expireAbsentAfterNanos = UNSET_INT;
+
+    private long offHeapBytes = UNSET_INT;
+
+    private Serializer<?> serializer;
+
+    private File diskDirectory;
+
+    private long diskBytes = UNSET_INT;
+
+    private Serializer<?> diskKeySerializer;
+
+    private Serializer<?> diskValueSerializer;
+
+    private CacheWriter<?, ?> cacheWriter;
+
+    private int maxWriteBatchSize = UNSET_INT;
+
+    private long maxWriteDelayNanos = UNSET_INT;
+
+    private int maxPendingWrites = UNSET_INT;
+
+    private int maxConcurrentLoads = UNSET_INT;
+
+    private long loadTimeoutNanos = UNSET_INT;
+
+    private int nearCacheSize = UNSET_INT;
+
+    private double memoryThreshold = UNSET_INT;
+
+    private double trimStep;
+
+    private Tagger<?, ?> tagger;
+
+    private int[] indexedComponents;
+
+    private Executor executor;
+
+    private Ticker ticker;
+
+    /**
+     * Constructs a new maker with the default settings: no size limit, no
+     * expiration, and no refreshing.
+     */
+    public CacheMapMaker() {
+        // Does nothing.
+    }
+
+    /**
+     * Guides the allowed concurrency among update operations. The map is
+     * internally partitioned to try to permit the indicated number of
+     * concurrent updates without contention.
+     *
+     * @param concurrencyLevel
+     *            The expected number of concurrently updating threads.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the argument is not positive.
+     * @throws IllegalStateException
+     *             If the concurrency level was already set.
+     */
+    public CacheMapMaker concurrencyLevel(final int concurrencyLevel) {
+        if (this.concurrencyLevel != UNSET_INT) {
+            throw new IllegalStateException("concurrency level was already set to " + this.concurrencyLevel);
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be positive: " + concurrencyLevel);
+        }
+        this.concurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Bounds the map to the given number of entries. When the bound is
+     * exceeded, the map evicts the entry it judges least likely to be used
+     * again.
+     * </p>
+     * <p>
+     * New entries are first held in a small recency-ordered window. Entries
+     * leaving that window only displace an entry from the main region if they
+     * have been requested more often recently, as estimated by a compact
+     * frequency sketch. This keeps one-hit wonders and scans from flushing the
+     * popular entries out of the map.
+     * </p>
+     *
+     * @param size
+     *            The maximum number of entries; zero means nothing is retained.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the argument is negative.
+     * @throws IllegalStateException
+     *             If the maximum size or a
+     *             {@link #maximumWeight(long, Weigher) maximum weight} was
+     *             already set.
+     */
+    public CacheMapMaker maximumSize(final int size) {
+        if (this.maximumSize != UNSET_INT) {
+            throw new IllegalStateException("maximum size was already set to " + this.maximumSize);
+        }
+        if (this.maximumWeight != UNSET_INT) {
+            throw new IllegalStateException("maximum weight was already set to " + this.maximumWeight);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative: " + size);
+        }
+        this.maximumSize = size;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Bounds the map to the given total weight of its entries, for maps whose
+     * values vary too much in size for {@link #maximumSize(int) a number of
+     * entries} to bound their memory. Each entry is weighed by the given
+     * weigher when its value is stored, and the map evicts entries as
+     * {@link #maximumSize(int)} does until their weights add up to no more
+     * than the maximum.
+     * </p>
+     * <p>
+     * Each segment of the {@link #concurrencyLevel(int) concurrency level} has
+     * its share of the weight, and may borrow what the other segments leave
+     * unused, so that the map can hold any entry up to the maximum weight.
+     * A segment evicts when it is over its share and the map is over the
+     * maximum, and then has the segments that borrowed pay back. One that is
+     * busy at that moment pays back at its next write, so under concurrent
+     * writes the total may briefly exceed the maximum. An entry heavier than
+     * the maximum weight is evicted as soon as it is stored, without
+     * displacing anything.
+     * </p>
+     *
+     * @param weight
+     *            The maximum total weight; zero means nothing is retained
+     *            unless it weighs nothing.
+     * @param weigher
+     *            Calculates the weight of each entry.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the weight is negative.
+     * @throws NullArgumentException
+     *             If the weigher is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the maximum weight or a {@link #maximumSize(int) maximum
+     *             size} was already set.
+     */
+    public CacheMapMaker maximumWeight(final long weight, final Weigher<?, ?> weigher) {
+        if (this.maximumWeight != UNSET_INT) {
+            throw new IllegalStateException("maximum weight was already set to " + this.maximumWeight);
+        }
+        if (this.maximumSize != UNSET_INT) {
+            throw new IllegalStateException("maximum size was already set to " + this.maximumSize);
+        }
+        if (weight < 0) {
+            throw new IllegalArgumentException("maximumWeight must not be negative: " + weight);
+        }
+        if (weigher == null) {
+            throw new NullArgumentException("weigher");
+        }
+        this.maximumWeight = weight;
+        this.weigher = weigher;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Expires each entry once the given duration has passed since its value
+     * was computed or last replaced. An expired entry is never returned: the
+     * next request for its key computes the value again.
+     * </p>
+     * <p>
+     * Expired entries are reclaimed by a hierarchical timing wheel, which is
+     * advanced as a side effect of reads and writes; no extra thread is
+     * started, and the map is never scanned. Until its entry is reclaimed, an
+     * expired entry may still be counted by {@link CacheMap#size()}.
+     * </p>
+     *
+     * @param duration
+     *            How long entries live after being written.
+     * @param unit
+     *            The unit of the duration.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the duration is negative.
+     * @throws NullArgumentException
+     *             If the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the write expiration was already set.
+     */
+    public CacheMapMaker expireAfterWrite(final long duration, final TimeUnit unit) {
+        if (expireAfterWriteNanos != UNSET_INT) {
+            throw new IllegalStateException("expireAfterWrite was already set to " + expireAfterWriteNanos
+                    + " ns");
+        }
+        expireAfterWriteNanos = toNanos("expireAfterWrite", duration, unit);
+        return this;
+    }
+
+    /**
+     * Expires each entry once the given duration has passed since it was last
+     * read or written. Otherwise behaves like
+     * {@link #expireAfterWrite(long, TimeUnit)}, and the two may be combined:
+     * an entry then expires at whichever time comes first.
+     *
+     * @param duration
+     *            How long entries live after being used.
+     * @param unit
+     *            The unit of the duration.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the duration is negative.
+     * @throws NullArgumentException
+     *             If the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the access expiration was already set.
+     */
+    public CacheMapMaker expireAfterAccess(final long duration, final TimeUnit unit) {
+        if (expireAfterAccessNanos != UNSET_INT) {
+            throw new IllegalStateException("expireAfterAccess was already set to " + expireAfterAccessNanos
+                    + " ns");
+        }
+        expireAfterAccessNanos = toNanos("expireAfterAccess", duration, unit);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Reloads each entry in the background once the given duration has passed
+     * since its value was computed. The reload is triggered by the first read
+     * after that time; until it completes, that read and every other one keep
+     * getting the current value without waiting. Only one reload of an entry
+     * runs at a time, on the maker's {@link #executor(Executor) executor}.
+     * </p>
+     * <p>
+     * A successful reload replaces the value atomically, unless the entry was
+     * written or removed in the meantime. A reload that fails (the converter
+     * throws or returns <code>null</code>) keeps the current value, and is
+     * counted in {@link CacheMap#stats()}; the entry will be reloaded again by
+     * a later read.
+     * </p>
+     * <p>
+     * To keep popular entries from ever blocking their callers, make this
+     * shorter than any {@link #expireAfterWrite(long, TimeUnit) write
+     * expiration}.
+     * </p>
+     *
+     * @param duration
+     *            How long after being written entries become eligible for a
+     *            reload.
+     * @param unit
+     *            The unit of the duration.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the duration is not positive.
+     * @throws NullArgumentException
+     *             If the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the refresh interval was already set.
+     */
+    public CacheMapMaker refreshAfterWrite(final long duration, final TimeUnit unit) {
+        if (refreshAfterWriteNanos != UNSET_INT) {
+            throw new IllegalStateException("refreshAfterWrite was already set to " + refreshAfterWriteNanos
+                    + " ns");
+        }
+        final long nanos = toNanos("refreshAfterWrite", duration, unit);
+        if (nanos == 0) {
+            throw new IllegalArgumentException("refreshAfterWrite must be positive: " + duration + " " + unit);
+        }
+        refreshAfterWriteNanos = nanos;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Gathers the misses of concurrent {@link CacheMap#get(Object)} calls into
+     * batches, which are computed by a single call to the map's bulk loader
+     * (see {@link #makeCacheMap(Function, Function)}). Each caller still gets
+     * back only the value of its own key.
+     * </p>
+     * <p>
+     * A batch is loaded once it holds the maximum number of keys, or once the
+     * caller that opened it has waited for the maximum delay. That delay is
+     * added to the latency of a miss, in exchange for turning many single-key
+     * loads into a few batched ones; hits are not affected. No thread is
+     * started: batches are loaded by the callers.
+     * </p>
+     *
+     * @param maxBatchSize
+     *            The number of keys which causes a batch to be loaded right
+     *            away.
+     * @param maxDelay
+     *            The longest time a batch stays open.
+     * @param unit
+     *            The unit of the delay.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the batch size is not positive, or the delay is negative.
+     * @throws NullArgumentException
+     *             If the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If batching was already set up.
+     */
+    public CacheMapMaker batchMisses(final int maxBatchSize, final long maxDelay, final TimeUnit unit) {
+        if (this.maxBatchSize != UNSET_INT) {
+            throw new IllegalStateException("batching was already set to " + this.maxBatchSize + " keys");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        maxBatchDelayNanos = toNanos("maxDelay", maxDelay, unit);
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Caps the number of loads the map runs at once, so that a slow backend
+     * ties up no more than that many threads. Every call to the converter or
+     * bulk loader counts, including background refreshes. A look-up that
+     * would go over the cap does not wait: if the map still holds an expired
+     * value for the key, it gets that value, and otherwise it fails with a
+     * {@link java.util.concurrent.RejectedExecutionException}. A refresh that
+     * would go over the cap is skipped, and the current value stays until
+     * the next look-up tries again.
+     * </p>
+     * <p>
+     * A look-up waiting for another thread's load of the same key does not
+     * take a load of its own. The look-ups and refreshes that go over the cap
+     * are counted by {@link CacheStats#getLoadRejectionCount()}.
+     * </p>
+     *
+     * @param maxLoads
+     *            The most loads to run at once.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the cap is not positive.
+     * @throws IllegalStateException
+     *             If the cap was already set.
+     */
+    public CacheMapMaker maxConcurrentLoads(final int maxLoads) {
+        if (maxConcurrentLoads != UNSET_INT) {
+            throw new IllegalStateException("concurrent loads were already capped at " + maxConcurrentLoads);
+        }
+        if (maxLoads <= 0) {
+            throw new IllegalArgumentException("maxLoads must be positive: " + maxLoads);
+        }
+        maxConcurrentLoads = maxLoads;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Bounds how long a look-up waits for the converter. Each load of a single
+     * key is run on the map's {@link #executor(Executor) executor}, and a
+     * caller that has waited for the given time gives up: if the map still
+     * holds an expired value for the key, it gets that value, and otherwise it
+     * fails with a {@link LoadTimeoutException}. The load carries on, and
+     * caches its value when it is done; look-ups of the key in the meantime
+     * wait for that load rather than starting another.
+     * </p>
+     * <p>
+     * Since the loads that time out keep their threads, this must be combined
+     * with {@link #maxConcurrentLoads(int)}, which keeps them from adding up:
+     * a map built with a timeout and no cap fails with an
+     * {@link IllegalStateException}. Bulk loads and refreshes are not timed, as nobody waits for them
+     * alone. The look-ups that give up are counted by
+     * {@link CacheStats#getLoadTimeoutCount()}.
+     * </p>
+     *
+     * @param timeout
+     *            The longest time to wait for a load.
+     * @param unit
+     *            The unit of the time.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the time is negative.
+     * @throws NullArgumentException
+     *             If the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the timeout was already set.
+     */
+    public CacheMapMaker loadTimeout(final long timeout, final TimeUnit unit) {
+        if (loadTimeoutNanos != UNSET_INT) {
+            throw new IllegalStateException("load timeout was already set to " + loadTimeoutNanos + " ns");
+        }
+        loadTimeoutNanos = toNanos("timeout", timeout, unit);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Puts a small table of recently read entries in front of the map for
+     * each thread that reads it, for maps that are read far more often than
+     * they are written, by many threads at once. A look-up that hits the
+     * calling thread's table touches no memory that other threads write,
+     * whereas a hit on the shared map records itself with the eviction policy
+     * and the statistics.
+     * </p>
+     * <p>
+     * Every put, removal or refresh marks all the tables as out of date, which
+     * costs the writer one shared increment; each thread empties its table
+     * the next time it reads. Entries evicted for size stay in the tables
+     * until they are displaced, and entries due to expire or be refreshed are
+     * looked up in the shared map. One hit in eight on a table is passed on to
+     * the shared map, so that its eviction policy still sees the entries the
+     * tables hold; hits on the tables reach the statistics in batches. This
+     * cannot be combined with {@link #expireAfterAccess(long, TimeUnit)},
+     * which would need every hit to be recorded.
+     * </p>
+     *
+     * @param size
+     *            The number of entries each thread keeps, which is rounded up
+     *            to a power of two. Each key has one place in the table, so a
+     *            table a few times larger than the set of hot keys works best.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the size is not positive.
+     * @throws IllegalStateException
+     *             If the near cache was already set up.
+     */
+    public CacheMapMaker nearCache(final int size) {
+        if (nearCacheSize != UNSET_INT) {
+            throw new IllegalStateException("near cache was already set to " + nearCacheSize + " entries");
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        nearCacheSize = size;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Trims the map in small steps while the heap runs short, instead of
+     * leaving it to the garbage collector to clear entries, which it tends to
+     * do in bulk during a full collection and so sets off a storm of misses.
+     * The map watches the tenured heap through the usage thresholds of its
+     * {@link java.lang.management.MemoryPoolMXBean memory pool}: when the pool
+     * fills past the threshold, and again after each collection that leaves
+     * it above the threshold, each segment of the map evicts the given
+     * fraction of its entries, those its eviction policy values least first.
+     * </p>
+     * <p>
+     * The trimming runs on the map's {@link #executor(Executor) executor}, and
+     * the entries it evicts are counted as evictions. The map grows back as
+     * it is used, up to its maximum. A memory pool has a single threshold, so
+     * maps that ask for different ones are notified at the lowest, and each
+     * trims only while the pool is above its own.
+     * </p>
+     *
+     * @param threshold
+     *            The fraction of the pool's maximum size past which the map
+     *            is trimmed; for instance, 0.8 for 80%.
+     * @param step
+     *            The fraction of the entries evicted each time.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the threshold is not between 0 and 1, or the step is not
+     *             more than 0 and at most 1.
+     * @throws IllegalStateException
+     *             If trimming was already set up.
+     */
+    public CacheMapMaker trimOnMemoryPressure(final double threshold, final double step) {
+        if (memoryThreshold != UNSET_INT) {
+            throw new IllegalStateException("memory threshold was already set to " + memoryThreshold);
+        }
+        if (!(threshold > 0.0) || !(threshold < 1.0)) {
+            throw new IllegalArgumentException("threshold must be between 0 and 1: " + threshold);
+        }
+        if (!(step > 0.0) || !(step <= 1.0)) {
+            throw new IllegalArgumentException("step must be more than 0 and at most 1: " + step);
+        }
+        memoryThreshold = threshold;
+        trimStep = step;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Tags each entry with the groups it belongs to, so that
+     * {@link CacheMap#invalidateTag(Object)} can drop a whole group at once.
+     * Invalidating a tag does not look for its entries: it marks the tag with
+     * the time of the invalidation, and an entry stored before that time is
+     * treated as absent from then on, and reclaimed when it is next touched or
+     * evicted, or by the map's upkeep a few entries at a time.
+     * </p>
+     * <p>
+     * The map remembers every tag that it has seen, so tags should name a
+     * modest number of groups rather than individual entries. This cannot be
+     * combined with an {@link #offHeap(long, Serializer) off-heap} or
+     * {@link #diskTier(File, long, Serializer, Serializer) disk} tier, whose
+     * copies do not keep their tags.
+     * </p>
+     *
+     * @param tagger
+     *            Names the tags of each entry.
+     * @return This maker.
+     * @throws NullArgumentException
+     *             If the tagger is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the tagger was already set.
+     */
+    public CacheMapMaker tags(final Tagger<?, ?> tagger) {
+        if (this.tagger != null) {
+            throw new IllegalStateException("tagger was already set to " + this.tagger);
+        }
+        if (tagger == null) {
+            throw new NullArgumentException("tagger");
+        }
+        this.tagger = tagger;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Indexes the entries of a map keyed by {@link JConchMultiKey multikeys},
+     * such as {@link jconch.multikey.DuoKey} or {@link jconch.multikey.TriKey},
+     * by the given components of their keys, so that
+     * {@link CacheMap#invalidateWhereKey(int, Object)} finds the entries whose
+     * key has a given component without looking at the others. Keys that are
+     * not multikeys, or that have fewer components, are not indexed.
+     * </p>
+     * <p>
+     * Each segment of the map keeps its own index, under its own lock, so
+     * keeping the index up to date costs a hash table update whenever an
+     * entry is added or removed. This cannot be combined with an
+     * {@link #offHeap(long, Serializer) off-heap} or
+     * {@link #diskTier(File, long, Serializer, Serializer) disk} tier, which
+     * the index does not cover.
+     * </p>
+     *
+     * @param components
+     *            The positions of the components to index, starting from 1
+     *            for {@link jconch.multikey.UniKey#getKey1()}.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If no position is given, or a position is not positive.
+     * @throws IllegalStateException
+     *             If the indexed components were already set.
+     */
+    public CacheMapMaker indexKeyComponents(final int... components) {
+        if (indexedComponents != null) {
+            throw new IllegalStateException("indexed key components were already set to "
+                    + Arrays.toString(indexedComponents));
+        }
+        if ((components == null) || (components.length == 0)) {
+            throw new IllegalArgumentException("no key components to index");
+        }
+        final Set<Integer> distinct = new LinkedHashSet<Integer>();
+        for (final int component : components) {
+            if (component <= 0) {
+                throw new IllegalArgumentException("key components are numbered from 1: " + component);
+            }
+            distinct.add(component);
+        }
+        indexedComponents = new int[distinct.size()];
+        int i = 0;
+        for (final int component : distinct) {
+            indexedComponents[i++] = component;
+        }
+        return this;
+    }
+
+    /**
+     * <p>
+     * Remembers the keys for which the converter returned <code>null</code>,
+     * so that looking them up again returns <code>null</code> straight away
+     * instead of going back to the converter. Without this, a
+     * <code>null</code> result is an error.
+     * </p>
+     * <p>
+     * Absent keys are kept apart from the values, each marked by a shared
+     * sentinel, with their own limits: they usually deserve a shorter life
+     * than real values, and a flood of bad keys should not push real values
+     * out of the map. Putting a value for an absent key replaces its marker.
+     * {@link CacheMap#getAll(Iterable)} maps absent keys to <code>null</code>.
+     * </p>
+     *
+     * @param maximumSize
+     *            The most absent keys to remember, evicted like the values of
+     *            {@link #maximumSize(int)}.
+     * @param duration
+     *            How long to remember each absent key.
+     * @param unit
+     *            The unit of the duration.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the size or duration is negative.
+     * @throws NullArgumentException
+     *             If the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If null caching was already set up.
+     */
+    public CacheMapMaker cacheNulls(final int maximumSize, final long duration, final TimeUnit unit) {
+        if (this.maximumAbsentSize != UNSET_INT) {
+            throw new IllegalStateException("null caching was already set to " + this.maximumAbsentSize + " keys");
+        }
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+        }
+        expireAbsentAfterNanos = toNanos("duration", duration, unit);
+        this.maximumAbsentSize = maximumSize;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Adds a second tier of storage outside of the Java heap, for maps that
+     * hold more data than the garbage collector should have to trace. The
+     * entries that {@link #maximumSize(int)} evicts from the heap are
+     * serialized into direct memory instead of being dropped, and a miss on
+     * the heap looks there before computing the value: a value found there is
+     * deserialized back onto the heap, while direct memory keeps its copy
+     * until the value is written again. Only the keys and a small index entry
+     * per value stay on the heap.
+     * </p>
+     * <p>
+     * The memory is allocated in slabs as it is needed, up to the given
+     * budget, and each value is stored in the smallest of a range of chunk
+     * sizes that holds it. Once the budget is spent, the oldest values of that
+     * chunk size make room for new ones. Values larger than a slab (1 MB, or
+     * the budget per segment if smaller) and values that cannot be serialized
+     * are dropped.
+     * </p>
+     * <p>
+     * The map's views and size cover the heap only. A value brought back from
+     * direct memory counts as a miss in the statistics, but not as a load.
+     * </p>
+     *
+     * @param maxBytes
+     *            The budget of direct memory, shared evenly among the
+     *            segments.
+     * @param serializer
+     *            Converts the values to bytes and back.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the budget is not positive.
+     * @throws NullArgumentException
+     *             If the serializer is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the off-heap tier or a {@link #diskTier(File, long,
+     *             Serializer, Serializer) disk tier} was already set up.
+     */
+    public CacheMapMaker offHeap(final long maxBytes, final Serializer<?> serializer) {
+        if (this.serializer != null) {
+            throw new IllegalStateException("off-heap tier was already set to " + this.offHeapBytes + " bytes");
+        }
+        if (diskDirectory != null) {
+            throw new IllegalStateException("disk tier was already set to " + diskDirectory);
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (serializer == null) {
+            throw new NullArgumentException("serializer");
+        }
+        this.offHeapBytes = maxBytes;
+        this.serializer = serializer;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Adds a second tier of storage in files, which outlives the process. Every
+     * value the map stores is also written to a log of memory-mapped files in
+     * the given directory, and a miss on the heap looks there before
+     * computing the value: a value found there is deserialized back onto the
+     * heap. A map made later on the same directory, for instance after a
+     * restart, serves the values in the files from the start, and brings the
+     * ones that are asked for back to the heap.
+     * </p>
+     * <p>
+     * Writing a value to the files costs a serialization and a copy into the
+     * mapped memory; the operating system writes it to the disk in its own
+     * time, which survives the process dying but not the machine. Once the
+     * files reach the budget, the oldest file is deleted along with the values
+     * last written there. Values larger than a file (a sixteenth of the
+     * budget, between 64 KB and 64 MB) and values or keys that cannot be
+     * serialized are only kept on the heap.
+     * </p>
+     * <p>
+     * Equal keys must serialize to equal bytes. The values in the files keep
+     * the time they were written, so {@link #expireAfterWrite(long, TimeUnit)}
+     * still applies to them after a restart. The map's views and size cover
+     * the heap only. A value brought back from the files counts as a miss in
+     * the statistics, but not as a load.
+     * </p>
+     * <p>
+     * Only one map may use a directory at a time: {@link CacheMap#close()
+     * close} a map to release its files before making another on the same
+     * directory. {@link CacheMap#flush()} forces the files to the disk
+     * without closing them, and so does closing the map. The files of the
+     * maps still open when the JVM shuts down are forced to the disk then.
+     * </p>
+     *
+     * @param directory
+     *            The directory of the files, which is created if necessary.
+     * @param maxBytes
+     *            The most space that the files may take.
+     * @param keySerializer
+     *            Converts the keys to bytes and back.
+     * @param valueSerializer
+     *            Converts the values to bytes and back.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the budget is not positive.
+     * @throws NullArgumentException
+     *             If the directory or either serializer is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the disk tier or an {@link #offHeap(long, Serializer)
+     *             off-heap tier} was already set up.
+     */
+    public CacheMapMaker diskTier(final File directory, final long maxBytes, final Serializer<?> keySerializer,
+            final Serializer<?> valueSerializer) {
+        if (diskDirectory != null) {
+            throw new IllegalStateException("disk tier was already set to " + diskDirectory);
+        }
+        if (serializer != null) {
+            throw new IllegalStateException("off-heap tier was already set to " + offHeapBytes + " bytes");
+        }
+        if (directory == null) {
+            throw new NullArgumentException("directory");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (keySerializer == null) {
+            throw new NullArgumentException("keySerializer");
+        }
+        if (valueSerializer == null) {
+            throw new NullArgumentException("valueSerializer");
+        }
+        this.diskDirectory = directory;
+        this.diskBytes = maxBytes;
+        this.diskKeySerializer = keySerializer;
+        this.diskValueSerializer = valueSerializer;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Makes the map write the values put into it to the given writer in the
+     * background. A put stores its value in the map right away and queues it
+     * for the writer; a value put for a key that is still queued replaces the
+     * queued value, so the writer only sees the latest. The queued values are
+     * handed to the writer in batches, by a task on the map's
+     * {@link #executor(Executor) executor}, as soon as they fill a batch or
+     * once the oldest of them has waited for the maximum delay.
+     * </p>
+     * <p>
+     * The number of keys waiting to be written is bounded. Once the bound is
+     * reached, a put of another key writes a batch in the calling thread
+     * before it stores its value, so callers slow down to the pace of the
+     * writer rather than queueing without end; if the writer fails, the put
+     * throws its exception and stores nothing. A batch that fails in the
+     * background is tried again after the maximum delay.
+     * </p>
+     * <p>
+     * Only puts are written, including those through the map's views. Values
+     * the map loads are not, and neither removing a key nor its eviction
+     * cancels its queued write. {@link CacheMap#flushWrites()} writes
+     * everything that is queued, for instance before the application shuts
+     * down.
+     * </p>
+     *
+     * @param writer
+     *            Writes the batches.
+     * @param maxBatchSize
+     *            The most entries in a batch, and the number of queued keys
+     *            which causes a batch to be written right away.
+     * @param maxDelay
+     *            The longest time a value waits before it is written, unless
+     *            the writer is failing or falling behind.
+     * @param unit
+     *            The unit of the delay.
+     * @param maxPending
+     *            The most keys waiting to be written, which may not be less
+     *            than the batch size.
+     * @return This maker.
+     * @throws IllegalArgumentException
+     *             If the batch size is not positive, the delay is negative, or
+     *             the bound is less than the batch size.
+     * @throws NullArgumentException
+     *             If the writer or the unit is <code>null</code>.
+     * @throws IllegalStateException
+     *             If writing behind was already set up.
+     */
+    public CacheMapMaker writeBehind(final CacheWriter<?, ?> writer, final int maxBatchSize, final long maxDelay,
+            final TimeUnit unit, final int maxPending) {
+        if (cacheWriter != null) {
+            throw new IllegalStateException("writing behind was already set to " + cacheWriter);
+        }
+        if (writer == null) {
+            throw new NullArgumentException("writer");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        if (maxPending < maxBatchSize) {
+            throw new IllegalArgumentException("maxPending must be at least maxBatchSize: " + maxPending);
+        }
+        maxWriteDelayNanos = toNanos("maxDelay", maxDelay, unit);
+        this.cacheWriter = writer;
+        this.maxWriteBatchSize = maxBatchSize;
+        this.maxPendingWrites = maxPending;
+        return this;
+    }
+
+    /**
+     * Provides the executor on which the map runs its background work, such as
+     * {@link #refreshAfterWrite(long, TimeUnit) refreshes}. By default, a
+     * shared pool of daemon threads is used.
+     *
+     * @param executor
+     *            The executor to use.
+     * @return This maker.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the executor was already set.
+     */
+    public CacheMapMaker executor(final Executor executor) {
+        if (this.executor != null) {
+            throw new IllegalStateException("executor was already set to " + this.executor);
+        }
+        if (executor == null) {
+            throw new NullArgumentException("executor");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Replaces the time source, for tests.
+     */
+    CacheMapMaker ticker(final Ticker ticker) {
+        if (ticker == null) {
+            throw new NullArgumentException("ticker");
+        }
+        this.ticker = ticker;
+        return this;
+    }
+
+    private static long toNanos(final String name, final long duration, final TimeUnit unit) {
+        if (unit == null) {
+            throw new NullArgumentException("unit");
+        }
+        if (duration < 0) {
+            throw new IllegalArgumentException(name + " must not be negative: " + duration + " " + unit);
+        }
+        return unit.toNanos(duration);
+    }
+
+    /**
+     * Builds a cache map which uses its own internal set of locks.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If this maker batches misses, which needs a bulk loader.
+     */
+    public <KEY_T, VAL_T> CacheMap<KEY_T, VAL_T> makeCacheMap(final Function<KEY_T, VAL_T> converter) {
+        return makeCacheMap(converter, new SyncLogEqLock<KEY_T>());
+    }
+
+    /**
+     * Builds a cache map.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @param lockFactory
+     *            The source to be used for locking behaviors.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     */
+    public <KEY_T, VAL_T> CacheMap<KEY_T, VAL_T> makeCacheMap(final Function<KEY_T, VAL_T> converter,
+            final SyncLogEqLock<KEY_T> lockFactory) {
+        return new CacheMap<KEY_T, VAL_T>(converter, lockFactory, this);
+    }
+
+    /**
+     * Builds a cache map, which uses its own internal set of locks, and
+     * computes the misses of {@link CacheMap#getAll(Iterable)} in bulk.
+     *
+     * @param converter
+     *            The function that computes a single value.
+     * @param bulkLoader
+     *            The function that computes the values of many keys at once.
+     *            It is given the keys that are missing, and returns a map of
+     *            those keys to their values.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     */
+    public <KEY_T, VAL_T> CacheMap<KEY_T, VAL_T> makeCacheMap(final Function<KEY_T, VAL_T> converter,
+            final Function<Collection<KEY_T>, Map<KEY_T, VAL_T>> bulkLoader) {
+        return makeCacheMap(converter, bulkLoader, new SyncLogEqLock<KEY_T>());
+    }
+
+    /**
+     * Builds a cache map which computes the misses of
+     * {@link CacheMap#getAll(Iterable)} in bulk.
+     *
+     * @param converter
+     *            The function that computes a single value.
+     * @param bulkLoader
+     *            The function that computes the values of many keys at once.
+     *            It is given the keys that are missing, and returns a map of
+     *            those keys to their values.
+     * @param lockFactory
+     *            The source to be used for locking behaviors.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If any argument is <code>null</code>.
+     */
+    public <KEY_T, VAL_T> CacheMap<KEY_T, VAL_T> makeCacheMap(final Function<KEY_T, VAL_T> converter,
+            final Function<Collection<KEY_T>, Map<KEY_T, VAL_T>> bulkLoader, final SyncLogEqLock<KEY_T> lockFactory) {
+        if (bulkLoader == null) {
+            throw new NullArgumentException("bulkLoader");
+        }
+        return new CacheMap<KEY_T, VAL_T>(converter, bulkLoader, lockFactory, this);
+    }
+
+    /**
+     * Builds a cache map keyed by <code>long</code> values, which never boxes
+     * its keys.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If this maker asks for anything but a concurrency level and
+     *             a maximum size, which are all that such maps support.
+     */
+    public <VAL_T> LongCacheMap<VAL_T> makeLongCacheMap(final LongFunction<VAL_T> converter) {
+        return new LongCacheMap<VAL_T>(converter, this);
+    }
+
+    /**
+     * Builds a cache map keyed by <code>int</code> values, which never boxes
+     * its keys.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If this maker asks for anything but a concurrency level and
+     *             a maximum size, which are all that such maps support.
+     */
+    public <VAL_T> IntCacheMap<VAL_T> makeIntCacheMap(final IntFunction<VAL_T> converter) {
+        return new IntCacheMap<VAL_T>(converter, this);
+    }
+
+    /**
+     * Builds a cache map that packs its entries into arrays, for maps with so
+     * many entries that their bookkeeping dominates the heap.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @return A new cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If this maker asks for anything but a concurrency level and
+     *             a maximum size, which are all that such maps support.
+     */
+    public <KEY_T, VAL_T> CompactCacheMap<KEY_T, VAL_T> makeCompactCacheMap(final Function<KEY_T, VAL_T> converter) {
+        return new CompactCacheMap<KEY_T, VAL_T>(converter, this);
+    }
+
+    /**
+     * Builds an asynchronous cache map, whose look-ups run on this maker's
+     * {@link #executor(Executor) executor}.
+     *
+     * @param converter
+     *            The function that implements the caching behavior.
+     * @return A new asynchronous cache map with this maker's settings.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If this maker asks for refreshing, writing behind or
+     *             limiting loads, which asynchronous maps do not support.
+     */
+    public <KEY_T, VAL_T> AsyncCacheMap<KEY_T, VAL_T> makeAsyncCacheMap(final Function<KEY_T, VAL_T> converter) {
+        return new AsyncCacheMap<KEY_T, VAL_T>(converter, this);
+    }
+
+    int getConcurrencyLevel() {
+        return (concurrencyLevel == UNSET_INT) ? DEFAULT_CONCURRENCY_LEVEL : concurrencyLevel;
+    }
+
+    /**
+     * @return The name of the first setting that a {@link LongCacheMap} or a
+     *         {@link CompactCacheMap} cannot honor, or <code>null</code> if
+     *         there is none.
+     */
+    String getUnsupportedByPrimitiveMaps() {
+        if (weigher != null) {
+            return "maximumWeight";
+        }
+        if (expireAfterWriteNanos != UNSET_INT) {
+            return "expireAfterWrite";
+        }
+        if (expireAfterAccessNanos != UNSET_INT) {
+            return "expireAfterAccess";
+        }
+        if (refreshAfterWriteNanos != UNSET_INT) {
+            return "refreshAfterWrite";
+        }
+        if (batchesMisses()) {
+            return "batchMisses";
+        }
+        if (cachesNulls()) {
+            return "cacheNulls";
+        }
+        if (hasOffHeapTier()) {
+            return "offHeap";
+        }
+        if (hasDiskTier()) {
+            return "diskTier";
+        }
+        if (writesBehind()) {
+            return "writeBehind";
+        }
+        if (limitsLoads()) {
+            return "maxConcurrentLoads";
+        }
+        if (timesLoads()) {
+            return "loadTimeout";
+        }
+        if (hasNearCache()) {
+            return "nearCache";
+        }
+        if (trimsOnMemoryPressure()) {
+            return "trimOnMemoryPressure";
+        }
+        if (tagsEntries()) {
+            return "tags";
+        }
+        if (indexesKeyComponents()) {
+            return "indexKeyComponents";
+        }
+        return null;
+    }
+
+    boolean isBounded() {
+        return (maximumSize != UNSET_INT) || (maximumWeight != UNSET_INT);
+    }
+
+    /**
+     * @return The maximum size, or the maximum weight if the entries are
+     *         weighed.
+     */
+    long getMaximum() {
+        return (weigher == null) ? maximumSize : maximumWeight;
+    }
+
+    Weigher<?, ?> getWeigher() {
+        return weigher;
+    }
+
+    long getExpireAfterWriteNanos() {
+        return expireAfterWriteNanos;
+    }
+
+    long getExpireAfterAccessNanos() {
+        return expireAfterAccessNanos;
+    }
+
+    long getRefreshAfterWriteNanos() {
+        return refreshAfterWriteNanos;
+    }
+
+    boolean batchesMisses() {
+        return maxBatchSize != UNSET_INT;
+    }
+
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    long getMaxBatchDelayNanos() {
+        return maxBatchDelayNanos;
+    }
+
+    boolean hasOffHeapTier() {
+        return serializer != null;
+    }
+
+    long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    Serializer<?> getSerializer() {
+        return serializer;
+    }
+
+    boolean hasDiskTier() {
+        return diskDirectory != null;
+    }
+
+    File getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    long getDiskBytes() {
+        return diskBytes;
+    }
+
+    Serializer<?> getDiskKeySerializer() {
+        return diskKeySerializer;
+    }
+
+    Serializer<?> getDiskValueSerializer() {
+        return diskValueSerializer;
+    }
+
+    boolean hasNearCache() {
+        return nearCacheSize != UNSET_INT;
+    }
+
+    int getNearCacheSize() {
+        return nearCacheSize;
+    }
+
+    boolean trimsOnMemoryPressure() {
+        return memoryThreshold != UNSET_INT;
+    }
+
+    double getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    double getTrimStep() {
+        return trimStep;
+    }
+
+    boolean tagsEntries() {
+        return tagger != null;
+    }
+
+    Tagger<?, ?> getTagger() {
+        return tagger;
+    }
+
+    boolean indexesKeyComponents() {
+        return indexedComponents != null;
+    }
+
+    /**
+     * @return The positions of the indexed key components, or
+     *         <code>null</code> if there are none.
+     */
+    int[] getIndexedComponents() {
+        return (indexedComponents == null) ? null : indexedComponents.clone();
+    }
+
+    boolean limitsLoads() {
+        return maxConcurrentLoads != UNSET_INT;
+    }
+
+    int getMaxConcurrentLoads() {
+        return maxConcurrentLoads;
+    }
+
+    boolean timesLoads() {
+        return loadTimeoutNanos != UNSET_INT;
+    }
+
+    long getLoadTimeoutNanos() {
+        return loadTimeoutNanos;
+    }
+
+    boolean writesBehind() {
+        return cacheWriter != null;
+    }
+
+    CacheWriter<?, ?> getCacheWriter() {
+        return cacheWriter;
+    }
+
+    int getMaxWriteBatchSize() {
+        return maxWriteBatchSize;
+    }
+
+    long getMaxWriteDelayNanos() {
+        return maxWriteDelayNanos;
+    }
+
+    int getMaxPendingWrites() {
+        return maxPendingWrites;
+    }
+
+    boolean cachesNulls() {
+        return maximumAbsentSize != UNSET_INT;
+    }
+
+    /**
+     * @return The settings of the table of absent keys.
+     */
+    CacheMapMaker getAbsentSpec() {
+        final CacheMapMaker spec = new CacheMapMaker().concurrencyLevel(getConcurrencyLevel()).maximumSize(
+                maximumAbsentSize).expireAfterWrite(expireAbsentAfterNanos, TimeUnit.NANOSECONDS).ticker(getTicker());
+        if (indexedComponents != null) {
+            spec.indexKeyComponents(indexedComponents);
+        }
+        return spec;
+    }
+
+    Executor getExecutor() {
+        return (executor == null) ? DefaultExecutor.INSTANCE : executor;
+    }
+
+    Ticker getTicker() {
+        return (ticker == null) ? Ticker.SYSTEM : ticker;
+    }
+
+    /**
+     * Holds the default executor, which is only created when it is needed.
+     */
+    private static final class DefaultExecutor {
+
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "jconch-cache-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
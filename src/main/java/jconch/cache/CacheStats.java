@@ -0,0 +1,213 @@
+package jconch.cache;
+
+/**
+ * <p>
+ * An immutable snapshot of the activity of a {@link CacheMap}.
+ * </p>
+ * <p>
+ * The counts are gathered without locking, so a snapshot taken while the map
+ * is in use may be off by the operations in progress: for instance, a miss may
+ * be counted before its load is.
+ * </p>
+ *
+ * @author Robert Fischer
+ * @see CacheMap#stats()
+ * @see CacheMBeans
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+
+    private final long missCount;
+
+    private final long loadSuccessCount;
+
+    private final long loadFailureCount;
+
+    private final long totalLoadTime;
+
+    private final long sizeEvictionCount;
+
+    private final long expirationCount;
+
+    private final long refreshCount;
+
+    private final long refreshFailureCount;
+
+    private final long loadRejectionCount;
+
+    private final long loadTimeoutCount;
+
+    private final long estimatedSize;
+
+    CacheStats(final long hitCount, final long missCount, final long loadSuccessCount, final long loadFailureCount,
+            final long totalLoadTime, final long sizeEvictionCount, final long expirationCount,
+            final long refreshCount, final long refreshFailureCount, final long loadRejectionCount,
+            final long loadTimeoutCount, final long estimatedSize) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.sizeEvictionCount = sizeEvictionCount;
+        this.expirationCount = expirationCount;
+        this.refreshCount = refreshCount;
+        this.refreshFailureCount = refreshFailureCount;
+        this.loadRejectionCount = loadRejectionCount;
+        this.loadTimeoutCount = loadTimeoutCount;
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * @return The number of look-ups, whether they hit or missed.
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return The number of look-ups that found a cached value.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The fraction of look-ups that found a cached value, or 1 if
+     *         there have been none.
+     */
+    public double getHitRate() {
+        final long requestCount = getRequestCount();
+        return (requestCount == 0) ? 1.0 : ((double) hitCount / requestCount);
+    }
+
+    /**
+     * @return The number of look-ups that had to compute their value (or wait
+     *         for somebody else to).
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The fraction of look-ups that missed, or 0 if there have been
+     *         none.
+     */
+    public double getMissRate() {
+        final long requestCount = getRequestCount();
+        return (requestCount == 0) ? 0.0 : ((double) missCount / requestCount);
+    }
+
+    /**
+     * @return The number of calls to the converter or bulk loader.
+     */
+    public long getLoadCount() {
+        return loadSuccessCount + loadFailureCount;
+    }
+
+    /**
+     * @return The number of loads that provided a value.
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * @return The number of loads that threw an exception or returned
+     *         <code>null</code>.
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return The time spent loading, in nanoseconds.
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * @return The average time a load took, in nanoseconds, or 0 if there have
+     *         been none.
+     */
+    public double getAverageLoadPenalty() {
+        final long loadCount = getLoadCount();
+        return (loadCount == 0) ? 0.0 : ((double) totalLoadTime / loadCount);
+    }
+
+    /**
+     * @return The number of entries evicted by the map, for any reason.
+     *         Explicit removals are not counted.
+     */
+    public long getEvictionCount() {
+        return sizeEvictionCount + expirationCount;
+    }
+
+    /**
+     * @return The number of entries evicted to keep the map within its
+     *         maximum size.
+     */
+    public long getSizeEvictionCount() {
+        return sizeEvictionCount;
+    }
+
+    /**
+     * @return The number of entries reclaimed because they expired.
+     */
+    public long getExpirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * @return The number of background reloads that replaced a value.
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * @return The number of background reloads that failed, keeping the value
+     *         they were meant to replace.
+     */
+    public long getRefreshFailureCount() {
+        return refreshFailureCount;
+    }
+
+    /**
+     * @return The number of loads and refreshes that were not started because
+     *         the map was already running its maximum number of loads.
+     * @see CacheMapMaker#maxConcurrentLoads(int)
+     */
+    public long getLoadRejectionCount() {
+        return loadRejectionCount;
+    }
+
+    /**
+     * @return The number of look-ups that stopped waiting for a load because
+     *         it took longer than the map allows.
+     * @see CacheMapMaker#loadTimeout(long, java.util.concurrent.TimeUnit)
+     */
+    public long getLoadTimeoutCount() {
+        return loadTimeoutCount;
+    }
+
+    /**
+     * @return The number of entries in the map when the snapshot was taken,
+     *         which may include expired entries that have not been reclaimed
+     *         yet.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats[hitCount=" + hitCount + ", missCount=" + missCount + ", loadSuccessCount="
+                + loadSuccessCount + ", loadFailureCount=" + loadFailureCount + ", totalLoadTime=" + totalLoadTime
+                + ", sizeEvictionCount=" + sizeEvictionCount + ", expirationCount=" + expirationCount
+                + ", refreshCount=" + refreshCount + ", refreshFailureCount=" + refreshFailureCount
+                + ", loadRejectionCount=" + loadRejectionCount + ", loadTimeoutCount=" + loadTimeoutCount
+                + ", estimatedSize=" + estimatedSize + "]";
+    }
+}
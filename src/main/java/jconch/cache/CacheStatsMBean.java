@@ -0,0 +1,44 @@
+package jconch.cache;
+
+/**
+ * The management interface through which {@link CacheMBeans} publishes the
+ * {@link CacheStats} of a map. Each attribute reads a fresh snapshot.
+ *
+ * @author Robert Fischer
+ */
+public interface CacheStatsMBean {
+
+    long getRequestCount();
+
+    long getHitCount();
+
+    double getHitRate();
+
+    long getMissCount();
+
+    double getMissRate();
+
+    long getLoadSuccessCount();
+
+    long getLoadFailureCount();
+
+    long getTotalLoadTime();
+
+    double getAverageLoadPenalty();
+
+    long getEvictionCount();
+
+    long getSizeEvictionCount();
+
+    long getExpirationCount();
+
+    long getRefreshCount();
+
+    long getRefreshFailureCount();
+
+    long getLoadRejectionCount();
+
+    long getLoadTimeoutCount();
+
+    long getEstimatedSize();
+}
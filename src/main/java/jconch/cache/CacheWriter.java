@@ -0,0 +1,32 @@
+package jconch.cache;
+
+import java.util.Map;
+
+/**
+ * Persists the values put into a map in the background, for a map that writes
+ * behind (see
+ * {@link CacheMapMaker#writeBehind(CacheWriter, int, long, java.util.concurrent.TimeUnit, int)}).
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public interface CacheWriter<K, V> {
+
+    /**
+     * Writes a batch of entries. The map calls this from one thread at a time,
+     * in the order the values were put, and each key appears at most once,
+     * with the latest value put for it.
+     *
+     * @param entries
+     *            The entries to write, which must not be modified.
+     * @throws RuntimeException
+     *             If the batch could not be written. The map keeps the entries
+     *             and tries them again later, unless newer values were put for
+     *             them in the meantime.
+     */
+    void write(Map<K, V> entries);
+}
@@ -0,0 +1,438 @@
+package jconch.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * <p>
+ * The part of a {@link LongCacheMap} and a {@link CompactCacheMap} that does
+ * not depend on how their keys are stored: the segments, their open-addressed
+ * tables with removal markers, the "CLOCK" eviction, and the fixed set of
+ * locks that misses are computed under.
+ * </p>
+ * <p>
+ * A subclass supplies a {@link Table} that adds arrays for its keys, and does
+ * its own probing, since only it can compare keys. It probes a segment's
+ * {@link Segment#table} for the slot of a key, without locking for a read and
+ * under the segment's lock for a write, and hands the slot to the segment,
+ * which does the rest. A slot of <code>-1</code> stands for a key that has
+ * none.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <T>
+ *            The type of the tables, which hold the keys.
+ */
+abstract class ClockCache<T extends ClockCache.Table<T>> {
+
+    /**
+     * The number of locks that misses are computed under.
+     */
+    private static final int LOAD_LOCKS = 256;
+
+    /**
+     * Marks the slot of a key that was removed.
+     */
+    static final Object REMOVED = new Object();
+
+    final StatsCounter statsCounter = new StatsCounter();
+
+    private final Segment<T>[] segments;
+
+    private final int segmentShift;
+
+    private final int segmentMask;
+
+    private final Object[] loadLocks = new Object[LOAD_LOCKS];
+
+    /**
+     * Constructor.
+     *
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the settings ask for something other than a concurrency
+     *             level or a maximum size.
+     */
+    ClockCache(final CacheMapMaker spec) {
+        if (spec == null) {
+            throw new NullArgumentException("spec");
+        }
+        final String unsupported = spec.getUnsupportedByPrimitiveMaps();
+        if (unsupported != null) {
+            throw new IllegalStateException(unsupported + " is not supported by " + getClass().getName());
+        }
+        for (int i = 0; i < loadLocks.length; i++) {
+            loadLocks[i] = new Object();
+        }
+
+        int segmentCount = 1;
+        int shift = 0;
+        while (segmentCount < spec.getConcurrencyLevel()) {
+            segmentCount <<= 1;
+            shift++;
+        }
+        if (spec.isBounded()) {
+            while (segmentCount > 1 && (spec.getMaximum() / segmentCount) < LocalCache.MIN_SEGMENT_CAPACITY) {
+                segmentCount >>>= 1;
+                shift--;
+            }
+        }
+        segmentShift = 32 - shift;
+        segmentMask = segmentCount - 1;
+        segments = newSegmentArray(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            long capacity = Segment.UNBOUNDED;
+            if (spec.isBounded()) {
+                final long maximum = spec.getMaximum();
+                capacity = (maximum / segmentCount) + ((i < (maximum % segmentCount)) ? 1 : 0);
+            }
+            segments[i] = new Segment<T>(this, capacity);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Table<T>> Segment<T>[] newSegmentArray(final int size) {
+        return (Segment<T>[]) new Segment<?>[size];
+    }
+
+    /**
+     * Makes an empty table. This is called from the constructor, so it must
+     * not use the fields of the subclass.
+     *
+     * @param capacity
+     *            The number of slots, a power of two.
+     * @param evicts
+     *            Whether the table needs the flags of the clock.
+     */
+    abstract T newTable(int capacity, boolean evicts);
+
+    /**
+     * @return The segment of a key, chosen by the high bits of its hash.
+     */
+    final Segment<T> segmentFor(final int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    /**
+     * @return The lock to compute a missing key under, chosen by the low bits
+     *         of its hash, since the high ones chose the segment.
+     */
+    final Object loadLockFor(final int hash) {
+        return loadLocks[hash & (LOAD_LOCKS - 1)];
+    }
+
+    /**
+     * @return The number of entries in the map.
+     */
+    public int size() {
+        long size = 0;
+        for (final Segment<T> segment : segments) {
+            size += segment.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    public void clear() {
+        for (final Segment<T> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return The number of slots in the tables of the segments, live or not;
+     *         what the map costs is roughly proportional to it.
+     */
+    long slotCount() {
+        long slots = 0;
+        for (final Segment<T> segment : segments) {
+            slots += segment.table.mask + 1;
+        }
+        return slots;
+    }
+
+    /**
+     * Provides a snapshot of the activity of this map.
+     *
+     * @return The current statistics.
+     * @see CacheMap#stats()
+     */
+    public CacheStats stats() {
+        return statsCounter.snapshot(size());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size() + "]";
+    }
+
+    /**
+     * The slots of a segment. A new table replaces the old one whenever the
+     * segment rebuilds it. A subclass adds the arrays that hold the keys.
+     *
+     * @param <T>
+     *            The type of the subclass.
+     */
+    abstract static class Table<T extends Table<T>> {
+
+        /**
+         * The values: <code>null</code> for a free slot, {@link #REMOVED} for
+         * the slot of a removed key, or the value of the key in the slot.
+         * Setting a value publishes the key written before it.
+         */
+        final AtomicReferenceArray<Object> values;
+
+        /**
+         * Whether each entry was hit since the clock last passed it, or
+         * <code>null</code> if the segment does not evict. Written without
+         * the lock, since losing a write only costs accuracy.
+         */
+        final byte[] referenced;
+
+        final int mask;
+
+        Table(final int capacity, final boolean evicts) {
+            values = new AtomicReferenceArray<Object>(capacity);
+            referenced = evicts ? new byte[capacity] : null;
+            mask = capacity - 1;
+        }
+
+        /**
+         * @return The hash of the key in a slot.
+         */
+        abstract int hashAt(int slot);
+
+        /**
+         * Copies the key in a slot to a slot of another table.
+         */
+        abstract void copyKey(int slot, T to, int toSlot);
+    }
+
+    /**
+     * A share of the map's entries, with its own table and lock.
+     *
+     * @param <T>
+     *            The type of the table.
+     */
+    @SuppressWarnings("serial")
+    static final class Segment<T extends Table<T>> extends ReentrantLock {
+
+        static final long UNBOUNDED = -1L;
+
+        private static final int MIN_TABLE_SIZE = 16;
+
+        private final ClockCache<T> cache;
+
+        private final long maximum;
+
+        volatile T table;
+
+        /**
+         * The number of live entries. Written under the lock.
+         */
+        volatile int count;
+
+        /**
+         * The number of slots holding removed keys. Guarded by the lock.
+         */
+        private int removed;
+
+        /**
+         * Where the clock resumes its sweep. Guarded by the lock.
+         */
+        private int hand;
+
+        Segment(final ClockCache<T> cache, final long maximum) {
+            this.cache = cache;
+            this.maximum = maximum;
+            table = newTable(MIN_TABLE_SIZE);
+        }
+
+        private T newTable(final int capacity) {
+            return cache.newTable(capacity, maximum != UNBOUNDED);
+        }
+
+        /**
+         * Reads the value in a slot, without locking, and marks it as
+         * referenced.
+         *
+         * @param t
+         *            The table that was probed.
+         * @return The value, or <code>null</code> if the key has none.
+         */
+        Object hit(final T t, final int slot) {
+            if (slot < 0) {
+                return null;
+            }
+            final Object value = t.values.get(slot);
+            if (value == REMOVED) {
+                return null;
+            }
+            if (t.referenced != null) {
+                t.referenced[slot] = 1;
+            }
+            return value;
+        }
+
+        /**
+         * Replaces the value in a slot, if it holds a live entry. Called under
+         * the lock.
+         *
+         * @return The previous value, or <code>null</code> if the slot holds
+         *         none.
+         */
+        Object replace(final int slot, final Object value) {
+            if (slot < 0) {
+                return null;
+            }
+            final Object old = table.values.get(slot);
+            if (old == REMOVED) {
+                return null;
+            }
+            table.values.set(slot, value);
+            return old;
+        }
+
+        /**
+         * Makes room for a new entry, evicting an entry first if the segment
+         * is full, and claims a slot for it. Called under the lock; the caller
+         * then writes the key, if the slot is not the key's own, into the
+         * current {@link #table}, and calls {@link #fill(int, Object)}.
+         *
+         * @param slot
+         *            The slot the key kept when it was removed, or
+         *            <code>-1</code>.
+         * @return The slot, or <code>-1</code> if the segment holds nothing.
+         */
+        int claim(final int slot, final int hash) {
+            if (maximum != UNBOUNDED) {
+                if (maximum == 0) {
+                    cache.statsCounter.recordSizeEviction();
+                    return -1;
+                }
+                if (count >= maximum) {
+                    evict(table);
+                }
+            }
+            if (slot >= 0) {
+                // Take back the slot the key had before it was removed.
+                removed--;
+                return slot;
+            }
+            T t = table;
+            if (((count + removed + 1) << 2) > (t.mask + 1) * 3) {
+                t = rebuild(t);
+            }
+            return freeSlot(t, hash);
+        }
+
+        /**
+         * Sets the value of a claimed slot, which publishes its key. Called
+         * under the lock.
+         */
+        void fill(final int slot, final Object value) {
+            final T t = table;
+            if (t.referenced != null) {
+                t.referenced[slot] = 0;
+            }
+            t.values.set(slot, value);
+            count++;
+        }
+
+        /**
+         * Removes the entry in a slot, leaving a marker. Called under the
+         * lock.
+         *
+         * @return The value, or <code>null</code> if there was none.
+         */
+        Object remove(final int slot) {
+            if (slot < 0) {
+                return null;
+            }
+            final Object old = table.values.get(slot);
+            if (old == REMOVED) {
+                return null;
+            }
+            table.values.set(slot, REMOVED);
+            count--;
+            removed++;
+            return old;
+        }
+
+        void clear() {
+            lock();
+            try {
+                table = newTable(MIN_TABLE_SIZE);
+                count = 0;
+                removed = 0;
+                hand = 0;
+            } finally {
+                unlock();
+            }
+        }
+
+        private static <T extends Table<T>> int freeSlot(final T t, final int hash) {
+            int i = hash & t.mask;
+            while (t.values.get(i) != null) {
+                i = (i + 1) & t.mask;
+            }
+            return i;
+        }
+
+        /**
+         * Sweeps the clock until it finds an entry that was not hit since it
+         * last passed, and evicts that entry. The key stays in its slot until
+         * the next rebuild, but the value is let go at once.
+         */
+        private void evict(final T t) {
+            while (true) {
+                final int i = hand;
+                hand = (hand + 1) & t.mask;
+                final Object value = t.values.get(i);
+                if ((value == null) || (value == REMOVED)) {
+                    continue;
+                }
+                if (t.referenced[i] != 0) {
+                    t.referenced[i] = 0;
+                    continue;
+                }
+                t.values.set(i, REMOVED);
+                count--;
+                removed++;
+                cache.statsCounter.recordSizeEviction();
+                return;
+            }
+        }
+
+        /**
+         * Copies the live entries into a new table with room to grow, dropping
+         * the removed keys, and publishes it. Readers use the old table until
+         * then, and find the same values there.
+         */
+        private T rebuild(final T old) {
+            int capacity = MIN_TABLE_SIZE;
+            while (capacity < ((count + 1) << 1)) {
+                capacity <<= 1;
+            }
+            final T t = newTable(capacity);
+            for (int i = 0; i <= old.mask; i++) {
+                final Object value = old.values.get(i);
+                if ((value != null) && (value != REMOVED)) {
+                    final int slot = freeSlot(t, old.hashAt(i));
+                    old.copyKey(i, t, slot);
+                    if (t.referenced != null) {
+                        t.referenced[slot] = old.referenced[i];
+                    }
+                    t.values.lazySet(slot, value);
+                }
+            }
+            removed = 0;
+            hand = 0;
+            table = t;
+            return t;
+        }
+    }
+}
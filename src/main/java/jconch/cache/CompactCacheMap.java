@@ -0,0 +1,278 @@
+package jconch.cache;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * A cache of values computed from keys, for maps with so many entries that
+ * the bookkeeping of each one dominates the heap. A {@link CacheMap} gives
+ * every entry a node of its own in a hash table, with its times and policy
+ * links, and a lock for the entry's key while it is computed; this map keeps
+ * no object per entry at all. It works like a {@link LongCacheMap}, but for
+ * any kind of key.
+ * </p>
+ * <p>
+ * The entries are split among segments by hash. Each segment packs its
+ * entries into parallel arrays, with linear probing: the hash codes in an
+ * <code>int[]</code>, so that a probe compares keys only when their hashes
+ * match and a rebuild never calls {@link Object#hashCode()}, and the keys and
+ * the values in arrays of references. Once a key has a slot, the slot belongs
+ * to it until the table is rebuilt: a removal leaves the key in place with a
+ * marker for a value, so a reader that finds the key in a slot knows that the
+ * value beside it is the key's own.
+ * </p>
+ * <p>
+ * Reads take no lock. Writes take the segment's lock, and rebuild the table
+ * once live entries and removal markers fill three quarters of it. The new
+ * table is filled while readers keep using the old one, and replaces it in a
+ * single write, so a resize never blocks a read, nor the writes to the other
+ * segments.
+ * </p>
+ * <p>
+ * A bounded map (see {@link CacheMapMaker#maximumSize(int)}) evicts with the
+ * "CLOCK" policy, and computes misses under a fixed set of locks chosen by
+ * hash, as a {@link LongCacheMap} does. Only the
+ * {@link CacheMapMaker#concurrencyLevel(int) concurrency level} and
+ * {@link CacheMapMaker#maximumSize(int) maximum size} settings apply to this
+ * class.
+ * </p>
+ *
+ * @author Robert Fischer
+ * @see CacheMapMaker#makeCompactCacheMap(Function)
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public final class CompactCacheMap<K, V> extends ClockCache<CompactCacheMap.CompactTable> {
+
+    private final Function<K, V> converter;
+
+    /**
+     * Constructs an unbounded map.
+     *
+     * @param converter
+     *            Computes the values.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     */
+    public CompactCacheMap(final Function<K, V> converter) {
+        this(converter, new CacheMapMaker());
+    }
+
+    /**
+     * Constructs a map with the given settings.
+     *
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the settings ask for something other than a concurrency
+     *             level or a maximum size.
+     */
+    CompactCacheMap(final Function<K, V> converter, final CacheMapMaker spec) {
+        super(spec);
+        if (converter == null) {
+            throw new NullArgumentException("converter");
+        }
+        this.converter = converter;
+    }
+
+    @Override
+    CompactTable newTable(final int capacity, final boolean evicts) {
+        return new CompactTable(capacity, evicts);
+    }
+
+    private static int hash(final Object key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        return LocalCache.rehash(key);
+    }
+
+    /**
+     * @return The slot of the key, live or removed, or -1 if it has none.
+     */
+    private static int find(final CompactTable t, final Object key, final int hash) {
+        for (int i = hash & t.mask;; i = (i + 1) & t.mask) {
+            if (t.values.get(i) == null) {
+                return -1;
+            }
+            if (t.hashes[i] == hash) {
+                final Object other = t.keys[i];
+                if ((other == key) || other.equals(key)) {
+                    return i;
+                }
+            }
+        }
+    }
+
+    private static Object present(final Segment<CompactTable> segment, final Object key, final int hash) {
+        final CompactTable t = segment.table;
+        return segment.hit(t, find(t, key, hash));
+    }
+
+    /**
+     * Provides the value for the key, computing it if it is not present.
+     *
+     * @throws NullPointerException
+     *             If the key is <code>null</code>, or if the converter returns
+     *             <code>null</code>.
+     */
+    public V get(final K key) {
+        final int hash = hash(key);
+        final Segment<CompactTable> segment = segmentFor(hash);
+        final Object value = present(segment, key, hash);
+        if (value != null) {
+            statsCounter.recordHits(1);
+            return cast(value);
+        }
+        statsCounter.recordMisses(1);
+        return load(key, hash, segment);
+    }
+
+    /**
+     * Computes the value of a missing key under the key's lock. A thread that
+     * was waiting on the lock finds the value another thread computed.
+     */
+    private V load(final K key, final int hash, final Segment<CompactTable> segment) {
+        synchronized (loadLockFor(hash)) {
+            final Object present = present(segment, key, hash);
+            if (present != null) {
+                return cast(present);
+            }
+            final long start = System.nanoTime();
+            final V value;
+            try {
+                value = converter.apply(key);
+            } catch (final RuntimeException e) {
+                statsCounter.recordLoadFailure(System.nanoTime() - start);
+                throw e;
+            } catch (final Error e) {
+                statsCounter.recordLoadFailure(System.nanoTime() - start);
+                throw e;
+            }
+            if (value == null) {
+                statsCounter.recordLoadFailure(System.nanoTime() - start);
+                throw new NullPointerException("converter returned null for key: " + key);
+            }
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            store(segment, key, hash, value);
+            return value;
+        }
+    }
+
+    /**
+     * Provides the value for the key if it is present, without computing it or
+     * counting the look-up in the statistics.
+     *
+     * @return The value, or <code>null</code> if there is none.
+     * @throws NullPointerException
+     *             If the key is <code>null</code>.
+     */
+    public V getIfPresent(final Object key) {
+        final int hash = hash(key);
+        return cast(present(segmentFor(hash), key, hash));
+    }
+
+    public boolean containsKey(final Object key) {
+        return (key != null) && (getIfPresent(key) != null);
+    }
+
+    /**
+     * Stores a value, replacing the value of the key if it has one.
+     *
+     * @return The previous value, or <code>null</code> if there was none.
+     * @throws NullPointerException
+     *             If the key or the value is <code>null</code>.
+     */
+    public V put(final K key, final V value) {
+        final int hash = hash(key);
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        return cast(store(segmentFor(hash), key, hash, value));
+    }
+
+    private static Object store(final Segment<CompactTable> segment, final Object key, final int hash,
+            final Object value) {
+        segment.lock();
+        try {
+            final int found = find(segment.table, key, hash);
+            final Object old = segment.replace(found, value);
+            if (old != null) {
+                return old;
+            }
+            final int slot = segment.claim(found, hash);
+            if (slot >= 0) {
+                if (found < 0) {
+                    final CompactTable t = segment.table;
+                    t.hashes[slot] = hash;
+                    t.keys[slot] = key;
+                }
+                segment.fill(slot, value);
+            }
+            return null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return The value, or <code>null</code> if there was none.
+     */
+    public V remove(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        final int hash = hash(key);
+        final Segment<CompactTable> segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return cast(segment.remove(find(segment.table, key, hash)));
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(final Object value) {
+        return (V) value;
+    }
+
+    /**
+     * A table whose keys are kept in an array of references, beside their
+     * hash codes.
+     */
+    static final class CompactTable extends ClockCache.Table<CompactTable> {
+
+        /**
+         * The hash codes of the keys, as spread by
+         * {@link LocalCache#rehash(Object)}.
+         */
+        final int[] hashes;
+
+        final Object[] keys;
+
+        CompactTable(final int capacity, final boolean evicts) {
+            super(capacity, evicts);
+            hashes = new int[capacity];
+            keys = new Object[capacity];
+        }
+
+        @Override
+        int hashAt(final int slot) {
+            return hashes[slot];
+        }
+
+        @Override
+        void copyKey(final int slot, final CompactTable to, final int toSlot) {
+            to.hashes[toSlot] = hashes[slot];
+            to.keys[toSlot] = keys[slot];
+        }
+    }
+}
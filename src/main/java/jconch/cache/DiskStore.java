@@ -0,0 +1,724 @@
+package jconch.cache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Keeps serialized entries in files, so that they outlive the process. The
+ * entries are appended to a log that is split into segment files of equal
+ * size, each of which is mapped into memory: writing an entry is a copy into
+ * the mapping, and the operating system writes the pages back to the file in
+ * its own time, even if the process dies. A write of a key that is already
+ * stored appends a new record, and a removal appends a "tombstone" record, so
+ * a file is never written anywhere but at its end.
+ * </p>
+ * <p>
+ * Once the files would take more than the budget, the oldest file is deleted,
+ * along with any entries whose latest record it still holds. Records that
+ * were overwritten are not reclaimed before then.
+ * </p>
+ * <p>
+ * The keys stay on disk too: the index on the heap is an open-addressing table
+ * holding only the hash of each key's bytes and the position of its latest
+ * record, and a look-up compares the key's bytes with those of the records
+ * whose hash matches. The keys therefore have to serialize to the same bytes
+ * whenever they are equal. The index is rebuilt by reading the log when the
+ * store is opened, and each record carries a checksum, so a record that was
+ * only partly written when the process died ends the log of its file.
+ * </p>
+ * <p>
+ * Only one store may use a directory at a time: a store has to be
+ * {@link #close() closed}, which forces its files to the disk and unmaps them,
+ * before another opens the directory. The stores still open when the JVM shuts
+ * down are forced to the disk then. The methods of this class are
+ * synchronized, but serialization happens outside of the lock.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+final class DiskStore<K, V> {
+
+    /**
+     * The largest segment file.
+     */
+    static final int MAX_FILE_SIZE = 1 << 26;
+
+    /**
+     * The smallest segment file, unless the budget itself is smaller.
+     */
+    private static final int MIN_FILE_SIZE = 1 << 16;
+
+    private static final String SUFFIX = ".log";
+
+    /**
+     * The record header: its length, the checksum of the rest of the record,
+     * the wall-clock time of the write, the length of the key, and the length
+     * of the value (or {@link #TOMBSTONE}).
+     */
+    private static final int HEADER_SIZE = 24;
+
+    private static final int TOMBSTONE = -1;
+
+    /**
+     * The stores that are open, held weakly, which are forced to the disk
+     * when the JVM shuts down. Guarded by itself.
+     */
+    private static final Map<DiskStore<?, ?>, Boolean> OPEN = new WeakHashMap<DiskStore<?, ?>, Boolean>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("DiskStore shutdown") {
+            @Override
+            public void run() {
+                final List<DiskStore<?, ?>> stores;
+                synchronized (OPEN) {
+                    stores = new ArrayList<DiskStore<?, ?>>(OPEN.keySet());
+                }
+                for (final DiskStore<?, ?> store : stores) {
+                    store.force();
+                }
+            }
+        });
+    }
+
+    private final File directory;
+
+    private final Serializer<K> keySerializer;
+
+    private final Serializer<V> valueSerializer;
+
+    private final int fileSize;
+
+    private final int maxFiles;
+
+    /**
+     * The open segment files, oldest first; the last one takes the writes.
+     */
+    private final List<LogFile> files = new ArrayList<LogFile>();
+
+    private int nextFileId;
+
+    /**
+     * The hashes of the stored keys' bytes (never 0), or 0 for a free slot.
+     */
+    private int[] hashes = new int[16];
+
+    /**
+     * The addresses of the latest records of the stored keys, each holding the
+     * file's id in the high word and the record's offset in the low word.
+     */
+    private long[] addresses = new long[16];
+
+    private int size;
+
+    /**
+     * Whether {@link #close()} was called; guarded by this.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor. Opens the segment files already in the directory, creating
+     * it if necessary, and indexes their entries.
+     *
+     * @param directory
+     *            The directory of the segment files.
+     * @param budget
+     *            The most bytes that the files may take.
+     * @throws IllegalStateException
+     *             If the files cannot be opened.
+     */
+    DiskStore(final File directory, final long budget, final Serializer<K> keySerializer,
+            final Serializer<V> valueSerializer) {
+        this.directory = directory;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        final long preferred = Math.min(Math.max(budget / 16, MIN_FILE_SIZE), MAX_FILE_SIZE);
+        fileSize = (int) Math.max(HEADER_SIZE, Math.min(budget, preferred));
+        maxFiles = (int) Math.max(1L, Math.min(budget / fileSize, Integer.MAX_VALUE));
+        try {
+            open();
+        } catch (final IOException e) {
+            throw new IllegalStateException("could not open the disk tier in " + directory, e);
+        }
+        synchronized (OPEN) {
+            OPEN.put(this, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Maps the existing segment files in order and replays their records.
+     */
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create directory " + directory);
+        }
+        final File[] existing = directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                return file.isFile() && (fileIdOf(file) >= 0);
+            }
+        });
+        Arrays.sort(existing, new Comparator<File>() {
+            public int compare(final File a, final File b) {
+                final int x = fileIdOf(a);
+                final int y = fileIdOf(b);
+                return (x < y) ? -1 : ((x == y) ? 0 : 1);
+            }
+        });
+        for (final File file : existing) {
+            final LogFile log = new LogFile(fileIdOf(file), file, map(file, file.length()));
+            files.add(log);
+            nextFileId = log.id + 1;
+            replay(log);
+        }
+        while (files.size() > maxFiles) {
+            dropOldestFile();
+        }
+    }
+
+    /**
+     * Indexes the records of a file, and finds where its log ends.
+     */
+    private void replay(final LogFile log) {
+        final MappedByteBuffer buffer = log.buffer;
+        int offset = 0;
+        while (offset <= (buffer.capacity() - HEADER_SIZE)) {
+            final int length = buffer.getInt(offset);
+            if ((length < HEADER_SIZE) || (length > (buffer.capacity() - offset))
+                    || (buffer.getInt(offset + 4) != checksum(buffer, offset, length))) {
+                break;
+            }
+            final int keyLength = buffer.getInt(offset + 16);
+            final int valueLength = buffer.getInt(offset + 20);
+            if ((keyLength < 0) || (valueLength < TOMBSTONE)
+                    || (length != (HEADER_SIZE + keyLength + Math.max(valueLength, 0)))) {
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            read(buffer, offset + HEADER_SIZE, key);
+            final long address = address(log.id, offset);
+            if (valueLength == TOMBSTONE) {
+                final int slot = find(key, hash(key));
+                if (slot >= 0) {
+                    removeAt(slot);
+                }
+            } else {
+                index(key, address);
+            }
+            offset += length;
+        }
+        log.position = offset;
+        if ((offset <= (buffer.capacity() - 4)) && (buffer.getInt(offset) != 0)) {
+            // Clear what follows a torn record, so that records appended over
+            // it can never line up with stale ones.
+            write(buffer, offset, new byte[buffer.capacity() - offset]);
+        }
+    }
+
+    /**
+     * Reads the value of a key.
+     *
+     * @return The serialized value and the wall-clock time at which it was
+     *         written, or <code>null</code> if the key is not stored.
+     */
+    Copy read(final K key) {
+        final byte[] keyBytes = serializeKey(key);
+        if (keyBytes == null) {
+            return null;
+        }
+        synchronized (this) {
+            checkOpen();
+            final int slot = find(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                return null;
+            }
+            final long address = addresses[slot];
+            final MappedByteBuffer buffer = fileOf(address).buffer;
+            final int offset = offsetOf(address);
+            final byte[] value = new byte[buffer.getInt(offset + 20)];
+            read(buffer, offset + HEADER_SIZE + keyBytes.length, value);
+            return new Copy(value, buffer.getLong(offset + 8));
+        }
+    }
+
+    /**
+     * Converts a value read by {@link #read(Object)}.
+     */
+    V deserialize(final byte[] bytes) {
+        return valueSerializer.deserialize(bytes);
+    }
+
+    /**
+     * Stores the value of a key, replacing any value it had. If the entry
+     * cannot be written, the key is removed instead, so that an older value
+     * is never read back.
+     *
+     * @return Whether the value was stored.
+     */
+    boolean write(final K key, final V value) {
+        final byte[] keyBytes = serializeKey(key);
+        if (keyBytes == null) {
+            return false;
+        }
+        byte[] valueBytes;
+        try {
+            valueBytes = valueSerializer.serialize(value);
+        } catch (final RuntimeException e) {
+            valueBytes = null;
+        }
+        synchronized (this) {
+            checkOpen();
+            if ((valueBytes != null) && (append(keyBytes, valueBytes, System.currentTimeMillis()) >= 0)) {
+                return true;
+            }
+            remove(keyBytes);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the value of a key.
+     */
+    void remove(final Object key) {
+        @SuppressWarnings("unchecked")
+        final byte[] keyBytes = serializeKey((K) key);
+        if (keyBytes != null) {
+            synchronized (this) {
+                checkOpen();
+                remove(keyBytes);
+            }
+        }
+    }
+
+    private void remove(final byte[] keyBytes) {
+        final int slot = find(keyBytes, hash(keyBytes));
+        if (slot >= 0) {
+            removeAt(slot);
+            // Without a tombstone, the old record would come back on restart.
+            append(keyBytes, null, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Removes all of the entries, deleting all but an empty segment file.
+     */
+    synchronized void clear() {
+        checkOpen();
+        while (files.size() > 1) {
+            dropOldestFile();
+        }
+        if (!files.isEmpty()) {
+            final LogFile log = files.get(0);
+            write(log.buffer, 0, new byte[log.position]);
+            log.position = 0;
+        }
+        Arrays.fill(hashes, 0);
+        size = 0;
+    }
+
+    /**
+     * @return The number of keys stored.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    synchronized int fileCount() {
+        return files.size();
+    }
+
+    /**
+     * Writes all changes to the files out to the disk. A closed store has
+     * nothing to write.
+     */
+    synchronized void force() {
+        for (final LogFile log : files) {
+            log.buffer.force();
+        }
+    }
+
+    /**
+     * Forces the files to the disk and unmaps them, so that another store may
+     * open the directory. The store cannot be used afterwards; closing it
+     * again does nothing.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+        for (final LogFile log : files) {
+            unmap(log.buffer);
+        }
+        files.clear();
+        synchronized (OPEN) {
+            OPEN.remove(this);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             If the store was closed.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("the disk tier in " + directory + " is closed");
+        }
+    }
+
+    private byte[] serializeKey(final K key) {
+        try {
+            return keySerializer.serialize(key);
+        } catch (final RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends a record, rolling over to a new segment file if it does not fit
+     * in the current one, and indexes it.
+     *
+     * @param value
+     *            The serialized value, or <code>null</code> for a tombstone.
+     * @return The address of the record, or -1 if it could not be written.
+     */
+    private long append(final byte[] key, final byte[] value, final long time) {
+        final long length = (long) HEADER_SIZE + key.length + ((value == null) ? 0 : value.length);
+        if (length > fileSize) {
+            return -1L;
+        }
+        LogFile log = files.isEmpty() ? null : files.get(files.size() - 1);
+        if ((log == null) || ((log.buffer.capacity() - log.position) < length)) {
+            try {
+                log = roll();
+            } catch (final IOException e) {
+                return -1L;
+            }
+        }
+
+        final MappedByteBuffer buffer = log.buffer;
+        final int offset = log.position;
+        buffer.putLong(offset + 8, time);
+        buffer.putInt(offset + 16, key.length);
+        buffer.putInt(offset + 20, (value == null) ? TOMBSTONE : value.length);
+        write(buffer, offset + HEADER_SIZE, key);
+        if (value != null) {
+            write(buffer, offset + HEADER_SIZE + key.length, value);
+        }
+        // The length goes in last, so that a torn record fails its checksum.
+        buffer.putInt(offset + 4, checksum(buffer, offset, (int) length));
+        buffer.putInt(offset, (int) length);
+        log.position += (int) length;
+
+        final long address = address(log.id, offset);
+        if (value != null) {
+            index(key, address);
+        }
+        return address;
+    }
+
+    /**
+     * Starts a new segment file, deleting the oldest if there are too many.
+     */
+    private LogFile roll() throws IOException {
+        if (files.size() >= maxFiles) {
+            dropOldestFile();
+        }
+        final int id = nextFileId++;
+        final File file = new File(directory, String.format("%08d", id) + SUFFIX);
+        final LogFile log = new LogFile(id, file, map(file, fileSize));
+        files.add(log);
+        return log;
+    }
+
+    /**
+     * Deletes the oldest segment file, and forgets the entries whose latest
+     * records are in it.
+     */
+    private void dropOldestFile() {
+        final LogFile oldest = files.remove(0);
+        final int[] oldHashes = hashes;
+        final long[] oldAddresses = addresses;
+        hashes = new int[oldHashes.length];
+        addresses = new long[oldAddresses.length];
+        size = 0;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if ((oldHashes[i] != 0) && (fileIdOf(oldAddresses[i]) != oldest.id)) {
+                insert(oldHashes[i], oldAddresses[i]);
+            }
+        }
+        unmap(oldest.buffer);
+        oldest.file.delete();
+    }
+
+    /**
+     * Releases a mapping now, where the JVM lets us, rather than once the
+     * buffer is garbage collected; on some platforms the file's space is only
+     * reclaimed then. The buffer must not be touched again.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later.
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (final Exception e) {
+            // Try the older way.
+        }
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (final Exception e) {
+            // The mapping goes once the buffer is garbage collected.
+        }
+    }
+
+    private static MappedByteBuffer map(final File file, final long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Points the key's slot at a new record, adding the key if necessary.
+     */
+    private void index(final byte[] key, final long address) {
+        final int hash = hash(key);
+        final int slot = find(key, hash);
+        if (slot >= 0) {
+            addresses[slot] = address;
+        } else {
+            if ((size + 1) > (hashes.length >>> 1)) {
+                resize();
+            }
+            insert(hash, address);
+        }
+    }
+
+    /**
+     * @return The slot of the key, or -1 if it is not stored.
+     */
+    private int find(final byte[] key, final int hash) {
+        final int mask = hashes.length - 1;
+        for (int i = hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if ((hashes[i] == hash) && keyEquals(addresses[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(final long address, final byte[] key) {
+        final MappedByteBuffer buffer = fileOf(address).buffer;
+        final int offset = offsetOf(address);
+        if (buffer.getInt(offset + 16) != key.length) {
+            return false;
+        }
+        final int start = offset + HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(final int hash, final long address) {
+        final int mask = hashes.length - 1;
+        int i = hash & mask;
+        while (hashes[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        addresses[i] = address;
+        size++;
+    }
+
+    /**
+     * Empties a slot, shifting back the entries of the probe sequence that
+     * follows it, so that look-ups never need markers for removed keys.
+     */
+    private void removeAt(final int slot) {
+        final int mask = hashes.length - 1;
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            if (hashes[i] == 0) {
+                break;
+            }
+            final int home = hashes[i] & mask;
+            // Move the entry back unless its home lies cyclically in (hole, i].
+            final boolean stays = (hole <= i) ? ((hole < home) && (home <= i)) : ((hole < home) || (home <= i));
+            if (!stays) {
+                hashes[hole] = hashes[i];
+                addresses[hole] = addresses[i];
+                hole = i;
+            }
+        }
+        hashes[hole] = 0;
+        size--;
+    }
+
+    private void resize() {
+        final int[] oldHashes = hashes;
+        final long[] oldAddresses = addresses;
+        hashes = new int[oldHashes.length << 1];
+        addresses = new long[oldAddresses.length << 1];
+        size = 0;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                insert(oldHashes[i], oldAddresses[i]);
+            }
+        }
+    }
+
+    private LogFile fileOf(final long address) {
+        final int id = fileIdOf(address);
+        final int index = Collections.binarySearch(files, new LogFile(id, null, null));
+        return files.get(index);
+    }
+
+    private static long address(final int fileId, final int offset) {
+        return (((long) fileId) << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int fileIdOf(final long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) address;
+    }
+
+    /**
+     * @return The id in the file's name, or -1 if it is not a segment file.
+     */
+    private static int fileIdOf(final File file) {
+        final String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return A hash of the bytes that is never 0.
+     */
+    private static int hash(final byte[] bytes) {
+        int h = Arrays.hashCode(bytes);
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h == 0) ? 1 : h;
+    }
+
+    /**
+     * @return The checksum of a record, after its length and checksum fields.
+     */
+    private static int checksum(final MappedByteBuffer buffer, final int offset, final int length) {
+        final byte[] bytes = new byte[length - 8];
+        read(buffer, offset + 8, bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void read(final MappedByteBuffer buffer, final int offset, final byte[] into) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(into);
+    }
+
+    private static void write(final MappedByteBuffer buffer, final int offset, final byte[] bytes) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    /**
+     * A mapped segment file. Files are ordered by id, which is also the order
+     * in which they were created.
+     */
+    private static final class LogFile implements Comparable<LogFile> {
+
+        final int id;
+
+        final File file;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * Where the next record goes.
+         */
+        int position;
+
+        LogFile(final int id, final File file, final MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        public int compareTo(final LogFile other) {
+            return (id < other.id) ? -1 : ((id == other.id) ? 0 : 1);
+        }
+    }
+
+    /**
+     * A value read back from the disk.
+     */
+    static final class Copy {
+
+        final byte[] bytes;
+
+        /**
+         * The wall-clock time of the write, in milliseconds.
+         */
+        final long writeTime;
+
+        Copy(final byte[] bytes, final long writeTime) {
+            this.bytes = bytes;
+            this.writeTime = writeTime;
+        }
+    }
+}
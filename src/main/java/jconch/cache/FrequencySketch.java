@@ -0,0 +1,175 @@
+package jconch.cache;
+
+/**
+ * A probabilistic estimate of how often keys have been used recently, for use
+ * as the admission filter of a bounded {@link CacheMap}.
+ * <p>
+ * This is a count-min sketch with four hash functions and 4-bit counters packed
+ * sixteen to a <code>long</code>, so it costs about eight bytes per cache entry
+ * regardless of the keys' sizes. To keep the estimate about <em>recent</em>
+ * popularity, all of the counters are halved once the number of recorded
+ * accesses reaches ten times the cache's capacity ("aging"). A cache bounded by
+ * weight cannot tell how many entries it will hold, so it starts with a small
+ * sketch and grows it along with the number of entries.
+ * <p>
+ * This class is not thread-safe: callers must guard it with the lock of the
+ * segment that owns it.
+ *
+ * @author Robert Fischer
+ */
+final class FrequencySketch {
+
+    /**
+     * Seeds for the four hash functions (large odd primes).
+     */
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    /**
+     * Masks off the high bit of each counter once the table is shifted right.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Selects the low bit of each counter.
+     */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * The largest value a 4-bit counter can hold.
+     */
+    static final int MAX_FREQUENCY = 15;
+
+    private long[] table;
+
+    private int tableMask;
+
+    private int sampleSize;
+
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize
+     *            The number of entries the sketch needs to track. Values less
+     *            than one are treated as one.
+     */
+    FrequencySketch(final int maximumSize) {
+        allocate(maximumSize);
+    }
+
+    /**
+     * Grows the sketch if it is too small to track the given number of
+     * entries. Growing forgets all of the counts.
+     *
+     * @param maximumSize
+     *            The number of entries the sketch needs to track.
+     */
+    void ensureCapacity(final int maximumSize) {
+        if (ceilingPowerOfTwo(Math.max(maximumSize, 1)) > table.length) {
+            allocate(maximumSize);
+        }
+    }
+
+    private void allocate(final int maximumSize) {
+        final int capacity = ceilingPowerOfTwo(Math.max(maximumSize, 1));
+        table = new long[capacity];
+        tableMask = capacity - 1;
+        sampleSize = (int) Math.min(10L * Math.max(maximumSize, 1), Integer.MAX_VALUE);
+        size = 0;
+    }
+
+    /**
+     * Provides the estimated number of recent occurrences of an item.
+     *
+     * @param hashCode
+     *            The hash code of the item.
+     * @return The estimate, between 0 and {@link #MAX_FREQUENCY}.
+     */
+    int frequency(final int hashCode) {
+        final int hash = spread(hashCode);
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of an item, aging the whole sketch if enough
+     * occurrences have been observed.
+     *
+     * @param hashCode
+     *            The hash code of the item.
+     */
+    void increment(final int hashCode) {
+        final int hash = spread(hashCode);
+        final int start = (hash & 3) << 2;
+
+        // Each of the four counters lives in a different row of the table.
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments the given counter unless it is already saturated.
+     *
+     * @param i
+     *            The table index.
+     * @param j
+     *            The counter within the <code>long</code> at that index.
+     * @return Whether the counter was incremented.
+     */
+    private boolean incrementAt(final int i, final int j) {
+        final int offset = j << 2;
+        final long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter, so that old popularity decays.
+     */
+    private void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            count += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (count >>> 2)) >>> 1;
+    }
+
+    private int indexOf(final int item, final int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+    /**
+     * Applies a supplemental hash, which defends against poor quality hash
+     * codes.
+     */
+    private static int spread(final int hashCode) {
+        int x = hashCode * 0x31848bab;
+        x ^= (x >>> 14);
+        return x;
+    }
+
+    private static int ceilingPowerOfTwo(final int x) {
+        final int capped = Math.min(x, 1 << 30);
+        return 1 << (32 - Integer.numberOfLeadingZeros(capped - 1));
+    }
+}
@@ -0,0 +1,115 @@
+package jconch.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Reads and writes the snapshots of hot keys that a {@link CacheMap} saves for
+ * its {@link WarmUp}. A snapshot holds a tag, the number of keys, and then
+ * each serialized key preceded by its length, hottest first.
+ * </p>
+ * <p>
+ * A snapshot is written to a temporary file next to its destination, and then
+ * renamed over it, so that a crash while saving leaves the previous snapshot
+ * in place.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class HotKeyFile {
+
+    /**
+     * Marks the start of a snapshot ("JCHK").
+     */
+    private static final int MAGIC = 0x4a43484b;
+
+    private HotKeyFile() {
+        // Does nothing.
+    }
+
+    /**
+     * Writes a snapshot. Keys that cannot be serialized are left out.
+     *
+     * @return The number of keys written.
+     * @throws IOException
+     *             If the file cannot be written.
+     */
+    static <K> int write(final File file, final List<K> keys, final Serializer<? super K> serializer)
+            throws IOException {
+        final List<byte[]> serialized = new ArrayList<byte[]>(keys.size());
+        for (final K key : keys) {
+            try {
+                serialized.add(serializer.serialize(key));
+            } catch (final RuntimeException e) {
+                continue;
+            }
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(serialized.size());
+            for (final byte[] bytes : serialized) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        // Renaming over an existing file fails on some platforms.
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("could not rename " + temp + " to " + file);
+        }
+        return serialized.size();
+    }
+
+    /**
+     * Reads a snapshot. Keys that cannot be deserialized are left out.
+     *
+     * @return The keys, hottest first.
+     * @throws IOException
+     *             If the file cannot be read, or is not a snapshot.
+     */
+    static <K> List<K> read(final File file, final Serializer<K> serializer) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a snapshot of hot keys");
+            }
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new IOException(file + " is corrupt");
+            }
+            final List<K> keys = new ArrayList<K>(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i++) {
+                final int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException(file + " is corrupt");
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                try {
+                    final K key = serializer.deserialize(bytes);
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                } catch (final RuntimeException e) {
+                    continue;
+                }
+            }
+            return keys;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package jconch.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * <p>
+ * Carries invalidations between the maps of a single JVM, for instance maps
+ * that are kept apart by class loader or by tenant. A transport built by the
+ * constructor starts a new group, and {@link #join()} adds members to it.
+ * </p>
+ * <p>
+ * A message is delivered to the other members straight away, on the sending
+ * thread, and is never lost.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+public final class InProcessTransport implements InvalidationTransport {
+
+    private final List<InProcessTransport> group;
+
+    private volatile Receiver receiver;
+
+    /**
+     * Starts a new group, with this transport as its only member.
+     */
+    public InProcessTransport() {
+        this(new CopyOnWriteArrayList<InProcessTransport>());
+    }
+
+    private InProcessTransport(final List<InProcessTransport> group) {
+        this.group = group;
+        group.add(this);
+    }
+
+    /**
+     * @return A new member of this transport's group.
+     */
+    public InProcessTransport join() {
+        return new InProcessTransport(group);
+    }
+
+    public void send(final byte[] message) {
+        for (final InProcessTransport member : group) {
+            final Receiver theirs = member.receiver;
+            if ((member != this) && (theirs != null)) {
+                theirs.receive(message.clone());
+            }
+        }
+    }
+
+    /**
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the receiver was already set.
+     */
+    public void setReceiver(final Receiver receiver) {
+        if (receiver == null) {
+            throw new NullArgumentException("receiver");
+        }
+        if (this.receiver != null) {
+            throw new IllegalStateException("receiver was already set to " + this.receiver);
+        }
+        this.receiver = receiver;
+    }
+
+    /**
+     * @return {@link Integer#MAX_VALUE}, since messages are not copied
+     *         anywhere but the heap.
+     */
+    public int getMaxMessageSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Leaves the group.
+     */
+    public void close() {
+        group.remove(this);
+    }
+}
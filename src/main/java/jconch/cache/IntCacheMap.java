@@ -0,0 +1,121 @@
+package jconch.cache;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * A cache of values computed from <code>int</code> keys, which never boxes its
+ * keys. The keys are widened and stored in a {@link LongCacheMap}, which
+ * describes how the map works.
+ *
+ * @author Robert Fischer
+ * @see CacheMapMaker#makeIntCacheMap(IntFunction)
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public final class IntCacheMap<V> {
+
+    private final LongCacheMap<V> delegate;
+
+    /**
+     * Constructs an unbounded map.
+     *
+     * @param converter
+     *            Computes the values.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     */
+    public IntCacheMap(final IntFunction<V> converter) {
+        this(converter, new CacheMapMaker());
+    }
+
+    /**
+     * Constructs a map with the given settings.
+     *
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the settings ask for something other than a concurrency
+     *             level or a maximum size.
+     */
+    IntCacheMap(final IntFunction<V> converter, final CacheMapMaker spec) {
+        if (converter == null) {
+            throw new NullArgumentException("converter");
+        }
+        delegate = new LongCacheMap<V>(new LongFunction<V>() {
+            public V apply(final long key) {
+                return converter.apply((int) key);
+            }
+        }, spec);
+    }
+
+    /**
+     * Provides the value for the key, computing it if it is not present.
+     *
+     * @throws NullPointerException
+     *             If the converter returns <code>null</code>.
+     */
+    public V get(final int key) {
+        return delegate.get(key);
+    }
+
+    /**
+     * Provides the value for the key if it is present, without computing it or
+     * counting the look-up in the statistics.
+     *
+     * @return The value, or <code>null</code> if there is none.
+     */
+    public V getIfPresent(final int key) {
+        return delegate.getIfPresent(key);
+    }
+
+    public boolean containsKey(final int key) {
+        return delegate.containsKey(key);
+    }
+
+    /**
+     * Stores a value, replacing the value of the key if it has one.
+     *
+     * @return The previous value, or <code>null</code> if there was none.
+     * @throws NullPointerException
+     *             If the value is <code>null</code>.
+     */
+    public V put(final int key, final V value) {
+        return delegate.put(key, value);
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return The value, or <code>null</code> if there was none.
+     */
+    public V remove(final int key) {
+        return delegate.remove(key);
+    }
+
+    /**
+     * @return The number of entries in the map.
+     */
+    public int size() {
+        return delegate.size();
+    }
+
+    public void clear() {
+        delegate.clear();
+    }
+
+    /**
+     * Provides a snapshot of the activity of this map.
+     *
+     * @return The current statistics.
+     * @see CacheMap#stats()
+     */
+    public CacheStats stats() {
+        return delegate.stats();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size() + "]";
+    }
+}
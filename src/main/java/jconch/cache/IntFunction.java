@@ -0,0 +1,22 @@
+package jconch.cache;
+
+/**
+ * Computes the values of an {@link IntCacheMap} from their <code>int</code>
+ * keys, without boxing them.
+ *
+ * @author Robert Fischer
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public interface IntFunction<V> {
+
+    /**
+     * Computes the value of a key.
+     *
+     * @param key
+     *            The key.
+     * @return The value, which must not be <code>null</code>.
+     */
+    V apply(int key);
+}
@@ -0,0 +1,225 @@
+package jconch.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * <p>
+ * Keeps the entries of {@link CacheMap}s that hold the same data consistent,
+ * whether they live in one JVM or in several, by broadcasting the keys that
+ * one of them invalidates so that the others drop them as well. Each map has a
+ * bus of its own, and the buses of the maps talk over an
+ * {@link InvalidationTransport}.
+ * </p>
+ * <p>
+ * Invalidations are sent in the background, in batches: the keys invalidated
+ * within the maximum delay, or enough of them to fill a batch, are serialized
+ * and compressed together, so a burst of changes costs a few messages rather
+ * than one per key. A key invalidated again before its batch goes out is sent
+ * once. Until then, the other maps may still serve the old value.
+ * </p>
+ * <p>
+ * The bus drops the key from its own map at once, and a key that it receives
+ * from another member is dropped without being sent on.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ */
+public final class InvalidationBus<K> {
+
+    /**
+     * How many batches of keys may wait to be sent before the invalidating
+     * threads send one themselves.
+     */
+    private static final int PENDING_BATCHES = 16;
+
+    private final CacheMap<K, ?> map;
+
+    private final Serializer<K> keySerializer;
+
+    private final InvalidationTransport transport;
+
+    private final WriteBehind<K, Boolean> outbox;
+
+    private final AtomicLong sentMessages = new AtomicLong();
+
+    private final AtomicLong receivedKeys = new AtomicLong();
+
+    /**
+     * Connects a map to a transport, and starts receiving the invalidations of
+     * the other members.
+     *
+     * @param map
+     *            The map to keep consistent.
+     * @param keySerializer
+     *            Converts keys to and from bytes; every member must use the
+     *            same format.
+     * @param transport
+     *            The transport to the other members, which the bus then owns.
+     * @param maxBatchSize
+     *            The most keys to send together.
+     * @param maxDelay
+     *            The longest time an invalidation waits for others to send with
+     *            it.
+     * @param unit
+     *            The unit of the delay.
+     * @throws NullArgumentException
+     *             If an argument is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the batch size is not positive or the delay is negative.
+     */
+    public InvalidationBus(final CacheMap<K, ?> map, final Serializer<K> keySerializer,
+            final InvalidationTransport transport, final int maxBatchSize, final long maxDelay, final TimeUnit unit) {
+        if (map == null) {
+            throw new NullArgumentException("map");
+        }
+        if (keySerializer == null) {
+            throw new NullArgumentException("keySerializer");
+        }
+        if (transport == null) {
+            throw new NullArgumentException("transport");
+        }
+        if (unit == null) {
+            throw new NullArgumentException("unit");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maxDelay must not be negative: " + maxDelay);
+        }
+        this.map = map;
+        this.keySerializer = keySerializer;
+        this.transport = transport;
+        final int maxPending = (int) Math.min(Integer.MAX_VALUE, (long) maxBatchSize * PENDING_BATCHES);
+        this.outbox = new WriteBehind<K, Boolean>(new Sender(), maxBatchSize, unit.toNanos(maxDelay), maxPending,
+                map.executor());
+        transport.setReceiver(new InvalidationTransport.Receiver() {
+            public void receive(final byte[] message) {
+                received(message);
+            }
+        });
+    }
+
+    /**
+     * Drops a key from the map, and tells the other members to drop it too.
+     *
+     * @param key
+     *            The key to invalidate.
+     * @throws NullArgumentException
+     *             If the key is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the queue of invalidations was full and a batch could not
+     *             be sent. The key is still dropped from the map.
+     */
+    public void invalidate(final K key) {
+        if (key == null) {
+            throw new NullArgumentException("key");
+        }
+        map.remove(key);
+        outbox.awaitRoom(key);
+        outbox.enqueue(key, Boolean.TRUE);
+    }
+
+    /**
+     * Sends every invalidation that is waiting, in the calling thread.
+     *
+     * @throws IllegalStateException
+     *             If a message could not be sent. Its keys stay queued.
+     */
+    public void flush() {
+        outbox.flush();
+    }
+
+    /**
+     * @return The number of keys waiting to be sent.
+     */
+    public int getPendingCount() {
+        return outbox.pendingCount();
+    }
+
+    /**
+     * @return The number of messages sent so far.
+     */
+    public long getSentMessageCount() {
+        return sentMessages.get();
+    }
+
+    /**
+     * @return The number of keys received from other members so far.
+     */
+    public long getReceivedKeyCount() {
+        return receivedKeys.get();
+    }
+
+    /**
+     * Sends whatever is waiting, as far as the transport allows, and closes
+     * the transport.
+     */
+    public void close() {
+        try {
+            flush();
+        } catch (final IllegalStateException e) {
+            // Lost; the other members' entries will have to expire.
+        } finally {
+            transport.close();
+        }
+    }
+
+    private void received(final byte[] message) {
+        final List<byte[]> keys;
+        try {
+            keys = InvalidationMessages.unpack(message);
+        } catch (final IOException e) {
+            // Not from a bus, or damaged on the way.
+            return;
+        }
+        for (final byte[] bytes : keys) {
+            final K key;
+            try {
+                key = keySerializer.deserialize(bytes);
+            } catch (final RuntimeException e) {
+                continue;
+            }
+            if (key != null) {
+                map.remove(key);
+                receivedKeys.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of keys to the other members.
+     */
+    private final class Sender implements CacheWriter<K, Boolean> {
+
+        public void write(final Map<K, Boolean> entries) {
+            final List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+            for (final K key : entries.keySet()) {
+                try {
+                    keys.add(keySerializer.serialize(key));
+                } catch (final RuntimeException e) {
+                    // The key cannot be sent; the other members' entries will
+                    // have to expire.
+                }
+            }
+            for (final byte[] message : InvalidationMessages.pack(keys, transport.getMaxMessageSize())) {
+                try {
+                    transport.send(message);
+                } catch (final IOException e) {
+                    throw new IllegalStateException("could not send invalidations", e);
+                }
+                sentMessages.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package jconch.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>
+ * Packs the serialized keys of an {@link InvalidationBus} into messages. A
+ * message is a tag, the number of keys, and then each key preceded by its
+ * length, all compressed with {@link Deflater}. Keys that are invalidated
+ * together tend to share most of their bytes, so a burst of them compresses
+ * into a few messages.
+ * </p>
+ * <p>
+ * Each message is filled with as many keys as fit in the size the transport
+ * can carry once they are compressed, so that a burst takes as few messages
+ * as its compressed size allows. A key too large to fit in a message on its
+ * own is left out.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class InvalidationMessages {
+
+    /**
+     * Marks the start of a message ("JCIV").
+     */
+    private static final int MAGIC = 0x4a434956;
+
+    /**
+     * The most bytes a message may unpack to, so that a bad message cannot
+     * exhaust the heap.
+     */
+    private static final int MAX_UNPACKED_SIZE = 16 << 20;
+
+    /**
+     * The most bytes of keys packed into one message before it is compressed,
+     * whatever the transport can carry, so that every message unpacks within
+     * {@link #MAX_UNPACKED_SIZE}.
+     */
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+
+    /**
+     * The bytes of the tag and the count.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    private InvalidationMessages() {
+        // Does nothing.
+    }
+
+    /**
+     * Packs keys into messages, each holding as many keys as fit once
+     * compressed.
+     *
+     * @param keys
+     *            The serialized keys.
+     * @param maxMessageSize
+     *            The length of the longest message to make.
+     * @return The messages.
+     */
+    static List<byte[]> pack(final List<byte[]> keys, final int maxMessageSize) {
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        int from = 0;
+        // The number of keys to try first: as many as the last message held.
+        int guess = 1;
+        while (from < keys.size()) {
+            final byte[] single = compress(keys.subList(from, from + 1));
+            if (single.length > maxMessageSize) {
+                // Too large to send at all.
+                from++;
+                continue;
+            }
+            final int count = fill(keys, from, guess, maxMessageSize);
+            messages.add((count == 1) ? single : compress(keys.subList(from, from + count)));
+            from += count;
+            guess = count;
+        }
+        return messages;
+    }
+
+    /**
+     * Finds how many keys, starting with a key that fits on its own, fit in a
+     * message once compressed: doubling the guess while it fits, and then
+     * bisecting between the last count that fit and the first that did not.
+     * The compressed size only grows with the number of keys, so this takes
+     * a logarithmic number of compressions.
+     *
+     * @return The number of keys, at least one.
+     */
+    private static int fill(final List<byte[]> keys, final int from, final int guess, final int maxMessageSize) {
+        final int available = keys.size() - from;
+        int fits = 1;
+        int fails = available + 1;
+        int count = Math.min(Math.max(guess, 2), available);
+        while ((count > fits) && (count < fails)) {
+            if (fitsIn(keys.subList(from, from + count), maxMessageSize)) {
+                fits = count;
+                count = (fails > available) ? (int) Math.min(2L * count, available) : (fits + ((fails - fits) / 2));
+            } else {
+                fails = count;
+                count = fits + ((fails - fits) / 2);
+            }
+        }
+        return fits;
+    }
+
+    private static boolean fitsIn(final List<byte[]> keys, final int maxMessageSize) {
+        long raw = HEADER_SIZE;
+        for (final byte[] key : keys) {
+            raw += 4 + key.length;
+        }
+        return (raw <= MAX_BATCH_BYTES) && (compress(keys).length <= maxMessageSize);
+    }
+
+    private static byte[] compress(final List<byte[]> keys) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater();
+        try {
+            final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(buffer, deflater));
+            out.writeInt(MAGIC);
+            out.writeInt(keys.size());
+            for (final byte[] key : keys) {
+                out.writeInt(key.length);
+                out.write(key);
+            }
+            out.close();
+        } catch (final IOException e) {
+            throw new IllegalStateException("could not write to memory", e);
+        } finally {
+            deflater.end();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Unpacks the keys of a message.
+     *
+     * @return The serialized keys.
+     * @throws IOException
+     *             If the message is corrupt, or was not made by
+     *             {@link #pack(List, int)}.
+     */
+    static List<byte[]> unpack(final byte[] message) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(
+                    message), inflater));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not an invalidation message");
+            }
+            final int count = in.readInt();
+            if ((count < 0) || (count > (MAX_UNPACKED_SIZE / 4))) {
+                throw new IOException("corrupt invalidation message: " + count + " keys");
+            }
+            final List<byte[]> keys = new ArrayList<byte[]>(Math.min(count, 1024));
+            int unpacked = HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                final int length = in.readInt();
+                if ((length < 0) || (length > (MAX_UNPACKED_SIZE - unpacked - 4))) {
+                    throw new IOException("corrupt invalidation message: key of " + length + " bytes");
+                }
+                unpacked += 4 + length;
+                final byte[] key = new byte[length];
+                in.readFully(key);
+                keys.add(key);
+            }
+            // Reading on checks the trailing checksum.
+            if ((in.read() != -1) || !inflater.finished()) {
+                throw new IOException("corrupt invalidation message: trailing bytes");
+            }
+            return keys;
+        } catch (final EOFException e) {
+            throw new IOException("truncated invalidation message");
+        } finally {
+            inflater.end();
+        }
+    }
+}
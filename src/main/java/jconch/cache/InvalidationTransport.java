@@ -0,0 +1,61 @@
+package jconch.cache;
+
+import java.io.IOException;
+
+/**
+ * Carries the messages of an {@link InvalidationBus} to the buses of the other
+ * maps that hold the same data, whether in this JVM or in others. A transport
+ * only moves bytes: the bus batches, serializes and compresses the keys.
+ *
+ * @author Robert Fischer
+ * @see InProcessTransport
+ * @see UdpTransport
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Handles the messages that a transport receives.
+     */
+    interface Receiver {
+
+        /**
+         * Handles a message sent by another member. This is called on a
+         * thread of the transport, one message at a time.
+         *
+         * @param message
+         *            The message, which the receiver may keep.
+         */
+        void receive(byte[] message);
+    }
+
+    /**
+     * Sends a message to every other member. Delivery is on a best-effort
+     * basis: a transport may lose messages, but never alters them.
+     *
+     * @param message
+     *            The message, at most {@link #getMaxMessageSize()} bytes long.
+     * @throws IOException
+     *             If the message could not be sent.
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * Starts delivering the messages sent by the other members. This is
+     * called once, by the bus that uses the transport.
+     *
+     * @param receiver
+     *            The receiver of the messages.
+     */
+    void setReceiver(Receiver receiver);
+
+    /**
+     * @return The length of the longest message the transport can carry.
+     */
+    int getMaxMessageSize();
+
+    /**
+     * Stops sending and receiving, and releases the resources of the
+     * transport.
+     */
+    void close();
+}
@@ -0,0 +1,59 @@
+package jconch.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A {@link Serializer} that uses Java serialization, for values that
+ * implement {@link Serializable}. It is simple rather than compact or fast: a
+ * serializer written for the values at hand will usually do better on both
+ * counts.
+ *
+ * @author Robert Fischer
+ *
+ * @param <T>
+ *            The type of the values.
+ */
+public final class JavaSerializer<T extends Serializable> implements Serializer<T> {
+
+    /**
+     * @throws IllegalArgumentException
+     *             If the value (or something it refers to) cannot be
+     *             serialized.
+     */
+    public byte[] serialize(final T value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Could not serialize " + value, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             If the bytes cannot be deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    public T deserialize(final byte[] bytes) {
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (T) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Could not deserialize a value", e);
+        } catch (final ClassNotFoundException e) {
+            throw new IllegalArgumentException("Could not deserialize a value", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package jconch.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * A {@link Future} that calls back when it completes, so that callers can
+ * react to a value without parking a thread in {@link Future#get()}.
+ * </p>
+ * <p>
+ * A listener runs once the future is done, whether it succeeded, failed or was
+ * cancelled; it finds out which by calling {@link Future#get()}, which no
+ * longer blocks by then. A listener added to a future that is already done
+ * runs right away.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <V>
+ *            The type of the value.
+ * @see AsyncCacheMap#get(Object)
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+    /**
+     * Registers a listener to be run on the given executor once this future
+     * is done. Listeners are not guaranteed to run in the order they were
+     * added. A listener that throws, or that the executor refuses, does not
+     * keep the other listeners from running.
+     *
+     * @param listener
+     *            The callback.
+     * @param executor
+     *            Where the callback runs. A cheap callback can use an executor
+     *            that runs it on the calling thread.
+     * @throws org.apache.commons.lang.NullArgumentException
+     *             If either argument is <code>null</code>.
+     */
+    void addListener(Runnable listener, Executor executor);
+}
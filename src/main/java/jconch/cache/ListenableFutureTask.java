@@ -0,0 +1,95 @@
+package jconch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * A {@link FutureTask} which runs its listeners when it completes.
+ *
+ * @author Robert Fischer
+ *
+ * @param <V>
+ *            The type of the value.
+ */
+class ListenableFutureTask<V> extends FutureTask<V> implements ListenableFuture<V> {
+
+    /**
+     * The listeners waiting for the task, or <code>null</code> once it is
+     * done. Guarded by this.
+     */
+    private List<Listener> listeners = new ArrayList<Listener>(2);
+
+    ListenableFutureTask(final Callable<V> callable) {
+        super(callable);
+    }
+
+    /**
+     * Creates a future that already holds a value.
+     */
+    static <V> ListenableFutureTask<V> completed(final V value) {
+        final ListenableFutureTask<V> future = new ListenableFutureTask<V>(new Callable<V>() {
+            public V call() {
+                return value;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    public void addListener(final Runnable listener, final Executor executor) {
+        if (listener == null) {
+            throw new NullArgumentException("listener");
+        }
+        if (executor == null) {
+            throw new NullArgumentException("executor");
+        }
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(new Listener(listener, executor));
+                return;
+            }
+        }
+        execute(listener, executor);
+    }
+
+    @Override
+    protected void done() {
+        final List<Listener> waiting;
+        synchronized (this) {
+            waiting = listeners;
+            listeners = null;
+        }
+        for (final Listener listener : waiting) {
+            execute(listener.callback, listener.executor);
+        }
+    }
+
+    private static void execute(final Runnable listener, final Executor executor) {
+        try {
+            executor.execute(listener);
+        } catch (final RuntimeException e) {
+            // The listener failed on this thread, or could not be scheduled;
+            // either way, the other listeners still have to run.
+        }
+    }
+
+    /**
+     * A callback with the executor to run it on.
+     */
+    private static final class Listener {
+
+        final Runnable callback;
+
+        final Executor executor;
+
+        Listener(final Runnable callback, final Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package jconch.cache;
+
+/**
+ * Thrown by a look-up that gave up waiting for its value to be loaded (see
+ * {@link CacheMapMaker#loadTimeout(long, java.util.concurrent.TimeUnit)}). The
+ * load itself carries on, and caches its value when it is done.
+ *
+ * @author Robert Fischer
+ */
+@SuppressWarnings("serial")
+public class LoadTimeoutException extends RuntimeException {
+
+    /**
+     * @param message
+     *            Describes the look-up that gave up.
+     */
+    public LoadTimeoutException(final String message) {
+        super(message);
+    }
+}
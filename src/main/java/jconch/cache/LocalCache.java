@@ -0,0 +1,2669 @@
+package jconch.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jconch.lock.SyncLogEqLock;
+import jconch.multikey.JConchMultiKey;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * The storage engine behind the {@link CacheMap} instances built by a
+ * {@link CacheMapMaker}.
+ * </p>
+ * <p>
+ * Entries live in a single concurrent hash table, so look-ups never block.
+ * Each entry is owned by one of a number of segments, chosen by hash; the
+ * segment's lock guards every change to the entries it owns, along with the
+ * bookkeeping of its eviction and expiration policies. A hit records itself
+ * with the policies only if the segment's lock is free at that moment: under
+ * contention the policies work from a sample of the reads, but hits never wait
+ * on a lock.
+ * </p>
+ * <p>
+ * A bounded segment uses the "Window TinyLFU" policy. New entries enter a small
+ * LRU window. Entries pushed out of the window go on probation in the main
+ * region, and are promoted to its protected part if they are hit again. When
+ * the segment is over capacity, the entry leaving the window competes with the
+ * probation entry that would be evicted in its place, and the one that the
+ * {@link FrequencySketch} says was used more often recently is kept. A cache
+ * bounded by weight applies the same limits to the total weights of the
+ * regions rather than to their numbers of entries.
+ * </p>
+ * <p>
+ * Each segment of a cache bounded by weight has its share of the budget, and
+ * may borrow what the other segments leave unused: it only evicts when it is
+ * over its share and the cache as a whole is over the budget. A segment that
+ * evicts also asks the others that are over their share to pay back what they
+ * borrowed, skipping any whose lock is taken; those pay back when they are
+ * next written to. An entry heavier than a segment's share can therefore be
+ * kept, up to the whole budget.
+ * </p>
+ * <p>
+ * An expiring segment schedules each entry on a {@link TimerWheel}, which is
+ * advanced whenever the segment's lock is taken. Reads check the entry's own
+ * expiration time, so an expired entry is never returned even if the wheel has
+ * not reclaimed it yet.
+ * </p>
+ * <p>
+ * A refreshing cache reloads entries that are due on its executor, under the
+ * key's lock, while reads keep returning the current value. The reloaded value
+ * only replaces the current one if nobody wrote the entry in the meantime.
+ * </p>
+ * <p>
+ * Misses are computed under the logically equivalent lock of the key (see
+ * {@link SyncLogEqLock}), so each key is only computed by one thread at a time.
+ * Bulk loads cannot take all of their keys' locks, so instead they claim their
+ * keys in a table of loads in flight; anyone else who needs one of those keys
+ * waits for the claiming load to finish. If asked to, the cache also gathers
+ * the misses of concurrent {@link #get(Object)} calls into bulk loads (see
+ * {@link MissBatcher}).
+ * </p>
+ * <p>
+ * If asked to, the cache remembers the keys for which the converter returned
+ * <code>null</code> in a second, smaller instance of this class, with its own
+ * size and expiration limits.
+ * </p>
+ * <p>
+ * A bounded cache may also keep a second tier of values outside of the heap:
+ * each segment serializes the entries it evicts for size into an
+ * {@link OffHeapStore}, and a miss reads the value back from there before
+ * calling the converter. The tier keeps the copy it hands back, until the
+ * value is written again, so a value that moves back and forth unchanged is
+ * only serialized once.
+ * </p>
+ * <p>
+ * A cache may instead keep its second tier in files, through a
+ * {@link DiskStore}. That tier is written through: every value the cache
+ * stores is also appended to the files, under the key's lock so that the
+ * files see the writes of a key in the same order as the table, and the
+ * values that the files still hold when a new cache opens them are read back
+ * on a miss, as from the off-heap tier.
+ * </p>
+ * <p>
+ * If asked to, the cache caps its loads with a semaphore, which a load only
+ * tries to take: a caller that finds no permit gets the expired value of its
+ * key if the table still holds one, and fails otherwise. A cache with a load
+ * timeout runs each single-key load on its executor, outside the key's lock,
+ * and registers it in a table of timed loads so that the callers who come
+ * after the first wait for the same load, each for at most the timeout. The
+ * load takes the key's lock only to store its value and leave the table.
+ * </p>
+ * <p>
+ * If asked to, the cache puts a {@link NearCache} in front of the table,
+ * which every write that replaces or removes a value marks as out of date.
+ * </p>
+ * <p>
+ * A bounded cache may also ask {@link MemoryPressure} to tell it when the heap
+ * runs short. Each segment then evicts a fraction of its entries, in the order
+ * that its policy would evict them to make room, on the cache's executor.
+ * </p>
+ * <p>
+ * Entries are also invalidated in bulk without visiting them. The cache keeps
+ * a clock that ticks once for each bulk invalidation, and stamps each entry
+ * with the clock's time when it is stored, or, for a loaded value, when the
+ * load started. {@link #invalidateAll()} records the time of the invalidation,
+ * as {@link #invalidateTag(Object)} does for each tag; an entry stamped before
+ * the invalidation of the whole cache or of one of its tags is stale, which
+ * the read and write paths treat like an expired entry. Stale entries are
+ * reclaimed when they are touched or evicted, and a few at a time by the
+ * segments' upkeep: after an invalidation, one walk of the table hands each
+ * stale entry it finds to the segment that owns it.
+ * </p>
+ * <p>
+ * If asked to, each segment also indexes the entries it owns by components of
+ * their {@link JConchMultiKey multikeys}, under its lock, so that the entries
+ * with a given component are found without a scan.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+final class LocalCache<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * The smallest number of entries that a segment of a bounded cache should
+     * be responsible for; small caches use fewer segments so that eviction
+     * stays meaningful.
+     */
+    static final int MIN_SEGMENT_CAPACITY = 32;
+
+    /**
+     * Marks a look-up that found nothing, as opposed to a known absent key.
+     */
+    private static final Object NOT_FOUND = new Object();
+
+    /**
+     * Stands for a <code>null</code> key component in the indexes.
+     */
+    private static final Object NULL_COMPONENT = new Object();
+
+    private final ConcurrentMap<K, Node<K, V>> data;
+
+    private final Segment<K, V>[] segments;
+
+    private final int segmentShift;
+
+    private final int segmentMask;
+
+    private final Function<K, V> converter;
+
+    private final Function<Collection<K>, Map<K, V>> bulkLoader;
+
+    /**
+     * The bulk loads in flight, by the keys they have claimed.
+     */
+    private final ConcurrentMap<K, BulkLoad> bulkLoads = new ConcurrentHashMap<K, BulkLoad>();
+
+    /**
+     * The single-key loads in flight, by key, if loads are timed. An entry is
+     * only added or removed under the key's lock.
+     */
+    private final ConcurrentMap<K, FutureTask<V>> timedLoads = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * The permits of the loads, or <code>null</code> if they are not capped.
+     */
+    private final Semaphore loadPermits;
+
+    /**
+     * How long a caller waits for a load, or
+     * {@link CacheMapMaker#UNSET_INT} to wait for as long as it takes.
+     */
+    private final long loadTimeoutNanos;
+
+    /**
+     * Gathers misses into bulk loads, or <code>null</code> to compute each
+     * miss on its own.
+     */
+    private final MissBatcher<K, V> missBatcher;
+
+    private final SyncLogEqLock<K> lockFactory;
+
+    /**
+     * The keys for which the converter returned <code>null</code>, each
+     * mapped to {@link Boolean#TRUE}; or <code>null</code> if absence is not
+     * cached.
+     */
+    private final LocalCache<K, Boolean> absentKeys;
+
+    /**
+     * Converts values for the off-heap tier, or <code>null</code> if there is
+     * none.
+     */
+    private final Serializer<V> serializer;
+
+    /**
+     * The disk tier, or <code>null</code> if there is none.
+     */
+    private final DiskStore<K, V> diskStore;
+
+    /**
+     * The writes waiting for the writer, or <code>null</code> if the cache
+     * does not write behind.
+     */
+    private final WriteBehind<K, V> writeBehind;
+
+    /**
+     * The per-thread tables in front of this one, or <code>null</code> if
+     * there are none.
+     */
+    private final NearCache nearCache;
+
+    private final long expireAfterWriteNanos;
+
+    private final long expireAfterAccessNanos;
+
+    private final long refreshAfterWriteNanos;
+
+    private final Executor executor;
+
+    private final Ticker ticker;
+
+    /**
+     * Weighs the entries, or <code>null</code> if each counts as one.
+     */
+    private final Weigher<K, V> weigher;
+
+    /**
+     * The total weight of the entries, or <code>null</code> if the cache does
+     * not weigh them.
+     */
+    private final AtomicLong totalWeight;
+
+    /**
+     * The budget for {@link #totalWeight}.
+     */
+    private final long maximumWeight;
+
+    private final StatsCounter statsCounter = new StatsCounter();
+
+    /**
+     * Whether a trim is queued on the executor, so that a burst of
+     * notifications trims once.
+     */
+    private final AtomicBoolean trimPending = new AtomicBoolean();
+
+    /**
+     * The clock that stamps the entries, which ticks once for each bulk
+     * invalidation.
+     */
+    private final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * The time of the latest {@link #invalidateAll()}; entries stamped before
+     * it are stale.
+     */
+    private final AtomicLong allInvalidatedAt = new AtomicLong();
+
+    /**
+     * Guards the walk of the table for stale entries.
+     */
+    private final ReentrantLock staleWalkLock = new ReentrantLock();
+
+    /**
+     * The entries of the table still to be checked for staleness, or
+     * <code>null</code> if no walk is under way. Guarded by
+     * {@link #staleWalkLock}.
+     */
+    private Iterator<Node<K, V>> staleWalk;
+
+    /**
+     * The time of the stamping clock when the walk started. Guarded by
+     * {@link #staleWalkLock}.
+     */
+    private long staleWalkStamp;
+
+    /**
+     * The time of the stamping clock up to which the table has been walked.
+     */
+    private volatile long walkedTo;
+
+    /**
+     * Names the tags of the entries, or <code>null</code> if they have none.
+     */
+    private final Tagger<K, V> tagger;
+
+    /**
+     * The time of the latest invalidation of each tag that has been seen, or
+     * <code>null</code> if the entries have no tags.
+     */
+    private final ConcurrentMap<Object, AtomicLong> tags;
+
+    /**
+     * The positions of the key components that the segments index, or
+     * <code>null</code> if they index none.
+     */
+    private final int[] indexedComponents;
+
+    @SuppressWarnings("unchecked")
+    LocalCache(final CacheMapMaker spec, final Function<K, V> converter,
+            final Function<Collection<K>, Map<K, V>> bulkLoader, final SyncLogEqLock<K> lockFactory) {
+        this.converter = converter;
+        this.bulkLoader = bulkLoader;
+        this.lockFactory = lockFactory;
+        expireAfterWriteNanos = spec.getExpireAfterWriteNanos();
+        expireAfterAccessNanos = spec.getExpireAfterAccessNanos();
+        refreshAfterWriteNanos = spec.getRefreshAfterWriteNanos();
+        executor = spec.getExecutor();
+        ticker = spec.getTicker();
+        weigher = (Weigher<K, V>) spec.getWeigher();
+        totalWeight = (weigher == null) ? null : new AtomicLong();
+        maximumWeight = (weigher == null) ? 0L : spec.getMaximum();
+        loadPermits = spec.limitsLoads() ? new Semaphore(spec.getMaxConcurrentLoads()) : null;
+        loadTimeoutNanos = spec.getLoadTimeoutNanos();
+        // The loads that time out keep their threads, so they must not add up.
+        if (spec.timesLoads() && !spec.limitsLoads()) {
+            throw new IllegalStateException("a load timeout requires a cap on concurrent loads");
+        }
+        if (spec.batchesMisses()) {
+            if (bulkLoader == null) {
+                throw new IllegalStateException("batching misses requires a bulk loader");
+            }
+            missBatcher = new MissBatcher<K, V>(this, spec.getMaxBatchSize(), spec.getMaxBatchDelayNanos());
+        } else {
+            missBatcher = null;
+        }
+        // The table of absent keys never loads anything.
+        absentKeys = spec.cachesNulls() ? new LocalCache<K, Boolean>(spec.getAbsentSpec(), null, null,
+                new SyncLogEqLock<K>()) : null;
+        if (spec.hasNearCache() && expiresAfterAccess()) {
+            throw new IllegalStateException("a near cache cannot keep track of expireAfterAccess");
+        }
+        nearCache = spec.hasNearCache() ? new NearCache(spec.getNearCacheSize(), statsCounter) : null;
+        if (spec.hasOffHeapTier() && !spec.isBounded()) {
+            throw new IllegalStateException("an off-heap tier requires a maximum size or weight");
+        }
+        serializer = (Serializer<V>) spec.getSerializer();
+        diskStore = spec.hasDiskTier() ? new DiskStore<K, V>(spec.getDiskDirectory(), spec.getDiskBytes(),
+                (Serializer<K>) spec.getDiskKeySerializer(), (Serializer<V>) spec.getDiskValueSerializer()) : null;
+        if (spec.tagsEntries() && (spec.hasOffHeapTier() || spec.hasDiskTier())) {
+            throw new IllegalStateException("tagged entries cannot be kept in a second tier");
+        }
+        if (spec.indexesKeyComponents() && (spec.hasOffHeapTier() || spec.hasDiskTier())) {
+            throw new IllegalStateException("key components cannot be indexed in a second tier");
+        }
+        indexedComponents = spec.getIndexedComponents();
+        tagger = (Tagger<K, V>) spec.getTagger();
+        tags = (tagger == null) ? null : new ConcurrentHashMap<Object, AtomicLong>();
+        writeBehind = spec.writesBehind() ? new WriteBehind<K, V>((CacheWriter<K, V>) spec.getCacheWriter(),
+                spec.getMaxWriteBatchSize(), spec.getMaxWriteDelayNanos(), spec.getMaxPendingWrites(), executor)
+                : null;
+
+        int segmentCount = 1;
+        int shift = 0;
+        while (segmentCount < spec.getConcurrencyLevel()) {
+            segmentCount <<= 1;
+            shift++;
+        }
+        data = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, segmentCount);
+        if (spec.isBounded()) {
+            while (segmentCount > 1 && (spec.getMaximum() / segmentCount) < MIN_SEGMENT_CAPACITY) {
+                segmentCount >>>= 1;
+                shift--;
+            }
+        }
+        segmentShift = 32 - shift;
+        segmentMask = segmentCount - 1;
+
+        segments = newSegmentArray(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            long capacity = Segment.UNBOUNDED;
+            if (spec.isBounded()) {
+                // Hand out the remainder one entry at a time, so the segment
+                // capacities add up to exactly the maximum size.
+                final long maximum = spec.getMaximum();
+                capacity = (maximum / segmentCount) + ((i < (maximum % segmentCount)) ? 1 : 0);
+            }
+            final long offHeapBudget = spec.hasOffHeapTier() ? (spec.getOffHeapBytes() / segmentCount) : 0L;
+            segments[i] = new Segment<K, V>(this, capacity, offHeapBudget);
+        }
+        if (spec.trimsOnMemoryPressure()) {
+            if (!spec.isBounded()) {
+                throw new IllegalStateException("trimming on memory pressure requires a maximum size or weight");
+            }
+            MemoryPressure.INSTANCE.register(this, spec.getMemoryThreshold(), spec.getTrimStep());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Segment<K, V>[] newSegmentArray(final int size) {
+        return (Segment<K, V>[]) new Segment<?, ?>[size];
+    }
+
+    /**
+     * Applies a supplemental hash function to a given hash code, which defends
+     * against poor quality hash functions. This is critical because the
+     * segment is chosen from the upper bits of the hash.
+     */
+    static int rehash(final Object key) {
+        int h = key.hashCode();
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    private Segment<K, V> segmentFor(final int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    boolean weighs() {
+        return weigher != null;
+    }
+
+    /**
+     * @return The weight of the entry.
+     * @throws IllegalStateException
+     *             If the weigher returns a negative weight.
+     */
+    int weigh(final K key, final V value) {
+        if (weigher == null) {
+            return 1;
+        }
+        final int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("weigher returned a negative weight for key: " + key);
+        }
+        return weight;
+    }
+
+    boolean expires() {
+        return expiresAfterWrite() || expiresAfterAccess();
+    }
+
+    boolean expiresAfterWrite() {
+        return expireAfterWriteNanos != CacheMapMaker.UNSET_INT;
+    }
+
+    boolean expiresAfterAccess() {
+        return expireAfterAccessNanos != CacheMapMaker.UNSET_INT;
+    }
+
+    boolean refreshes() {
+        return refreshAfterWriteNanos != CacheMapMaker.UNSET_INT;
+    }
+
+    /**
+     * @return The current time, if anything needs to know it.
+     */
+    long now() {
+        return (expires() || refreshes()) ? ticker.read() : 0L;
+    }
+
+    /**
+     * @return The time at which the entry expires.
+     */
+    long expirationTime(final Node<K, V> node) {
+        long time = Long.MAX_VALUE;
+        if (expiresAfterWrite()) {
+            time = node.writeTime + expireAfterWriteNanos;
+        }
+        if (expiresAfterAccess()) {
+            final long accessExpiration = node.accessTime + expireAfterAccessNanos;
+            time = (time == Long.MAX_VALUE) ? accessExpiration : Math.min(time, accessExpiration);
+        }
+        return time;
+    }
+
+    /**
+     * @return Whether the entry has expired, or is {@link #isStale(Node)
+     *         stale}.
+     */
+    boolean hasExpired(final Node<K, V> node, final long now) {
+        return isStale(node) || (expiresAfterWrite() && ((now - node.writeTime) >= expireAfterWriteNanos))
+                || (expiresAfterAccess() && ((now - node.accessTime) >= expireAfterAccessNanos));
+    }
+
+    /**
+     * @return Whether the entry was stamped before the latest invalidation of
+     *         the cache, or of one of its tags.
+     */
+    boolean isStale(final Node<K, V> node) {
+        final long stamp = node.stamp;
+        if (stamp < allInvalidatedAt.get()) {
+            return true;
+        }
+        final AtomicLong[] nodeTags = node.tags;
+        if (nodeTags != null) {
+            for (final AtomicLong tag : nodeTags) {
+                if (stamp < tag.get()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The current time of the clock that stamps the entries.
+     */
+    long stamp() {
+        return epoch.get();
+    }
+
+    /**
+     * @return The invalidation times of the tags of the entry, or
+     *         <code>null</code> if it has none.
+     */
+    AtomicLong[] tagsOf(final K key, final V value) {
+        if (tagger == null) {
+            return null;
+        }
+        final Collection<?> names = tagger.tagsOf(key, value);
+        if ((names == null) || names.isEmpty()) {
+            return null;
+        }
+        final List<AtomicLong> found = new ArrayList<AtomicLong>(names.size());
+        for (final Object name : names) {
+            if (name != null) {
+                found.add(tagFor(name));
+            }
+        }
+        return found.isEmpty() ? null : found.toArray(new AtomicLong[found.size()]);
+    }
+
+    private AtomicLong tagFor(final Object name) {
+        AtomicLong tag = tags.get(name);
+        if (tag == null) {
+            final AtomicLong created = new AtomicLong();
+            tag = tags.putIfAbsent(name, created);
+            if (tag == null) {
+                tag = created;
+            }
+        }
+        return tag;
+    }
+
+    /**
+     * Moves an invalidation time forward, never back, so that concurrent
+     * invalidations cannot undo each other.
+     */
+    private static void advance(final AtomicLong time, final long to) {
+        long current = time.get();
+        while ((current < to) && !time.compareAndSet(current, to)) {
+            current = time.get();
+        }
+    }
+
+    /**
+     * Makes every entry stale at once. A cache with a second tier is cleared
+     * instead, since its copies carry no stamps.
+     */
+    void invalidateAll() {
+        if ((serializer != null) || (diskStore != null)) {
+            clear();
+            return;
+        }
+        advance(allInvalidatedAt, epoch.incrementAndGet());
+        if (absentKeys != null) {
+            absentKeys.invalidateAll();
+        }
+        invalidateNear();
+    }
+
+    /**
+     * Makes every entry with the tag stale at once.
+     *
+     * @throws IllegalStateException
+     *             If the entries have no tags.
+     */
+    void invalidateTag(final Object name) {
+        if (tags == null) {
+            throw new IllegalStateException("the map does not tag its entries");
+        }
+        advance(tagFor(name), epoch.incrementAndGet());
+        invalidateNear();
+    }
+
+    /**
+     * @return The component of a multikey at the given position, with
+     *         {@link #NULL_COMPONENT} standing for <code>null</code>; or
+     *         <code>null</code> if the key is not a multikey or has no such
+     *         component.
+     */
+    private static Object componentOf(final Object key, final int position) {
+        if (!(key instanceof JConchMultiKey)) {
+            return null;
+        }
+        final List<Object> components = ((JConchMultiKey) key).getKeys();
+        if (position > components.size()) {
+            return null;
+        }
+        final Object component = components.get(position - 1);
+        return (component == null) ? NULL_COMPONENT : component;
+    }
+
+    /**
+     * Removes every entry whose key has the given component, as well as the
+     * absent keys that do, looking them up in the segments' indexes.
+     *
+     * @return The number of live entries removed.
+     * @throws IllegalArgumentException
+     *             If the segments do not index the component.
+     */
+    int invalidateWhereKey(final int position, final Object component) {
+        int index = -1;
+        if (indexedComponents != null) {
+            for (int i = 0; i < indexedComponents.length; i++) {
+                if (indexedComponents[i] == position) {
+                    index = i;
+                }
+            }
+        }
+        if (index == -1) {
+            throw new IllegalArgumentException("key component " + position + " is not indexed");
+        }
+        final Object indexed = (component == null) ? NULL_COMPONENT : component;
+        int removed = 0;
+        for (final Segment<K, V> segment : segments) {
+            removed += segment.removeWhereKey(index, indexed, now());
+        }
+        if (absentKeys != null) {
+            absentKeys.invalidateWhereKey(position, component);
+        }
+        // A near cache may still hold an evicted value.
+        invalidateNear();
+        return removed;
+    }
+
+    /**
+     * Checks the next {@link Segment#STALE_BATCH} entries of the table, if the
+     * cache was invalidated since the last walk of the table started. Stale
+     * entries of the given segment, whose lock the caller holds, are removed;
+     * the others are handed to their own segments. The table is walked once
+     * for all the segments, and only by one of them at a time: the others
+     * skip their step rather than wait.
+     */
+    void walkStale(final Segment<K, V> caller) {
+        if ((walkedTo == epoch.get()) || !staleWalkLock.tryLock()) {
+            return;
+        }
+        try {
+            if (staleWalk == null) {
+                final long stamp = epoch.get();
+                if (stamp == walkedTo) {
+                    return;
+                }
+                staleWalk = data.values().iterator();
+                staleWalkStamp = stamp;
+            }
+            for (int i = 0; i < Segment.STALE_BATCH; i++) {
+                if (!staleWalk.hasNext()) {
+                    staleWalk = null;
+                    walkedTo = staleWalkStamp;
+                    return;
+                }
+                final Node<K, V> node = staleWalk.next();
+                if (node.live && isStale(node)) {
+                    final Segment<K, V> owner = segmentFor(node.hash);
+                    if (owner == caller) {
+                        owner.removeNode(node);
+                    } else {
+                        owner.staleNodes.offer(node);
+                    }
+                }
+            }
+        } finally {
+            staleWalkLock.unlock();
+        }
+    }
+
+    /**
+     * Provides the value for the key, computing it if it is not present.
+     *
+     * @throws NullPointerException
+     *             If the key is <code>null</code>, or if the converter returns
+     *             <code>null</code>.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        final int hash = rehash(key);
+        long version = 0L;
+        if (nearCache != null) {
+            final Object near = nearCache.get(key, hash, now());
+            if (near != null) {
+                return (V) near;
+            }
+            nearCache.flushHits();
+            version = nearCache.version();
+        }
+        final Node<K, V> node = data.get(key);
+        if (node != null) {
+            final long now = now();
+            if (!hasExpired(node, now)) {
+                statsCounter.recordHits(1);
+                final V value = onHit(node, hash, now);
+                if (nearCache != null) {
+                    nearCache.fill(key, hash, value, version, dueTime(node));
+                }
+                return value;
+            }
+        }
+        if (isKnownAbsent(key)) {
+            statsCounter.recordHits(1);
+            return null;
+        }
+        statsCounter.recordMisses(1);
+        return (missBatcher == null) ? load((K) key, hash) : missBatcher.load((K) key);
+    }
+
+    /**
+     * Provides the value for the key, if it is present.
+     */
+    V getIfPresent(final Object key) {
+        final Node<K, V> node = data.get(key);
+        if (node != null) {
+            final long now = now();
+            if (!hasExpired(node, now)) {
+                return onHit(node, rehash(key), now);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The time after which a near cache must leave the entry to this
+     *         table: when it expires, or is due for a refresh.
+     */
+    private long dueTime(final Node<K, V> node) {
+        long time = expirationTime(node);
+        if (refreshes()) {
+            time = Math.min(time, node.writeTime + refreshAfterWriteNanos);
+        }
+        return time;
+    }
+
+    /**
+     * Marks the entries of the near cache, if there is one, as out of date.
+     * This is called after the table has changed.
+     */
+    private void invalidateNear() {
+        if (nearCache != null) {
+            nearCache.invalidate();
+        }
+    }
+
+    /**
+     * @return Whether the converter recently returned <code>null</code> for
+     *         the key.
+     */
+    private boolean isKnownAbsent(final Object key) {
+        return (absentKeys != null) && (absentKeys.getIfPresent(key) != null);
+    }
+
+    /**
+     * Records a hit on a live entry, starting a refresh if it is due.
+     *
+     * @return The entry's value.
+     */
+    private V onHit(final Node<K, V> node, final int hash, final long now) {
+        segmentFor(hash).recordRead(node, now);
+        final V value = node.value;
+        if (refreshes() && ((now - node.writeTime) >= refreshAfterWriteNanos)) {
+            refresh(node, value, hash);
+        }
+        return value;
+    }
+
+    /**
+     * Starts a background reload of the entry, unless one is already running.
+     * The reloaded value will only replace the value that was read.
+     */
+    private void refresh(final Node<K, V> node, final V oldValue, final int hash) {
+        if (!Node.REFRESHING.compareAndSet(node, 0, 1)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        reload(node, oldValue, hash);
+                    } finally {
+                        node.refreshing = 0;
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            node.refreshing = 0;
+            statsCounter.recordRefreshFailure();
+        }
+    }
+
+    /**
+     * Computes a new value for the entry and swaps it in. A failure keeps the
+     * current value.
+     */
+    private void reload(final Node<K, V> node, final V oldValue, final int hash) {
+        synchronized (lockFactory.getLock(node.key)) {
+            if (!node.live || (node.value != oldValue)) {
+                return;
+            }
+            if (!acquireLoadPermit()) {
+                statsCounter.recordLoadRejection();
+                return;
+            }
+            final V newValue;
+            try {
+                newValue = converter.apply(node.key);
+            } catch (final RuntimeException e) {
+                statsCounter.recordRefreshFailure();
+                return;
+            } finally {
+                releaseLoadPermit();
+            }
+            if (newValue == null) {
+                statsCounter.recordRefreshFailure();
+            } else if (segmentFor(hash).replace(node, oldValue, newValue, now())) {
+                invalidateNear();
+                if (diskStore != null) {
+                    diskStore.write(node.key, newValue);
+                }
+                statsCounter.recordRefresh();
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of the activity of this cache.
+     */
+    CacheStats stats() {
+        return statsCounter.snapshot(data.size());
+    }
+
+    /**
+     * @see CacheMap#flushWrites()
+     */
+    void flushWrites() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    /**
+     * @see CacheMap#flush()
+     */
+    void flush() {
+        flushWrites();
+        if (diskStore != null) {
+            diskStore.force();
+        }
+    }
+
+    /**
+     * @see CacheMap#close()
+     */
+    void close() {
+        try {
+            flushWrites();
+        } finally {
+            if (diskStore != null) {
+                diskStore.close();
+            }
+        }
+    }
+
+    /**
+     * @see CacheMap#getPendingWriteCount()
+     */
+    int pendingWriteCount() {
+        return (writeBehind == null) ? 0 : writeBehind.pendingCount();
+    }
+
+    boolean hasBulkLoader() {
+        return bulkLoader != null;
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Queues a {@link #trim(double) trim} on the executor, unless one is
+     * already queued. If the executor refuses it, trims in the calling thread.
+     */
+    void trimLater(final double fraction) {
+        if (!trimPending.compareAndSet(false, true)) {
+            return;
+        }
+        final Runnable task = new Runnable() {
+            public void run() {
+                trimPending.set(false);
+                trim(fraction);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Evicts a fraction of the entries of each segment, and of the absent
+     * keys, least valuable first.
+     *
+     * @return The number of entries evicted.
+     */
+    long trim(final double fraction) {
+        long evicted = 0;
+        for (final Segment<K, V> segment : segments) {
+            evicted += segment.trim(fraction, now());
+        }
+        if (absentKeys != null) {
+            absentKeys.trim(fraction);
+        }
+        // Let go of the values the per-thread tables still hold.
+        invalidateNear();
+        return evicted;
+    }
+
+    /**
+     * Ranks the live entries by how often they were used recently, according
+     * to the frequency sketches of a bounded cache; entries with the same
+     * estimate are ranked by the region they sit in, protected first. An
+     * unbounded cache has no estimates, so its keys come in no particular
+     * order.
+     *
+     * @param limit
+     *            The most keys to provide.
+     * @return The hottest keys, hottest first.
+     */
+    List<K> hotKeys(final int limit) {
+        // Group the entries by segment, so that each lock is only taken once.
+        final List<List<Node<K, V>>> bySegment = new ArrayList<List<Node<K, V>>>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            bySegment.add(new ArrayList<Node<K, V>>());
+        }
+        for (final Node<K, V> node : data.values()) {
+            bySegment.get((node.hash >>> segmentShift) & segmentMask).add(node);
+        }
+
+        final List<RankedKey<K>> ranked = new ArrayList<RankedKey<K>>(data.size());
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].rank(bySegment.get(i), ranked);
+        }
+        Collections.sort(ranked);
+        final List<K> keys = new ArrayList<K>(Math.min(limit, ranked.size()));
+        for (final RankedKey<K> key : ranked) {
+            if (keys.size() == limit) {
+                break;
+            }
+            keys.add(key.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Computes the value of an absent key under the key's lock. A thread that
+     * was waiting on the lock finds the value another thread computed.
+     */
+    @SuppressWarnings("unchecked")
+    private V load(final K key, final int hash) {
+        final BulkLoad bulkLoad = bulkLoads.get(key);
+        if (bulkLoad != null) {
+            bulkLoad.await();
+        }
+        if (loadTimeoutNanos != CacheMapMaker.UNSET_INT) {
+            return timedLoad(key, hash);
+        }
+        synchronized (lockFactory.getLock(key)) {
+            final Object found = findLocked(key, hash);
+            if (found != NOT_FOUND) {
+                return (V) found;
+            }
+            if (!acquireLoadPermit()) {
+                return rejected(key);
+            }
+            try {
+                // An invalidation during the load leaves its value stale.
+                final long stamp = stamp();
+                return cacheLoaded(key, hash, convert(key), stamp);
+            } finally {
+                releaseLoadPermit();
+            }
+        }
+    }
+
+    /**
+     * Computes the value of an absent key on the executor, and waits for it
+     * for at most the load timeout. A thread that comes along while the load
+     * is running waits for the same load.
+     */
+    @SuppressWarnings("unchecked")
+    private V timedLoad(final K key, final int hash) {
+        FutureTask<V> load;
+        synchronized (lockFactory.getLock(key)) {
+            final Object found = findLocked(key, hash);
+            if (found != NOT_FOUND) {
+                return (V) found;
+            }
+            load = timedLoads.get(key);
+            if (load == null) {
+                if (!acquireLoadPermit()) {
+                    return rejected(key);
+                }
+                load = new FutureTask<V>(newTimedLoad(key, hash));
+                timedLoads.put(key, load);
+                try {
+                    executor.execute(load);
+                } catch (final RejectedExecutionException e) {
+                    timedLoads.remove(key);
+                    releaseLoadPermit();
+                    return rejected(key);
+                }
+            }
+        }
+
+        try {
+            return load.get(loadTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException e) {
+            statsCounter.recordLoadTimeout();
+            final V stale = staleValue(key);
+            if (stale != null) {
+                return stale;
+            }
+            throw new LoadTimeoutException("gave up on loading " + key + " after " + loadTimeoutNanos + " ns");
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoadTimeoutException("interrupted while loading " + key);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * Makes the task of a timed load, which holds a load permit that it
+     * releases when it is done.
+     */
+    private Callable<V> newTimedLoad(final K key, final int hash) {
+        return new Callable<V>() {
+            public V call() {
+                boolean cached = false;
+                try {
+                    final long stamp = stamp();
+                    final V value = convert(key);
+                    synchronized (lockFactory.getLock(key)) {
+                        timedLoads.remove(key);
+                        cached = true;
+                        return cacheLoaded(key, hash, value, stamp);
+                    }
+                } finally {
+                    if (!cached) {
+                        synchronized (lockFactory.getLock(key)) {
+                            timedLoads.remove(key);
+                        }
+                    }
+                    releaseLoadPermit();
+                }
+            }
+        };
+    }
+
+    /**
+     * Looks for the key again once its lock is held: in the table, among the
+     * absent keys, and in the second tier.
+     *
+     * @return The value, <code>null</code> if the key is known to be absent,
+     *         or {@link #NOT_FOUND}.
+     */
+    private Object findLocked(final K key, final int hash) {
+        final Node<K, V> node = data.get(key);
+        if (node != null) {
+            final long now = now();
+            if (!hasExpired(node, now)) {
+                segmentFor(hash).recordRead(node, now);
+                return node.value;
+            }
+        }
+        if (isKnownAbsent(key)) {
+            return null;
+        }
+        final V promoted = promote(key, hash);
+        return (promoted == null) ? NOT_FOUND : promoted;
+    }
+
+    /**
+     * Calls the converter, recording the load.
+     *
+     * @return The value, or <code>null</code> if the converter returned
+     *         <code>null</code> and the cache remembers absent keys.
+     * @throws NullPointerException
+     *             If the converter returned <code>null</code> and the cache
+     *             does not remember absent keys.
+     */
+    private V convert(final K key) {
+        final long start = ticker.read();
+        final V value;
+        try {
+            value = converter.apply(key);
+        } catch (final RuntimeException e) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw e;
+        } catch (final Error e) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw e;
+        }
+        if ((value == null) && (absentKeys == null)) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw new NullPointerException("converter returned null for key: " + key);
+        }
+        statsCounter.recordLoadSuccess(ticker.read() - start);
+        return value;
+    }
+
+    /**
+     * Caches what the converter returned for a key, under the key's lock.
+     *
+     * @param stamp
+     *            The time of the stamping clock when the load started.
+     * @return The value, or the value another thread stored first.
+     */
+    private V cacheLoaded(final K key, final int hash, final V value, final long stamp) {
+        if (value == null) {
+            absentKeys.put(key, Boolean.TRUE);
+            return null;
+        }
+        final V raced = store(key, hash, value, true, now(), stamp);
+        return (raced == null) ? value : raced;
+    }
+
+    private boolean acquireLoadPermit() {
+        return (loadPermits == null) || loadPermits.tryAcquire();
+    }
+
+    private void releaseLoadPermit() {
+        if (loadPermits != null) {
+            loadPermits.release();
+        }
+    }
+
+    /**
+     * Handles a load that could not be started, or waited for.
+     *
+     * @return The expired value of the key, if the table still holds one.
+     * @throws RejectedExecutionException
+     *             If it does not.
+     */
+    private V rejected(final K key) {
+        statsCounter.recordLoadRejection();
+        final V stale = staleValue(key);
+        if (stale != null) {
+            return stale;
+        }
+        throw new RejectedExecutionException("too many loads in progress to load " + key);
+    }
+
+    /**
+     * @return The value of the key, even if it has expired, or
+     *         <code>null</code> if the table has none or it was invalidated.
+     */
+    private V staleValue(final K key) {
+        final Node<K, V> node = data.get(key);
+        return ((node == null) || isStale(node)) ? null : node.value;
+    }
+
+    /**
+     * Stores a value in its segment and in the disk tier, if there is one. If
+     * there is, the caller must hold the key's lock.
+     *
+     * @return The previous value, or <code>null</code> if there was none.
+     */
+    private V store(final K key, final int hash, final V value, final boolean onlyIfAbsent, final long now,
+            final long stamp) {
+        final V old = segmentFor(hash).put(key, hash, value, onlyIfAbsent, now, stamp);
+        if ((diskStore != null) && !(onlyIfAbsent && (old != null))) {
+            diskStore.write(key, value);
+        }
+        return old;
+    }
+
+    /**
+     * Brings a value back from the second tier, if there is one.
+     *
+     * @return The value, or <code>null</code> if the tier did not have it.
+     */
+    private V promote(final K key, final int hash) {
+        if (serializer != null) {
+            return promoteFromOffHeap(key, hash);
+        }
+        if (diskStore != null) {
+            return promoteFromDisk(key, hash);
+        }
+        return null;
+    }
+
+    /**
+     * Brings a value back from the off-heap tier. The tier keeps its copy, so
+     * that the value need not be serialized again if it is evicted unchanged.
+     *
+     * @return The value, or <code>null</code> if the tier did not have it.
+     */
+    private V promoteFromOffHeap(final K key, final int hash) {
+        final Segment<K, V> segment = segmentFor(hash);
+        final long now = now();
+        final OffHeapStore.Copy copy = segment.readOffHeap(key, now);
+        if (copy == null) {
+            return null;
+        }
+        V value;
+        try {
+            value = serializer.deserialize(copy.bytes);
+        } catch (final RuntimeException e) {
+            value = null;
+        }
+        if (value == null) {
+            segment.removeOffHeap(key);
+            return null;
+        }
+        final V raced = segment.promote(key, hash, value, copy.writeTime, now);
+        return (raced == null) ? value : raced;
+    }
+
+    /**
+     * Brings a value back from the disk tier, under the key's lock so that a
+     * concurrent removal cannot be undone. The value is dated back to when it
+     * was written to the files, which may be before the cache was made.
+     *
+     * @return The value, or <code>null</code> if the tier did not have it, or
+     *         only had an expired value.
+     */
+    private V promoteFromDisk(final K key, final int hash) {
+        synchronized (lockFactory.getLock(key)) {
+            final DiskStore.Copy copy = diskStore.read(key);
+            if (copy == null) {
+                return null;
+            }
+            final long age = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, System.currentTimeMillis() - copy.writeTime));
+            if (expiresAfterWrite() && (age >= expireAfterWriteNanos)) {
+                return null;
+            }
+            V value;
+            try {
+                value = diskStore.deserialize(copy.bytes);
+            } catch (final RuntimeException e) {
+                value = null;
+            }
+            if (value == null) {
+                diskStore.remove(key);
+                return null;
+            }
+            final long now = now();
+            final V raced = segmentFor(hash).promote(key, hash, value, now - age, now);
+            return (raced == null) ? value : raced;
+        }
+    }
+
+    /**
+     * Provides the values for the keys, computing the missing ones together
+     * with the bulk loader if there is one. Keys that the bulk loader does not
+     * provide are computed one at a time by the converter.
+     *
+     * @param recordStats
+     *            Whether to count the look-ups as hits and misses; the
+     *            {@link MissBatcher} already has.
+     * @return The values, in the order the keys were given.
+     * @throws NullPointerException
+     *             If any key is <code>null</code>.
+     */
+    Map<K, V> getAll(final Iterable<? extends K> keys, final boolean recordStats) {
+        final Set<K> requested = new LinkedHashSet<K>();
+        for (final K key : keys) {
+            if (key == null) {
+                throw new NullPointerException("key");
+            }
+            requested.add(key);
+        }
+
+        final Map<K, V> found = new LinkedHashMap<K, V>();
+        final Set<K> missing = new LinkedHashSet<K>();
+        final long now = now();
+        for (final K key : requested) {
+            final Node<K, V> node = data.get(key);
+            if ((node != null) && !hasExpired(node, now)) {
+                found.put(key, onHit(node, rehash(key), now));
+            } else if (isKnownAbsent(key)) {
+                found.put(key, null);
+            } else {
+                final V promoted = promote(key, rehash(key));
+                if (promoted == null) {
+                    missing.add(key);
+                } else {
+                    found.put(key, promoted);
+                }
+            }
+        }
+        if (recordStats) {
+            statsCounter.recordHits(found.size());
+            statsCounter.recordMisses(missing.size());
+        }
+        if (!missing.isEmpty()) {
+            loadAll(missing, found);
+        }
+
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        for (final K key : requested) {
+            result.put(key, found.get(key));
+        }
+        return result;
+    }
+
+    /**
+     * Loads the missing keys in a single call to the bulk loader, except for
+     * those another bulk load is already working on: it waits for those
+     * instead.
+     */
+    private void loadAll(final Set<K> missing, final Map<K, V> found) {
+        if (bulkLoader == null) {
+            for (final K key : missing) {
+                found.put(key, load(key, rehash(key)));
+            }
+            return;
+        }
+
+        final BulkLoad bulkLoad = new BulkLoad();
+        final List<K> claimed = new ArrayList<K>();
+        final List<BulkLoad> others = new ArrayList<BulkLoad>();
+        for (final K key : missing) {
+            final BulkLoad other = bulkLoads.putIfAbsent(key, bulkLoad);
+            if (other == null) {
+                claimed.add(key);
+            } else {
+                others.add(other);
+            }
+        }
+
+        try {
+            if (!claimed.isEmpty()) {
+                // A load may have finished between our look-up and our claim.
+                final long now = now();
+                final List<K> toLoad = new ArrayList<K>(claimed.size());
+                for (final K key : claimed) {
+                    final Node<K, V> node = data.get(key);
+                    if ((node != null) && !hasExpired(node, now)) {
+                        found.put(key, node.value);
+                    } else {
+                        toLoad.add(key);
+                    }
+                }
+                if (!toLoad.isEmpty()) {
+                    final long stamp = stamp();
+                    final Map<K, V> loaded = bulkLoad(toLoad);
+                    if (loaded != null) {
+                        storeLoaded(loaded, missing, found, stamp);
+                    }
+                }
+            }
+        } finally {
+            for (final K key : claimed) {
+                bulkLoads.remove(key, bulkLoad);
+            }
+            bulkLoad.finish();
+        }
+
+        for (final BulkLoad other : others) {
+            other.await();
+        }
+        for (final K key : missing) {
+            if (!found.containsKey(key)) {
+                found.put(key, load(key, rehash(key)));
+            }
+        }
+    }
+
+    /**
+     * Calls the bulk loader, recording the load.
+     *
+     * @throws RejectedExecutionException
+     *             If the cache is already running its maximum number of loads.
+     */
+    private Map<K, V> bulkLoad(final List<K> keys) {
+        if (!acquireLoadPermit()) {
+            statsCounter.recordLoadRejection();
+            throw new RejectedExecutionException("too many loads in progress to load " + keys.size() + " keys");
+        }
+        final long start = ticker.read();
+        final Map<K, V> loaded;
+        try {
+            loaded = bulkLoader.apply(Collections.unmodifiableList(keys));
+        } catch (final RuntimeException e) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw e;
+        } catch (final Error e) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw e;
+        } finally {
+            releaseLoadPermit();
+        }
+        statsCounter.recordLoadSuccess(ticker.read() - start);
+        return loaded;
+    }
+
+    /**
+     * Caches what the bulk loader provided, including keys nobody asked for.
+     */
+    private void storeLoaded(final Map<K, V> loaded, final Set<K> missing, final Map<K, V> found,
+            final long stamp) {
+        final long now = now();
+        for (final Map.Entry<K, V> entry : loaded.entrySet()) {
+            final K key = entry.getKey();
+            final V value = entry.getValue();
+            if ((key == null) || (value == null)) {
+                continue;
+            }
+            final int hash = rehash(key);
+            final V raced;
+            if (diskStore == null) {
+                raced = segmentFor(hash).put(key, hash, value, true, now, stamp);
+            } else {
+                synchronized (lockFactory.getLock(key)) {
+                    raced = store(key, hash, value, true, now, stamp);
+                }
+            }
+            if (missing.contains(key)) {
+                found.put(key, (raced == null) ? value : raced);
+            }
+        }
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        final int hash = rehash(key);
+        final V old;
+        if ((diskStore == null) && (writeBehind == null)) {
+            old = segmentFor(hash).put(key, hash, value, false, now(), stamp());
+        } else {
+            if (writeBehind != null) {
+                writeBehind.awaitRoom(key);
+            }
+            synchronized (lockFactory.getLock(key)) {
+                old = store(key, hash, value, false, now(), stamp());
+                if (writeBehind != null) {
+                    writeBehind.enqueue(key, value);
+                }
+            }
+        }
+        invalidateNear();
+        if (absentKeys != null) {
+            absentKeys.remove(key);
+        }
+        return old;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(final Object key) {
+        if (key == null) {
+            return null;
+        }
+        if (absentKeys != null) {
+            absentKeys.remove(key);
+        }
+        final V old;
+        if (diskStore == null) {
+            old = segmentFor(rehash(key)).remove(key, now());
+        } else {
+            synchronized (lockFactory.getLock((K) key)) {
+                diskStore.remove(key);
+                old = segmentFor(rehash(key)).remove(key, now());
+            }
+        }
+        // A near cache may still hold an evicted value.
+        invalidateNear();
+        return old;
+    }
+
+    /**
+     * Removes a key only if it is mapped to the given value, compared by
+     * identity.
+     *
+     * @return Whether the entry was removed.
+     */
+    @SuppressWarnings("unchecked")
+    boolean removeIfSame(final Object key, final Object value) {
+        if ((key == null) || (value == null)) {
+            return false;
+        }
+        final boolean removed;
+        if (diskStore == null) {
+            removed = segmentFor(rehash(key)).remove(key, value, now());
+        } else {
+            synchronized (lockFactory.getLock((K) key)) {
+                removed = segmentFor(rehash(key)).remove(key, value, now());
+                if (removed) {
+                    diskStore.remove(key);
+                }
+            }
+        }
+        if (removed) {
+            invalidateNear();
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (key == null) {
+            return false;
+        }
+        final Node<K, V> node = data.get(key);
+        return (node != null) && !hasExpired(node, now());
+    }
+
+    /**
+     * Provides the number of entries in the map. Expired entries that have not
+     * been reclaimed yet are included in the count.
+     */
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public void clear() {
+        if (absentKeys != null) {
+            absentKeys.clear();
+        }
+        if (diskStore != null) {
+            diskStore.clear();
+        }
+        for (final Segment<K, V> segment : segments) {
+            segment.lock();
+        }
+        try {
+            data.clear();
+            for (final Segment<K, V> segment : segments) {
+                segment.reset();
+            }
+        } finally {
+            for (final Segment<K, V> segment : segments) {
+                segment.unlock();
+            }
+        }
+        invalidateNear();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * A key with its score in {@link #hotKeys(int)}; higher scores sort first.
+     */
+    private static final class RankedKey<K> implements Comparable<RankedKey<K>> {
+
+        final K key;
+
+        final int score;
+
+        RankedKey(final K key, final int score) {
+            this.key = key;
+            this.score = score;
+        }
+
+        public int compareTo(final RankedKey<K> other) {
+            return (score > other.score) ? -1 : ((score == other.score) ? 0 : 1);
+        }
+    }
+
+    /**
+     * A view of the unexpired entries, backed by the table.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            final Iterator<Node<K, V>> nodes = data.values().iterator();
+            final long now = now();
+            return new Iterator<Map.Entry<K, V>>() {
+                private Node<K, V> next = advance();
+
+                private Node<K, V> last;
+
+                private Node<K, V> advance() {
+                    while (nodes.hasNext()) {
+                        final Node<K, V> node = nodes.next();
+                        if (!hasExpired(node, now)) {
+                            return node;
+                        }
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Map.Entry<K, V> next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next;
+                    next = advance();
+                    return new WriteThroughEntry(last.key, last.value);
+                }
+
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    LocalCache.this.remove(last.key);
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return LocalCache.this.size();
+        }
+
+        @Override
+        public void clear() {
+            LocalCache.this.clear();
+        }
+    }
+
+    /**
+     * A bulk load in flight, which others can wait on.
+     */
+    private static final class BulkLoad {
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        void finish() {
+            finished.countDown();
+        }
+
+        /**
+         * Waits for the load to finish, without giving up on interrupts.
+         */
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * An entry whose {@link #setValue(Object)} writes through to the cache.
+     */
+    private final class WriteThroughEntry implements Map.Entry<K, V> {
+
+        private final K key;
+
+        private V value;
+
+        WriteThroughEntry(final K key, final V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(final V newValue) {
+            final V old = value;
+            put(key, newValue);
+            value = newValue;
+            return old;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?, ?> them = (Map.Entry<?, ?>) o;
+            return key.equals(them.getKey()) && value.equals(them.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * A cache entry. The value and the times are read without locking;
+     * everything else is guarded by the owning segment's lock.
+     */
+    static final class Node<K, V> {
+
+        static final AtomicIntegerFieldUpdater<Node<?, ?>> REFRESHING = newRefreshingUpdater();
+
+        static final int NONE = 0;
+
+        static final int WINDOW = 1;
+
+        static final int PROBATION = 2;
+
+        static final int PROTECTED = 3;
+
+        final K key;
+
+        final int hash;
+
+        volatile V value;
+
+        volatile long writeTime;
+
+        volatile long accessTime;
+
+        volatile boolean live;
+
+        /**
+         * The time of the stamping clock when the value was stored, or when
+         * its load started.
+         */
+        volatile long stamp;
+
+        /**
+         * The invalidation times of the value's tags, or <code>null</code> if
+         * it has none.
+         */
+        volatile AtomicLong[] tags;
+
+        /**
+         * Whether a reload is in flight: 1 if so, 0 if not.
+         */
+        volatile int refreshing;
+
+        int queue = NONE;
+
+        /**
+         * The weight of the current value; 1 unless the cache weighs its
+         * entries.
+         */
+        int weight = 1;
+
+        /**
+         * Whether the off-heap tier holds a copy of the current value.
+         */
+        boolean offHeapCopy;
+
+        Node<K, V> prev;
+
+        Node<K, V> next;
+
+        long timerTime;
+
+        Node<K, V> timerPrev;
+
+        Node<K, V> timerNext;
+
+        Node(final K key, final int hash, final V value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static AtomicIntegerFieldUpdater<Node<?, ?>> newRefreshingUpdater() {
+            final Class<?> type = Node.class;
+            return AtomicIntegerFieldUpdater.newUpdater((Class<Node<?, ?>>) type, "refreshing");
+        }
+    }
+
+    /**
+     * A doubly-linked list of nodes in access order, least recently used
+     * first.
+     */
+    static final class AccessQueue<K, V> {
+
+        private final Node<K, V> sentinel = new Node<K, V>(null, 0, null);
+
+        int size;
+
+        /**
+         * The total weight of the nodes in the queue.
+         */
+        long weight;
+
+        AccessQueue() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        Node<K, V> peekFirst() {
+            return (sentinel.next == sentinel) ? null : sentinel.next;
+        }
+
+        /**
+         * @return The node after the given one, or <code>null</code> if it is
+         *         the last.
+         */
+        Node<K, V> after(final Node<K, V> node) {
+            return (node.next == sentinel) ? null : node.next;
+        }
+
+        void addLast(final Node<K, V> node) {
+            node.prev = sentinel.prev;
+            node.next = sentinel;
+            sentinel.prev.next = node;
+            sentinel.prev = node;
+            size++;
+            weight += node.weight;
+        }
+
+        void remove(final Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+            weight -= node.weight;
+        }
+
+        void moveToLast(final Node<K, V> node) {
+            remove(node);
+            addLast(node);
+        }
+
+        void clear() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            size = 0;
+            weight = 0;
+        }
+    }
+
+    /**
+     * A partition of the cache, which owns the eviction and expiration
+     * policies for the entries that hash into it.
+     */
+    @SuppressWarnings("serial")
+    static final class Segment<K, V> extends ReentrantLock {
+
+        static final long UNBOUNDED = -1L;
+
+        /**
+         * How many entries of the table each upkeep checks for staleness.
+         */
+        static final int STALE_BATCH = 16;
+
+        /**
+         * The number of contests in a row that a victim may win before it is
+         * evicted anyway.
+         */
+        private static final int MAX_HOLDER_WINS = 32;
+
+        private final LocalCache<K, V> cache;
+
+        private final ConcurrentMap<K, Node<K, V>> data;
+
+        private final boolean evicts;
+
+        private final long maximum;
+
+        private final long maxWindow;
+
+        private final long maxProtected;
+
+        private final FrequencySketch sketch;
+
+        private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+
+        private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+
+        private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+
+        private final TimerWheel<K, V> timerWheel;
+
+        /**
+         * Where evicted values go, or <code>null</code> if they are dropped.
+         */
+        private final OffHeapStore<K> offHeap;
+
+        /**
+         * The entries by each indexed key component, in the order of
+         * {@link LocalCache#indexedComponents}; or <code>null</code> if no
+         * component is indexed.
+         */
+        private final Map<Object, Set<Node<K, V>>>[] indexes;
+
+        /**
+         * The time of the latest advance of the timer wheel.
+         */
+        private long clock;
+
+        /**
+         * The stale entries of this segment that the walk of the table found
+         * while another segment was walking it.
+         */
+        private final Queue<Node<K, V>> staleNodes = new ConcurrentLinkedQueue<Node<K, V>>();
+
+        /**
+         * The hash of the victim that won the latest admission contest, and
+         * how many contests in a row it has won against candidates that were
+         * seen before.
+         */
+        private int holderHash;
+
+        private int holderWins;
+
+        Segment(final LocalCache<K, V> cache, final long capacity, final long offHeapBudget) {
+            this.cache = cache;
+            data = cache.data;
+            evicts = (capacity != UNBOUNDED);
+            maximum = capacity;
+            maxWindow = (capacity <= 0) ? 0 : Math.max(1, capacity / 100);
+            maxProtected = ((capacity - maxWindow) * 4) / 5;
+            // A weighted segment grows its sketch with its number of entries.
+            final long sketchSize = cache.weighs() ? 0L : capacity;
+            sketch = evicts ? new FrequencySketch((int) Math.min(sketchSize, Integer.MAX_VALUE)) : null;
+            offHeap = (offHeapBudget > 0) ? new OffHeapStore<K>(offHeapBudget) : null;
+            indexes = (cache.indexedComponents == null) ? null
+                    : Segment.<K, V> newIndexArray(cache.indexedComponents.length);
+            timerWheel = !cache.expires() ? null : new TimerWheel<K, V>(cache.now()) {
+                @Override
+                boolean expire(final Node<K, V> node) {
+                    return expireNode(node);
+                }
+            };
+        }
+
+        /**
+         * Records a hit. The policies are only updated if nobody else is
+         * holding the lock.
+         */
+        void recordRead(final Node<K, V> node, final long now) {
+            if (cache.expiresAfterAccess()) {
+                node.accessTime = now;
+            }
+            if ((evicts || (timerWheel != null)) && tryLock()) {
+                try {
+                    expireEntries(now);
+                    if (node.live) {
+                        if (evicts) {
+                            onAccess(node);
+                        }
+                        if (cache.expiresAfterAccess()) {
+                            node.timerTime = cache.expirationTime(node);
+                            timerWheel.reschedule(node);
+                        }
+                    }
+                } finally {
+                    unlock();
+                }
+            }
+        }
+
+        /**
+         * Scores the given entries of this segment for
+         * {@link LocalCache#hotKeys(int)}, skipping those which are gone or
+         * have expired.
+         */
+        void rank(final List<Node<K, V>> nodes, final List<RankedKey<K>> ranked) {
+            final long now = cache.now();
+            lock();
+            try {
+                for (final Node<K, V> node : nodes) {
+                    if (!node.live || cache.hasExpired(node, now)) {
+                        continue;
+                    }
+                    int score = 0;
+                    if (evicts) {
+                        final int region = (node.queue == Node.PROTECTED) ? 2 : ((node.queue == Node.WINDOW) ? 1 : 0);
+                        score = (sketch.frequency(node.hash) << 2) | region;
+                    }
+                    ranked.add(new RankedKey<K>(node.key, score));
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Stores a value. An expired or stale entry is treated as absent.
+         *
+         * @param stamp
+         *            The time of the stamping clock to give the entry.
+         * @return The previous value, or <code>null</code> if there was none.
+         */
+        V put(final K key, final int hash, final V value, final boolean onlyIfAbsent, final long now,
+                final long stamp) {
+            final int weight = cache.weigh(key, value);
+            final AtomicLong[] tags = cache.tagsOf(key, value);
+            lock();
+            try {
+                expireEntries(now);
+                if (offHeap != null) {
+                    offHeap.remove(key);
+                }
+                return putLocked(key, hash, value, weight, tags, stamp, onlyIfAbsent, now, now, false);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Stores a value read from the second tier, unless the key already has
+         * one.
+         *
+         * @return The existing value, or <code>null</code> if there was none.
+         */
+        V promote(final K key, final int hash, final V value, final long writeTime, final long now) {
+            final int weight = cache.weigh(key, value);
+            final long stamp = cache.stamp();
+            lock();
+            try {
+                expireEntries(now);
+                return putLocked(key, hash, value, weight, null, stamp, true, writeTime, now, offHeap != null);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Stores a value which was written at the given time. The caller holds
+         * the lock.
+         *
+         * @param offHeapCopy
+         *            Whether the off-heap tier holds a copy of the value.
+         * @return The previous value, or <code>null</code> if there was none.
+         */
+        private V putLocked(final K key, final int hash, final V value, final int weight, final AtomicLong[] tags,
+                final long stamp, final boolean onlyIfAbsent, final long writeTime, final long now,
+                final boolean offHeapCopy) {
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                if (cache.hasExpired(node, now)) {
+                    removeNode(node);
+                    if (!cache.isStale(node)) {
+                        cache.statsCounter.recordExpiration();
+                    }
+                } else {
+                    final V old = node.value;
+                    if (!onlyIfAbsent) {
+                        node.tags = tags;
+                        node.stamp = stamp;
+                        node.value = value;
+                        node.writeTime = writeTime;
+                        node.offHeapCopy = offHeapCopy;
+                        setWeight(node, weight);
+                    }
+                    node.accessTime = now;
+                    if (timerWheel != null) {
+                        node.timerTime = cache.expirationTime(node);
+                        timerWheel.reschedule(node);
+                    }
+                    if (evicts) {
+                        onAccess(node);
+                        evictIfOverweight(node);
+                    }
+                    return old;
+                }
+            }
+
+            node = new Node<K, V>(key, hash, value);
+            node.tags = tags;
+            node.stamp = stamp;
+            node.weight = weight;
+            node.writeTime = writeTime;
+            node.offHeapCopy = offHeapCopy;
+            node.accessTime = now;
+            node.live = true;
+            data.put(key, node);
+            if (indexes != null) {
+                index(node);
+            }
+            if (timerWheel != null) {
+                node.timerTime = cache.expirationTime(node);
+                timerWheel.schedule(node);
+            }
+            if (evicts) {
+                if (cache.weighs()) {
+                    sketch.ensureCapacity((int) Math.min(entryCount(), Integer.MAX_VALUE));
+                }
+                sketch.increment(hash);
+                node.queue = Node.WINDOW;
+                window.addLast(node);
+                addWeight(node.weight);
+                evictIfOverweight(node);
+            }
+            return null;
+        }
+
+        /**
+         * Swaps in a reloaded value, if the entry has not been written or
+         * removed since the reload started.
+         *
+         * @return Whether the value was replaced.
+         */
+        boolean replace(final Node<K, V> node, final V expected, final V value, final long now) {
+            final int weight = cache.weigh(node.key, value);
+            final AtomicLong[] tags = cache.tagsOf(node.key, value);
+            lock();
+            try {
+                expireEntries(now);
+                if (!node.live || (node.value != expected)) {
+                    return false;
+                }
+                // The entry keeps its stamp, which is no later than the reload.
+                node.tags = tags;
+                node.value = value;
+                node.writeTime = now;
+                setWeight(node, weight);
+                if (node.offHeapCopy) {
+                    offHeap.remove(node.key);
+                    node.offHeapCopy = false;
+                }
+                if (timerWheel != null) {
+                    node.timerTime = cache.expirationTime(node);
+                    timerWheel.reschedule(node);
+                }
+                if (evicts) {
+                    evictIfOverweight(node);
+                }
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Removes a key.
+         *
+         * @return The value, or <code>null</code> if there was none (or it had
+         *         expired).
+         */
+        V remove(final Object key, final long now) {
+            lock();
+            try {
+                expireEntries(now);
+                if (offHeap != null) {
+                    offHeap.remove(key);
+                }
+                final Node<K, V> node = data.get(key);
+                if (node == null) {
+                    return null;
+                }
+                removeNode(node);
+                return cache.hasExpired(node, now) ? null : node.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Removes a key if it still maps to the given value.
+         *
+         * @return Whether the entry was removed.
+         */
+        boolean remove(final Object key, final Object value, final long now) {
+            lock();
+            try {
+                expireEntries(now);
+                final Node<K, V> node = data.get(key);
+                if ((node == null) || (node.value != value)) {
+                    return false;
+                }
+                removeNode(node);
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Removes the entries whose key has the given component.
+         *
+         * @param index
+         *            The position of the component among the indexed ones.
+         * @return The number of entries removed that had not expired.
+         */
+        int removeWhereKey(final int index, final Object component, final long now) {
+            lock();
+            try {
+                expireEntries(now);
+                final Set<Node<K, V>> found = indexes[index].get(component);
+                if (found == null) {
+                    return 0;
+                }
+                int removed = 0;
+                // Removing a node changes the set.
+                for (final Node<K, V> node : new ArrayList<Node<K, V>>(found)) {
+                    if (!cache.hasExpired(node, now)) {
+                        removed++;
+                    }
+                    removeNode(node);
+                }
+                return removed;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Drops the policies' bookkeeping; the caller clears the table.
+         */
+        void reset() {
+            if (indexes != null) {
+                for (final Map<Object, Set<Node<K, V>>> index : indexes) {
+                    index.clear();
+                }
+            }
+            addWeight(-weightedSize());
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            if (timerWheel != null) {
+                timerWheel.clear();
+            }
+            if (offHeap != null) {
+                offHeap.clear();
+            }
+            staleNodes.clear();
+        }
+
+        /**
+         * Reads a value from the off-heap tier.
+         *
+         * @return A copy of the value, or <code>null</code> if the tier does
+         *         not have a live value for the key.
+         */
+        OffHeapStore.Copy readOffHeap(final Object key, final long now) {
+            lock();
+            try {
+                return offHeap.read(key, now);
+            } finally {
+                unlock();
+            }
+        }
+
+        void removeOffHeap(final Object key) {
+            lock();
+            try {
+                offHeap.remove(key);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Reclaims the entries that the timer wheel says are due, and a few of
+         * the stale ones.
+         */
+        private void expireEntries(final long now) {
+            if (timerWheel != null) {
+                clock = now;
+                timerWheel.advance(now);
+            }
+            reclaimStale();
+        }
+
+        /**
+         * Removes the stale entries that the walk of the table handed to this
+         * segment, and takes the walk a step further.
+         */
+        private void reclaimStale() {
+            Node<K, V> node;
+            while ((node = staleNodes.poll()) != null) {
+                if (node.live && cache.isStale(node)) {
+                    removeNode(node);
+                }
+            }
+            cache.walkStale(this);
+        }
+
+        /**
+         * The timer wheel's callback: removes the entry if it has really
+         * expired. Reads that did not get the lock may have pushed its
+         * expiration back.
+         */
+        private boolean expireNode(final Node<K, V> node) {
+            if (!cache.hasExpired(node, clock)) {
+                node.timerTime = cache.expirationTime(node);
+                return false;
+            }
+            removeNode(node);
+            if (!cache.isStale(node)) {
+                cache.statsCounter.recordExpiration();
+            }
+            return true;
+        }
+
+        private void onAccess(final Node<K, V> node) {
+            sketch.increment(node.hash);
+            switch (node.queue) {
+            case Node.WINDOW:
+                window.moveToLast(node);
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                node.queue = Node.PROTECTED;
+                protectedQueue.addLast(node);
+                while (protectedQueue.weight > maxProtected) {
+                    final Node<K, V> demoted = protectedQueue.peekFirst();
+                    protectedQueue.remove(demoted);
+                    demoted.queue = Node.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case Node.PROTECTED:
+                protectedQueue.moveToLast(node);
+                break;
+            default:
+                break;
+            }
+        }
+
+        /**
+         * Takes the entry out of the table and the policies.
+         */
+        private void removeNode(final Node<K, V> node) {
+            final AccessQueue<K, V> queue = queueOf(node);
+            if (queue != null) {
+                queue.remove(node);
+                addWeight(-node.weight);
+            }
+            if (indexes != null) {
+                unindex(node);
+            }
+            node.queue = Node.NONE;
+            if (timerWheel != null) {
+                timerWheel.deschedule(node);
+            }
+            node.live = false;
+            data.remove(node.key, node);
+        }
+
+        private void index(final Node<K, V> node) {
+            for (int i = 0; i < indexes.length; i++) {
+                final Object component = componentOf(node.key, cache.indexedComponents[i]);
+                if (component != null) {
+                    Set<Node<K, V>> nodes = indexes[i].get(component);
+                    if (nodes == null) {
+                        nodes = new HashSet<Node<K, V>>(4);
+                        indexes[i].put(component, nodes);
+                    }
+                    nodes.add(node);
+                }
+            }
+        }
+
+        private void unindex(final Node<K, V> node) {
+            for (int i = 0; i < indexes.length; i++) {
+                final Object component = componentOf(node.key, cache.indexedComponents[i]);
+                if (component != null) {
+                    final Set<Node<K, V>> nodes = indexes[i].get(component);
+                    if ((nodes != null) && nodes.remove(node) && nodes.isEmpty()) {
+                        indexes[i].remove(component);
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K, V> Map<Object, Set<Node<K, V>>>[] newIndexArray(final int size) {
+            final Map<Object, Set<Node<K, V>>>[] indexes = (Map<Object, Set<Node<K, V>>>[]) new Map<?, ?>[size];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = new HashMap<Object, Set<Node<K, V>>>();
+            }
+            return indexes;
+        }
+
+        private AccessQueue<K, V> queueOf(final Node<K, V> node) {
+            switch (node.queue) {
+            case Node.WINDOW:
+                return window;
+            case Node.PROBATION:
+                return probation;
+            case Node.PROTECTED:
+                return protectedQueue;
+            default:
+                return null;
+            }
+        }
+
+        private long entryCount() {
+            return window.size + probation.size + protectedQueue.size;
+        }
+
+        private long weightedSize() {
+            return window.weight + probation.weight + protectedQueue.weight;
+        }
+
+        /**
+         * Changes the weight of an entry, keeping the total of its region.
+         */
+        private void setWeight(final Node<K, V> node, final int weight) {
+            final AccessQueue<K, V> queue = queueOf(node);
+            if (queue != null) {
+                queue.weight += weight - node.weight;
+                addWeight(weight - node.weight);
+            }
+            node.weight = weight;
+        }
+
+        /**
+         * Keeps the cache's total weight in step with this segment's.
+         */
+        private void addWeight(final long delta) {
+            if ((cache.totalWeight != null) && (delta != 0)) {
+                cache.totalWeight.addAndGet(delta);
+            }
+        }
+
+        /**
+         * @return Whether the segment is over its share of the budget and, if
+         *         the cache weighs its entries, has borrowed from the other
+         *         segments more than they can spare.
+         */
+        private boolean overBudget() {
+            return (weightedSize() > maximum)
+                    && ((cache.totalWeight == null) || (cache.totalWeight.get() > cache.maximumWeight));
+        }
+
+        /**
+         * Has the other segments that are over their share evict until the
+         * cache fits its budget, skipping those whose lock is taken. Only
+         * trying the locks keeps two segments from waiting on each other.
+         */
+        private void collectBorrowed() {
+            for (final Segment<K, V> other : cache.segments) {
+                if (cache.totalWeight.get() <= cache.maximumWeight) {
+                    return;
+                }
+                if ((other != this) && other.tryLock()) {
+                    try {
+                        other.evict();
+                    } finally {
+                        other.unlock();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Evicts a fraction of the segment's weight, at least one entry if it
+         * has any, in the order that {@link #evict()} would: probation first,
+         * then protected, then the window.
+         *
+         * @return The number of entries evicted.
+         */
+        int trim(final double fraction, final long now) {
+            lock();
+            try {
+                expireEntries(now);
+                final long size = weightedSize();
+                final long target = size - (long) Math.ceil(size * fraction);
+                int evicted = 0;
+                while (weightedSize() > target) {
+                    Node<K, V> victim = probation.peekFirst();
+                    if (victim == null) {
+                        victim = protectedQueue.peekFirst();
+                    }
+                    if (victim == null) {
+                        victim = window.peekFirst();
+                    }
+                    evictNode(victim);
+                    evicted++;
+                }
+                return evicted;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Evicts an entry that was just written if it is heavier than the
+         * whole budget, rather than evicting everything else first; otherwise
+         * evicts as needed to make room for it, here and, if the cache weighs
+         * its entries, in the segments that borrowed from this one.
+         */
+        private void evictIfOverweight(final Node<K, V> node) {
+            final long budget = (cache.totalWeight == null) ? maximum : cache.maximumWeight;
+            if (node.weight > budget) {
+                evictNode(node);
+            }
+            evict();
+            if ((cache.totalWeight != null) && (cache.totalWeight.get() > cache.maximumWeight)) {
+                collectBorrowed();
+            }
+        }
+
+        /**
+         * Removes an entry to make room, and demotes it to the off-heap tier
+         * if there is one. A stale entry is only dropped: it was already gone,
+         * so it is neither counted as an eviction nor demoted.
+         */
+        private void evictNode(final Node<K, V> node) {
+            removeNode(node);
+            if (cache.isStale(node)) {
+                return;
+            }
+            cache.statsCounter.recordSizeEviction();
+            if (offHeap != null) {
+                demote(node);
+            }
+        }
+
+        /**
+         * Moves an evicted value to the off-heap tier, keeping its times. A
+         * value which still has its copy there only updates the copy's
+         * expiration time.
+         */
+        private void demote(final Node<K, V> node) {
+            final long expiresAt = cache.expires() ? cache.expirationTime(node) : Long.MAX_VALUE;
+            if (node.offHeapCopy && offHeap.touch(node.key, expiresAt)) {
+                return;
+            }
+            final byte[] bytes;
+            try {
+                bytes = cache.serializer.serialize(node.value);
+            } catch (final RuntimeException e) {
+                return;
+            }
+            if (bytes != null) {
+                offHeap.put(node.key, bytes, node.writeTime, expiresAt);
+            }
+        }
+
+        /**
+         * Moves the overflow of the window into probation, and then evicts
+         * until the segment fits. Each entry that just left the window is
+         * matched against the eldest probation entry, and the less popular of
+         * the two is evicted.
+         */
+        private void evict() {
+            Node<K, V> candidate = null;
+            while (window.weight > maxWindow) {
+                final Node<K, V> node = window.peekFirst();
+                window.remove(node);
+                node.queue = Node.PROBATION;
+                probation.addLast(node);
+                if (candidate == null) {
+                    candidate = node;
+                }
+            }
+
+            while (overBudget()) {
+                final Node<K, V> victim = probation.peekFirst();
+                if (victim == null) {
+                    final Node<K, V> eldest = protectedQueue.peekFirst();
+                    evictNode((eldest == null) ? window.peekFirst() : eldest);
+                } else if (cache.isStale(victim)) {
+                    // Stale entries are dropped without a contest.
+                    if (candidate == victim) {
+                        candidate = probation.after(candidate);
+                    }
+                    evictNode(victim);
+                } else if ((candidate != null) && cache.isStale(candidate)) {
+                    final Node<K, V> stale = candidate;
+                    candidate = probation.after(candidate);
+                    evictNode(stale);
+                } else if ((candidate == null) || (candidate == victim)) {
+                    candidate = (candidate == null) ? null : probation.after(candidate);
+                    evictNode(victim);
+                } else if (admit(candidate.hash, victim.hash)) {
+                    evictNode(victim);
+                } else {
+                    final Node<K, V> rejected = candidate;
+                    candidate = probation.after(candidate);
+                    evictNode(rejected);
+                }
+            }
+        }
+
+        /**
+         * Decides whether the candidate should replace the victim. The one
+         * seen more often wins, except that a victim which has held off
+         * {@link #MAX_HOLDER_WINS} repeat candidates in a row is let go: a read
+         * would have moved it out of probation, and otherwise keys whose
+         * hashes collide with it in the sketch could keep it, and keep new
+         * entries out, forever.
+         */
+        private boolean admit(final int candidateHash, final int victimHash) {
+            final int candidateFrequency = sketch.frequency(candidateHash);
+            if (candidateFrequency > sketch.frequency(victimHash)) {
+                holderWins = 0;
+                return true;
+            }
+            if (candidateFrequency < 2) {
+                return false;
+            }
+            if (victimHash != holderHash) {
+                holderHash = victimHash;
+                holderWins = 0;
+            }
+            if (++holderWins < MAX_HOLDER_WINS) {
+                return false;
+            }
+            holderWins = 0;
+            return true;
+        }
+    }
+}
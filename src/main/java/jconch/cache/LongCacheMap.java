@@ -0,0 +1,264 @@
+package jconch.cache;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * <p>
+ * A cache of values computed from <code>long</code> keys, such as numeric ids,
+ * which never boxes its keys. It works like a {@link CacheMap} with the same
+ * {@link CacheMapMaker} settings, but a hit allocates nothing and takes no
+ * lock.
+ * </p>
+ * <p>
+ * The entries are split among segments by hash. Each segment keeps its keys
+ * in a <code>long[]</code> and its values in a parallel array, with linear
+ * probing. Once a key has a slot, the slot belongs to it until the table is
+ * rebuilt: a removal leaves the key in place with a marker for a value, so a
+ * reader that finds the key in a slot knows that the value beside it is the
+ * key's own. Writes take the segment's lock, and rebuild the table once live
+ * entries and removal markers fill three quarters of it.
+ * </p>
+ * <p>
+ * A bounded map (see {@link CacheMapMaker#maximumSize(int)}) evicts with the
+ * "CLOCK" policy: a hit sets a flag on its slot, and a segment that needs room
+ * sweeps its table from where it left off, clearing the flags it finds set,
+ * and evicts the first entry whose flag is already clear. This is coarser
+ * than the policy of a {@link CacheMap}, but it costs a hit a single byte
+ * written.
+ * </p>
+ * <p>
+ * A miss computes the value while holding one of a fixed set of locks, chosen
+ * by the key's hash, so each key is only computed by one thread at a time.
+ * Unlike the per-key locks of a {@link CacheMap}, these locks are never
+ * allocated, but misses on different keys that share a lock wait for each
+ * other.
+ * </p>
+ * <p>
+ * Only the {@link CacheMapMaker#concurrencyLevel(int) concurrency level} and
+ * {@link CacheMapMaker#maximumSize(int) maximum size} settings apply to this
+ * class.
+ * </p>
+ *
+ * @author Robert Fischer
+ * @see CacheMapMaker#makeLongCacheMap(LongFunction)
+ * @see IntCacheMap
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public final class LongCacheMap<V> extends ClockCache<LongCacheMap.LongTable> {
+
+    private final LongFunction<V> converter;
+
+    /**
+     * Constructs an unbounded map.
+     *
+     * @param converter
+     *            Computes the values.
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     */
+    public LongCacheMap(final LongFunction<V> converter) {
+        this(converter, new CacheMapMaker());
+    }
+
+    /**
+     * Constructs a map with the given settings.
+     *
+     * @throws NullArgumentException
+     *             If either argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the settings ask for something other than a concurrency
+     *             level or a maximum size.
+     */
+    LongCacheMap(final LongFunction<V> converter, final CacheMapMaker spec) {
+        super(spec);
+        if (converter == null) {
+            throw new NullArgumentException("converter");
+        }
+        this.converter = converter;
+    }
+
+    @Override
+    LongTable newTable(final int capacity, final boolean evicts) {
+        return new LongTable(capacity, evicts);
+    }
+
+    /**
+     * Spreads the bits of a key into a hash code, whose high bits choose the
+     * segment and whose low bits choose the slot.
+     */
+    static int hash(final long key) {
+        long h = key;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+
+    /**
+     * @return The slot of the key, live or removed, or -1 if it has none.
+     */
+    private static int find(final LongTable t, final long key, final int hash) {
+        for (int i = hash & t.mask;; i = (i + 1) & t.mask) {
+            if (t.values.get(i) == null) {
+                return -1;
+            }
+            if (t.keys[i] == key) {
+                return i;
+            }
+        }
+    }
+
+    private static Object present(final Segment<LongTable> segment, final long key, final int hash) {
+        final LongTable t = segment.table;
+        return segment.hit(t, find(t, key, hash));
+    }
+
+    /**
+     * Provides the value for the key, computing it if it is not present.
+     *
+     * @throws NullPointerException
+     *             If the converter returns <code>null</code>.
+     */
+    public V get(final long key) {
+        final int hash = hash(key);
+        final Segment<LongTable> segment = segmentFor(hash);
+        final Object value = present(segment, key, hash);
+        if (value != null) {
+            statsCounter.recordHits(1);
+            return cast(value);
+        }
+        statsCounter.recordMisses(1);
+        return load(key, hash, segment);
+    }
+
+    /**
+     * Computes the value of a missing key under the key's lock. A thread that
+     * was waiting on the lock finds the value another thread computed.
+     */
+    private V load(final long key, final int hash, final Segment<LongTable> segment) {
+        synchronized (loadLockFor(hash)) {
+            final Object present = present(segment, key, hash);
+            if (present != null) {
+                return cast(present);
+            }
+            final long start = System.nanoTime();
+            final V value;
+            try {
+                value = converter.apply(key);
+            } catch (final RuntimeException e) {
+                statsCounter.recordLoadFailure(System.nanoTime() - start);
+                throw e;
+            } catch (final Error e) {
+                statsCounter.recordLoadFailure(System.nanoTime() - start);
+                throw e;
+            }
+            if (value == null) {
+                statsCounter.recordLoadFailure(System.nanoTime() - start);
+                throw new NullPointerException("converter returned null for key: " + key);
+            }
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            store(segment, key, hash, value);
+            return value;
+        }
+    }
+
+    /**
+     * Provides the value for the key if it is present, without computing it or
+     * counting the look-up in the statistics.
+     *
+     * @return The value, or <code>null</code> if there is none.
+     */
+    public V getIfPresent(final long key) {
+        final int hash = hash(key);
+        return cast(present(segmentFor(hash), key, hash));
+    }
+
+    public boolean containsKey(final long key) {
+        return getIfPresent(key) != null;
+    }
+
+    /**
+     * Stores a value, replacing the value of the key if it has one.
+     *
+     * @return The previous value, or <code>null</code> if there was none.
+     * @throws NullPointerException
+     *             If the value is <code>null</code>.
+     */
+    public V put(final long key, final V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        final int hash = hash(key);
+        return cast(store(segmentFor(hash), key, hash, value));
+    }
+
+    private static Object store(final Segment<LongTable> segment, final long key, final int hash,
+            final Object value) {
+        segment.lock();
+        try {
+            final int found = find(segment.table, key, hash);
+            final Object old = segment.replace(found, value);
+            if (old != null) {
+                return old;
+            }
+            final int slot = segment.claim(found, hash);
+            if (slot >= 0) {
+                if (found < 0) {
+                    segment.table.keys[slot] = key;
+                }
+                segment.fill(slot, value);
+            }
+            return null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return The value, or <code>null</code> if there was none.
+     */
+    public V remove(final long key) {
+        final int hash = hash(key);
+        final Segment<LongTable> segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return cast(segment.remove(find(segment.table, key, hash)));
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(final Object value) {
+        return (V) value;
+    }
+
+    /**
+     * A table whose keys are kept in a <code>long[]</code>.
+     */
+    static final class LongTable extends ClockCache.Table<LongTable> {
+
+        final long[] keys;
+
+        LongTable(final int capacity, final boolean evicts) {
+            super(capacity, evicts);
+            keys = new long[capacity];
+        }
+
+        @Override
+        int hashAt(final int slot) {
+            return hash(keys[slot]);
+        }
+
+        @Override
+        void copyKey(final int slot, final LongTable to, final int toSlot) {
+            to.keys[toSlot] = keys[slot];
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package jconch.cache;
+
+/**
+ * Computes the values of a {@link LongCacheMap} from their <code>long</code>
+ * keys, without boxing them.
+ *
+ * @author Robert Fischer
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public interface LongFunction<V> {
+
+    /**
+     * Computes the value of a key.
+     *
+     * @param key
+     *            The key.
+     * @return The value, which must not be <code>null</code>.
+     */
+    V apply(long key);
+}
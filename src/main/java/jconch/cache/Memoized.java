@@ -0,0 +1,41 @@
+package jconch.cache;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a method whose results a {@link Memoizer} proxy caches, and says how
+ * many it keeps and for how long. The annotation may be put on the method of
+ * the interface or on the method of the class that implements it; the
+ * interface wins if both have one.
+ *
+ * @author Robert Fischer
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Memoized {
+
+    /**
+     * @return The most results to keep (see
+     *         {@link CacheMapMaker#maximumSize(int)}), or a negative number to
+     *         keep them all.
+     */
+    int maximumSize() default -1;
+
+    /**
+     * @return How long to keep each result (see
+     *         {@link CacheMapMaker#expireAfterWrite(long, TimeUnit)}), or a
+     *         negative number to keep it until it is evicted.
+     */
+    long expireAfterWrite() default -1;
+
+    /**
+     * @return The unit of {@link #expireAfterWrite()}.
+     */
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
@@ -0,0 +1,307 @@
+package jconch.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Caches the results of the {@link Memoized} methods of an object behind a
+ * {@link Proxy} of one of its interfaces, so that the caching code does not
+ * have to be written out for each method:
+ * </p>
+ *
+ * <pre>
+ * public interface Rates {
+ *     &#064;Memoized(maximumSize = 1000, expireAfterWrite = 60)
+ *     BigDecimal rate(String from, String to, Date day);
+ * }
+ *
+ * Rates rates = Memoizer.memoize(Rates.class, new RemoteRates());
+ * </pre>
+ * <p>
+ * Each memoized method gets a {@link CacheMap} of its own, made with the
+ * settings of its annotation; the other methods are passed straight through.
+ * The arguments of a call are the key: a lone argument is used as it is, and
+ * several are compared as a list, in order. Arrays are compared by their
+ * contents, and must not be changed once they have been passed. A
+ * <code>null</code> result is cached like any other, and an exception is
+ * thrown to the caller without being cached.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+public final class Memoizer {
+
+    /**
+     * Stands for a <code>null</code> argument or result, which a map cannot
+     * hold.
+     */
+    private static final Object NULL = new Object();
+
+    private Memoizer() {
+        // Does nothing.
+    }
+
+    /**
+     * Wraps an object in a proxy that caches the results of its memoized
+     * methods.
+     *
+     * @param <T>
+     *            The type of the interface.
+     * @param iface
+     *            The interface for the proxy to implement.
+     * @param target
+     *            The object to pass calls on to.
+     * @return The proxy.
+     * @throws NullArgumentException
+     *             If an argument is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the class is not an interface that the target implements,
+     *             or if a memoized method returns <code>void</code>.
+     */
+    public static <T> T memoize(final Class<T> iface, final T target) {
+        if (iface == null) {
+            throw new NullArgumentException("iface");
+        }
+        if (target == null) {
+            throw new NullArgumentException("target");
+        }
+        if (!iface.isInterface()) {
+            throw new IllegalArgumentException("not an interface: " + iface.getName());
+        }
+        if (!iface.isInstance(target)) {
+            throw new IllegalArgumentException(target.getClass().getName() + " does not implement "
+                    + iface.getName());
+        }
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, new Handler(
+                iface, target)));
+    }
+
+    /**
+     * @param proxy
+     *            A proxy made by {@link #memoize(Class, Object)}.
+     * @param method
+     *            One of its memoized methods.
+     * @return The statistics of the method's cache.
+     * @throws NullArgumentException
+     *             If an argument is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the object is not such a proxy, or the method is not
+     *             memoized.
+     */
+    public static CacheStats stats(final Object proxy, final Method method) {
+        if (proxy == null) {
+            throw new NullArgumentException("proxy");
+        }
+        if (method == null) {
+            throw new NullArgumentException("method");
+        }
+        if (!Proxy.isProxyClass(proxy.getClass()) || !(Proxy.getInvocationHandler(proxy) instanceof Handler)) {
+            throw new IllegalArgumentException("not made by a memoizer: " + proxy.getClass().getName());
+        }
+        final MethodCache cache = ((Handler) Proxy.getInvocationHandler(proxy)).caches.get(method);
+        if (cache == null) {
+            throw new IllegalArgumentException("not memoized: " + method);
+        }
+        return cache.map.stats();
+    }
+
+    /**
+     * Calls a method of the target, unwrapping whatever it throws.
+     */
+    private static Object call(final Method method, final Object target, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Dispatches the calls of a proxy.
+     */
+    private static final class Handler implements InvocationHandler {
+
+        private final Object target;
+
+        /**
+         * The cache of each memoized method. Never changed once built.
+         */
+        final Map<Method, MethodCache> caches = new HashMap<Method, MethodCache>();
+
+        Handler(final Class<?> iface, final Object target) {
+            this.target = target;
+            for (final Method method : iface.getMethods()) {
+                final Memoized settings = settingsOf(method, target.getClass());
+                if (settings != null) {
+                    if (method.getReturnType() == void.class) {
+                        throw new IllegalArgumentException("nothing to memoize in a void method: " + method);
+                    }
+                    caches.put(method, new MethodCache(method, target, settings));
+                }
+            }
+        }
+
+        private static Memoized settingsOf(final Method method, final Class<?> targetClass) {
+            final Memoized declared = method.getAnnotation(Memoized.class);
+            if (declared != null) {
+                return declared;
+            }
+            try {
+                return targetClass.getMethod(method.getName(), method.getParameterTypes()).getAnnotation(
+                        Memoized.class);
+            } catch (final NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final MethodCache cache = caches.get(method);
+            if (cache != null) {
+                final Object result;
+                try {
+                    result = cache.map.get(cache.keyOf(args));
+                } catch (final Thrown e) {
+                    throw e.getCause();
+                }
+                return (result == NULL) ? null : result;
+            }
+            if (method.getDeclaringClass() == Object.class) {
+                final String name = method.getName();
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                }
+            }
+            return call(method, target, args);
+        }
+    }
+
+    /**
+     * The cache of one method, which loads its values by calling the method.
+     */
+    private static final class MethodCache implements Function<Object, Object> {
+
+        private final Method method;
+
+        private final Object target;
+
+        private final int arity;
+
+        final CacheMap<Object, Object> map;
+
+        MethodCache(final Method method, final Object target, final Memoized settings) {
+            this.method = method;
+            this.target = target;
+            this.arity = method.getParameterTypes().length;
+            final CacheMapMaker maker = new CacheMapMaker();
+            if (settings.maximumSize() >= 0) {
+                maker.maximumSize(settings.maximumSize());
+            }
+            if (settings.expireAfterWrite() >= 0) {
+                maker.expireAfterWrite(settings.expireAfterWrite(), settings.unit());
+            }
+            this.map = maker.makeCacheMap(this);
+        }
+
+        /**
+         * Builds the key of a call. The proxy passes a fresh array to each
+         * call, so a key may keep it rather than copy it.
+         */
+        Object keyOf(final Object[] args) {
+            if ((args == null) || (args.length == 0)) {
+                return NULL;
+            }
+            if (args.length == 1) {
+                final Object arg = args[0];
+                if (arg == null) {
+                    return NULL;
+                }
+                if (!arg.getClass().isArray()) {
+                    return arg;
+                }
+            }
+            return new ArgumentsKey(args);
+        }
+
+        private Object[] argsOf(final Object key) {
+            if (key instanceof ArgumentsKey) {
+                return ((ArgumentsKey) key).args;
+            }
+            if (arity == 0) {
+                return null;
+            }
+            return new Object[] { (key == NULL) ? null : key };
+        }
+
+        public Object apply(final Object key) {
+            final Object result;
+            try {
+                result = call(method, target, argsOf(key));
+            } catch (final Throwable t) {
+                throw new Thrown(t);
+            }
+            return (result == null) ? NULL : result;
+        }
+    }
+
+    /**
+     * The arguments of a call to a method that takes several, compared in
+     * order.
+     */
+    private static final class ArgumentsKey {
+
+        final Object[] args;
+
+        private final int hash;
+
+        ArgumentsKey(final Object[] args) {
+            this.args = args;
+            this.hash = Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof ArgumentsKey)) {
+                return false;
+            }
+            final ArgumentsKey them = (ArgumentsKey) o;
+            return (them.hash == hash) && Arrays.deepEquals(them.args, args);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.deepToString(args);
+        }
+    }
+
+    /**
+     * Carries what a method threw through its cache, to be thrown again to
+     * the caller.
+     */
+    @SuppressWarnings("serial")
+    private static final class Thrown extends RuntimeException {
+
+        Thrown(final Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package jconch.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * <p>
+ * Tells the maps that {@link CacheMapMaker#trimOnMemoryPressure(double, double)
+ * trim on memory pressure} when the heap runs short. It sets the usage and
+ * collection usage thresholds of the heap pools that support both, which in
+ * practice is the tenured pool, and listens for the notifications of the
+ * {@link java.lang.management.MemoryMXBean}. The young pools are left alone:
+ * they fill up and empty all the time, which says nothing about the memory
+ * the maps hold.
+ * </p>
+ * <p>
+ * The thresholds are JVM-wide, so this class takes them over while any map is
+ * registered. It remembers the thresholds it found when the first map
+ * registered, and never sets one above what it found: a threshold that
+ * something else had set lower than the maps ask for is kept. As maps go
+ * away, the thresholds are raised to what the remaining maps ask for, and
+ * once the last map is gone the thresholds it found are put back and the
+ * listener is removed. The maps are held weakly, and are found to be gone when
+ * the next map registers or the next notification arrives.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class MemoryPressure implements NotificationListener {
+
+    static final MemoryPressure INSTANCE = new MemoryPressure();
+
+    /**
+     * Guarded by this.
+     */
+    private final List<Registration> registrations = new ArrayList<Registration>();
+
+    /**
+     * The usage and collection usage thresholds of each pool that was changed,
+     * by pool name, as they were before the first map registered. Guarded by
+     * this.
+     */
+    private final Map<String, long[]> savedThresholds = new HashMap<String, long[]>();
+
+    /**
+     * The threshold the pools are set for, or 1.0 if none. Guarded by this.
+     */
+    private double currentThreshold = 1.0;
+
+    /**
+     * Guarded by this.
+     */
+    private boolean listening;
+
+    MemoryPressure() {
+        // Does nothing.
+    }
+
+    /**
+     * Starts trimming a map whenever the tenured heap is above the threshold.
+     */
+    synchronized void register(final LocalCache<?, ?> cache, final double threshold, final double step) {
+        prune();
+        registrations.add(new Registration(cache, threshold, step));
+        if (!listening) {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+            listening = true;
+        }
+        updateThresholds();
+    }
+
+    /**
+     * @return The number of maps that have not been collected.
+     */
+    synchronized int registeredCount() {
+        prune();
+        return registrations.size();
+    }
+
+    /**
+     * Sets the thresholds for the lowest one the registered maps ask for, or
+     * puts back the ones that were there before if no map is left.
+     */
+    private void updateThresholds() {
+        if (registrations.isEmpty()) {
+            restoreThresholds();
+            return;
+        }
+        double lowest = 1.0;
+        for (final Registration registration : registrations) {
+            lowest = Math.min(lowest, registration.threshold);
+        }
+        if (lowest == currentThreshold) {
+            return;
+        }
+        currentThreshold = lowest;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ((pool.getType() != MemoryType.HEAP) || !pool.isUsageThresholdSupported()
+                    || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            final long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                // No telling how full the pool is.
+                continue;
+            }
+            long[] saved = savedThresholds.get(pool.getName());
+            if (saved == null) {
+                saved = new long[] { pool.getUsageThreshold(), pool.getCollectionUsageThreshold() };
+                savedThresholds.put(pool.getName(), saved);
+            }
+            final long bytes = (long) (max * lowest);
+            pool.setUsageThreshold(lowerOf(saved[0], bytes));
+            pool.setCollectionUsageThreshold(lowerOf(saved[1], bytes));
+        }
+    }
+
+    /**
+     * @return The lower of a saved threshold and the one asked for, where a
+     *         saved threshold of zero means that it was not set.
+     */
+    private static long lowerOf(final long saved, final long bytes) {
+        return ((saved == 0) || (saved > bytes)) ? bytes : saved;
+    }
+
+    private void restoreThresholds() {
+        if (!savedThresholds.isEmpty()) {
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                final long[] saved = savedThresholds.get(pool.getName());
+                if (saved != null) {
+                    pool.setUsageThreshold(saved[0]);
+                    pool.setCollectionUsageThreshold(saved[1]);
+                }
+            }
+            savedThresholds.clear();
+        }
+        currentThreshold = 1.0;
+        if (listening) {
+            try {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+            } catch (final ListenerNotFoundException e) {
+                // Already gone.
+            }
+            listening = false;
+        }
+    }
+
+    public void handleNotification(final Notification notification, final Object handback) {
+        final String type = notification.getType();
+        if (!MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                && !MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+            return;
+        }
+        final MemoryUsage usage = MemoryNotificationInfo.from((CompositeData) notification.getUserData())
+                .getUsage();
+        if (usage.getMax() > 0) {
+            pressure((double) usage.getUsed() / usage.getMax());
+        }
+    }
+
+    /**
+     * Trims the maps whose threshold the pool is past.
+     *
+     * @param fraction
+     *            How full the pool is, as a fraction of its maximum size.
+     */
+    void pressure(final double fraction) {
+        final List<Registration> due = new ArrayList<Registration>();
+        synchronized (this) {
+            prune();
+            for (final Registration registration : registrations) {
+                if (fraction >= registration.threshold) {
+                    due.add(registration);
+                }
+            }
+        }
+        for (final Registration registration : due) {
+            final LocalCache<?, ?> cache = registration.cache.get();
+            if (cache != null) {
+                cache.trimLater(registration.step);
+            }
+        }
+    }
+
+    private void prune() {
+        boolean pruned = false;
+        for (final Iterator<Registration> i = registrations.iterator(); i.hasNext();) {
+            if (i.next().cache.get() == null) {
+                i.remove();
+                pruned = true;
+            }
+        }
+        if (pruned) {
+            updateThresholds();
+        }
+    }
+
+    private static final class Registration {
+
+        final WeakReference<LocalCache<?, ?>> cache;
+
+        final double threshold;
+
+        final double step;
+
+        Registration(final LocalCache<?, ?> cache, final double threshold, final double step) {
+            this.cache = new WeakReference<LocalCache<?, ?>>(cache);
+            this.threshold = threshold;
+            this.step = step;
+        }
+    }
+}
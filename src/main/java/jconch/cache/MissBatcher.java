@@ -0,0 +1,163 @@
+package jconch.cache;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Gathers the cache misses of concurrent callers into batches, so that they
+ * can be loaded together. The first miss opens a batch, and the others join
+ * it until it holds the maximum number of keys or the first caller has waited
+ * for the maximum delay, whichever comes first. The whole batch is then loaded
+ * by a single {@link LocalCache#getAll(Iterable, boolean)}, and each caller
+ * picks its own value out of the result.
+ * </p>
+ * <p>
+ * No thread is started for this: a full batch is loaded by the caller that
+ * filled it, and any other batch by the caller that opened it.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class MissBatcher<K, V> {
+
+    private final LocalCache<K, V> cache;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    /**
+     * The batch that is open to new keys, if any. Guarded by <code>this</code>.
+     */
+    private Batch open;
+
+    MissBatcher(final LocalCache<K, V> cache, final int maxBatchSize, final long maxDelayNanos) {
+        this.cache = cache;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Loads the key as part of a batch.
+     *
+     * @return The key's value.
+     * @throws RuntimeException
+     *             Whatever the batch's load threw.
+     */
+    V load(final K key) {
+        final Batch batch;
+        final boolean opened;
+        final boolean filled;
+        synchronized (this) {
+            opened = (open == null);
+            if (opened) {
+                open = new Batch();
+            }
+            batch = open;
+            batch.keys.add(key);
+            filled = (batch.keys.size() >= maxBatchSize);
+            if (filled) {
+                open = null;
+            }
+        }
+
+        if (filled) {
+            batch.dispatch();
+        } else if (opened && !batch.await(maxDelayNanos)) {
+            synchronized (this) {
+                if (open == batch) {
+                    open = null;
+                }
+            }
+            batch.dispatch();
+        }
+        return batch.valueOf(key);
+    }
+
+    /**
+     * A group of keys which are loaded together.
+     */
+    private final class Batch {
+
+        /**
+         * The keys; guarded by the batcher until the batch is closed.
+         */
+        final Set<K> keys = new LinkedHashSet<K>();
+
+        private final AtomicBoolean dispatched = new AtomicBoolean();
+
+        private final CountDownLatch loaded = new CountDownLatch(1);
+
+        private volatile Map<K, V> values;
+
+        private volatile RuntimeException failure;
+
+        private volatile Error error;
+
+        /**
+         * Loads the batch, unless somebody already has. The batch must be
+         * closed to new keys first.
+         */
+        void dispatch() {
+            if (!dispatched.compareAndSet(false, true)) {
+                return;
+            }
+            final Set<K> toLoad;
+            synchronized (MissBatcher.this) {
+                toLoad = new LinkedHashSet<K>(keys);
+            }
+            try {
+                values = cache.getAll(toLoad, false);
+            } catch (final RuntimeException e) {
+                failure = e;
+            } catch (final Error e) {
+                error = e;
+                throw e;
+            } finally {
+                loaded.countDown();
+            }
+        }
+
+        /**
+         * Waits for the batch to be loaded.
+         *
+         * @return Whether it was loaded within the time given.
+         */
+        boolean await(final long nanos) {
+            try {
+                return loaded.await(nanos, TimeUnit.NANOSECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        V valueOf(final K key) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    loaded.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+            if (error != null) {
+                throw error;
+            }
+            return values.get(key);
+        }
+    }
+}
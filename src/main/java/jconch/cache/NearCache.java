@@ -0,0 +1,247 @@
+package jconch.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A small table of recently read entries for each thread, in front of a
+ * {@link LocalCache}. A hit on this table touches nothing that other threads
+ * write, unlike a hit on the shared table, which records itself with the
+ * eviction policy and the statistics.
+ * </p>
+ * <p>
+ * The shared table bumps a single version stamp whenever it replaces or
+ * removes a value, and each thread's table remembers the stamp it was filled
+ * under; a thread that finds a newer stamp empties its table before using it.
+ * Reading the stamp is cheap while it does not change, since every core keeps
+ * its own copy of the line it sits on. Evictions do not bump the stamp: an
+ * evicted value is still the value of its key, and a thread keeps serving it
+ * until its table drops it. Entries that are due to expire or be refreshed
+ * are left to the shared table.
+ * </p>
+ * <p>
+ * A thread's table only notices a new stamp when the thread reads from it
+ * again, which a pooled thread may not do for a long time. So that an idle
+ * thread does not keep the keys and values that were replaced or removed in
+ * the meantime, bumping the stamp also lets go of every thread's table, and a
+ * thread that finds its table gone starts a new one.
+ * </p>
+ * <p>
+ * One in every {@link #SAMPLE_RATE} hits on a thread's table is passed through
+ * to the shared table instead, so that the eviction policy keeps seeing the
+ * entries that the near tables hold. The hits themselves are counted in the
+ * statistics in batches, which can lag behind by a few hits per thread.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class NearCache {
+
+    /**
+     * Every how many hits a thread passes one through to the shared table.
+     */
+    static final int SAMPLE_RATE = 8;
+
+    /**
+     * How many hits a thread counts before it adds them to the statistics.
+     */
+    private static final int HIT_BATCH = 64;
+
+    /**
+     * The distance, in <code>long</code>s, between the stamp and anything else
+     * in memory: one 64-byte cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * The version stamp, alone in the middle of its array.
+     */
+    private final AtomicLongArray stamp = new AtomicLongArray(PADDING * 2);
+
+    private final int mask;
+
+    private final StatsCounter statsCounter;
+
+    /**
+     * The holders of the threads' tables, which go away with their threads.
+     */
+    private final Queue<WeakReference<Holder>> holders = new ConcurrentLinkedQueue<WeakReference<Holder>>();
+
+    private final ThreadLocal<Holder> threadHolder = new ThreadLocal<Holder>() {
+        @Override
+        protected Holder initialValue() {
+            final Holder holder = new Holder();
+            holders.add(new WeakReference<Holder>(holder));
+            return holder;
+        }
+    };
+
+    /**
+     * @param size
+     *            The number of entries each thread keeps, which is rounded up
+     *            to a power of two.
+     */
+    NearCache(final int size, final StatsCounter statsCounter) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.statsCounter = statsCounter;
+    }
+
+    /**
+     * @return The current version stamp, which must be read before the value
+     *         that is to be {@link #fill(Object, int, Object, long, long)
+     *         filled} in.
+     */
+    long version() {
+        return stamp.get(PADDING);
+    }
+
+    /**
+     * Marks every thread's table as out of date, and lets go of them.
+     */
+    void invalidate() {
+        stamp.incrementAndGet(PADDING);
+        for (final Iterator<WeakReference<Holder>> i = holders.iterator(); i.hasNext();) {
+            final Holder holder = i.next().get();
+            if (holder == null) {
+                i.remove();
+            } else if (holder.table != null) {
+                holder.table = null;
+            }
+        }
+    }
+
+    /**
+     * @return The calling thread's table, which is empty if it is out of date.
+     */
+    private Table table(final Holder holder) {
+        final Table table = holder.table;
+        final long version = version();
+        if (table == null) {
+            final Table created = new Table(mask + 1, version);
+            holder.table = created;
+            return created;
+        }
+        if (table.version != version) {
+            table.clear(version);
+        }
+        return table;
+    }
+
+    /**
+     * Looks the key up in the calling thread's table, counting a hit.
+     *
+     * @param now
+     *            The current time, as the shared table tells it.
+     * @return The value, or <code>null</code> if the caller should look in the
+     *         shared table.
+     */
+    Object get(final Object key, final int hash, final long now) {
+        final Holder holder = threadHolder.get();
+        final Table table = table(holder);
+        final int slot = hash & mask;
+        final Object cached = table.keys[slot];
+        if ((cached == null) || ((cached != key) && !cached.equals(key)) || (now >= table.dueTimes[slot])) {
+            return null;
+        }
+        if (++holder.sampled == SAMPLE_RATE) {
+            holder.sampled = 0;
+            return null;
+        }
+        if (++holder.hits == HIT_BATCH) {
+            statsCounter.recordHits(HIT_BATCH);
+            holder.hits = 0;
+        }
+        return table.values[slot];
+    }
+
+    /**
+     * Adds the hits that the calling thread has not counted yet to the
+     * statistics.
+     */
+    void flushHits() {
+        final Holder holder = threadHolder.get();
+        if (holder.hits > 0) {
+            statsCounter.recordHits(holder.hits);
+            holder.hits = 0;
+        }
+    }
+
+    /**
+     * Puts an entry read from the shared table in the calling thread's table.
+     *
+     * @param version
+     *            The version stamp read before the value was.
+     * @param dueTime
+     *            The time at which the entry expires or is due for a refresh,
+     *            after which it is left to the shared table.
+     */
+    void fill(final Object key, final int hash, final Object value, final long version, final long dueTime) {
+        if (version() != version) {
+            // The value may already be out of date.
+            return;
+        }
+        final Table table = table(threadHolder.get());
+        if (table.version != version) {
+            return;
+        }
+        final int slot = hash & mask;
+        table.keys[slot] = key;
+        table.values[slot] = value;
+        table.dueTimes[slot] = dueTime;
+    }
+
+    /**
+     * What one thread keeps: its table, which other threads may let go of,
+     * and its counts of hits.
+     */
+    private static final class Holder {
+
+        volatile Table table;
+
+        /**
+         * The hits since the last one that was passed through.
+         */
+        int sampled;
+
+        /**
+         * The hits not yet added to the statistics.
+         */
+        int hits;
+    }
+
+    /**
+     * The entries of one thread, each in the slot chosen by its hash.
+     */
+    private static final class Table {
+
+        final Object[] keys;
+
+        final Object[] values;
+
+        final long[] dueTimes;
+
+        long version;
+
+        Table(final int capacity, final long version) {
+            keys = new Object[capacity];
+            values = new Object[capacity];
+            dueTimes = new long[capacity];
+            this.version = version;
+        }
+
+        void clear(final long newVersion) {
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+            version = newVersion;
+        }
+    }
+}
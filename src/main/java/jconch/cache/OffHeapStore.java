@@ -0,0 +1,496 @@
+package jconch.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Keeps serialized values in direct memory, outside of the Java heap, within a
+ * fixed budget of bytes. Only a small index entry per value stays on the
+ * heap, so the garbage collector never has to trace the values themselves.
+ * </p>
+ * <p>
+ * Memory is allocated in slabs of equal size (a sixteenth of the budget, but
+ * no more than {@link #MAX_SLAB_SIZE}), on demand, up to the budget. Each slab
+ * is cut into chunks of a single size class: the classes grow by a quarter
+ * from 64 bytes up to the slab size, so a value wastes at most a fifth of its
+ * chunk. A value goes into the smallest class that holds it. Once the budget
+ * is spent, a class with no free chunk makes room by dropping its oldest
+ * value; a class that has no values yet takes over the slab holding the
+ * oldest value of the class with the most slabs, dropping that slab's values.
+ * Values larger than a slab are not kept.
+ * </p>
+ * <p>
+ * This class is not thread-safe: callers must guard it with the lock of the
+ * segment that owns it.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ */
+final class OffHeapStore<K> {
+
+    /**
+     * The largest slab.
+     */
+    static final int MAX_SLAB_SIZE = 1 << 20;
+
+    /**
+     * The smallest slab, unless the budget itself is smaller.
+     */
+    private static final int MIN_SLAB_SIZE = 1 << 12;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final int slabSize;
+
+    /**
+     * The slabs allocated so far.
+     */
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    private final int maxSlabs;
+
+    /**
+     * The slabs that are not in use by any class, by index.
+     */
+    private final List<Integer> freeSlabs = new ArrayList<Integer>();
+
+    /**
+     * The class that each slab is cut for, by slab index.
+     */
+    private final List<SizeClass<K>> slabOwners = new ArrayList<SizeClass<K>>();
+
+    private final SizeClass<K>[] classes;
+
+    private final int[] chunkSizes;
+
+    private final Map<K, Entry<K>> index = new HashMap<K, Entry<K>>();
+
+    private long usedBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param budget
+     *            The most bytes to allocate.
+     */
+    OffHeapStore(final long budget) {
+        final long preferred = Math.min(Math.max(budget / 16, MIN_SLAB_SIZE), MAX_SLAB_SIZE);
+        slabSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(budget, preferred));
+        maxSlabs = (int) Math.max(1L, Math.min(budget / slabSize, Integer.MAX_VALUE));
+
+        final List<Integer> sizes = new ArrayList<Integer>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < slabSize) {
+            sizes.add(size);
+            size = ((size + (size >>> 2)) + 7) & ~7;
+        }
+        sizes.add(slabSize);
+        chunkSizes = new int[sizes.size()];
+        classes = newSizeClassArray(sizes.size());
+        for (int i = 0; i < classes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+            classes[i] = new SizeClass<K>(this, chunkSizes[i]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> SizeClass<K>[] newSizeClassArray(final int size) {
+        return (SizeClass<K>[]) new SizeClass<?>[size];
+    }
+
+    /**
+     * Stores a value, replacing any value of the key.
+     *
+     * @param bytes
+     *            The serialized value.
+     * @param writeTime
+     *            The time at which the value was written.
+     * @param expiresAt
+     *            The time at which the value expires, or
+     *            {@link Long#MAX_VALUE} if it does not.
+     * @return Whether the value was stored.
+     */
+    boolean put(final K key, final byte[] bytes, final long writeTime, final long expiresAt) {
+        remove(key);
+        if (bytes.length > slabSize) {
+            return false;
+        }
+        final SizeClass<K> sizeClass = classFor(bytes.length);
+        final long address = sizeClass.allocate();
+        if (address < 0) {
+            return false;
+        }
+
+        final ByteBuffer slab = slabs.get(slabOf(address));
+        slab.position(offsetOf(address));
+        slab.put(bytes);
+
+        final Entry<K> entry = new Entry<K>(key, sizeClass, address, bytes.length, writeTime, expiresAt);
+        sizeClass.addLast(entry);
+        index.put(key, entry);
+        usedBytes += bytes.length;
+        return true;
+    }
+
+    /**
+     * Reads a value, which stays in the store.
+     *
+     * @param now
+     *            The current time.
+     * @return A copy of the value, or <code>null</code> if the key has no
+     *         value, or it has expired.
+     */
+    Copy read(final Object key, final long now) {
+        final Entry<K> entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.hasExpired(now)) {
+            remove(key);
+            return null;
+        }
+        final ByteBuffer slab = slabs.get(slabOf(entry.address));
+        slab.position(offsetOf(entry.address));
+        final byte[] bytes = new byte[entry.length];
+        slab.get(bytes);
+        entry.sizeClass.unlink(entry);
+        entry.sizeClass.addLast(entry);
+        return new Copy(bytes, entry.writeTime);
+    }
+
+    /**
+     * Moves the expiration time of a value.
+     *
+     * @return Whether the key has a value.
+     */
+    boolean touch(final Object key, final long expiresAt) {
+        final Entry<K> entry = index.get(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.expiresAt = expiresAt;
+        return true;
+    }
+
+    /**
+     * Removes the value of the key, if it has one.
+     */
+    void remove(final Object key) {
+        final Entry<K> entry = index.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    boolean containsKey(final Object key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Drops every value. The slabs are kept for reuse.
+     */
+    void clear() {
+        index.clear();
+        usedBytes = 0;
+        freeSlabs.clear();
+        for (int i = 0; i < slabs.size(); i++) {
+            freeSlabs.add(i);
+            slabOwners.set(i, null);
+        }
+        for (final SizeClass<K> sizeClass : classes) {
+            sizeClass.reset();
+        }
+    }
+
+    /**
+     * @return The number of values stored.
+     */
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The bytes taken by the values themselves.
+     */
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The bytes allocated for slabs.
+     */
+    long allocatedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    private void release(final Entry<K> entry) {
+        entry.sizeClass.unlink(entry);
+        entry.sizeClass.free(entry.address);
+        usedBytes -= entry.length;
+    }
+
+    private SizeClass<K> classFor(final int length) {
+        int i = Arrays.binarySearch(chunkSizes, Math.max(length, 1));
+        if (i < 0) {
+            i = -(i + 1);
+        }
+        return classes[i];
+    }
+
+    private static int slabOf(final long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) address;
+    }
+
+    /**
+     * Provides a slab for a class: a free one, or a new one if the budget
+     * allows it.
+     *
+     * @return The slab's index, or -1 if there is none.
+     */
+    private int takeSlab(final SizeClass<K> owner) {
+        int slab = -1;
+        if (!freeSlabs.isEmpty()) {
+            slab = freeSlabs.remove(freeSlabs.size() - 1);
+            slabOwners.set(slab, owner);
+        } else if (slabs.size() < maxSlabs) {
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            slabOwners.add(owner);
+            slab = slabs.size() - 1;
+        }
+        if (slab >= 0) {
+            owner.slabCount++;
+        }
+        return slab;
+    }
+
+    /**
+     * Moves a slab to a class which has none to spare, from the class with
+     * the most slabs. The slab's values are dropped.
+     *
+     * @return The slab's index, or -1 if no other class has one.
+     */
+    private int stealSlab(final SizeClass<K> owner) {
+        SizeClass<K> victim = null;
+        for (final SizeClass<K> sizeClass : classes) {
+            if ((sizeClass != owner) && ((victim == null) || (sizeClass.slabCount > victim.slabCount))) {
+                victim = sizeClass;
+            }
+        }
+        if ((victim == null) || (victim.slabCount == 0)) {
+            return -1;
+        }
+        final int slab = victim.releaseSlab();
+        slabOwners.set(slab, owner);
+        owner.slabCount++;
+        return slab;
+    }
+
+    /**
+     * The chunks of one size, and the values in them, oldest first.
+     */
+    private static final class SizeClass<K> {
+
+        private final OffHeapStore<K> store;
+
+        private final int chunkSize;
+
+        /**
+         * The sentinel of the list of values.
+         */
+        private final Entry<K> head = new Entry<K>(null, this, -1L, 0, 0L, Long.MAX_VALUE);
+
+        /**
+         * The addresses of freed chunks, as a stack.
+         */
+        private long[] freeChunks = new long[8];
+
+        private int freeCount;
+
+        /**
+         * The slab being cut into chunks, and the offset of its next chunk.
+         */
+        private int currentSlab = -1;
+
+        private int nextOffset;
+
+        /**
+         * The number of slabs cut for this class.
+         */
+        int slabCount;
+
+        SizeClass(final OffHeapStore<K> store, final int chunkSize) {
+            this.store = store;
+            this.chunkSize = chunkSize;
+            reset();
+        }
+
+        void reset() {
+            head.prev = head;
+            head.next = head;
+            freeCount = 0;
+            currentSlab = -1;
+            nextOffset = 0;
+            slabCount = 0;
+        }
+
+        /**
+         * @return The address of a chunk, or -1 if there is no room.
+         */
+        long allocate() {
+            if (freeCount > 0) {
+                return freeChunks[--freeCount];
+            }
+            if ((currentSlab < 0) || ((nextOffset + chunkSize) > store.slabSize)) {
+                int slab = store.takeSlab(this);
+                if ((slab < 0) && (head.next != head)) {
+                    // Out of budget: make room by dropping our oldest value.
+                    final Entry<K> eldest = head.next;
+                    drop(eldest);
+                    return eldest.address;
+                }
+                if (slab < 0) {
+                    slab = store.stealSlab(this);
+                }
+                if (slab < 0) {
+                    return -1L;
+                }
+                currentSlab = slab;
+                nextOffset = 0;
+            }
+            final long address = (((long) currentSlab) << 32) | nextOffset;
+            nextOffset += chunkSize;
+            return address;
+        }
+
+        /**
+         * Gives up the slab holding our oldest value (or any slab, if we have
+         * no values), dropping the values in it.
+         *
+         * @return The slab's index.
+         */
+        int releaseSlab() {
+            final int slab;
+            if (head.next != head) {
+                slab = slabOf(head.next.address);
+            } else if (currentSlab >= 0) {
+                slab = currentSlab;
+            } else {
+                slab = slabOf(freeChunks[freeCount - 1]);
+            }
+
+            Entry<K> entry = head.next;
+            while (entry != head) {
+                final Entry<K> next = entry.next;
+                if (slabOf(entry.address) == slab) {
+                    drop(entry);
+                }
+                entry = next;
+            }
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (slabOf(freeChunks[i]) != slab) {
+                    freeChunks[kept++] = freeChunks[i];
+                }
+            }
+            freeCount = kept;
+            if (currentSlab == slab) {
+                currentSlab = -1;
+            }
+            slabCount--;
+            return slab;
+        }
+
+        /**
+         * Drops a value without freeing its chunk.
+         */
+        private void drop(final Entry<K> entry) {
+            store.index.remove(entry.key);
+            unlink(entry);
+            store.usedBytes -= entry.length;
+        }
+
+        void free(final long address) {
+            if (freeCount == freeChunks.length) {
+                freeChunks = Arrays.copyOf(freeChunks, freeCount * 2);
+            }
+            freeChunks[freeCount++] = address;
+        }
+
+        void addLast(final Entry<K> entry) {
+            entry.prev = head.prev;
+            entry.next = head;
+            head.prev.next = entry;
+            head.prev = entry;
+        }
+
+        void unlink(final Entry<K> entry) {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+        }
+    }
+
+    /**
+     * The on-heap index entry of a value.
+     */
+    static final class Entry<K> {
+
+        final K key;
+
+        final SizeClass<K> sizeClass;
+
+        final long address;
+
+        final int length;
+
+        final long writeTime;
+
+        long expiresAt;
+
+        Entry<K> prev;
+
+        Entry<K> next;
+
+        Entry(final K key, final SizeClass<K> sizeClass, final long address, final int length,
+                final long writeTime, final long expiresAt) {
+            this.key = key;
+            this.sizeClass = sizeClass;
+            this.address = address;
+            this.length = length;
+            this.writeTime = writeTime;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean hasExpired(final long now) {
+            return (expiresAt != Long.MAX_VALUE) && ((now - expiresAt) >= 0);
+        }
+    }
+
+    /**
+     * A value read from the store.
+     */
+    static final class Copy {
+
+        final byte[] bytes;
+
+        final long writeTime;
+
+        Copy(final byte[] bytes, final long writeTime) {
+            this.bytes = bytes;
+            this.writeTime = writeTime;
+        }
+    }
+}
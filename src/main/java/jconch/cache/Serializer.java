@@ -0,0 +1,38 @@
+package jconch.cache;
+
+/**
+ * Converts values to and from bytes, so that a {@link CacheMap} can keep them
+ * outside of the Java heap (see {@link CacheMapMaker#offHeap(long, Serializer)}).
+ *
+ * @author Robert Fischer
+ *
+ * @param <T>
+ *            The type of the values.
+ */
+public interface Serializer<T> {
+
+    /**
+     * Converts a value to bytes.
+     *
+     * @param value
+     *            The value, which is never <code>null</code>.
+     * @return The bytes of the value. The array is copied, so it may be
+     *         reused.
+     * @throws RuntimeException
+     *             If the value cannot be converted; it is then simply not
+     *             kept.
+     */
+    byte[] serialize(T value);
+
+    /**
+     * Converts bytes produced by {@link #serialize(Object)} back to a value.
+     *
+     * @param bytes
+     *            The bytes, which the serializer may keep.
+     * @return The value.
+     * @throws RuntimeException
+     *             If the bytes cannot be converted; the value is then computed
+     *             again.
+     */
+    T deserialize(byte[] bytes);
+}
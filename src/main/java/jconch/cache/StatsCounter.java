@@ -0,0 +1,94 @@
+package jconch.cache;
+
+/**
+ * Accumulates the activity of a cache for {@link CacheStats}. Every counter is
+ * a {@link StripedCounter}, so recording never contends on a shared word.
+ *
+ * @author Robert Fischer
+ */
+final class StatsCounter {
+
+    private final StripedCounter hitCount = new StripedCounter();
+
+    private final StripedCounter missCount = new StripedCounter();
+
+    private final StripedCounter loadSuccessCount = new StripedCounter();
+
+    private final StripedCounter loadFailureCount = new StripedCounter();
+
+    private final StripedCounter totalLoadTime = new StripedCounter();
+
+    private final StripedCounter sizeEvictionCount = new StripedCounter();
+
+    private final StripedCounter expirationCount = new StripedCounter();
+
+    private final StripedCounter refreshCount = new StripedCounter();
+
+    private final StripedCounter refreshFailureCount = new StripedCounter();
+
+    private final StripedCounter loadRejectionCount = new StripedCounter();
+
+    private final StripedCounter loadTimeoutCount = new StripedCounter();
+
+    void recordHits(final int count) {
+        hitCount.add(count);
+    }
+
+    void recordMisses(final int count) {
+        missCount.add(count);
+    }
+
+    /**
+     * @param loadTime
+     *            The time the load took, in nanoseconds.
+     */
+    void recordLoadSuccess(final long loadTime) {
+        loadSuccessCount.increment();
+        totalLoadTime.add(loadTime);
+    }
+
+    /**
+     * @param loadTime
+     *            The time the load took before it failed, in nanoseconds.
+     */
+    void recordLoadFailure(final long loadTime) {
+        loadFailureCount.increment();
+        totalLoadTime.add(loadTime);
+    }
+
+    void recordSizeEviction() {
+        sizeEvictionCount.increment();
+    }
+
+    void recordExpiration() {
+        expirationCount.increment();
+    }
+
+    void recordRefresh() {
+        refreshCount.increment();
+    }
+
+    void recordRefreshFailure() {
+        refreshFailureCount.increment();
+    }
+
+    void recordLoadRejection() {
+        loadRejectionCount.increment();
+    }
+
+    void recordLoadTimeout() {
+        loadTimeoutCount.increment();
+    }
+
+    /**
+     * @param estimatedSize
+     *            The number of entries the cache holds.
+     * @return The counts so far.
+     */
+    CacheStats snapshot(final long estimatedSize) {
+        return new CacheStats(Math.max(0L, hitCount.sum()), missCount.sum(), loadSuccessCount.sum(),
+                loadFailureCount.sum(), totalLoadTime.sum(), sizeEvictionCount.sum(), expirationCount.sum(),
+                refreshCount.sum(), refreshFailureCount.sum(), loadRejectionCount.sum(), loadTimeoutCount.sum(),
+                estimatedSize);
+    }
+}
@@ -0,0 +1,111 @@
+package jconch.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter that many threads can add to without contending with each other.
+ * It starts out as a single word, and only once two threads collide on that
+ * word does it spread over several cells: each thread then adds to one cell,
+ * chosen by its id, and the cells sit on separate cache lines. Reading the
+ * count sums the word and the cells. The sum is not an atomic snapshot, so it
+ * is only exact when nobody is adding.
+ *
+ * @author Robert Fischer
+ */
+final class StripedCounter {
+
+    private static final AtomicLongFieldUpdater<StripedCounter> BASE = AtomicLongFieldUpdater.newUpdater(
+            StripedCounter.class, "base");
+
+    /**
+     * The distance between cells, in <code>long</code>s: one 64-byte cache
+     * line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * The number of cells: the number of processors, rounded up to a power of
+     * two, and at most 64.
+     */
+    private static final int STRIPES;
+
+    static {
+        final int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        int stripes = 1;
+        while (stripes < processors) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    /**
+     * The count until the first collision, and what was counted before it
+     * afterwards.
+     */
+    private volatile long base;
+
+    /**
+     * The cells, or <code>null</code> until threads have collided.
+     */
+    private volatile AtomicLongArray cells;
+
+    /**
+     * Adds to the count.
+     *
+     * @param x
+     *            The amount to add, which may be negative.
+     */
+    void add(final long x) {
+        AtomicLongArray cs = cells;
+        if (cs == null) {
+            if (STRIPES == 1) {
+                // With a single processor, spreading out would not help.
+                BASE.addAndGet(this, x);
+                return;
+            }
+            final long b = base;
+            if (BASE.compareAndSet(this, b, b + x)) {
+                return;
+            }
+            cs = inflate();
+        }
+        cs.getAndAdd(stripe() * PADDING, x);
+    }
+
+    void increment() {
+        add(1L);
+    }
+
+    /**
+     * @return The current count.
+     */
+    long sum() {
+        long sum = base;
+        final AtomicLongArray cs = cells;
+        if (cs != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cs.get(i * PADDING);
+            }
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        if (cells == null) {
+            cells = new AtomicLongArray(STRIPES * PADDING);
+        }
+        return cells;
+    }
+
+    /**
+     * @return The cell of the current thread.
+     */
+    private static int stripe() {
+        final long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h *= 0x9e3779b9;
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+}
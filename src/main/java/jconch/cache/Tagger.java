@@ -0,0 +1,34 @@
+package jconch.cache;
+
+import java.util.Collection;
+
+/**
+ * Names the groups that an entry belongs to, for a map that invalidates
+ * entries a group at a time (see {@link CacheMapMaker#tags(Tagger)} and
+ * {@link CacheMap#invalidateTag(Object)}). A tag is any object with a sound
+ * {@link Object#equals(Object)}, such as the name of a tenant or the table a
+ * value was read from.
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public interface Tagger<K, V> {
+
+    /**
+     * Tags an entry. This is called whenever a value is stored, so it should
+     * be quick. The tags of an entry do not change until its value is
+     * replaced.
+     *
+     * @param key
+     *            The key of the entry.
+     * @param value
+     *            The value of the entry.
+     * @return The tags, or <code>null</code> or an empty collection if the
+     *         entry belongs to no group. <code>null</code> tags are ignored.
+     */
+    Collection<?> tagsOf(K key, V value);
+}
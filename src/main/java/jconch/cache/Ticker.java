@@ -0,0 +1,24 @@
+package jconch.cache;
+
+/**
+ * A source of nanosecond time, which may be replaced in tests.
+ *
+ * @author Robert Fischer
+ */
+abstract class Ticker {
+
+    /**
+     * A ticker that reads {@link System#nanoTime()}.
+     */
+    static final Ticker SYSTEM = new Ticker() {
+        @Override
+        long read() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return The current time in nanoseconds, relative to an arbitrary origin.
+     */
+    abstract long read();
+}
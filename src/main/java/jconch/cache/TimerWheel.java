@@ -0,0 +1,220 @@
+package jconch.cache;
+
+import jconch.cache.LocalCache.Node;
+
+/**
+ * <p>
+ * A hierarchical timing wheel, after Varghese and Lauck, which keeps track of
+ * when the entries of a segment expire. Scheduling, rescheduling and
+ * cancelling an entry are O(1), and advancing the wheel only visits the slots
+ * whose time has come, so the cost of reclaiming expired entries is amortized
+ * over the reads and writes that advance it. No thread ever has to scan the
+ * whole map.
+ * </p>
+ * <p>
+ * Time is counted in ticks of 2<sup>30</sup> nanoseconds, about a second. The
+ * wheel has {@link #LEVELS} levels of {@link #SLOTS} slots, and each level
+ * reads the next {@link #LEVEL_BITS} bits of the tick count: the slots of the
+ * lowest level are a tick apart, those of the next about a minute, then about
+ * an hour, then about three days. An entry goes on the lowest level where its
+ * tick count and the current one differ only in the bits that level reads, so
+ * that it is reached before the current time passes it. When a slot is
+ * reached, its entries are expired or, if their time is still to come, put
+ * back on the wheel, which moves them to a lower level. Entries more than a
+ * few months out wait in an overflow list, which is looked at each time the
+ * highest level comes round. This means an entry may be reclaimed up to a tick
+ * late, but callers never see that: the cache checks the entry's own
+ * expiration time on every read.
+ * </p>
+ * <p>
+ * This class is not thread-safe: callers must guard it with the lock of the
+ * segment that owns it.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+abstract class TimerWheel<K, V> {
+
+    /**
+     * The nanoseconds in a tick are 2 to this power.
+     */
+    private static final int TICK_SHIFT = 30;
+
+    /**
+     * The bits of the tick count that each level reads.
+     */
+    private static final int LEVEL_BITS = 6;
+
+    private static final int SLOTS = 1 << LEVEL_BITS;
+
+    private static final int LEVELS = 4;
+
+    /**
+     * The slots of all the levels, lowest level first; each is the sentinel of
+     * a circular list.
+     */
+    private final Node<K, V>[] slots;
+
+    /**
+     * The sentinel of the list of entries too far out for the highest level.
+     */
+    private final Node<K, V> overflow;
+
+    /**
+     * The tick count of the latest advance.
+     */
+    private long tick;
+
+    /**
+     * The time of the latest advance, in nanoseconds.
+     */
+    private long nanos;
+
+    /**
+     * Constructor.
+     *
+     * @param now
+     *            The current time, in nanoseconds.
+     */
+    TimerWheel(final long now) {
+        nanos = now;
+        tick = now >> TICK_SHIFT;
+        slots = newSlotArray(LEVELS * SLOTS);
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = newSentinel();
+        }
+        overflow = newSentinel();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newSlotArray(final int size) {
+        return (Node<K, V>[]) new Node<?, ?>[size];
+    }
+
+    private static <K, V> Node<K, V> newSentinel() {
+        final Node<K, V> sentinel = new Node<K, V>(null, 0, null);
+        sentinel.timerPrev = sentinel;
+        sentinel.timerNext = sentinel;
+        return sentinel;
+    }
+
+    /**
+     * Called when an entry's slot comes due. The implementation should remove
+     * the entry if it has expired, or else update its {@link Node#timerTime}
+     * with the time it will expire.
+     *
+     * @param node
+     *            The entry, which has already been taken off the wheel.
+     * @return Whether the entry was removed; if not, it is rescheduled.
+     */
+    abstract boolean expire(Node<K, V> node);
+
+    /**
+     * Moves the wheel forward to the current time, expiring the entries whose
+     * slots were reached.
+     *
+     * @param currentTime
+     *            The current time, in nanoseconds.
+     */
+    void advance(final long currentTime) {
+        final long previousTick = tick;
+        final long currentTick = currentTime >> TICK_SHIFT;
+        nanos = currentTime;
+        if (currentTick - previousTick <= 0L) {
+            return;
+        }
+        tick = currentTick;
+        // Each level is visited from the slot it was last on to the one it is
+        // on now; a level whose bits did not change holds nothing that is due.
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = level * LEVEL_BITS;
+            final long from = previousTick >> shift;
+            final long to = currentTick >> shift;
+            if (from == to) {
+                return;
+            }
+            final long last = Math.min(to, from + SLOTS - 1);
+            for (long position = from; position <= last; position++) {
+                requeue(slots[(level * SLOTS) + (int) (position & (SLOTS - 1))]);
+            }
+        }
+        if ((previousTick >> (LEVELS * LEVEL_BITS)) != (currentTick >> (LEVELS * LEVEL_BITS))) {
+            requeue(overflow);
+        }
+    }
+
+    /**
+     * Empties a list, expiring its entries that are due and putting the others
+     * back on the wheel. The list is detached first, since entries may go back
+     * into it.
+     */
+    private void requeue(final Node<K, V> sentinel) {
+        Node<K, V> node = sentinel.timerNext;
+        sentinel.timerPrev = sentinel;
+        sentinel.timerNext = sentinel;
+        while (node != sentinel) {
+            final Node<K, V> next = node.timerNext;
+            node.timerPrev = null;
+            node.timerNext = null;
+            if (((node.timerTime - nanos) > 0L) || !expire(node)) {
+                schedule(node);
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Puts an entry on the wheel, in the slot for its {@link Node#timerTime}.
+     */
+    void schedule(final Node<K, V> node) {
+        final Node<K, V> sentinel = slotFor(node.timerTime);
+        node.timerPrev = sentinel.timerPrev;
+        node.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = node;
+        sentinel.timerPrev = node;
+    }
+
+    /**
+     * Moves an entry to the slot for its current {@link Node#timerTime}.
+     */
+    void reschedule(final Node<K, V> node) {
+        deschedule(node);
+        schedule(node);
+    }
+
+    /**
+     * Takes an entry off the wheel, if it is on it.
+     */
+    void deschedule(final Node<K, V> node) {
+        if (node.timerNext != null) {
+            node.timerNext.timerPrev = node.timerPrev;
+            node.timerPrev.timerNext = node.timerNext;
+            node.timerNext = null;
+            node.timerPrev = null;
+        }
+    }
+
+    /**
+     * Takes every entry off the wheel.
+     */
+    void clear() {
+        for (final Node<K, V> sentinel : slots) {
+            sentinel.timerPrev = sentinel;
+            sentinel.timerNext = sentinel;
+        }
+        overflow.timerPrev = overflow;
+        overflow.timerNext = overflow;
+    }
+
+    private Node<K, V> slotFor(final long time) {
+        // An entry that is already due goes in the current slot, which the
+        // next advance past this tick visits.
+        final long due = ((time - nanos) < 0L) ? tick : (time >> TICK_SHIFT);
+        final long differing = due ^ tick;
+        final int level = (differing == 0L) ? 0 : ((63 - Long.numberOfLeadingZeros(differing)) / LEVEL_BITS);
+        if (level >= LEVELS) {
+            return overflow;
+        }
+        return slots[(level * SLOTS) + (int) ((due >> (level * LEVEL_BITS)) & (SLOTS - 1))];
+    }
+}
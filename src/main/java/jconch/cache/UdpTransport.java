@@ -0,0 +1,187 @@
+package jconch.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.NullArgumentException;
+
+/**
+ * <p>
+ * Carries invalidations between JVMs as UDP datagrams, typically between the
+ * processes of one host over the loopback interface. Each member binds a
+ * socket of its own and sends every message to each of a fixed list of peers.
+ * </p>
+ * <p>
+ * Datagrams may be lost, for instance when a peer's receive buffer
+ * overflows, so a map invalidated over this transport may go on serving an
+ * old value until it expires. Maps that cannot tolerate that should expire
+ * their entries after a write as well (see
+ * {@link CacheMapMaker#expireAfterWrite(long, java.util.concurrent.TimeUnit)}).
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+public final class UdpTransport implements InvalidationTransport {
+
+    /**
+     * The largest payload of a UDP datagram over IPv4.
+     */
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * The largest payload that fits in one Ethernet frame, so that IP never
+     * fragments it: a 1500-byte MTU, less 40 bytes of IPv6 header (IPv4 needs
+     * 20) and 8 bytes of UDP header.
+     */
+    static final int DEFAULT_MAX_MESSAGE_SIZE = 1452;
+
+    /**
+     * The smallest message size that leaves room for a few keys.
+     */
+    private static final int MIN_MESSAGE_SIZE = 128;
+
+    private final DatagramSocket socket;
+
+    private final int maxMessageSize;
+
+    private final List<InetSocketAddress> peers;
+
+    private Thread receiverThread;
+
+    /**
+     * Constructs a transport whose datagrams fit in an Ethernet frame.
+     *
+     * @param local
+     *            The address to bind to, with a port of 0 to pick any free
+     *            port.
+     * @param peers
+     *            The addresses of the other members.
+     * @throws NullArgumentException
+     *             If an argument, or one of the peers, is <code>null</code>.
+     * @throws IOException
+     *             If the socket could not be bound.
+     */
+    public UdpTransport(final InetSocketAddress local, final List<InetSocketAddress> peers) throws IOException {
+        this(local, peers, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Constructs a transport with datagrams of up to the given size. Larger
+     * datagrams take fewer packets per burst of invalidations, but a datagram
+     * larger than the path's MTU is fragmented by IP, and is lost whenever any
+     * of its fragments is. Only go beyond the default on links with a larger
+     * MTU, such as the loopback interface.
+     *
+     * @param local
+     *            The address to bind to, with a port of 0 to pick any free
+     *            port.
+     * @param peers
+     *            The addresses of the other members.
+     * @param maxMessageSize
+     *            The largest payload to send, in bytes.
+     * @throws NullArgumentException
+     *             If an argument, or one of the peers, is <code>null</code>.
+     * @throws IllegalArgumentException
+     *             If the size is below 128 or above {@value #MAX_DATAGRAM_SIZE}.
+     * @throws IOException
+     *             If the socket could not be bound.
+     */
+    public UdpTransport(final InetSocketAddress local, final List<InetSocketAddress> peers, final int maxMessageSize)
+            throws IOException {
+        if ((maxMessageSize < MIN_MESSAGE_SIZE) || (maxMessageSize > MAX_DATAGRAM_SIZE)) {
+            throw new IllegalArgumentException("maxMessageSize must be between " + MIN_MESSAGE_SIZE + " and "
+                    + MAX_DATAGRAM_SIZE + ": " + maxMessageSize);
+        }
+        if (local == null) {
+            throw new NullArgumentException("local");
+        }
+        if (peers == null) {
+            throw new NullArgumentException("peers");
+        }
+        if (peers.contains(null)) {
+            throw new NullArgumentException("peers element");
+        }
+        this.peers = new ArrayList<InetSocketAddress>(peers);
+        this.maxMessageSize = maxMessageSize;
+        this.socket = new DatagramSocket(local);
+    }
+
+    /**
+     * @return The address the socket is bound to, which other members list as
+     *         a peer.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public void send(final byte[] message) throws IOException {
+        for (final InetSocketAddress peer : peers) {
+            socket.send(new DatagramPacket(message, message.length, peer));
+        }
+    }
+
+    /**
+     * Starts a daemon thread that receives datagrams until the transport is
+     * closed.
+     *
+     * @throws NullArgumentException
+     *             If the argument is <code>null</code>.
+     * @throws IllegalStateException
+     *             If the receiver was already set.
+     */
+    public synchronized void setReceiver(final Receiver receiver) {
+        if (receiver == null) {
+            throw new NullArgumentException("receiver");
+        }
+        if (receiverThread != null) {
+            throw new IllegalStateException("receiver was already set");
+        }
+        receiverThread = new Thread("jconch UDP invalidations on " + getLocalAddress()) {
+            @Override
+            public void run() {
+                receive(receiver);
+            }
+        };
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    private void receive(final Receiver receiver) {
+        final byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (final SocketException e) {
+                // Closed.
+                return;
+            } catch (final IOException e) {
+                continue;
+            }
+            try {
+                receiver.receive(Arrays.copyOf(buffer, packet.getLength()));
+            } catch (final RuntimeException e) {
+                // Keep receiving.
+            }
+        }
+    }
+
+    /**
+     * @return The size the transport was constructed with;
+     *         {@value #DEFAULT_MAX_MESSAGE_SIZE} by default.
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void close() {
+        socket.close();
+    }
+}
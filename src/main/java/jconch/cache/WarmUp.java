@@ -0,0 +1,198 @@
+package jconch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A preload of keys into a {@link CacheMap} that is running in the
+ * background, typically to warm up a map from the hot keys that an earlier
+ * map {@link CacheMap#saveHotKeys(java.io.File, int, Serializer) saved}:
+ * </p>
+ *
+ * <pre>
+ * WarmUp warmUp = entities.preload(snapshot, keySerializer, 4, 30, TimeUnit.SECONDS);
+ * if (!warmUp.await(5, TimeUnit.SECONDS)) {
+ *     log.info(&quot;Still warming up: &quot; + warmUp);
+ * }
+ * </pre>
+ * <p>
+ * The keys are loaded in order, by a bounded number of tasks on the map's
+ * executor, each of which takes the next batch of keys in turn and looks it up
+ * with {@link CacheMap#getAll(Iterable)}: a map with a bulk loader loads each
+ * batch in a single call, and any other map computes one key at a time. Once
+ * the time allowed for the warm-up has passed, or it has been cancelled, the
+ * tasks stop taking batches and the rest of the keys are skipped.
+ * </p>
+ * <p>
+ * The counts can be read at any time to follow the progress of the warm-up.
+ * The look-ups count in the map's {@link CacheMap#stats() statistics} like any
+ * others.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+public final class WarmUp {
+
+    /**
+     * The number of keys that a task looks up at once, if the map has a bulk
+     * loader.
+     */
+    static final int BULK_BATCH_SIZE = 64;
+
+    private final List<?> keys;
+
+    private final int batchSize;
+
+    private final long deadline;
+
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final AtomicInteger loadedCount = new AtomicInteger();
+
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    private final CountDownLatch done;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor. Starts the tasks right away.
+     *
+     * @param map
+     *            The map to load the keys into.
+     * @param keys
+     *            The keys, in the order to load them.
+     * @param batchSize
+     *            The number of keys to look up at once.
+     * @param executor
+     *            Runs the tasks.
+     * @param parallelism
+     *            The most tasks to run at once.
+     * @param maxTimeNanos
+     *            How long the warm-up may take.
+     */
+    <K> WarmUp(final CacheMap<K, ?> map, final List<? extends K> keys, final int batchSize,
+            final Executor executor, final int parallelism, final long maxTimeNanos) {
+        this.keys = new ArrayList<K>(keys);
+        this.batchSize = batchSize;
+        deadline = System.nanoTime() + maxTimeNanos;
+        final int batches = (keys.size() + batchSize - 1) / batchSize;
+        final int tasks = Math.min(parallelism, batches);
+        done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            final Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        loadBatches(map);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (final RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Looks up batches of keys until they run out, or the warm-up is over.
+     */
+    @SuppressWarnings("unchecked")
+    private <K> void loadBatches(final CacheMap<K, ?> map) {
+        while (!cancelled && ((System.nanoTime() - deadline) < 0)) {
+            final int start = nextIndex.getAndAdd(batchSize);
+            if (start >= keys.size()) {
+                return;
+            }
+            final List<K> batch = (List<K>) keys.subList(start, Math.min(start + batchSize, keys.size()));
+            try {
+                map.getAll(batch);
+                loadedCount.addAndGet(batch.size());
+            } catch (final RuntimeException e) {
+                failedCount.addAndGet(batch.size());
+            }
+        }
+    }
+
+    /**
+     * @return The number of keys to preload.
+     */
+    public int getKeyCount() {
+        return keys.size();
+    }
+
+    /**
+     * @return The number of keys looked up so far, whether they were already
+     *         in the map or not.
+     */
+    public int getLoadedCount() {
+        return loadedCount.get();
+    }
+
+    /**
+     * @return The number of keys whose look-up failed so far. A failed bulk
+     *         load fails all of the keys of its batch.
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return The number of keys that were skipped because the warm-up ran out
+     *         of time or was cancelled, or 0 while it is running.
+     */
+    public int getSkippedCount() {
+        return isDone() ? (keys.size() - loadedCount.get() - failedCount.get()) : 0;
+    }
+
+    /**
+     * @return Whether the warm-up has finished.
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the warm-up to finish.
+     *
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Waits for the warm-up to finish, for at most the given time.
+     *
+     * @return Whether the warm-up finished.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Skips the keys that are not being looked up yet. The batches in progress
+     * finish normally.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmUp[keys=" + getKeyCount() + ", loaded=" + getLoadedCount() + ", failed=" + getFailedCount()
+                + ", skipped=" + getSkippedCount() + ", done=" + isDone() + "]";
+    }
+}
@@ -0,0 +1,31 @@
+package jconch.cache;
+
+/**
+ * Calculates the weight of an entry, for a map bounded by the total weight of
+ * its entries rather than by their number (see
+ * {@link CacheMapMaker#maximumWeight(long, Weigher)}). The weight is in
+ * whatever unit suits the values, such as their estimated size in bytes.
+ *
+ * @author Robert Fischer
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Weighs an entry. This is called whenever a value is stored, under a lock
+     * of the map, so it should be quick. The weight of an entry does not
+     * change until its value is replaced.
+     *
+     * @param key
+     *            The key of the entry.
+     * @param value
+     *            The value of the entry.
+     * @return The weight, which must not be negative. An entry of weight zero
+     *         only leaves the map when nothing else is left to evict.
+     */
+    int weigh(K key, V value);
+}
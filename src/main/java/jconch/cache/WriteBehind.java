@@ -0,0 +1,331 @@
+package jconch.cache;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Holds the values put into a map until a {@link CacheWriter} has written
+ * them. A value put for a key that is still pending replaces the pending
+ * value, so each key is written once per batch, with its latest value.
+ * </p>
+ * <p>
+ * A single flusher task runs on the map's executor while any writes are
+ * pending. It writes a batch as soon as the pending writes fill one, or once
+ * the oldest of them has waited for the maximum delay, and stops once nothing
+ * is pending. Batches are written one at a time, so a value never overtakes a
+ * newer one on its way to the writer. When the pending writes reach their
+ * bound, a thread putting a new key writes a batch itself before it goes on,
+ * which holds the putting threads back to the pace of the writer.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class WriteBehind<K, V> {
+
+    private final CacheWriter<K, V> writer;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    private final int maxPending;
+
+    private final Executor executor;
+
+    /**
+     * Guards the pending writes and the state of the flusher.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when the pending writes fill a batch.
+     */
+    private final Condition batchFilled = lock.newCondition();
+
+    /**
+     * Held while a batch is being written.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * The writes waiting to be written, in the order their keys were first
+     * put, so the first one is the oldest. Guarded by the lock.
+     */
+    private Map<K, Write<V>> pending = new LinkedHashMap<K, Write<V>>();
+
+    /**
+     * Whether a flusher task is running or about to. Guarded by the lock.
+     */
+    private boolean flushing;
+
+    /**
+     * Whether the last batch failed. Guarded by the lock.
+     */
+    private boolean failing;
+
+    /**
+     * When the flusher may try again after a failure, by
+     * {@link System#nanoTime()}. Guarded by the lock.
+     */
+    private long retryNanos;
+
+    WriteBehind(final CacheWriter<K, V> writer, final int maxBatchSize, final long maxDelayNanos,
+            final int maxPending, final Executor executor) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+        this.maxPending = maxPending;
+        this.executor = executor;
+    }
+
+    /**
+     * Waits until there is room to queue a write for the key, writing batches
+     * in the calling thread for as long as there is none. This is to be called
+     * before the value is stored, so that a failure leaves the map as it was.
+     *
+     * @throws RuntimeException
+     *             Whatever the writer threw.
+     */
+    void awaitRoom(final K key) {
+        while (true) {
+            lock.lock();
+            try {
+                if ((pending.size() < maxPending) || pending.containsKey(key)) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            writeBatch();
+        }
+    }
+
+    /**
+     * Queues a write, replacing the pending write of the key if there is one.
+     * This is to be called under the lock of the key, so that the writes of a
+     * key are queued in the order its values were stored.
+     */
+    void enqueue(final K key, final V value) {
+        final boolean start;
+        lock.lock();
+        try {
+            final Write<V> write = pending.get(key);
+            if (write == null) {
+                pending.put(key, new Write<V>(value, System.nanoTime()));
+            } else {
+                // The key keeps its place, and the time it has waited.
+                write.value = value;
+            }
+            start = !flushing;
+            if (start) {
+                flushing = true;
+            } else if (pending.size() >= maxBatchSize) {
+                batchFilled.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (start) {
+            try {
+                executor.execute(new Flusher());
+            } catch (final RejectedExecutionException e) {
+                // The writes wait for the next put, or for a flush.
+                lock.lock();
+                try {
+                    flushing = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes everything that is pending, in the calling thread.
+     *
+     * @throws RuntimeException
+     *             Whatever the writer threw.
+     */
+    void flush() {
+        while (writeBatch()) {
+            // Keep going.
+        }
+    }
+
+    /**
+     * @return The number of keys whose writes are pending.
+     */
+    int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest pending writes and writes them. If the writer fails,
+     * they are put back in front of the rest, except where a newer value is
+     * now pending.
+     *
+     * @return Whether there was anything to write.
+     * @throws RuntimeException
+     *             Whatever the writer threw.
+     */
+    private boolean writeBatch() {
+        writeLock.lock();
+        try {
+            final Map<K, Write<V>> taken = new LinkedHashMap<K, Write<V>>();
+            lock.lock();
+            try {
+                final Iterator<Map.Entry<K, Write<V>>> entries = pending.entrySet().iterator();
+                while (entries.hasNext() && (taken.size() < maxBatchSize)) {
+                    final Map.Entry<K, Write<V>> entry = entries.next();
+                    taken.put(entry.getKey(), entry.getValue());
+                    entries.remove();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (taken.isEmpty()) {
+                return false;
+            }
+            final Map<K, V> batch = new LinkedHashMap<K, V>();
+            for (final Map.Entry<K, Write<V>> entry : taken.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue().value);
+            }
+
+            boolean written = false;
+            try {
+                writer.write(Collections.unmodifiableMap(batch));
+                written = true;
+            } finally {
+                if (written) {
+                    recovered();
+                } else {
+                    requeue(taken);
+                }
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void requeue(final Map<K, Write<V>> taken) {
+        lock.lock();
+        try {
+            // A newer value of a key replaces the one that failed.
+            taken.keySet().removeAll(pending.keySet());
+            taken.putAll(pending);
+            pending = taken;
+            // Give the writer the maximum delay to recover.
+            failing = true;
+            retryNanos = System.nanoTime() + maxDelayNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recovered() {
+        lock.lock();
+        try {
+            failing = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes batches until nothing is pending.
+     */
+    private final class Flusher implements Runnable {
+
+        public void run() {
+            while (awaitBatch()) {
+                try {
+                    writeBatch();
+                } catch (final RuntimeException e) {
+                    // The batch was put back, and is tried again after the
+                    // maximum delay.
+                }
+            }
+        }
+
+        /**
+         * Waits until the pending writes fill a batch, or the oldest of them
+         * is due. After a failure, it waits for the maximum delay either way.
+         *
+         * @return Whether there is a batch to write, rather than nothing
+         *         pending.
+         */
+        private boolean awaitBatch() {
+            lock.lock();
+            try {
+                while (true) {
+                    if (pending.isEmpty()) {
+                        flushing = false;
+                        return false;
+                    }
+                    final long remaining;
+                    if (failing) {
+                        remaining = retryNanos - System.nanoTime();
+                    } else if (pending.size() >= maxBatchSize) {
+                        return true;
+                    } else {
+                        final long oldestNanos = pending.values().iterator().next().queuedNanos;
+                        remaining = maxDelayNanos - (System.nanoTime() - oldestNanos);
+                    }
+                    if (remaining <= 0) {
+                        return true;
+                    }
+                    try {
+                        batchFilled.await(remaining, TimeUnit.NANOSECONDS);
+                    } catch (final InterruptedException e) {
+                        // Write what is pending before giving the thread up.
+                        Thread.currentThread().interrupt();
+                        flushing = false;
+                        lock.unlock();
+                        try {
+                            flush();
+                        } catch (final RuntimeException failure) {
+                            // Tried again with the next put, or flush.
+                        } finally {
+                            lock.lock();
+                        }
+                        return false;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A pending write. The value is replaced when the key is put again.
+     */
+    private static final class Write<V> {
+
+        V value;
+
+        /**
+         * When the key was queued, by {@link System#nanoTime()}.
+         */
+        final long queuedNanos;
+
+        Write(final V value, final long queuedNanos) {
+            this.value = value;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+}
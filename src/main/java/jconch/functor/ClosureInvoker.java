@@ -0,0 +1,152 @@
+package jconch.functor;
+
+import groovy.lang.Closure;
+import groovy.lang.MetaClass;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.codehaus.groovy.runtime.GeneratedClosure;
+import org.codehaus.groovy.runtime.InvokerInvocationException;
+import org.codehaus.groovy.runtime.metaclass.ClosureMetaClass;
+
+/**
+ * <p>
+ * Calls a closure with one argument. {@link Closure#call(Object)} wraps the
+ * argument in an array and looks the <code>doCall</code> method up through the
+ * closure's meta-class on every call; for a closure written in Groovy, this
+ * looks the method up once, when it is built, and then calls it directly.
+ * </p>
+ * <p>
+ * The direct call is only made while the closure still has the meta-class it
+ * was built with, and only with an argument that the method takes as it is.
+ * Otherwise, and for closures that were not compiled from Groovy source (such
+ * as curried closures), the call goes through {@link Closure#call(Object)}, so
+ * the result is the same either way. So are exceptions: a checked exception is
+ * wrapped in an {@link InvokerInvocationException}, as Groovy does.
+ * </p>
+ *
+ * @author Robert Fischer
+ */
+final class ClosureInvoker {
+
+    private final Closure closure;
+
+    /**
+     * The closure's one-argument <code>doCall</code> method, or
+     * <code>null</code> if it is always called through Groovy.
+     */
+    private final Method doCall;
+
+    /**
+     * The type that <code>doCall</code> takes, boxed.
+     */
+    private final Class<?> argType;
+
+    private final boolean nullable;
+
+    /**
+     * The meta-class that the closure was built with.
+     */
+    private final MetaClass metaClass;
+
+    ClosureInvoker(final Closure closure) {
+        this.closure = closure;
+        this.metaClass = closure.getMetaClass();
+        Method method = null;
+        if ((closure instanceof GeneratedClosure) && (metaClass instanceof ClosureMetaClass)) {
+            method = findDoCall(closure.getClass());
+        }
+        if (method == null) {
+            this.doCall = null;
+            this.argType = null;
+            this.nullable = false;
+        } else {
+            final Class<?> type = method.getParameterTypes()[0];
+            this.doCall = method;
+            this.argType = type.isPrimitive() ? box(type) : type;
+            this.nullable = !type.isPrimitive();
+        }
+    }
+
+    /**
+     * @return The only public one-argument <code>doCall</code> method that the
+     *         class declares, or <code>null</code> if there is not exactly one.
+     */
+    private static Method findDoCall(final Class<?> type) {
+        Method found = null;
+        for (final Method method : type.getDeclaredMethods()) {
+            if ("doCall".equals(method.getName()) && (method.getParameterTypes().length == 1)
+                    && Modifier.isPublic(method.getModifiers()) && !method.isBridge()) {
+                if (found != null) {
+                    return null;
+                }
+                found = method;
+            }
+        }
+        if (found != null) {
+            try {
+                // Closure classes are often not public.
+                found.setAccessible(true);
+            } catch (final SecurityException e) {
+                return null;
+            }
+        }
+        return found;
+    }
+
+    private static Class<?> box(final Class<?> primitive) {
+        if (primitive == int.class) {
+            return Integer.class;
+        } else if (primitive == long.class) {
+            return Long.class;
+        } else if (primitive == boolean.class) {
+            return Boolean.class;
+        } else if (primitive == double.class) {
+            return Double.class;
+        } else if (primitive == float.class) {
+            return Float.class;
+        } else if (primitive == char.class) {
+            return Character.class;
+        } else if (primitive == short.class) {
+            return Short.class;
+        } else {
+            return Byte.class;
+        }
+    }
+
+    /**
+     * @return Whether calls can skip Groovy's dispatch.
+     */
+    boolean isDirect() {
+        return doCall != null;
+    }
+
+    /**
+     * Calls the closure.
+     *
+     * @param arg
+     *            The argument.
+     * @return What the closure returned.
+     */
+    Object call(final Object arg) {
+        if ((doCall == null) || (closure.getMetaClass() != metaClass)
+                || ((arg == null) ? !nullable : !argType.isInstance(arg))) {
+            return closure.call(arg);
+        }
+        try {
+            return doCall.invoke(closure, arg);
+        } catch (final InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new InvokerInvocationException(cause);
+        } catch (final IllegalAccessException e) {
+            return closure.call(arg);
+        }
+    }
+}
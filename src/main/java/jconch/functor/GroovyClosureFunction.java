@@ -7,13 +7,13 @@ import com.google.common.base.Function;
 
 public class GroovyClosureFunction implements Function<Object, Object> {
 
-    private final Closure impl;
+    private final ClosureInvoker impl;
 
     public GroovyClosureFunction(final Closure closure) {
         if (closure == null) {
             throw new NullArgumentException("closure");
         }
-        impl = closure;
+        impl = new ClosureInvoker(closure);
     }
 
     public Object apply(final Object arg) {
@@ -6,13 +6,13 @@ import org.apache.commons.lang.NullArgumentException;
 
 public class GroovyClosureTransformer extends Transformer5<Object, Object> {
 
-    private final Closure impl;
+    private final ClosureInvoker impl;
 
     public GroovyClosureTransformer(final Closure closure) {
         if (closure == null) {
             throw new NullArgumentException("closure");
         }
-        impl = closure;
+        impl = new ClosureInvoker(closure);
     }
 
     public Object transform(final Object arg) {
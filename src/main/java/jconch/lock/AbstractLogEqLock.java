@@ -7,6 +7,8 @@ import java.lang.ref.SoftReference;
 import java.util.Map;
 import java.util.WeakHashMap;
 
+import jconch.stats.HeavyHitters;
+
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.collections.Transformer;
 import org.apache.commons.collections.map.ReferenceIdentityMap;
@@ -44,6 +46,34 @@ public abstract class AbstractLogEqLock<OBJ_T, LOCK_T> {
             new WeakHashMap<OBJ_T, KeyAndLock>(),
             new KeyAndLockTransformer()));
 
+    /**
+     * Counts the objects whose locks are asked for, or <code>null</code> if
+     * they are not counted.
+     */
+    private volatile HeavyHitters<? super OBJ_T> hotKeyTracker;
+
+    /**
+     * Starts counting the objects whose locks are asked for, to find those
+     * that the most threads contend for. Pass a sketch with a sample rate to
+     * keep the cost on {@link #getLock(Object)} low; while nothing is tracked,
+     * the cost is one read of a volatile field.
+     * 
+     * @param tracker
+     *            The sketch to count the objects in, or <code>null</code> to
+     *            stop counting.
+     */
+    public void trackHotKeys(final HeavyHitters<? super OBJ_T> tracker) {
+        hotKeyTracker = tracker;
+    }
+
+    /**
+     * @return The sketch that counts the objects whose locks are asked for,
+     *         or <code>null</code> if there is none.
+     */
+    public HeavyHitters<? super OBJ_T> getHotKeyTracker() {
+        return hotKeyTracker;
+    }
+
     /**
      * Provides a lock for the given object.
      * 
@@ -52,6 +82,11 @@ public abstract class AbstractLogEqLock<OBJ_T, LOCK_T> {
      * @return A lock for that object.
      */
     public LOCK_T getLock(final OBJ_T in) {
+        final HeavyHitters<? super OBJ_T> tracker = hotKeyTracker;
+        if (tracker != null) {
+            tracker.offer(in);
+        }
+
         // Handle this case here, so we can assume that "in" is not null from
         // here on out.
         if (in == null) {
@@ -30,27 +30,28 @@ public abstract class JConchMultiKey {
     private static final int BASE_HASH_CODE = RandomUtils.nextInt();
 
     /**
-     * The cached hash code for this map.  Cached so that we get thread safety and speed, and because it's
-     * almost inevitably going to be used in any case.
+     * The cached hash code for this map, or 0 if it has not been computed yet.  Cached for speed, because it's
+     * almost inevitably going to be used in any case.  It cannot be computed in the constructor, which runs
+     * before the subclasses have set their keys.  Racing threads compute the same value, so the field need not
+     * be volatile.
      */
-    private final int hashCode;
-
-    public JConchMultiKey() {
-        int myHashCode = BASE_HASH_CODE;
-        for (final Object key : getKeys()) {
-            if (key == null) {
-                myHashCode = ~myHashCode + 1;
-            } else {
-                myHashCode = myHashCode ^ key.hashCode();
-            }
-        }
-        hashCode = myHashCode;
-    }
-
+    private int hashCode;
 
     @Override
     public int hashCode() {
-        return hashCode;
+        int myHashCode = hashCode;
+        if (myHashCode == 0) {
+            myHashCode = BASE_HASH_CODE;
+            for (final Object key : getKeys()) {
+                if (key == null) {
+                    myHashCode = ~myHashCode + 1;
+                } else {
+                    myHashCode = myHashCode ^ key.hashCode();
+                }
+            }
+            hashCode = myHashCode;
+        }
+        return myHashCode;
     }
 
     @Override
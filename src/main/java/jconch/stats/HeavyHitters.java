@@ -0,0 +1,358 @@
+package jconch.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Finds the most frequent items of a stream in bounded memory, with the
+ * "Space-Saving" algorithm of Metwally, Agrawal and El Abbadi. It keeps a fixed
+ * number of counters. An item that has a counter has it incremented; an item
+ * that does not takes over the smallest counter, and inherits its count as the
+ * possible overcount of the new item. Any item seen more often than the total
+ * count divided by the number of counters is sure to hold one, and each
+ * estimate is at most its error above the true count.
+ * </p>
+ * <p>
+ * The counters sit in a hash table for look-ups and a binary min-heap for the
+ * takeovers, so each item recorded costs a hash look-up and O(log n) swaps,
+ * under the lock of this object. A sketch on a hot path should sample: with a
+ * sample rate of <var>n</var>, about one item in <var>n</var> is recorded,
+ * chosen by a random number that each thread draws from its own generator, so
+ * that an item left out writes nothing that other threads read, and the
+ * counts are scaled back up when they are reported.
+ * </p>
+ *
+ * @author Robert Fischer
+ *
+ * @param <T>
+ *            The type of the items.
+ */
+public final class HeavyHitters<T> {
+
+    /**
+     * Each thread's state of the random number generator that picks the
+     * samples, seeded from the thread's id.
+     */
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            final long id = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+            return new int[] { (int) (id ^ (id >>> 32)) | 1 };
+        }
+    };
+
+    private final int capacity;
+
+    private final int sampleRate;
+
+    /**
+     * One less than the sample rate, which is a power of two.
+     */
+    private final int sampleMask;
+
+    /**
+     * The counters by item. Guarded by this.
+     */
+    private final Map<T, Counter<T>> counters;
+
+    /**
+     * The counters, smallest count first. Guarded by this.
+     */
+    private final Counter<T>[] heap;
+
+    /**
+     * Guarded by this.
+     */
+    private int size;
+
+    /**
+     * The number of items recorded. Guarded by this.
+     */
+    private long recorded;
+
+    /**
+     * Constructs a sketch that records every item.
+     *
+     * @param capacity
+     *            The number of counters.
+     * @throws IllegalArgumentException
+     *             If the capacity is not positive.
+     */
+    public HeavyHitters(final int capacity) {
+        this(capacity, 1);
+    }
+
+    /**
+     * Constructs a sketch that records a sample of the items.
+     *
+     * @param capacity
+     *            The number of counters.
+     * @param sampleRate
+     *            Records about one item in this many, which is rounded up to
+     *            a power of two.
+     * @throws IllegalArgumentException
+     *             If the capacity or the sample rate is not positive.
+     */
+    public HeavyHitters(final int capacity, final int sampleRate) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sample rate must be positive: " + sampleRate);
+        }
+        int rate = 1;
+        while (rate < sampleRate) {
+            rate <<= 1;
+        }
+        this.capacity = capacity;
+        this.sampleRate = rate;
+        sampleMask = rate - 1;
+        counters = new HashMap<T, Counter<T>>((capacity * 4) / 3 + 1);
+        heap = newCounterArray(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Counter<T>[] newCounterArray(final int size) {
+        return (Counter<T>[]) new Counter<?>[size];
+    }
+
+    /**
+     * @return The number of counters.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The sample rate, as rounded up.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Counts an item, if it is picked for the sample.
+     *
+     * @param item
+     *            The item, which may be <code>null</code>.
+     */
+    public void offer(final T item) {
+        if ((sampleMask == 0) || ((nextRandom() & sampleMask) == 0)) {
+            record(item);
+        }
+    }
+
+    /**
+     * @return The next number of the calling thread's xorshift generator.
+     */
+    private static int nextRandom() {
+        final int[] probe = PROBE.get();
+        int x = probe[0];
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        probe[0] = x;
+        return x;
+    }
+
+    private synchronized void record(final T item) {
+        recorded++;
+        Counter<T> counter = counters.get(item);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+        } else if (size < capacity) {
+            counter = new Counter<T>(item);
+            counter.count = 1;
+            counter.index = size;
+            heap[size++] = counter;
+            counters.put(item, counter);
+            siftUp(counter.index);
+        } else {
+            counter = heap[0];
+            counters.remove(counter.item);
+            counter.item = item;
+            counter.error = counter.count;
+            counter.count++;
+            counters.put(item, counter);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(final int from) {
+        final Counter<T> counter = heap[from];
+        int i = from;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(final int from) {
+        final Counter<T> counter = heap[from];
+        int i = from;
+        while (true) {
+            int child = (2 * i) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (((child + 1) < size) && (heap[child + 1].count < heap[child].count)) {
+                child++;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(final Counter<T> counter, final int index) {
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    /**
+     * Provides the most frequent items seen so far.
+     *
+     * @param limit
+     *            The most items to provide.
+     * @return The items with their estimated counts, highest first.
+     * @throws IllegalArgumentException
+     *             If the limit is negative.
+     */
+    public List<Entry<T>> top(final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+        final List<Entry<T>> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry<T>>(size);
+            for (int i = 0; i < size; i++) {
+                final Counter<T> counter = heap[i];
+                entries.add(new Entry<T>(counter.item, counter.count * sampleRate, counter.error * sampleRate));
+            }
+        }
+        Collections.sort(entries, Entry.BY_COUNT);
+        return (entries.size() > limit) ? new ArrayList<Entry<T>>(entries.subList(0, limit)) : entries;
+    }
+
+    /**
+     * @return The estimated number of items offered so far, scaled up from the
+     *         number recorded.
+     */
+    public synchronized long getCount() {
+        return recorded * sampleRate;
+    }
+
+    /**
+     * Forgets every item.
+     */
+    public synchronized void clear() {
+        counters.clear();
+        for (int i = 0; i < size; i++) {
+            heap[i] = null;
+        }
+        size = 0;
+        recorded = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "HeavyHitters" + top(10);
+    }
+
+    /**
+     * A counter of the sketch.
+     */
+    private static final class Counter<T> {
+
+        T item;
+
+        long count;
+
+        /**
+         * The count inherited from the item that held the counter before.
+         */
+        long error;
+
+        /**
+         * The position of the counter in the heap.
+         */
+        int index;
+
+        Counter(final T item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * An item with its estimated count.
+     *
+     * @param <T>
+     *            The type of the item.
+     */
+    public static final class Entry<T> {
+
+        static final Comparator<Entry<?>> BY_COUNT = new Comparator<Entry<?>>() {
+            public int compare(final Entry<?> a, final Entry<?> b) {
+                return (a.count > b.count) ? -1 : ((a.count == b.count) ? 0 : 1);
+            }
+        };
+
+        private final T item;
+
+        private final long count;
+
+        private final long error;
+
+        Entry(final T item, final long count, final long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return The estimated number of times the item was offered, which
+         *         is at most {@link #getError()} above the number of times it
+         *         was recorded, scaled up by the sample rate.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The most by which the count may be over.
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * @return The lowest count the item may have.
+         */
+        public long getGuaranteedCount() {
+            return count - error;
+        }
+
+        @Override
+        public String toString() {
+            return item + "=" + count + "+/-" + error;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class AsyncCacheMapTest extends FrameworkTest {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(final Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test
+    public void getReturnsBeforeTheLookUpRuns() throws Exception {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(new CountingFunction<Integer>(),
+                executor);
+        final Future<String> future = map.get(1);
+        assertFalse(future.isDone());
+        executor.runAll();
+        assertTrue(future.isDone());
+        assertEquals("value1", future.get());
+        assertSame(future, map.get(1));
+    }
+
+    @Test
+    public void equalKeysShareOneLookUp() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(converter, executor);
+        final Future<String> first = map.get(new Integer(1000));
+        final Future<String> second = map.get(new Integer(1000));
+        assertSame(first, second);
+        assertEquals(1, executor.pending());
+        executor.runAll();
+        assertEquals(1, converter.calls.get());
+    }
+
+    @Test
+    public void failedLookUpIsNotCached() throws Exception {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(converter, executor);
+        converter.fail.set(true);
+        final Future<String> failed = map.get(1);
+        executor.runAll();
+        try {
+            failed.get();
+            fail("Expected the look-up to fail");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        converter.fail.set(false);
+        final Future<String> retried = map.get(1);
+        assertNotSame(failed, retried);
+        executor.runAll();
+        assertEquals("value1", retried.get());
+    }
+
+    @Test
+    public void listenersRunWhenTheValueIsReady() throws Exception {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(new CountingFunction<Integer>(),
+                executor);
+        final ListenableFuture<String> future = map.get(1);
+        final QueueingExecutor callbacks = new QueueingExecutor();
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        future.addListener(new Runnable() {
+            public void run() {
+                try {
+                    seen.set(future.get());
+                } catch (final Exception e) {
+                    seen.set(e.toString());
+                }
+            }
+        }, callbacks);
+        assertEquals(0, callbacks.pending());
+        executor.runAll();
+        assertEquals(1, callbacks.pending());
+        callbacks.runAll();
+        assertEquals("value1", seen.get());
+
+        // A future that is already done calls back right away.
+        future.addListener(new Runnable() {
+            public void run() {
+                seen.set("again");
+            }
+        }, callbacks);
+        callbacks.runAll();
+        assertEquals("again", seen.get());
+    }
+
+    @Test
+    public void listenersOfAFailedLookUpCanRetry() throws Exception {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(converter, executor);
+        converter.fail.set(true);
+        final ListenableFuture<String> failed = map.get(1);
+        final AtomicReference<ListenableFuture<String>> retried = new AtomicReference<ListenableFuture<String>>();
+        failed.addListener(new Runnable() {
+            public void run() {
+                converter.fail.set(false);
+                retried.set(map.get(1));
+            }
+        }, DIRECT);
+        executor.runAll();
+        assertNotNull(retried.get());
+        assertNotSame(failed, retried.get());
+        executor.runAll();
+        assertEquals("value1", retried.get().get());
+    }
+
+    @Test
+    public void aThrowingListenerDoesNotStopTheOthers() {
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(new CountingFunction<Integer>(),
+                DIRECT);
+        final AtomicInteger calls = new AtomicInteger();
+        map.put(1, "put");
+        map.get(1).addListener(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("listener failed");
+            }
+        }, DIRECT);
+        map.get(1).addListener(new Runnable() {
+            public void run() {
+                calls.incrementAndGet();
+            }
+        }, DIRECT);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void putIsImmediatelyDone() throws Exception {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final AsyncCacheMap<Integer, String> map = new AsyncCacheMap<Integer, String>(new CountingFunction<Integer>(),
+                executor);
+        map.put(1, "put");
+        assertTrue(map.get(1).isDone());
+        assertEquals("put", map.get(1).get());
+        assertEquals(0, executor.pending());
+    }
+
+    @Test
+    public void synchronousViewWaitsForTheValue() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Map<Integer, String> view = new AsyncCacheMap<Integer, String>(new CountingFunction<Integer>(),
+                    executor).synchronous();
+            assertEquals("value1", view.get(1));
+            assertTrue(view.containsKey(1));
+            assertEquals(1, view.entrySet().size());
+            assertEquals("value1", view.remove(1));
+            assertFalse(view.containsKey(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void synchronousViewRethrowsTheConverterException() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        converter.fail.set(true);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new AsyncCacheMap<Integer, String>(converter, executor).synchronous().get(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void makerSettingsApply() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final AsyncCacheMap<Integer, String> map = new CacheMapMaker().maximumSize(10).executor(executor)
+                .makeAsyncCacheMap(new CountingFunction<Integer>());
+        for (int i = 0; i < 100; i++) {
+            map.get(i);
+        }
+        executor.runAll();
+        assertEquals(10, map.size());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void makerRejectsRefreshing() {
+        new CacheMapMaker().refreshAfterWrite(1, TimeUnit.SECONDS).makeAsyncCacheMap(new CountingFunction<Integer>());
+    }
+
+}
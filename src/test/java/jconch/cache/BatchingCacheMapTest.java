@@ -0,0 +1,188 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class BatchingCacheMapTest extends FrameworkTest {
+
+    private static final class SingleFunction implements Function<Integer, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String apply(final Integer key) {
+            calls.incrementAndGet();
+            return "single" + key;
+        }
+    }
+
+    /**
+     * Loads every key except 13, and records the batches it is asked for.
+     */
+    private static final class RecordingBulkLoader implements Function<Collection<Integer>, Map<Integer, String>> {
+
+        final List<Collection<Integer>> batches = new ArrayList<Collection<Integer>>();
+
+        public Map<Integer, String> apply(final Collection<Integer> keys) {
+            synchronized (batches) {
+                batches.add(new ArrayList<Integer>(keys));
+            }
+            final Map<Integer, String> result = new HashMap<Integer, String>();
+            for (final Integer key : keys) {
+                if (key != 13) {
+                    result.put(key, "bulk" + key);
+                }
+            }
+            return result;
+        }
+
+        int batchCount() {
+            synchronized (batches) {
+                return batches.size();
+            }
+        }
+    }
+
+    /**
+     * Calls {@link CacheMap#get(Object)} for each key on its own thread, all at
+     * once, and returns the values by key.
+     */
+    private static Map<Integer, String> getConcurrently(final CacheMap<Integer, String> map, final int... keys)
+            throws InterruptedException {
+        final Map<Integer, String> values = new HashMap<Integer, String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final int key : keys) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    final String value = map.get(key);
+                    synchronized (values) {
+                        values.put(key, value);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return values;
+    }
+
+    @Test
+    public void concurrentMissesShareABatch() throws Exception {
+        final RecordingBulkLoader bulkLoader = new RecordingBulkLoader();
+        final SingleFunction converter = new SingleFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().batchMisses(100, 500, TimeUnit.MILLISECONDS)
+                .makeCacheMap(converter, bulkLoader);
+
+        final Map<Integer, String> values = getConcurrently(map, 1, 2, 3, 4);
+        assertEquals("bulk1", values.get(1));
+        assertEquals("bulk4", values.get(4));
+        assertEquals(4, values.size());
+        assertEquals(1, bulkLoader.batchCount());
+        assertEquals(4, bulkLoader.batches.get(0).size());
+        assertEquals(0, converter.calls.get());
+
+        assertEquals("bulk3", map.get(3));
+        assertEquals("Hits are not batched", 1, bulkLoader.batchCount());
+    }
+
+    @Test
+    public void aFullBatchIsLoadedRightAway() throws Exception {
+        final RecordingBulkLoader bulkLoader = new RecordingBulkLoader();
+        final CacheMap<Integer, String> map = new CacheMapMaker().batchMisses(2, 1, TimeUnit.HOURS).makeCacheMap(
+                new SingleFunction(), bulkLoader);
+
+        final Map<Integer, String> values = getConcurrently(map, 1, 2, 3, 4);
+        assertEquals(4, values.size());
+        assertEquals(2, bulkLoader.batchCount());
+    }
+
+    @Test
+    public void aLoneMissWaitsOnlyForTheDelay() {
+        final RecordingBulkLoader bulkLoader = new RecordingBulkLoader();
+        final CacheMap<Integer, String> map = new CacheMapMaker().batchMisses(100, 10, TimeUnit.MILLISECONDS)
+                .makeCacheMap(new SingleFunction(), bulkLoader);
+
+        assertEquals("bulk7", map.get(7));
+        assertEquals(1, bulkLoader.batchCount());
+    }
+
+    @Test
+    public void keysTheBulkLoaderSkipsUseTheConverter() {
+        final SingleFunction converter = new SingleFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().batchMisses(100, 0, TimeUnit.MILLISECONDS)
+                .makeCacheMap(converter, new RecordingBulkLoader());
+
+        assertEquals("single13", map.get(13));
+        assertEquals(1, converter.calls.get());
+    }
+
+    @Test
+    public void aFailedBatchFailsEveryCaller() throws Exception {
+        final CacheMap<Integer, String> map = new CacheMapMaker().batchMisses(2, 1, TimeUnit.HOURS).makeCacheMap(
+                new SingleFunction(), new Function<Collection<Integer>, Map<Integer, String>>() {
+                    public Map<Integer, String> apply(final Collection<Integer> keys) {
+                        throw new IllegalStateException("boom");
+                    }
+                });
+
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            final int key = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        map.get(key);
+                    } catch (final IllegalStateException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, failures.get());
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void batchingNeedsABulkLoader() {
+        new CacheMapMaker().batchMisses(10, 1, TimeUnit.MILLISECONDS).makeCacheMap(new SingleFunction());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void batchSizeMustBePositive() {
+        new CacheMapMaker().batchMisses(0, 1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void batchingIsSetOnce() {
+        new CacheMapMaker().batchMisses(10, 1, TimeUnit.MILLISECONDS).batchMisses(10, 1, TimeUnit.MILLISECONDS);
+    }
+}
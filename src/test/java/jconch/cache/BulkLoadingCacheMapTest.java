@@ -0,0 +1,174 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class BulkLoadingCacheMapTest extends FrameworkTest {
+
+    private static final class SingleFunction implements Function<Integer, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String apply(final Integer key) {
+            calls.incrementAndGet();
+            return "single" + key;
+        }
+    }
+
+    /**
+     * Loads the even keys only, and records every key it is asked for.
+     */
+    private static class EvenBulkLoader implements Function<Collection<Integer>, Map<Integer, String>> {
+
+        final List<Collection<Integer>> batches = new ArrayList<Collection<Integer>>();
+
+        final ConcurrentMap<Integer, AtomicInteger> loads = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+        public Map<Integer, String> apply(final Collection<Integer> keys) {
+            synchronized (batches) {
+                batches.add(new ArrayList<Integer>(keys));
+            }
+            final Map<Integer, String> result = new HashMap<Integer, String>();
+            for (final Integer key : keys) {
+                loads.putIfAbsent(key, new AtomicInteger());
+                loads.get(key).incrementAndGet();
+                if (key % 2 == 0) {
+                    result.put(key, "bulk" + key);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void missesAreLoadedInOneCall() {
+        final EvenBulkLoader bulkLoader = new EvenBulkLoader();
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new SingleFunction(), bulkLoader);
+        map.put(2, "cached2");
+
+        final Map<Integer, String> result = map.getAll(Arrays.asList(4, 2, 6));
+        assertEquals(Arrays.asList(4, 2, 6), new ArrayList<Integer>(result.keySet()));
+        assertEquals("cached2", result.get(2));
+        assertEquals("bulk4", result.get(4));
+        assertEquals(1, bulkLoader.batches.size());
+        assertEquals(Arrays.asList(4, 6), bulkLoader.batches.get(0));
+
+        map.getAll(Arrays.asList(2, 4, 6));
+        assertEquals("Everything was cached", 1, bulkLoader.batches.size());
+    }
+
+    @Test
+    public void keysTheBulkLoaderSkipsUseTheConverter() {
+        final SingleFunction converter = new SingleFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(converter, new EvenBulkLoader());
+        final Map<Integer, String> result = map.getAll(Arrays.asList(1, 2, 3));
+        assertEquals("single1", result.get(1));
+        assertEquals("bulk2", result.get(2));
+        assertEquals("single3", result.get(3));
+        assertEquals(2, converter.calls.get());
+    }
+
+    @Test
+    public void withoutABulkLoaderKeysAreLoadedOneByOne() {
+        final SingleFunction converter = new SingleFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(converter);
+        assertEquals(3, map.getAll(Arrays.asList(1, 2, 3, 2)).size());
+        assertEquals(3, converter.calls.get());
+    }
+
+    @Test
+    public void softValuedMapsSupportGetAll() {
+        final CacheMap<Integer, String> map = new CacheMap<Integer, String>(new SingleFunction());
+        assertEquals("single1", map.getAll(Arrays.asList(1)).get(1));
+    }
+
+    @Test(timeOut = 10000)
+    public void overlappingCallsDoNotLoadAKeyTwice() throws Exception {
+        final CountDownLatch firstLoadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstLoad = new CountDownLatch(1);
+        final AtomicInteger invocations = new AtomicInteger();
+        final EvenBulkLoader bulkLoader = new EvenBulkLoader() {
+            @Override
+            public Map<Integer, String> apply(final Collection<Integer> keys) {
+                if (invocations.incrementAndGet() == 1) {
+                    firstLoadStarted.countDown();
+                    try {
+                        releaseFirstLoad.await();
+                    } catch (final InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.apply(keys);
+            }
+        };
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new SingleFunction(), bulkLoader);
+
+        final Thread first = new Thread() {
+            @Override
+            public void run() {
+                map.getAll(Arrays.asList(2, 4, 6, 8));
+            }
+        };
+        first.start();
+        assertTrue(firstLoadStarted.await(5, TimeUnit.SECONDS));
+
+        final Thread second = new Thread() {
+            @Override
+            public void run() {
+                map.getAll(Arrays.asList(6, 8, 10, 12));
+            }
+        };
+        second.start();
+        while (invocations.get() < 2) {
+            Thread.sleep(1L);
+        }
+        releaseFirstLoad.countDown();
+        first.join();
+        second.join();
+
+        for (final Map.Entry<Integer, AtomicInteger> entry : bulkLoader.loads.entrySet()) {
+            assertEquals("Loads of " + entry.getKey(), 1, entry.getValue().get());
+        }
+        assertEquals(Arrays.asList(10, 12), bulkLoader.batches.get(0));
+    }
+
+    @Test
+    public void failedBulkLoadReleasesItsKeys() {
+        final AtomicInteger invocations = new AtomicInteger();
+        final EvenBulkLoader bulkLoader = new EvenBulkLoader() {
+            @Override
+            public Map<Integer, String> apply(final Collection<Integer> keys) {
+                if (invocations.incrementAndGet() == 1) {
+                    throw new IllegalStateException("database is down");
+                }
+                return super.apply(keys);
+            }
+        };
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new SingleFunction(), bulkLoader);
+        try {
+            map.getAll(Arrays.asList(2, 4));
+            fail("Expected the bulk load to fail");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+        assertEquals("bulk2", map.getAll(Arrays.asList(2, 4)).get(2));
+    }
+
+}
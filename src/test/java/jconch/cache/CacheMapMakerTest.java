@@ -0,0 +1,119 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class CacheMapMakerTest extends FrameworkTest {
+
+    @Test
+    public void getComputesOnceAndThenHits() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(100).makeCacheMap(converter);
+        assertEquals("value1", map.get(1));
+        assertEquals("value1", map.get(new Integer(1)));
+        assertEquals(1, converter.calls.get());
+        assertTrue(map.containsKey(1));
+    }
+
+    @Test
+    public void sizeNeverExceedsMaximum() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(100).makeCacheMap(
+                new CountingFunction<Integer>());
+        for (int i = 0; i < 10000; i++) {
+            map.get(i);
+            assertTrue("Size was " + map.size(), map.size() <= 100);
+        }
+        assertEquals(100, map.size());
+    }
+
+    @Test
+    public void putIsBoundedToo() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(50).makeCacheMap(
+                new CountingFunction<Integer>());
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "put" + i);
+        }
+        assertEquals(50, map.size());
+    }
+
+    @Test
+    public void popularKeysSurviveAScan() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100)
+                .makeCacheMap(new CountingFunction<Integer>());
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                map.get(i);
+            }
+        }
+        for (int i = 0; i < 10000; i++) {
+            map.get(1000 + i);
+            map.get(i % 50);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Lost popular key " + i, map.containsKey(i));
+        }
+    }
+
+    @Test
+    public void zeroMaximumSizeRetainsNothing() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(0).makeCacheMap(converter);
+        assertEquals("value1", map.get(1));
+        assertEquals("value1", map.get(1));
+        assertEquals(0, map.size());
+        assertEquals(2, converter.calls.get());
+    }
+
+    @Test
+    public void removeAndClear() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(100).makeCacheMap(
+                new CountingFunction<Integer>());
+        map.get(1);
+        map.get(2);
+        assertEquals("value1", map.remove(1));
+        assertFalse(map.containsKey(1));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals("value3", map.get(3));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void unboundedMapKeepsEverything() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new CountingFunction<Integer>());
+        for (int i = 0; i < 1000; i++) {
+            map.get(i);
+        }
+        assertEquals(1000, map.size());
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void getExplodesOnNullKey() {
+        new CacheMapMaker().maximumSize(10).makeCacheMap(new CountingFunction<Integer>()).get(null);
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void getExplodesWhenConverterReturnsNull() {
+        new CacheMapMaker().makeCacheMap(new Function<Integer, String>() {
+            public String apply(final Integer key) {
+                return null;
+            }
+        }).get(1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void maximumSizeExplodesOnNegative() {
+        new CacheMapMaker().maximumSize(-1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void maximumSizeExplodesWhenSetTwice() {
+        new CacheMapMaker().maximumSize(1).maximumSize(2);
+    }
+
+}
@@ -0,0 +1,193 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class CacheStatsTest extends FrameworkTest {
+
+    /**
+     * Takes a second of fake time per load, and fails for negative keys.
+     */
+    private static final class SlowFunction implements Function<Integer, String> {
+
+        private final FakeTicker ticker;
+
+        SlowFunction(final FakeTicker ticker) {
+            this.ticker = ticker;
+        }
+
+        public String apply(final Integer key) {
+            ticker.advance(1, TimeUnit.SECONDS);
+            if (key < 0) {
+                throw new IllegalArgumentException("negative: " + key);
+            }
+            return "value" + key;
+        }
+    }
+
+    @Test
+    public void hitsMissesAndLoadsAreCounted() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().ticker(ticker).makeCacheMap(
+                new SlowFunction(ticker));
+        map.get(1);
+        map.get(1);
+        map.get(1);
+        map.get(2);
+        try {
+            map.get(-1);
+            fail("The converter should have failed");
+        } catch (final IllegalArgumentException expected) {
+            // expected
+        }
+
+        final CacheStats stats = map.stats();
+        assertEquals(5, stats.getRequestCount());
+        assertEquals(2, stats.getHitCount());
+        assertEquals(3, stats.getMissCount());
+        assertEquals(0.4, stats.getHitRate(), 0.0001);
+        assertEquals(0.6, stats.getMissRate(), 0.0001);
+        assertEquals(2, stats.getLoadSuccessCount());
+        assertEquals(1, stats.getLoadFailureCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(3), stats.getTotalLoadTime());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), stats.getAverageLoadPenalty(), 0.0001);
+        assertEquals(2, stats.getEstimatedSize());
+    }
+
+    @Test
+    public void anEmptyMapHasPerfectRates() {
+        final CacheStats stats = new CacheMapMaker().makeCacheMap(new SlowFunction(new FakeTicker())).stats();
+        assertEquals(1.0, stats.getHitRate(), 0.0);
+        assertEquals(0.0, stats.getMissRate(), 0.0);
+        assertEquals(0.0, stats.getAverageLoadPenalty(), 0.0);
+    }
+
+    @Test
+    public void getAllCountsEachKey() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().ticker(ticker).makeCacheMap(
+                new SlowFunction(ticker), new Function<Collection<Integer>, Map<Integer, String>>() {
+                    public Map<Integer, String> apply(final Collection<Integer> keys) {
+                        final Map<Integer, String> result = new HashMap<Integer, String>();
+                        for (final Integer key : keys) {
+                            result.put(key, "bulk" + key);
+                        }
+                        return result;
+                    }
+                });
+        map.put(1, "one");
+        map.getAll(Arrays.asList(1, 2, 3));
+
+        final CacheStats stats = map.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals("One bulk load", 1, stats.getLoadSuccessCount());
+    }
+
+    @Test
+    public void evictionsAreCountedByCause() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100)
+                .expireAfterWrite(1, TimeUnit.MINUTES).ticker(ticker).makeCacheMap(new SlowFunction(ticker));
+        for (int i = 0; i < 150; i++) {
+            map.put(i, "value" + i);
+        }
+        assertEquals(50, map.stats().getSizeEvictionCount());
+        assertEquals(0, map.stats().getExpirationCount());
+
+        ticker.advance(2, TimeUnit.MINUTES);
+        map.put(1000, "new");
+        final CacheStats stats = map.stats();
+        assertEquals(100, stats.getExpirationCount());
+        assertEquals(150, stats.getEvictionCount());
+        assertEquals(1, stats.getEstimatedSize());
+    }
+
+    @Test
+    public void softValuedMapsCountHitsAndMisses() {
+        final CacheMap<Integer, String> map = new CacheMap<Integer, String>(new SlowFunction(new FakeTicker()));
+        map.get(1);
+        map.get(1);
+        map.get(2);
+        try {
+            map.get(-1);
+            fail("The converter should have failed");
+        } catch (final RuntimeException expected) {
+            // expected
+        }
+
+        final CacheStats stats = map.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(3, stats.getMissCount());
+        assertEquals(2, stats.getLoadSuccessCount());
+        assertEquals(1, stats.getLoadFailureCount());
+        assertEquals(0, stats.getEvictionCount());
+        assertEquals(2, stats.getEstimatedSize());
+    }
+
+    @Test
+    public void statsArePublishedThroughJmx() throws Exception {
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new SlowFunction(new FakeTicker()));
+        final ObjectName name = CacheMBeans.register("CacheStatsTest", map);
+        try {
+            map.get(1);
+            map.get(1);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "HitCount"));
+            assertEquals(1L, server.getAttribute(name, "MissCount"));
+            assertEquals(1L, server.getAttribute(name, "EstimatedSize"));
+            assertEquals(name, CacheMBeans.objectName("CacheStatsTest"));
+        } finally {
+            assertTrue(CacheMBeans.unregister("CacheStatsTest"));
+        }
+        assertFalse(CacheMBeans.unregister("CacheStatsTest"));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        final StatsCounter counter = new StatsCounter();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.recordHits(1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.snapshot(0).getHitCount());
+        assertEquals(0, counter.snapshot(0).getMissCount());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void namesMustBeUnique() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new SlowFunction(new FakeTicker()));
+        CacheMBeans.register("CacheStatsTest.dup", map);
+        try {
+            CacheMBeans.register("CacheStatsTest.dup", map);
+        } finally {
+            CacheMBeans.unregister("CacheStatsTest.dup");
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class CompactCacheMapTest extends FrameworkTest {
+
+    /**
+     * A key whose hash code is the same for every instance.
+     */
+    private static final class Colliding {
+
+        private final int id;
+
+        Colliding(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 7;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return (obj instanceof Colliding) && (((Colliding) obj).id == id);
+        }
+
+        @Override
+        public String toString() {
+            return "c" + id;
+        }
+    }
+
+    @Test
+    public void valuesAreComputedOnce() {
+        final CountingFunction<Object> converter = new CountingFunction<Object>();
+        final CompactCacheMap<Object, String> map = new CompactCacheMap<Object, String>(converter);
+        for (int round = 0; round < 3; round++) {
+            for (int key = -500; key < 500; key++) {
+                assertEquals("value" + key, map.get("" + key));
+            }
+        }
+        assertEquals(1000, converter.calls.get());
+        assertEquals(1000, map.size());
+        assertEquals(2000, map.stats().getHitCount());
+        assertEquals(1000, map.stats().getMissCount());
+        assertEquals("value0", map.getIfPresent("0"));
+        assertNull(map.getIfPresent("1000"));
+    }
+
+    @Test
+    public void putAndRemove() {
+        final CountingFunction<Object> converter = new CountingFunction<Object>();
+        final CompactCacheMap<Object, String> map = new CompactCacheMap<Object, String>(converter);
+        assertNull(map.put("seven", "7"));
+        assertEquals("7", map.put("seven", "sept"));
+        assertEquals("sept", map.get("seven"));
+        assertEquals("sept", map.remove("seven"));
+        assertNull(map.remove("seven"));
+        assertNull(map.remove(null));
+        assertFalse(map.containsKey("seven"));
+        assertFalse(map.containsKey(null));
+        assertEquals(0, map.size());
+        assertEquals("valueseven", map.get("seven"));
+        assertEquals(1, converter.calls.get());
+    }
+
+    @Test
+    public void collidingKeysAreToldApart() {
+        final CompactCacheMap<Object, String> map = new CompactCacheMap<Object, String>(new CountingFunction<Object>());
+        for (int i = 0; i < 100; i++) {
+            map.get(new Colliding(i));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            map.remove(new Colliding(i));
+        }
+        assertEquals(50, map.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals((i % 2 == 0) ? null : "valuec" + i, map.getIfPresent(new Colliding(i)));
+        }
+    }
+
+    @Test
+    public void removedSlotsAreReclaimed() {
+        final CompactCacheMap<Object, String> map = new CompactCacheMap<Object, String>(new CountingFunction<Object>());
+        for (int key = 0; key < 100000; key++) {
+            map.put(key, "x");
+            map.remove(key);
+        }
+        assertEquals(0, map.size());
+        assertTrue("Kept " + map.slotCount() + " slots", map.slotCount() < 1000);
+        map.clear();
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "y");
+        }
+        for (int key = 0; key < 1000; key += 2) {
+            map.remove(key);
+        }
+        for (int key = 0; key < 1000; key++) {
+            assertEquals((key % 2 == 0) ? null : "y", map.getIfPresent(key));
+        }
+        assertEquals(500, map.size());
+    }
+
+    @Test
+    public void boundedMapsKeepHitEntries() {
+        final CountingFunction<Object> converter = new CountingFunction<Object>();
+        final CompactCacheMap<Object, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100)
+                .makeCompactCacheMap(converter);
+        for (int key = 0; key < 50; key++) {
+            map.get(key);
+        }
+        for (int key = 1000; key < 2000; key++) {
+            for (int hot = 0; hot < 50; hot++) {
+                map.get(hot);
+            }
+            map.get(key);
+        }
+        assertEquals(100, map.size());
+        assertEquals(950, map.stats().getSizeEvictionCount());
+        for (int hot = 0; hot < 50; hot++) {
+            assertTrue("Hot key " + hot + " was evicted", map.containsKey(hot));
+        }
+    }
+
+    @Test
+    public void aZeroSizedMapKeepsNothing() {
+        final CountingFunction<Object> converter = new CountingFunction<Object>();
+        final CompactCacheMap<Object, String> map = new CacheMapMaker().maximumSize(0).makeCompactCacheMap(converter);
+        assertEquals("value1", map.get(1));
+        assertEquals("value1", map.get(1));
+        assertEquals(0, map.size());
+        assertEquals(2, converter.calls.get());
+    }
+
+    @Test
+    public void readsSeeEveryEntryWhileTablesGrow() throws InterruptedException {
+        final CompactCacheMap<Object, String> map = new CacheMapMaker().concurrencyLevel(1).makeCompactCacheMap(
+                new CountingFunction<Object>());
+        for (int key = 0; key < 100; key++) {
+            map.get(key);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (int key = 0; key < 100; key++) {
+                        if (map.getIfPresent(key) == null) {
+                            failure.set("Lost key " + key);
+                        }
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int key = 100; key < 200000; key++) {
+            map.get(key);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get(), failure.get());
+        assertEquals(200000, map.size());
+    }
+
+    @Test
+    public void concurrentMissesComputeOnce() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final CompactCacheMap<String, String> map = new CompactCacheMap<String, String>(
+                new Function<String, String>() {
+                    public String apply(final String key) {
+                        calls.incrementAndGet();
+                        try {
+                            release.await();
+                        } catch (final InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return "value" + key;
+                    }
+                });
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    seen.set(map.get("42"));
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, calls.get());
+        assertEquals("value42", seen.get());
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void nullValuesAreRejected() {
+        new CompactCacheMap<String, String>(new Function<String, String>() {
+            public String apply(final String key) {
+                return null;
+            }
+        }).get("1");
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void nullKeysAreRejected() {
+        new CompactCacheMap<Object, String>(new CountingFunction<Object>()).get(null);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void unsupportedSettingsAreRejected() {
+        new CacheMapMaker().expireAfterWrite(1, TimeUnit.MINUTES).makeCompactCacheMap(new CountingFunction<Object>());
+    }
+}
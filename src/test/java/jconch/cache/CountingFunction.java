@@ -0,0 +1,41 @@
+package jconch.cache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Function;
+
+/**
+ * A converter that counts its calls, and that can be told to fail as a backend
+ * that is down would.
+ */
+final class CountingFunction<K> implements Function<K, String> {
+
+    final AtomicInteger calls = new AtomicInteger();
+
+    final AtomicBoolean fail = new AtomicBoolean();
+
+    private final boolean numbered;
+
+    CountingFunction() {
+        this(false);
+    }
+
+    /**
+     * @param numbered
+     *            Whether each value ends with the number of the call that
+     *            computed it, so that a recomputed value can be told from the
+     *            one it replaced.
+     */
+    CountingFunction(final boolean numbered) {
+        this.numbered = numbered;
+    }
+
+    public String apply(final K key) {
+        if (fail.get()) {
+            throw new IllegalStateException("backend is down");
+        }
+        final int call = calls.incrementAndGet();
+        return numbered ? ("value" + key + "#" + call) : ("value" + key);
+    }
+}
@@ -0,0 +1,153 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class DiskCacheMapTest extends FrameworkTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void makeDirectory() throws IOException {
+        directory = File.createTempFile("jconch-disk", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private CacheMapMaker maker() {
+        return new CacheMapMaker().concurrencyLevel(1).maximumSize(10).diskTier(directory, 1 << 20,
+                new JavaSerializer<Integer>(), new JavaSerializer<String>());
+    }
+
+    @Test
+    public void evictedValuesComeBackFromTheFiles() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = maker().makeCacheMap(converter);
+        for (int i = 0; i < 100; i++) {
+            map.get(i);
+        }
+        assertEquals(10, map.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, map.get(i));
+        }
+        assertEquals("Nothing was computed again", 100, converter.calls.get());
+        assertEquals(100, map.stats().getLoadCount());
+    }
+
+    @Test
+    public void aNewMapServesWhatAnOldOneWrote() {
+        final CountingFunction<Integer> first = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> before = maker().makeCacheMap(first);
+        for (int i = 0; i < 100; i++) {
+            before.get(i);
+        }
+        before.put(7, "seven");
+        before.remove(8);
+        before.close();
+
+        final CountingFunction<Integer> second = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> after = maker().makeCacheMap(second);
+        assertEquals(0, after.size());
+        assertEquals("value1", after.get(1));
+        assertEquals("value99", after.get(99));
+        assertEquals("seven", after.get(7));
+        assertEquals(0, second.calls.get());
+        assertEquals("Brought back to the heap", 3, after.size());
+
+        assertEquals("Removals are remembered", "value8", after.get(8));
+        assertEquals(1, second.calls.get());
+    }
+
+    @Test
+    public void bulkLoadsAreWrittenThrough() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final Function<Collection<Integer>, Map<Integer, String>> bulkLoader;
+        bulkLoader = new Function<Collection<Integer>, Map<Integer, String>>() {
+            public Map<Integer, String> apply(final Collection<Integer> keys) {
+                final Map<Integer, String> values = new HashMap<Integer, String>();
+                for (final Integer key : keys) {
+                    values.put(key, "bulk" + key);
+                }
+                return values;
+            }
+        };
+        final CacheMap<Integer, String> before = maker().makeCacheMap(converter, bulkLoader);
+        before.getAll(Arrays.asList(1, 2, 3));
+        before.close();
+
+        final CacheMap<Integer, String> after = maker().makeCacheMap(converter);
+        assertEquals("bulk2", after.get(2));
+        assertEquals(0, converter.calls.get());
+    }
+
+    @Test
+    public void expiredValuesAreNotBroughtBack() throws InterruptedException {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> before = maker().expireAfterWrite(50, TimeUnit.MILLISECONDS).makeCacheMap(
+                converter);
+        before.get(1);
+        before.close();
+        Thread.sleep(100);
+
+        final CacheMap<Integer, String> after = maker().expireAfterWrite(50, TimeUnit.MILLISECONDS).makeCacheMap(
+                converter);
+        assertEquals("value1", after.get(1));
+        assertEquals(2, converter.calls.get());
+    }
+
+    @Test
+    public void aClosedMapHasReleasedItsFiles() {
+        final CacheMap<Integer, String> map = maker().makeCacheMap(new CountingFunction<Integer>());
+        map.get(1);
+        map.flush();
+        map.close();
+        map.close();
+        try {
+            map.get(2);
+            fail("Used the files after closing them");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void clearingEmptiesTheFiles() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = maker().makeCacheMap(converter);
+        for (int i = 0; i < 20; i++) {
+            map.get(i);
+        }
+        map.clear();
+        map.get(1);
+        assertEquals(21, converter.calls.get());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void onlyOneSecondTier() {
+        new CacheMapMaker().offHeap(1 << 20, new JavaSerializer<String>()).diskTier(directory, 1 << 20,
+                new JavaSerializer<Integer>(), new JavaSerializer<String>());
+    }
+}
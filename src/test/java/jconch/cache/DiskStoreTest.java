@@ -0,0 +1,201 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DiskStoreTest extends FrameworkTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void makeDirectory() throws IOException {
+        directory = File.createTempFile("jconch-disk", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private DiskStore<String, String> open(final long budget) {
+        return new DiskStore<String, String>(directory, budget, new JavaSerializer<String>(),
+                new JavaSerializer<String>());
+    }
+
+    private static String read(final DiskStore<String, String> store, final String key) {
+        final DiskStore.Copy copy = store.read(key);
+        return (copy == null) ? null : store.deserialize(copy.bytes);
+    }
+
+    @Test
+    public void valuesRoundTrip() {
+        final DiskStore<String, String> store = open(1 << 20);
+        final long before = System.currentTimeMillis();
+        assertTrue(store.write("a", "apple"));
+        assertTrue(store.write("b", "banana"));
+        assertEquals(2, store.size());
+        assertEquals("apple", read(store, "a"));
+        assertEquals("banana", read(store, "b"));
+        assertTrue(store.read("a").writeTime >= before);
+        assertNull(store.read("c"));
+
+        assertTrue(store.write("a", "apricot"));
+        assertEquals("apricot", read(store, "a"));
+        store.remove("b");
+        assertNull(store.read("b"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void reopeningReplaysTheLog() {
+        final DiskStore<String, String> store = open(1 << 20);
+        for (int i = 0; i < 1000; i++) {
+            store.write("key" + i, "value" + i);
+        }
+        store.write("key7", "seven");
+        store.remove("key8");
+        store.close();
+
+        final DiskStore<String, String> reopened = open(1 << 20);
+        assertEquals(999, reopened.size());
+        assertEquals("value1", read(reopened, "key1"));
+        assertEquals("value999", read(reopened, "key999"));
+        assertEquals("seven", read(reopened, "key7"));
+        assertNull("Removals survive", read(reopened, "key8"));
+
+        assertTrue(reopened.write("key1000", "value1000"));
+        reopened.close();
+        assertEquals("value1000", read(open(1 << 20), "key1000"));
+    }
+
+    @Test
+    public void theOldestFileGoesOnceTheBudgetIsSpent() {
+        final DiskStore<String, String> store = open(1 << 20);
+        final char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 2000; i++) {
+            store.write("key" + i, i + new String(padding));
+        }
+        assertEquals(16, store.fileCount());
+        assertNull("The oldest values were dropped", store.read("key0"));
+        assertEquals("1999", read(store, "key1999").substring(0, 4));
+
+        long total = 0;
+        for (final File file : directory.listFiles()) {
+            total += file.length();
+        }
+        assertTrue(total <= (1 << 20));
+    }
+
+    @Test
+    public void aTornRecordEndsTheLog() throws IOException {
+        final DiskStore<String, String> store = open(1 << 20);
+        store.write("a", "apple");
+        store.write("b", "banana");
+        store.close();
+
+        // Corrupt the last byte of the second record.
+        final File file = directory.listFiles()[0];
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final int first = raf.readInt();
+            raf.seek(first);
+            final int second = raf.readInt();
+            raf.seek((first + second) - 1);
+            final int last = raf.read();
+            raf.seek((first + second) - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        final DiskStore<String, String> reopened = open(1 << 20);
+        assertEquals("apple", read(reopened, "a"));
+        assertNull(reopened.read("b"));
+        assertTrue(reopened.write("c", "cherry"));
+        reopened.close();
+        assertEquals("cherry", read(open(1 << 20), "c"));
+    }
+
+    @Test
+    public void clearingEmptiesTheFiles() {
+        final DiskStore<String, String> store = open(1 << 20);
+        for (int i = 0; i < 100; i++) {
+            store.write("key" + i, "value" + i);
+        }
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.read("key1"));
+        store.close();
+        assertEquals(0, open(1 << 20).size());
+    }
+
+    @Test
+    public void aClosedStoreCannotBeUsed() {
+        final DiskStore<String, String> store = open(1 << 20);
+        store.write("a", "apple");
+        store.close();
+        store.close();
+        store.force();
+        try {
+            store.read("a");
+            fail("Read a closed store");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals("apple", read(open(1 << 20), "a"));
+    }
+
+    @Test
+    public void unserializableValuesRemoveTheOldOne() {
+        final DiskStore<String, String> store = new DiskStore<String, String>(directory, 1 << 20,
+                new JavaSerializer<String>(), new Serializer<String>() {
+                    final Serializer<String> delegate = new JavaSerializer<String>();
+
+                    public byte[] serialize(final String value) {
+                        if (value.length() > 5) {
+                            throw new IllegalArgumentException(value);
+                        }
+                        return delegate.serialize(value);
+                    }
+
+                    public String deserialize(final byte[] bytes) {
+                        return delegate.deserialize(bytes);
+                    }
+                });
+        assertTrue(store.write("a", "apple"));
+        assertFalse(store.write("a", "apricot"));
+        assertNull(store.read("a"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void removalsKeepTheOtherKeysReachable() {
+        final DiskStore<String, String> store = open(1 << 20);
+        for (int i = 0; i < 5000; i++) {
+            store.write("k" + i, "v" + i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            store.remove("k" + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals((i % 2 == 0) ? null : ("v" + i), read(store, "k" + i));
+        }
+        assertEquals(2500, store.size());
+    }
+}
@@ -0,0 +1,115 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.concurrent.TimeUnit;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class ExpiringCacheMapTest extends FrameworkTest {
+
+    @Test
+    public void expireAfterWriteRecomputes() {
+        final FakeTicker ticker = new FakeTicker();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>(true);
+        final CacheMap<Integer, String> map = new CacheMapMaker().expireAfterWrite(10, TimeUnit.SECONDS).ticker(
+                ticker).makeCacheMap(converter);
+        assertEquals("value1#1", map.get(1));
+        ticker.advance(9, TimeUnit.SECONDS);
+        assertEquals("value1#1", map.get(1));
+        ticker.advance(1, TimeUnit.SECONDS);
+        assertFalse(map.containsKey(1));
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void expireAfterAccessIsExtendedByReads() {
+        final FakeTicker ticker = new FakeTicker();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>(true);
+        final CacheMap<Integer, String> map = new CacheMapMaker().expireAfterAccess(10, TimeUnit.SECONDS).ticker(
+                ticker).makeCacheMap(converter);
+        map.get(1);
+        for (int i = 0; i < 5; i++) {
+            ticker.advance(8, TimeUnit.SECONDS);
+            assertEquals("value1#1", map.get(1));
+        }
+        ticker.advance(10, TimeUnit.SECONDS);
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void writeExpirationWinsOverAccess() {
+        final FakeTicker ticker = new FakeTicker();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>(true);
+        final CacheMap<Integer, String> map = new CacheMapMaker().expireAfterAccess(10, TimeUnit.SECONDS)
+                .expireAfterWrite(15, TimeUnit.SECONDS).ticker(ticker).makeCacheMap(converter);
+        map.get(1);
+        ticker.advance(8, TimeUnit.SECONDS);
+        map.get(1);
+        ticker.advance(8, TimeUnit.SECONDS);
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void expiredEntriesAreReclaimedByLaterWrites() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).expireAfterWrite(1,
+                TimeUnit.MINUTES).ticker(ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        for (int i = 0; i < 1000; i++) {
+            map.get(i);
+        }
+        assertEquals(1000, map.size());
+        ticker.advance(2, TimeUnit.MINUTES);
+        map.get(-1);
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void putResetsWriteTime() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().expireAfterWrite(10, TimeUnit.SECONDS).ticker(
+                ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        map.put(1, "put");
+        ticker.advance(9, TimeUnit.SECONDS);
+        map.put(1, "again");
+        ticker.advance(9, TimeUnit.SECONDS);
+        assertEquals("again", map.get(1));
+    }
+
+    @Test
+    public void iterationSkipsExpiredEntries() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().expireAfterWrite(10, TimeUnit.SECONDS).ticker(
+                ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        map.get(1);
+        ticker.advance(5, TimeUnit.SECONDS);
+        map.get(2);
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertEquals(1, map.keySet().toArray().length);
+        assertTrue(map.keySet().contains(2));
+    }
+
+    @Test
+    public void expiresWithMaximumSize() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(100).expireAfterAccess(1,
+                TimeUnit.SECONDS).ticker(ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        for (int i = 0; i < 500; i++) {
+            map.get(i);
+        }
+        assertEquals(100, map.size());
+        ticker.advance(3, TimeUnit.SECONDS);
+        for (int i = 1000; i < 1010; i++) {
+            map.get(i);
+        }
+        assertEquals(10, map.size());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void expireAfterWriteExplodesOnNegative() {
+        new CacheMapMaker().expireAfterWrite(-1, TimeUnit.SECONDS);
+    }
+
+}
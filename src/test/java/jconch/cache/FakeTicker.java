@@ -0,0 +1,20 @@
+package jconch.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ticker that only moves when told to.
+ */
+final class FakeTicker extends Ticker {
+
+    private long nanos = 1000L;
+
+    @Override
+    synchronized long read() {
+        return nanos;
+    }
+
+    synchronized void advance(final long duration, final TimeUnit unit) {
+        nanos += unit.toNanos(duration);
+    }
+}
@@ -0,0 +1,54 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class FrequencySketchTest extends FrameworkTest {
+
+    @Test
+    public void incrementRaisesFrequency() {
+        final FrequencySketch sketch = new FrequencySketch(512);
+        final int item = "item".hashCode();
+        assertEquals(0, sketch.frequency(item));
+        sketch.increment(item);
+        sketch.increment(item);
+        assertEquals(2, sketch.frequency(item));
+    }
+
+    @Test
+    public void frequencySaturates() {
+        final FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(42));
+    }
+
+    @Test
+    public void countsAgeOverTime() {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(42);
+        }
+        for (int i = 1000; i < 1000 + 640; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency(42) < 8);
+    }
+
+
+    @Test
+    public void growingForgetsTheCounts() {
+        final FrequencySketch sketch = new FrequencySketch(16);
+        sketch.increment(42);
+        sketch.ensureCapacity(8);
+        assertEquals("Shrinking is not growing", 1, sketch.frequency(42));
+        sketch.ensureCapacity(1024);
+        assertEquals(0, sketch.frequency(42));
+        sketch.increment(42);
+        assertEquals(1, sketch.frequency(42));
+    }
+}
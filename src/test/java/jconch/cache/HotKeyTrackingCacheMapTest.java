@@ -0,0 +1,91 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.List;
+
+import jconch.lock.SyncLogEqLock;
+import jconch.stats.HeavyHitters;
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class HotKeyTrackingCacheMapTest extends FrameworkTest {
+
+    private static final Function<Integer, String> LOADER = new Function<Integer, String>() {
+        public String apply(final Integer key) {
+            return "value" + key;
+        }
+    };
+
+    /**
+     * Looks up key 0 a hundred times, keys 1 and 2 ten times each, and keys
+     * 3 to 99 once each.
+     */
+    private static void lookUp(final CacheMap<Integer, String> map) {
+        for (int i = 0; i < 100; i++) {
+            map.get(0);
+            map.get(i);
+            if ((i % 10) == 0) {
+                for (int j = 0; j < 9; j++) {
+                    map.get(1);
+                    map.get(2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lookUpsAreCounted() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(10).makeCacheMap(LOADER);
+        final HeavyHitters<Integer> tracker = new HeavyHitters<Integer>(8);
+        map.trackHotKeys(tracker);
+        assertSame(tracker, map.getHotKeyTracker());
+        lookUp(map);
+        final List<HeavyHitters.Entry<Integer>> top = tracker.top(3);
+        assertEquals(Integer.valueOf(0), top.get(0).getItem());
+        assertEquals(101, top.get(0).getCount());
+        assertEquals(0, top.get(0).getError());
+        for (final HeavyHitters.Entry<Integer> entry : top.subList(1, 3)) {
+            assertTrue(entry.toString(), (entry.getItem() == 1) || (entry.getItem() == 2));
+            assertTrue(entry.toString(), entry.getGuaranteedCount() <= 91);
+            assertTrue(entry.toString(), entry.getCount() >= 91);
+        }
+    }
+
+    @Test
+    public void softMapsAreTrackedToo() {
+        final CacheMap<Integer, String> map = new CacheMap<Integer, String>(LOADER);
+        final HeavyHitters<Object> tracker = new HeavyHitters<Object>(8);
+        map.trackHotKeys(tracker);
+        lookUp(map);
+        assertEquals(Integer.valueOf(0), tracker.top(1).get(0).getItem());
+    }
+
+    @Test
+    public void trackingStops() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(LOADER);
+        final HeavyHitters<Integer> tracker = new HeavyHitters<Integer>(8);
+        map.trackHotKeys(tracker);
+        map.get(1);
+        map.trackHotKeys(null);
+        map.get(1);
+        assertNull(map.getHotKeyTracker());
+        assertEquals(1, tracker.getCount());
+    }
+
+    @Test
+    public void theLocksOfLoadsCanBeTracked() {
+        final SyncLogEqLock<Integer> locks = new SyncLogEqLock<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(10).makeCacheMap(LOADER, locks);
+        final HeavyHitters<Integer> tracker = new HeavyHitters<Integer>(8);
+        locks.trackHotKeys(tracker);
+        map.get(1);
+        map.get(1);
+        map.get(2);
+        // Only the misses take a lock.
+        assertEquals(2, tracker.getCount());
+    }
+}
@@ -0,0 +1,186 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.multikey.DuoKey;
+import jconch.multikey.TriKey;
+import jconch.multikey.UniKey;
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class IndexedKeyCacheMapTest extends FrameworkTest {
+
+    private static final String[] USERS = { "alice", "bob", "carol" };
+
+    private static final Function<TriKey<String, Integer, Integer>, String> LOADER =
+            new Function<TriKey<String, Integer, Integer>, String>() {
+                public String apply(final TriKey<String, Integer, Integer> key) {
+                    return key.getKey1() + "/" + key.getKey2() + "/" + key.getKey3();
+                }
+            };
+
+    private static TriKey<String, Integer, Integer> key(final String user, final int item, final int version) {
+        return new TriKey<String, Integer, Integer>(user, item, version);
+    }
+
+    /**
+     * Loads every user with items 0 to 9, at version 100.
+     */
+    private static CacheMap<TriKey<String, Integer, Integer>, String> newMap(final CacheMapMaker maker) {
+        final CacheMap<TriKey<String, Integer, Integer>, String> map = maker.makeCacheMap(LOADER);
+        for (final String user : USERS) {
+            for (int item = 0; item < 10; item++) {
+                map.get(key(user, item, 100));
+            }
+        }
+        return map;
+    }
+
+    @Test
+    public void entriesAreRemovedByTheirFirstComponent() {
+        final CacheMap<TriKey<String, Integer, Integer>, String> map = newMap(new CacheMapMaker()
+                .indexKeyComponents(1));
+        assertEquals(10, map.invalidateWhereKey(1, "bob"));
+        assertEquals(20, map.size());
+        for (int item = 0; item < 10; item++) {
+            assertFalse(map.containsKey(key("bob", item, 100)));
+            assertTrue(map.containsKey(key("alice", item, 100)));
+            assertTrue(map.containsKey(key("carol", item, 100)));
+        }
+        assertEquals(0, map.invalidateWhereKey(1, "bob"));
+        assertEquals(0, map.invalidateWhereKey(1, "dave"));
+    }
+
+    @Test
+    public void anyIndexedComponentWillDo() {
+        final CacheMap<TriKey<String, Integer, Integer>, String> map = newMap(new CacheMapMaker()
+                .indexKeyComponents(1, 2));
+        assertEquals(3, map.invalidateWhereKey(2, 7));
+        assertEquals(9, map.invalidateWhereKey(1, "alice"));
+        assertEquals(18, map.size());
+        // Reloaded entries are indexed again.
+        map.get(key("alice", 7, 100));
+        assertEquals(1, map.invalidateWhereKey(2, 7));
+    }
+
+    @Test
+    public void nullComponentsAreIndexed() {
+        final CacheMap<TriKey<String, Integer, Integer>, String> map = newMap(new CacheMapMaker()
+                .indexKeyComponents(1));
+        map.get(key(null, 1, 100));
+        map.get(key(null, 2, 100));
+        assertEquals(2, map.invalidateWhereKey(1, null));
+        assertEquals(30, map.size());
+    }
+
+    @Test
+    public void evictedEntriesLeaveTheIndex() {
+        final CacheMap<TriKey<String, Integer, Integer>, String> map = newMap(new CacheMapMaker().concurrencyLevel(1)
+                .maximumSize(5).indexKeyComponents(1));
+        assertEquals(5, map.size());
+        int removed = 0;
+        for (final String user : USERS) {
+            removed += map.invalidateWhereKey(1, user);
+        }
+        assertEquals(5, removed);
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void clearingEmptiesTheIndex() {
+        final CacheMap<TriKey<String, Integer, Integer>, String> map = newMap(new CacheMapMaker()
+                .indexKeyComponents(1));
+        map.clear();
+        assertEquals(0, map.invalidateWhereKey(1, "alice"));
+        map.get(key("alice", 1, 100));
+        assertEquals(1, map.invalidateWhereKey(1, "alice"));
+    }
+
+    @Test
+    public void keysWithoutTheComponentAreLeftAlone() {
+        final CacheMap<Object, String> map = new CacheMapMaker().indexKeyComponents(2).makeCacheMap(
+                new Function<Object, String>() {
+                    public String apply(final Object key) {
+                        return String.valueOf(key);
+                    }
+                });
+        map.get("alice");
+        map.get(new UniKey<String>("alice"));
+        map.get(new DuoKey<String, String>("bob", "alice"));
+        assertEquals(1, map.invalidateWhereKey(2, "alice"));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void absentKeysAreForgottenToo() {
+        final AtomicInteger calls = new AtomicInteger();
+        final CacheMap<DuoKey<String, Integer>, String> map = new CacheMapMaker().indexKeyComponents(1).cacheNulls(
+                10, 1, TimeUnit.MINUTES).makeCacheMap(new Function<DuoKey<String, Integer>, String>() {
+            public String apply(final DuoKey<String, Integer> key) {
+                calls.incrementAndGet();
+                return null;
+            }
+        });
+        final DuoKey<String, Integer> key = new DuoKey<String, Integer>("alice", 1);
+        assertNull(map.get(key));
+        assertNull(map.get(key));
+        assertEquals(1, calls.get());
+        assertEquals(0, map.invalidateWhereKey(1, "alice"));
+        assertNull(map.get(key));
+        assertEquals(2, calls.get());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void onlyIndexedComponentsCanBeInvalidated() {
+        newMap(new CacheMapMaker().indexKeyComponents(1)).invalidateWhereKey(2, 7);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void softMapsHaveNoIndexes() {
+        new CacheMap<String, String>(new Function<String, String>() {
+            public String apply(final String key) {
+                return key;
+            }
+        }).invalidateWhereKey(1, "alice");
+    }
+
+    @Test
+    public void settingsAreChecked() {
+        final int[][] bad = { {}, { 0 }, { 1, -1 } };
+        for (final int[] components : bad) {
+            try {
+                new CacheMapMaker().indexKeyComponents(components);
+                fail("Accepted " + components.length + " components");
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        try {
+            new CacheMapMaker().indexKeyComponents(1).indexKeyComponents(2);
+            fail("Set the indexed components twice");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void indexesCannotCoverTheOffHeapTier() {
+        new CacheMapMaker().maximumSize(10).offHeap(1 << 20, new JavaSerializer<String>()).indexKeyComponents(1)
+                .makeCacheMap(LOADER);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void primitiveMapsDoNotIndex() {
+        new CacheMapMaker().indexKeyComponents(1).makeLongCacheMap(new LongFunction<String>() {
+            public String apply(final long key) {
+                return "value" + key;
+            }
+        });
+    }
+}
@@ -0,0 +1,261 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jconch.test.FrameworkTest;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class InvalidatingCacheMapTest extends FrameworkTest {
+
+    /**
+     * Tags each value with the parity of its key, and with the value itself.
+     */
+    private static final Tagger<Integer, String> PARITY = new Tagger<Integer, String>() {
+        public Collection<?> tagsOf(final Integer key, final String value) {
+            return Arrays.asList(((key % 2) == 0) ? "even" : "odd", value);
+        }
+    };
+
+    private static void fill(final CacheMap<Integer, String> map, final int count) {
+        for (int i = 0; i < count; i++) {
+            map.get(i);
+        }
+    }
+
+    @Test
+    public void invalidateAllHidesEveryEntry() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(executor).makeCacheMap(converter);
+        fill(map, 100);
+        map.invalidateAll();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(map.containsKey(i));
+        }
+        assertFalse(map.entrySet().iterator().hasNext());
+        // Nothing was visited yet.
+        assertEquals(100, map.size());
+        assertEquals("value7", map.get(7));
+        assertEquals(101, converter.calls.get());
+    }
+
+    @Test
+    public void writesReclaimInvalidatedEntriesAFewAtATime() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).executor(executor)
+                .makeCacheMap(new CountingFunction<Integer>());
+        fill(map, 100);
+        map.invalidateAll();
+        assertEquals(0, executor.pending());
+        map.get(7);
+        assertEquals(100 - LocalCache.Segment.STALE_BATCH + 1, map.size());
+        for (int i = 100; i < 110; i++) {
+            map.get(i);
+        }
+        assertEquals(11, map.size());
+        assertTrue(map.containsKey(7));
+        assertEquals(0, map.stats().getEvictionCount());
+        assertEquals(0, map.stats().getExpirationCount());
+    }
+
+    @Test
+    public void aBurstOfInvalidationsIsReclaimedInOneWalk() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).tags(PARITY).executor(executor)
+                .makeCacheMap(new CountingFunction<Integer>());
+        fill(map, 100);
+        map.invalidateTag("even");
+        map.invalidateTag("odd");
+        map.invalidateAll();
+        assertEquals(0, executor.pending());
+        for (int i = 100; i < 110; i++) {
+            map.get(i);
+        }
+        assertEquals(10, map.size());
+    }
+
+    @Test
+    public void writesAfterAnInvalidationAreKept() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(new QueueingExecutor()).makeCacheMap(
+                new CountingFunction<Integer>());
+        map.put(1, "one");
+        map.invalidateAll();
+        map.put(2, "two");
+        assertFalse(map.containsKey(1));
+        assertEquals("two", map.get(2));
+    }
+
+    @Test
+    public void aLoadThatRacesAnInvalidationIsNotKept() {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicReference<CacheMap<Integer, String>> holder = new AtomicReference<CacheMap<Integer, String>>();
+        holder.set(new CacheMapMaker().executor(new QueueingExecutor()).makeCacheMap(
+                new Function<Integer, String>() {
+                    public String apply(final Integer key) {
+                        if (calls.incrementAndGet() == 1) {
+                            // The source changed while this value was read.
+                            holder.get().invalidateAll();
+                        }
+                        return "value" + calls.get();
+                    }
+                }));
+        final CacheMap<Integer, String> map = holder.get();
+        assertEquals("value1", map.get(1));
+        assertFalse(map.containsKey(1));
+        assertEquals("value2", map.get(1));
+        assertEquals("value2", map.get(1));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void invalidateTagOnlyHidesThatGroup() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().tags(PARITY).executor(new QueueingExecutor())
+                .makeCacheMap(converter);
+        fill(map, 10);
+        map.invalidateTag("even");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Key " + i, (i % 2) != 0, map.containsKey(i));
+        }
+        map.invalidateTag("value3");
+        assertFalse(map.containsKey(3));
+        assertTrue(map.containsKey(5));
+        // Tags nobody used are fine.
+        map.invalidateTag("none");
+        assertTrue(map.containsKey(5));
+        assertEquals(10, converter.calls.get());
+    }
+
+    @Test
+    public void replacingAValueReplacesItsTags() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().tags(PARITY).executor(new QueueingExecutor())
+                .makeCacheMap(new CountingFunction<Integer>());
+        map.put(2, "old");
+        map.put(2, "new");
+        map.invalidateTag("old");
+        assertEquals("new", map.get(2));
+        map.invalidateTag("new");
+        assertFalse(map.containsKey(2));
+    }
+
+    @Test
+    public void anInvalidatedTagDoesNotHideLaterValues() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().tags(PARITY).executor(new QueueingExecutor())
+                .makeCacheMap(new CountingFunction<Integer>());
+        map.invalidateTag("even");
+        map.get(2);
+        assertTrue(map.containsKey(2));
+    }
+
+    @Test
+    public void invalidatedEntriesAreEvictedFirstOrReclaimed() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(50).executor(
+                new QueueingExecutor()).makeCacheMap(converter);
+        fill(map, 50);
+        map.invalidateAll();
+        fill(map, 50);
+        assertEquals(50, map.size());
+        assertEquals(100, converter.calls.get());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(map.containsKey(i));
+        }
+    }
+
+    @Test
+    public void invalidatedEntriesAreNotCountedAsEvictions() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(1000)
+                .trimOnMemoryPressure(0.9, 0.5).executor(executor).makeCacheMap(new CountingFunction<Integer>());
+        fill(map, 100);
+        map.invalidateAll();
+        MemoryPressure.INSTANCE.pressure(0.95);
+        executor.runAll();
+        assertTrue(map.size() < 100);
+        assertEquals(0, map.stats().getEvictionCount());
+    }
+
+    @Test
+    public void absentKeysAreForgottenToo() {
+        final AtomicInteger calls = new AtomicInteger();
+        final CacheMap<Integer, String> map = new CacheMapMaker().cacheNulls(10, 1, TimeUnit.MINUTES).executor(
+                new QueueingExecutor()).makeCacheMap(new Function<Integer, String>() {
+            public String apply(final Integer key) {
+                calls.incrementAndGet();
+                return null;
+            }
+        });
+        assertNull(map.get(1));
+        assertNull(map.get(1));
+        assertEquals(1, calls.get());
+        map.invalidateAll();
+        assertNull(map.get(1));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void softMapsAreCleared() {
+        final CacheMap<Integer, String> map = new CacheMap<Integer, String>(new CountingFunction<Integer>());
+        fill(map, 10);
+        map.invalidateAll();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void invalidateTagChecksItsArguments() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().makeCacheMap(new CountingFunction<Integer>());
+        try {
+            map.invalidateTag("even");
+            fail("Invalidated a tag of a map without tags");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            new CacheMapMaker().tags(PARITY).makeCacheMap(new CountingFunction<Integer>()).invalidateTag(null);
+            fail("Invalidated a null tag");
+        } catch (final NullArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void tagsAreSetOnce() {
+        try {
+            new CacheMapMaker().tags(PARITY).tags(PARITY);
+            fail("Set the tagger twice");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            new CacheMapMaker().tags(null);
+            fail("Accepted a null tagger");
+        } catch (final NullArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void tagsCannotBeKeptOffHeap() {
+        new CacheMapMaker().maximumSize(10).offHeap(1 << 20, new JavaSerializer<String>()).tags(PARITY)
+                .makeCacheMap(new CountingFunction<Integer>());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void primitiveMapsDoNotTag() {
+        new CacheMapMaker().tags(PARITY).makeLongCacheMap(new LongFunction<String>() {
+            public String apply(final long key) {
+                return "value" + key;
+            }
+        });
+    }
+}
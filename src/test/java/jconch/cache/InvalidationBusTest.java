@@ -0,0 +1,327 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class InvalidationBusTest extends FrameworkTest {
+
+    private static final Serializer<String> UTF8 = new Serializer<String>() {
+        public byte[] serialize(final String value) {
+            try {
+                return value.getBytes("UTF-8");
+            } catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String deserialize(final byte[] bytes) {
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Loads a new value each time it is asked for one.
+     */
+    private static final class Versioned implements Function<String, String> {
+
+        private final AtomicInteger version = new AtomicInteger();
+
+        public String apply(final String key) {
+            return key + "@" + version.incrementAndGet();
+        }
+    }
+
+    private static CacheMap<String, String> newMap() {
+        return new CacheMapMaker().maximumSize(10000).makeCacheMap(new Versioned());
+    }
+
+    private static void awaitDropped(final CacheMap<String, String> map, final String key) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (map.containsKey(key)) {
+            assertTrue("Timed out waiting for " + key + " to be dropped", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void invalidationsReachTheOtherMembers() throws InterruptedException {
+        final CacheMap<String, String> first = newMap();
+        final CacheMap<String, String> second = newMap();
+        final InProcessTransport transport = new InProcessTransport();
+        final InvalidationBus<String> firstBus = new InvalidationBus<String>(first, UTF8, transport, 100, 10,
+                TimeUnit.MILLISECONDS);
+        final InvalidationBus<String> secondBus = new InvalidationBus<String>(second, UTF8, transport.join(), 100,
+                10, TimeUnit.MILLISECONDS);
+        final String before = second.get("a");
+        first.get("a");
+        second.get("b");
+
+        firstBus.invalidate("a");
+        assertFalse(first.containsKey("a"));
+        awaitDropped(second, "a");
+        assertFalse(before.equals(second.get("a")));
+        assertTrue(second.containsKey("b"));
+        assertEquals(1, secondBus.getReceivedKeyCount());
+        assertEquals(0, firstBus.getReceivedKeyCount());
+        firstBus.close();
+        secondBus.close();
+    }
+
+    @Test
+    public void receivedKeysAreNotSentOn() {
+        final CacheMap<String, String> first = newMap();
+        final CacheMap<String, String> second = newMap();
+        final InProcessTransport transport = new InProcessTransport();
+        final InvalidationBus<String> firstBus = new InvalidationBus<String>(first, UTF8, transport, 100, 1,
+                TimeUnit.HOURS);
+        final InvalidationBus<String> secondBus = new InvalidationBus<String>(second, UTF8, transport.join(), 100,
+                1, TimeUnit.HOURS);
+        firstBus.invalidate("a");
+        firstBus.flush();
+        assertEquals(1, secondBus.getReceivedKeyCount());
+        assertEquals(0, secondBus.getPendingCount());
+        assertEquals(0, secondBus.getSentMessageCount());
+    }
+
+    @Test
+    public void aBurstIsSentInAFewMessages() {
+        final CacheMap<String, String> first = newMap();
+        final CacheMap<String, String> second = newMap();
+        final InProcessTransport transport = new InProcessTransport();
+        final InvalidationBus<String> firstBus = new InvalidationBus<String>(first, UTF8, transport, 5000, 1,
+                TimeUnit.HOURS);
+        final InvalidationBus<String> secondBus = new InvalidationBus<String>(second, UTF8, transport.join(), 5000,
+                1, TimeUnit.HOURS);
+        for (int i = 0; i < 1000; i++) {
+            second.get("user:" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            firstBus.invalidate("user:" + i);
+            // Invalidated twice, sent once.
+            firstBus.invalidate("user:" + i);
+        }
+        assertEquals(1000, firstBus.getPendingCount());
+        firstBus.flush();
+        assertEquals(0, firstBus.getPendingCount());
+        assertEquals(1, firstBus.getSentMessageCount());
+        assertEquals(1000, secondBus.getReceivedKeyCount());
+        assertEquals(0, second.size());
+    }
+
+    @Test
+    public void keysAreCompressed() throws IOException {
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        int raw = 0;
+        for (int i = 0; i < 1000; i++) {
+            keys.add(UTF8.serialize("com.example.Customer#" + (100000 + i)));
+            raw += keys.get(i).length;
+        }
+        final List<byte[]> messages = InvalidationMessages.pack(keys, UdpTransport.MAX_DATAGRAM_SIZE);
+        assertEquals(1, messages.size());
+        assertTrue("Message of " + messages.get(0).length + " bytes for " + raw + " bytes of keys",
+                messages.get(0).length * 4 < raw);
+        assertKeysEqual(keys, InvalidationMessages.unpack(messages.get(0)));
+    }
+
+    @Test
+    public void messagesAreFilledToTheirCompressedSize() throws IOException {
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        int raw = 0;
+        for (int i = 0; i < 5000; i++) {
+            keys.add(UTF8.serialize("com.example.Customer#" + (100000 + i)));
+            raw += 4 + keys.get(i).length;
+        }
+        final int maxMessageSize = UdpTransport.DEFAULT_MAX_MESSAGE_SIZE;
+        final List<byte[]> messages = InvalidationMessages.pack(keys, maxMessageSize);
+        final int uncompressed = (raw + maxMessageSize - 1) / maxMessageSize;
+        assertTrue(messages.size() + " datagrams, against " + uncompressed + " uncompressed",
+                messages.size() * 3 < uncompressed);
+        final List<byte[]> unpacked = new ArrayList<byte[]>();
+        for (final byte[] message : messages) {
+            assertTrue(message.length <= maxMessageSize);
+            unpacked.addAll(InvalidationMessages.unpack(message));
+        }
+        assertKeysEqual(keys, unpacked);
+    }
+
+    @Test
+    public void udpDatagramsFitInAFrameByDefault() throws IOException {
+        final UdpTransport transport = new UdpTransport(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                Collections.<InetSocketAddress> emptyList());
+        try {
+            assertTrue(transport.getMaxMessageSize() <= 1500 - 48);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void udpDatagramsHaveALimit() throws IOException {
+        new UdpTransport(new InetSocketAddress(0), Collections.<InetSocketAddress> emptyList(),
+                UdpTransport.MAX_DATAGRAM_SIZE + 1);
+    }
+
+    @Test
+    public void keysThatDoNotCompressAreSplitToFit() throws IOException {
+        final Random random = new Random(42);
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            final byte[] key = new byte[100];
+            random.nextBytes(key);
+            keys.add(key);
+        }
+        keys.add(new byte[5000]);
+        final byte[] tooLarge = new byte[5000];
+        random.nextBytes(tooLarge);
+        keys.add(tooLarge);
+
+        final List<byte[]> messages = InvalidationMessages.pack(keys, 1024);
+        assertTrue(messages.size() > 10);
+        final List<byte[]> unpacked = new ArrayList<byte[]>();
+        for (final byte[] message : messages) {
+            assertTrue(message.length <= 1024);
+            unpacked.addAll(InvalidationMessages.unpack(message));
+        }
+        // The zeros compress; the random bytes do not.
+        assertKeysEqual(keys.subList(0, 101), unpacked);
+    }
+
+    @Test
+    public void corruptMessagesAreIgnored() {
+        final CacheMap<String, String> map = newMap();
+        final InProcessTransport transport = new InProcessTransport();
+        final InvalidationBus<String> bus = new InvalidationBus<String>(map, UTF8, transport.join(), 100, 1,
+                TimeUnit.HOURS);
+        map.get("a");
+        final byte[] message = InvalidationMessages.pack(Collections.singletonList(UTF8.serialize("a")), 1024).get(0);
+        transport.send(new byte[] { 1, 2, 3 });
+        transport.send(Arrays.copyOf(message, message.length - 2));
+        transport.send(new byte[0]);
+        assertTrue(map.containsKey("a"));
+        assertEquals(0, bus.getReceivedKeyCount());
+        transport.send(message);
+        assertFalse(map.containsKey("a"));
+        assertEquals(1, bus.getReceivedKeyCount());
+    }
+
+    @Test
+    public void failedSendsAreRetried() {
+        final CacheMap<String, String> map = newMap();
+        final InProcessTransport peer = new InProcessTransport();
+        final boolean[] down = { true };
+        final InvalidationTransport flaky = new InvalidationTransport() {
+            private final InProcessTransport delegate = peer.join();
+
+            public void send(final byte[] message) throws IOException {
+                if (down[0]) {
+                    throw new IOException("unreachable");
+                }
+                delegate.send(message);
+            }
+
+            public void setReceiver(final Receiver receiver) {
+                delegate.setReceiver(receiver);
+            }
+
+            public int getMaxMessageSize() {
+                return delegate.getMaxMessageSize();
+            }
+
+            public void close() {
+                delegate.close();
+            }
+        };
+        final CacheMap<String, String> other = newMap();
+        final InvalidationBus<String> bus = new InvalidationBus<String>(map, UTF8, flaky, 100, 1, TimeUnit.HOURS);
+        final InvalidationBus<String> otherBus = new InvalidationBus<String>(other, UTF8, peer, 100, 1,
+                TimeUnit.HOURS);
+        other.get("a");
+        bus.invalidate("a");
+        try {
+            bus.flush();
+            fail("Sent while the transport was down");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, bus.getPendingCount());
+        assertTrue(other.containsKey("a"));
+        down[0] = false;
+        bus.flush();
+        assertFalse(other.containsKey("a"));
+        assertEquals(1, otherBus.getReceivedKeyCount());
+    }
+
+    @Test
+    public void invalidationsCrossUdpSockets() throws IOException, InterruptedException {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final UdpTransport firstTransport = new UdpTransport(new InetSocketAddress(loopback, 0),
+                Collections.<InetSocketAddress> emptyList());
+        final UdpTransport secondTransport = new UdpTransport(new InetSocketAddress(loopback, 0), Collections
+                .singletonList(firstTransport.getLocalAddress()));
+        final UdpTransport thirdTransport = new UdpTransport(new InetSocketAddress(loopback, 0), Arrays.asList(
+                firstTransport.getLocalAddress(), secondTransport.getLocalAddress()));
+        final CacheMap<String, String> first = newMap();
+        final CacheMap<String, String> second = newMap();
+        final CacheMap<String, String> third = newMap();
+        final InvalidationBus<String> firstBus = new InvalidationBus<String>(first, UTF8, firstTransport, 100, 5,
+                TimeUnit.MILLISECONDS);
+        final InvalidationBus<String> secondBus = new InvalidationBus<String>(second, UTF8, secondTransport, 100, 5,
+                TimeUnit.MILLISECONDS);
+        final InvalidationBus<String> thirdBus = new InvalidationBus<String>(third, UTF8, thirdTransport, 100, 5,
+                TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 300; i++) {
+                first.get("k" + i);
+                second.get("k" + i);
+            }
+            for (int i = 0; i < 300; i++) {
+                thirdBus.invalidate("k" + i);
+            }
+            for (int i = 0; i < 300; i++) {
+                awaitDropped(first, "k" + i);
+                awaitDropped(second, "k" + i);
+            }
+            assertTrue(thirdBus.getSentMessageCount() < 300);
+            assertEquals(300, firstBus.getReceivedKeyCount());
+        } finally {
+            firstBus.close();
+            secondBus.close();
+            thirdBus.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void aTransportServesOneBus() {
+        final InProcessTransport transport = new InProcessTransport();
+        new InvalidationBus<String>(newMap(), UTF8, transport, 100, 1, TimeUnit.SECONDS);
+        new InvalidationBus<String>(newMap(), UTF8, transport, 100, 1, TimeUnit.SECONDS);
+    }
+
+    private static void assertKeysEqual(final List<byte[]> expected, final List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue("Key " + i + " differs", Arrays.equals(expected.get(i), actual.get(i)));
+        }
+    }
+}
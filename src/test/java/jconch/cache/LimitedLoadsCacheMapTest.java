@@ -0,0 +1,232 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class LimitedLoadsCacheMapTest extends FrameworkTest {
+
+    /**
+     * Holds up the loads of negative keys until the gate opens.
+     */
+    private static final class GatedFunction implements Function<Integer, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        public String apply(final Integer key) {
+            final int call = calls.incrementAndGet();
+            if (key < 0) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (key == 13) {
+                throw new IllegalArgumentException("unlucky");
+            }
+            return "value" + key + "#" + call;
+        }
+    }
+
+    /**
+     * Looks a key up in a thread of its own.
+     */
+    private static Thread lookUp(final CacheMap<Integer, String> map, final int key,
+            final AtomicReference<String> result) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                result.set(map.get(key));
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void loadsOverTheCapFailFast() throws InterruptedException {
+        final GatedFunction converter = new GatedFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maxConcurrentLoads(1).makeCacheMap(converter);
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final Thread slow = lookUp(map, -1, result);
+        converter.entered.await();
+        try {
+            map.get(1);
+            fail("The load should have been rejected");
+        } catch (final RejectedExecutionException e) {
+            // Expected.
+        }
+        assertEquals(1, map.stats().getLoadRejectionCount());
+
+        converter.gate.countDown();
+        slow.join();
+        assertEquals("value-1#1", result.get());
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void waitingForTheSameKeyTakesNoLoad() throws InterruptedException {
+        final GatedFunction converter = new GatedFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maxConcurrentLoads(1).makeCacheMap(converter);
+        final AtomicReference<String> first = new AtomicReference<String>();
+        final AtomicReference<String> second = new AtomicReference<String>();
+        final Thread loader = lookUp(map, -1, first);
+        converter.entered.await();
+        final Thread waiter = lookUp(map, -1, second);
+        Thread.sleep(50);
+        converter.gate.countDown();
+        loader.join();
+        waiter.join();
+        assertEquals("value-1#1", first.get());
+        assertEquals("value-1#1", second.get());
+        assertEquals(0, map.stats().getLoadRejectionCount());
+    }
+
+    @Test
+    public void anExpiredValueStandsInForARejectedLoad() throws InterruptedException {
+        final FakeTicker ticker = new FakeTicker();
+        final GatedFunction converter = new GatedFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().maxConcurrentLoads(1).expireAfterWrite(1,
+                TimeUnit.MINUTES).ticker(ticker).makeCacheMap(converter);
+        assertEquals("value1#1", map.get(1));
+        ticker.advance(2, TimeUnit.MINUTES);
+
+        final Thread slow = lookUp(map, -1, new AtomicReference<String>());
+        converter.entered.await();
+        assertEquals("value1#1", map.get(1));
+        assertEquals(1, map.stats().getLoadRejectionCount());
+
+        converter.gate.countDown();
+        slow.join();
+        assertEquals("value1#3", map.get(1));
+    }
+
+    @Test
+    public void bulkLoadsTakeALoad() throws InterruptedException {
+        final GatedFunction converter = new GatedFunction();
+        final Function<Collection<Integer>, Map<Integer, String>> bulkLoader;
+        bulkLoader = new Function<Collection<Integer>, Map<Integer, String>>() {
+            public Map<Integer, String> apply(final Collection<Integer> keys) {
+                final Map<Integer, String> values = new HashMap<Integer, String>();
+                for (final Integer key : keys) {
+                    values.put(key, "bulk" + key);
+                }
+                return values;
+            }
+        };
+        final CacheMap<Integer, String> map = new CacheMapMaker().maxConcurrentLoads(1).makeCacheMap(converter,
+                bulkLoader);
+        final Thread slow = lookUp(map, -1, new AtomicReference<String>());
+        converter.entered.await();
+        try {
+            map.getAll(Arrays.asList(1, 2, 3));
+            fail("The bulk load should have been rejected");
+        } catch (final RejectedExecutionException e) {
+            // Expected.
+        }
+        converter.gate.countDown();
+        slow.join();
+        assertEquals("bulk2", map.getAll(Arrays.asList(1, 2, 3)).get(2));
+    }
+
+    @Test
+    public void slowLoadsTimeOutAndFinishInTheBackground() throws InterruptedException {
+        final GatedFunction converter = new GatedFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().loadTimeout(50, TimeUnit.MILLISECONDS)
+                .maxConcurrentLoads(2).makeCacheMap(converter);
+        for (int i = 0; i < 2; i++) {
+            try {
+                map.get(-1);
+                fail("The look-up should have timed out");
+            } catch (final LoadTimeoutException e) {
+                // Expected.
+            }
+        }
+        assertEquals(2, map.stats().getLoadTimeoutCount());
+        assertEquals("The second look-up waited for the first load", 1, converter.calls.get());
+
+        converter.gate.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!map.containsKey(-1)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals("value-1#1", map.get(-1));
+        assertEquals(1, converter.calls.get());
+    }
+
+    @Test
+    public void quickLoadsAreNotHeldUp() {
+        final GatedFunction converter = new GatedFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().loadTimeout(1, TimeUnit.MINUTES).maxConcurrentLoads(
+                2).makeCacheMap(converter);
+        assertEquals("value1#1", map.get(1));
+        assertEquals("value1#1", map.get(1));
+        assertEquals(0, map.stats().getLoadTimeoutCount());
+        assertEquals(1, map.stats().getLoadSuccessCount());
+    }
+
+    @Test
+    public void timedLoadsPassOnTheirFailures() {
+        final GatedFunction converter = new GatedFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().loadTimeout(1, TimeUnit.MINUTES).maxConcurrentLoads(
+                1).makeCacheMap(converter);
+        for (int i = 0; i < 2; i++) {
+            try {
+                map.get(13);
+                fail("The load should have failed");
+            } catch (final IllegalArgumentException e) {
+                assertEquals("unlucky", e.getMessage());
+            }
+        }
+        assertEquals("Each look-up tried again", 2, converter.calls.get());
+        assertEquals(2, map.stats().getLoadFailureCount());
+        assertEquals("The permit was given back", "value2#3", map.get(2));
+    }
+
+    @Test
+    public void timedLoadsRunOnTheExecutor() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(executor).loadTimeout(10,
+                TimeUnit.MILLISECONDS).maxConcurrentLoads(1).makeCacheMap(new GatedFunction());
+        try {
+            map.get(1);
+            fail("Nobody ran the load");
+        } catch (final LoadTimeoutException e) {
+            // Expected.
+        }
+        assertEquals(1, executor.pending());
+        executor.runAll();
+        assertEquals("value1#1", map.get(1));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void timedLoadsMustBeCapped() {
+        new CacheMapMaker().loadTimeout(1, TimeUnit.SECONDS).makeCacheMap(new GatedFunction());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void asyncMapsDoNotLimitLoads() {
+        new CacheMapMaker().maxConcurrentLoads(4).makeAsyncCacheMap(new GatedFunction());
+    }
+}
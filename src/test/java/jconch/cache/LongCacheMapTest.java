@@ -0,0 +1,175 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class LongCacheMapTest extends FrameworkTest {
+
+    private static final class CountingFunction implements LongFunction<String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String apply(final long key) {
+            calls.incrementAndGet();
+            return "value" + key;
+        }
+    }
+
+    @Test
+    public void valuesAreComputedOnce() {
+        final CountingFunction converter = new CountingFunction();
+        final LongCacheMap<String> map = new LongCacheMap<String>(converter);
+        for (int round = 0; round < 3; round++) {
+            for (long key = -500; key < 500; key++) {
+                assertEquals("value" + key, map.get(key));
+            }
+        }
+        assertEquals(1000, converter.calls.get());
+        assertEquals(1000, map.size());
+        assertEquals(2000, map.stats().getHitCount());
+        assertEquals(1000, map.stats().getMissCount());
+        assertEquals("value0", map.getIfPresent(0L));
+        assertNull(map.getIfPresent(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void putAndRemove() {
+        final CountingFunction converter = new CountingFunction();
+        final LongCacheMap<String> map = new LongCacheMap<String>(converter);
+        assertNull(map.put(7L, "seven"));
+        assertEquals("seven", map.put(7L, "sept"));
+        assertEquals("sept", map.get(7L));
+        assertEquals("sept", map.remove(7L));
+        assertNull(map.remove(7L));
+        assertFalse(map.containsKey(7L));
+        assertEquals(0, map.size());
+        assertEquals("value7", map.get(7L));
+        assertEquals(1, converter.calls.get());
+    }
+
+    @Test
+    public void removedSlotsAreReclaimed() {
+        final LongCacheMap<String> map = new LongCacheMap<String>(new CountingFunction());
+        for (long key = 0; key < 100000; key++) {
+            map.put(key, "x");
+            map.remove(key);
+        }
+        assertEquals(0, map.size());
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, "y");
+        }
+        for (long key = 0; key < 1000; key += 2) {
+            map.remove(key);
+        }
+        for (long key = 0; key < 1000; key++) {
+            assertEquals((key % 2 == 0) ? null : "y", map.getIfPresent(key));
+        }
+        assertEquals(500, map.size());
+    }
+
+    @Test
+    public void boundedMapsKeepHitEntries() {
+        final CountingFunction converter = new CountingFunction();
+        final LongCacheMap<String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100).makeLongCacheMap(
+                converter);
+        for (long key = 0; key < 50; key++) {
+            map.get(key);
+        }
+        for (long key = 1000; key < 2000; key++) {
+            for (long hot = 0; hot < 50; hot++) {
+                map.get(hot);
+            }
+            map.get(key);
+        }
+        assertEquals(100, map.size());
+        assertEquals(950, map.stats().getSizeEvictionCount());
+        for (long hot = 0; hot < 50; hot++) {
+            assertTrue("Hot key " + hot + " was evicted", map.containsKey(hot));
+        }
+    }
+
+    @Test
+    public void aZeroSizedMapKeepsNothing() {
+        final CountingFunction converter = new CountingFunction();
+        final LongCacheMap<String> map = new CacheMapMaker().maximumSize(0).makeLongCacheMap(converter);
+        assertEquals("value1", map.get(1L));
+        assertEquals("value1", map.get(1L));
+        assertEquals(0, map.size());
+        assertEquals(2, converter.calls.get());
+    }
+
+    @Test
+    public void concurrentMissesComputeOnce() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final LongCacheMap<String> map = new LongCacheMap<String>(new LongFunction<String>() {
+            public String apply(final long key) {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "value" + key;
+            }
+        });
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    seen.set(map.get(42L));
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, calls.get());
+        assertEquals("value42", seen.get());
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void nullValuesAreRejected() {
+        new LongCacheMap<String>(new LongFunction<String>() {
+            public String apply(final long key) {
+                return null;
+            }
+        }).get(1L);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void unsupportedSettingsAreRejected() {
+        new CacheMapMaker().cacheNulls(10, 1, TimeUnit.MINUTES).makeLongCacheMap(new CountingFunction());
+    }
+
+    @Test
+    public void intKeysAreWidened() {
+        final AtomicInteger calls = new AtomicInteger();
+        final IntCacheMap<String> map = new CacheMapMaker().maximumSize(1000).makeIntCacheMap(
+                new IntFunction<String>() {
+                    public String apply(final int key) {
+                        calls.incrementAndGet();
+                        return "value" + key;
+                    }
+                });
+        assertEquals("value-3", map.get(-3));
+        assertEquals("value-3", map.get(-3));
+        assertEquals(1, calls.get());
+        assertEquals("value-3", map.remove(-3));
+        assertEquals(0, map.size());
+        assertEquals(1, map.stats().getHitCount());
+    }
+}
@@ -0,0 +1,240 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class MemoizerTest extends FrameworkTest {
+
+    public interface Lookup {
+
+        @Memoized
+        String join(String str, int i, double d);
+
+        @Memoized
+        String describe(Object o);
+
+        @Memoized
+        int sum(int[] values);
+
+        @Memoized
+        String fetch(String key) throws IOException;
+
+        @Memoized(maximumSize = 0)
+        String uncached(String key);
+
+        @Memoized(expireAfterWrite = 50, unit = TimeUnit.MILLISECONDS)
+        String shortLived(String key);
+
+        @Memoized
+        String constant();
+
+        String passedThrough(String key);
+
+        String annotatedInTheClass(String key);
+    }
+
+    /**
+     * Counts the calls of each method.
+     */
+    private static final class CountingLookup implements Lookup {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String join(final String str, final int i, final double d) {
+            calls.incrementAndGet();
+            return str + (i + d);
+        }
+
+        public String describe(final Object o) {
+            calls.incrementAndGet();
+            return (o == null) ? null : o.getClass().getSimpleName();
+        }
+
+        public int sum(final int[] values) {
+            calls.incrementAndGet();
+            int sum = 0;
+            for (final int value : values) {
+                sum += value;
+            }
+            return sum;
+        }
+
+        public String fetch(final String key) throws IOException {
+            calls.incrementAndGet();
+            if (key.startsWith("bad")) {
+                throw new IOException("cannot fetch " + key);
+            }
+            return key;
+        }
+
+        public String uncached(final String key) {
+            calls.incrementAndGet();
+            return key;
+        }
+
+        public String shortLived(final String key) {
+            return key + calls.incrementAndGet();
+        }
+
+        public String constant() {
+            calls.incrementAndGet();
+            return "constant";
+        }
+
+        public String passedThrough(final String key) {
+            calls.incrementAndGet();
+            return key;
+        }
+
+        @Memoized(maximumSize = 10)
+        public String annotatedInTheClass(final String key) {
+            calls.incrementAndGet();
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return "counting";
+        }
+    }
+
+    @Test
+    public void callsWithEqualArgumentsAreCached() throws NoSuchMethodException {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        assertEquals("a3.5", lookup.join("a", 3, 0.5));
+        assertEquals("a3.5", lookup.join(new String("a"), 3, 0.5));
+        assertEquals("a4.5", lookup.join("a", 4, 0.5));
+        assertEquals(2, target.calls.get());
+        final CacheStats stats = Memoizer.stats(lookup, Lookup.class.getMethod("join", String.class, int.class,
+                double.class));
+        assertEquals(1, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+    }
+
+    @Test
+    public void argumentsAreComparedInOrder() {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        assertEquals("1.01.0", lookup.join("1.0", 1, 0.0));
+        assertEquals("0.01.0", lookup.join("0.0", 1, 0.0));
+        assertEquals(2, target.calls.get());
+    }
+
+    @Test
+    public void nullArgumentsAndResultsAreCached() {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        assertNull(lookup.describe(null));
+        assertNull(lookup.describe(null));
+        assertEquals("null2.0", lookup.join(null, 1, 1.0));
+        assertEquals("null2.0", lookup.join(null, 1, 1.0));
+        assertEquals(2, target.calls.get());
+    }
+
+    @Test
+    public void arraysAreComparedByContents() {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        assertEquals(6, lookup.sum(new int[] { 1, 2, 3 }));
+        assertEquals(6, lookup.sum(new int[] { 1, 2, 3 }));
+        assertEquals(5, lookup.sum(new int[] { 2, 3 }));
+        assertEquals("int[]", lookup.describe(new int[] { 1 }));
+        assertEquals("int[]", lookup.describe(new int[] { 1 }));
+        assertEquals(3, target.calls.get());
+    }
+
+    @Test
+    public void methodsWithoutArgumentsAreCalledOnce() {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        assertEquals("constant", lookup.constant());
+        assertEquals("constant", lookup.constant());
+        assertEquals(1, target.calls.get());
+    }
+
+    @Test
+    public void exceptionsAreThrownAndNotCached() throws IOException {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        for (int i = 0; i < 2; i++) {
+            try {
+                lookup.fetch("bad key");
+                fail("Fetched a bad key");
+            } catch (final IOException e) {
+                assertEquals("cannot fetch bad key", e.getMessage());
+            }
+        }
+        assertEquals(2, target.calls.get());
+        assertEquals("good", lookup.fetch("good"));
+        assertEquals("good", lookup.fetch("good"));
+        assertEquals(3, target.calls.get());
+    }
+
+    @Test
+    public void settingsComeFromTheAnnotation() throws InterruptedException, NoSuchMethodException {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        lookup.uncached("a");
+        lookup.uncached("a");
+        assertEquals(2, target.calls.get());
+
+        final String first = lookup.shortLived("a");
+        assertEquals(first, lookup.shortLived("a"));
+        Thread.sleep(200);
+        assertFalse(first.equals(lookup.shortLived("a")));
+
+        for (int i = 0; i < 100; i++) {
+            lookup.annotatedInTheClass("key" + i);
+        }
+        final CacheStats stats = Memoizer.stats(lookup, Lookup.class.getMethod("annotatedInTheClass",
+                String.class));
+        assertEquals(100, stats.getMissCount());
+        assertTrue(stats.getEvictionCount() >= 90);
+    }
+
+    @Test
+    public void otherMethodsArePassedThrough() {
+        final CountingLookup target = new CountingLookup();
+        final Lookup lookup = Memoizer.memoize(Lookup.class, target);
+        lookup.passedThrough("a");
+        lookup.passedThrough("a");
+        assertEquals(2, target.calls.get());
+        assertEquals("counting", lookup.toString());
+        assertTrue(lookup.equals(lookup));
+        assertFalse(lookup.equals(Memoizer.memoize(Lookup.class, target)));
+        assertEquals(System.identityHashCode(lookup), lookup.hashCode());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void passedThroughMethodsHaveNoStats() throws NoSuchMethodException {
+        Memoizer.stats(Memoizer.memoize(Lookup.class, new CountingLookup()), Lookup.class.getMethod(
+                "passedThrough", String.class));
+    }
+
+    public interface Sink {
+        @Memoized
+        void accept(String value);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void voidMethodsCannotBeMemoized() {
+        Memoizer.memoize(Sink.class, new Sink() {
+            public void accept(final String value) {
+                // Does nothing.
+            }
+        });
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void onlyInterfacesCanBeProxied() {
+        Memoizer.memoize(CountingLookup.class, new CountingLookup());
+    }
+}
@@ -0,0 +1,190 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class MemoryPressureCacheMapTest extends FrameworkTest {
+
+    private static final Function<Integer, String> LOADER = new Function<Integer, String>() {
+        public String apply(final Integer key) {
+            return "value" + key;
+        }
+    };
+
+    private static CacheMap<Integer, String> newMap(final QueueingExecutor executor, final double step) {
+        return new CacheMapMaker().concurrencyLevel(1).maximumSize(1000).trimOnMemoryPressure(0.9, step).executor(
+                executor).makeCacheMap(LOADER);
+    }
+
+    private static void fill(final CacheMap<Integer, String> map, final int count) {
+        for (int i = 0; i < count; i++) {
+            map.get(i);
+        }
+    }
+
+    @Test
+    public void pressureTrimsAStepOfTheColdestEntries() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = newMap(executor, 0.1);
+        fill(map, 1000);
+        // The first hundred are hit again, which protects them.
+        fill(map, 100);
+        assertEquals(1000, map.size());
+
+        MemoryPressure.INSTANCE.pressure(0.95);
+        assertEquals(1000, map.size());
+        executor.runAll();
+        assertEquals(900, map.size());
+        assertEquals(100, map.stats().getEvictionCount());
+        for (int i = 0; i < 100; i++) {
+            assertTrue("Lost hot key " + i, map.containsKey(i));
+        }
+    }
+
+    @Test
+    public void repeatedPressureShrinksTheMapGradually() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = newMap(executor, 0.1);
+        fill(map, 1000);
+        final int[] expected = { 900, 810, 729 };
+        for (final int size : expected) {
+            MemoryPressure.INSTANCE.pressure(0.95);
+            executor.runAll();
+            assertEquals(size, map.size());
+        }
+    }
+
+    @Test
+    public void aBurstOfNotificationsTrimsOnce() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = newMap(executor, 0.5);
+        fill(map, 1000);
+        for (int i = 0; i < 5; i++) {
+            MemoryPressure.INSTANCE.pressure(0.95);
+        }
+        assertEquals(1, executor.pending());
+        executor.runAll();
+        assertEquals(500, map.size());
+    }
+
+    @Test
+    public void nothingIsTrimmedBelowTheThreshold() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = newMap(executor, 0.5);
+        fill(map, 1000);
+        MemoryPressure.INSTANCE.pressure(0.85);
+        assertEquals(0, executor.pending());
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void trimmedMapsGrowBack() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = newMap(executor, 1.0);
+        fill(map, 1000);
+        MemoryPressure.INSTANCE.pressure(0.95);
+        executor.runAll();
+        assertEquals(0, map.size());
+        fill(map, 1000);
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void theTenuredPoolIsWatched() {
+        newMap(new QueueingExecutor(), 0.1);
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ((pool.getType() == MemoryType.HEAP) && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && (pool.getUsage().getMax() > 0)) {
+                final long limit = (long) (pool.getUsage().getMax() * 0.9);
+                assertTrue(pool.getName(), pool.getUsageThreshold() > 0);
+                assertTrue(pool.getName(), pool.getUsageThreshold() <= limit);
+                assertTrue(pool.getName(), pool.getCollectionUsageThreshold() > 0);
+                assertTrue(pool.getName(), pool.getCollectionUsageThreshold() <= limit);
+            }
+        }
+    }
+
+    @Test
+    public void collectedMapsAreForgotten() throws InterruptedException {
+        final int before = MemoryPressure.INSTANCE.registeredCount();
+        newMap(new QueueingExecutor(), 0.1);
+        for (int tries = 0; (MemoryPressure.INSTANCE.registeredCount() > before) && (tries < 50); tries++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(MemoryPressure.INSTANCE.registeredCount() <= before);
+    }
+
+    @Test
+    public void thresholdsArePutBackOnceTheLastMapIsGone() throws InterruptedException {
+        final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        final long[][] before = thresholds(pools);
+        final MemoryPressure pressure = new MemoryPressure();
+        pressure.register(new LocalCache<Integer, String>(new CacheMapMaker().maximumSize(10), LOADER, null, null),
+                0.1, 0.5);
+        for (int tries = 0; (pressure.registeredCount() > 0) && (tries < 50); tries++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, pressure.registeredCount());
+        final long[][] after = thresholds(pools);
+        for (int i = 0; i < pools.size(); i++) {
+            assertTrue(pools.get(i).getName(), Arrays.equals(before[i], after[i]));
+        }
+    }
+
+    private static long[][] thresholds(final List<MemoryPoolMXBean> pools) {
+        final long[][] thresholds = new long[pools.size()][];
+        for (int i = 0; i < thresholds.length; i++) {
+            final MemoryPoolMXBean pool = pools.get(i);
+            if (pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+                thresholds[i] = new long[] { pool.getUsageThreshold(), pool.getCollectionUsageThreshold() };
+            }
+        }
+        return thresholds;
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void trimmingRequiresABound() {
+        new CacheMapMaker().trimOnMemoryPressure(0.9, 0.1).makeCacheMap(LOADER);
+    }
+
+    @Test
+    public void settingsAreChecked() {
+        final double[][] bad = { { 0.0, 0.1 }, { 1.0, 0.1 }, { Double.NaN, 0.1 }, { 0.9, 0.0 }, { 0.9, 1.5 } };
+        for (final double[] settings : bad) {
+            try {
+                new CacheMapMaker().trimOnMemoryPressure(settings[0], settings[1]);
+                fail("Accepted " + settings[0] + ", " + settings[1]);
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        try {
+            new CacheMapMaker().trimOnMemoryPressure(0.9, 0.1).trimOnMemoryPressure(0.8, 0.1);
+            fail("Set trimming twice");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void primitiveMapsDoNotTrim() {
+        new CacheMapMaker().maximumSize(10).trimOnMemoryPressure(0.9, 0.1).makeLongCacheMap(new LongFunction<String>() {
+            public String apply(final long key) {
+                return "value" + key;
+            }
+        });
+    }
+}
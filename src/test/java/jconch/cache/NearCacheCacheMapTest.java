@@ -0,0 +1,151 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class NearCacheCacheMapTest extends FrameworkTest {
+
+    /**
+     * Reads a key in the other thread, whose near cache outlives the call.
+     */
+    private static String readElsewhere(final ExecutorService other, final CacheMap<Integer, String> map,
+            final int key) throws InterruptedException, ExecutionException {
+        return other.submit(new Callable<String>() {
+            public String call() {
+                return map.get(key);
+            }
+        }).get();
+    }
+
+    @Test
+    public void hitsAreServedAndCounted() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>(true);
+        final CacheMap<Integer, String> map = new CacheMapMaker().nearCache(64).makeCacheMap(converter);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value1#1", map.get(1));
+        }
+        assertEquals(1, converter.calls.get());
+        final long hits = map.stats().getHitCount();
+        assertTrue("Only the last batch may be missing: " + hits, (hits <= 999) && (hits > 999 - 64));
+    }
+
+    @Test
+    public void putsReachEveryThread() throws InterruptedException, ExecutionException {
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            final CacheMap<Integer, String> map = new CacheMapMaker().nearCache(64).makeCacheMap(
+                    new CountingFunction<Integer>(true));
+            for (int i = 0; i < 3; i++) {
+                assertEquals("value1#1", readElsewhere(other, map, 1));
+            }
+            map.put(1, "replaced");
+            assertEquals("replaced", readElsewhere(other, map, 1));
+            assertEquals("replaced", readElsewhere(other, map, 1));
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void removalsReachEveryThread() throws InterruptedException, ExecutionException {
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            final CacheMap<Integer, String> map = new CacheMapMaker().nearCache(64).makeCacheMap(
+                    new CountingFunction<Integer>(true));
+            assertEquals("value1#1", readElsewhere(other, map, 1));
+            assertEquals("value1#1", readElsewhere(other, map, 1));
+            map.remove(1);
+            assertEquals("value1#2", readElsewhere(other, map, 1));
+            map.clear();
+            assertEquals("value1#3", readElsewhere(other, map, 1));
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void idleThreadsLetGoOfRemovedValues() throws InterruptedException, ExecutionException {
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            final CacheMap<Integer, Object> map = new CacheMapMaker().nearCache(64).makeCacheMap(
+                    new Function<Integer, Object>() {
+                        public Object apply(final Integer key) {
+                            return new Object();
+                        }
+                    });
+            final Callable<Object> read = new Callable<Object>() {
+                public Object call() {
+                    return map.get(1);
+                }
+            };
+            final WeakReference<Object> value = new WeakReference<Object>(other.submit(read).get());
+            assertSame(value.get(), other.submit(read).get());
+            map.remove(1);
+            for (int i = 0; (i < 20) && (value.get() != null); i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull("The idle thread still holds the value", value.get());
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void expiredEntriesAreLeftToTheSharedMap() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().nearCache(64).expireAfterWrite(1, TimeUnit.MINUTES)
+                .ticker(ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        assertEquals("value1#1", map.get(1));
+        assertEquals("value1#1", map.get(1));
+        ticker.advance(2, TimeUnit.MINUTES);
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void dueRefreshesStillStart() {
+        final FakeTicker ticker = new FakeTicker();
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().nearCache(64).refreshAfterWrite(1,
+                TimeUnit.MINUTES).executor(executor).ticker(ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        assertEquals("value1#1", map.get(1));
+        assertEquals("value1#1", map.get(1));
+        ticker.advance(2, TimeUnit.MINUTES);
+        assertEquals("value1#1", map.get(1));
+        assertEquals(1, executor.pending());
+        executor.runAll();
+        assertEquals("value1#2", map.get(1));
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void theEvictionPolicySeesNearHits() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100).nearCache(16)
+                .makeCacheMap(new CountingFunction<Integer>(true));
+        for (int cold = 1000; cold < 3000; cold++) {
+            for (int i = 0; i < 40; i++) {
+                map.get(0);
+            }
+            map.get(cold);
+        }
+        assertTrue("The hot key was evicted", map.containsKey(0));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void accessExpirationIsNotSupported() {
+        new CacheMapMaker().nearCache(64).expireAfterAccess(1, TimeUnit.MINUTES).makeCacheMap(
+                new CountingFunction<Integer>(true));
+    }
+}
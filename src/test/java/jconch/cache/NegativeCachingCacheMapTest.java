@@ -0,0 +1,105 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class NegativeCachingCacheMapTest extends FrameworkTest {
+
+    /**
+     * Knows only the even keys.
+     */
+    private static final class EvenFunction implements Function<Integer, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String apply(final Integer key) {
+            calls.incrementAndGet();
+            return (key % 2 == 0) ? "value" + key : null;
+        }
+    }
+
+    @Test
+    public void absentKeysAreNotLookedUpAgain() {
+        final EvenFunction converter = new EvenFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().cacheNulls(10, 1, TimeUnit.MINUTES).makeCacheMap(
+                converter);
+        assertNull(map.get(1));
+        assertNull(map.get(1));
+        assertEquals(1, converter.calls.get());
+        assertFalse(map.containsKey(1));
+        assertEquals(0, map.size());
+
+        final CacheStats stats = map.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getLoadSuccessCount());
+    }
+
+    @Test
+    public void absenceExpiresOnItsOwnSchedule() {
+        final FakeTicker ticker = new FakeTicker();
+        final EvenFunction converter = new EvenFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().expireAfterWrite(1, TimeUnit.HOURS).cacheNulls(
+                10, 10, TimeUnit.SECONDS).ticker(ticker).makeCacheMap(converter);
+        assertEquals("value2", map.get(2));
+        assertNull(map.get(1));
+        ticker.advance(10, TimeUnit.SECONDS);
+        assertNull(map.get(1));
+        assertEquals(3, converter.calls.get());
+        assertEquals("value2", map.get(2));
+        assertEquals("The value lives on", 3, converter.calls.get());
+    }
+
+    @Test
+    public void absentKeysAreCappedSeparately() {
+        final EvenFunction converter = new EvenFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100)
+                .cacheNulls(32, 1, TimeUnit.MINUTES).makeCacheMap(converter);
+        for (int i = 0; i < 200; i++) {
+            map.get(i);
+        }
+        assertEquals("Bad keys do not push out values", 100, map.size());
+        converter.calls.set(0);
+        for (int i = 1; i < 200; i += 2) {
+            map.get(i);
+        }
+        assertTrue("Only a few absent keys were remembered", converter.calls.get() >= 100 - 32);
+    }
+
+    @Test
+    public void putReplacesAbsence() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().cacheNulls(10, 1, TimeUnit.MINUTES).makeCacheMap(
+                new EvenFunction());
+        assertNull(map.get(1));
+        map.put(1, "one");
+        assertEquals("one", map.get(1));
+        map.remove(1);
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void getAllMapsAbsentKeysToNull() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().cacheNulls(10, 1, TimeUnit.MINUTES).makeCacheMap(
+                new EvenFunction());
+        map.get(3);
+        final Map<Integer, String> result = map.getAll(Arrays.asList(1, 2, 3));
+        assertEquals(Arrays.asList(1, 2, 3), Arrays.asList(result.keySet().toArray()));
+        assertNull(result.get(1));
+        assertEquals("value2", result.get(2));
+        assertNull(result.get(3));
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void nullsAreErrorsByDefault() {
+        new CacheMapMaker().makeCacheMap(new EvenFunction()).get(1);
+    }
+}
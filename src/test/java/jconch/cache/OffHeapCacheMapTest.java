@@ -0,0 +1,141 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class OffHeapCacheMapTest extends FrameworkTest {
+
+    /**
+     * Fails on the values of odd keys.
+     */
+    private static final class PickySerializer implements Serializer<String> {
+
+        final Serializer<String> delegate = new JavaSerializer<String>();
+
+        public byte[] serialize(final String value) {
+            if (value.endsWith("1") || value.endsWith("3") || value.endsWith("5") || value.endsWith("7")
+                    || value.endsWith("9")) {
+                throw new IllegalArgumentException(value);
+            }
+            return delegate.serialize(value);
+        }
+
+        public String deserialize(final byte[] bytes) {
+            return delegate.deserialize(bytes);
+        }
+    }
+
+    private static CacheMap<Integer, String> newMap(final CountingFunction<Integer> converter) {
+        return new CacheMapMaker().concurrencyLevel(1).maximumSize(10).offHeap(1 << 20,
+                new JavaSerializer<String>()).makeCacheMap(converter);
+    }
+
+    @Test
+    public void evictedValuesComeBackFromDirectMemory() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = newMap(converter);
+        for (int i = 0; i < 100; i++) {
+            map.get(i);
+        }
+        assertEquals(10, map.size());
+        assertEquals(100, converter.calls.get());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, map.get(i));
+        }
+        assertEquals("Nothing was computed again", 100, converter.calls.get());
+        assertEquals(10, map.size());
+        assertEquals(100, map.stats().getLoadCount());
+    }
+
+    @Test
+    public void unchangedValuesAreSerializedOnce() {
+        final AtomicInteger serializations = new AtomicInteger();
+        final Serializer<String> serializer = new Serializer<String>() {
+            final Serializer<String> delegate = new JavaSerializer<String>();
+
+            public byte[] serialize(final String value) {
+                serializations.incrementAndGet();
+                return delegate.serialize(value);
+            }
+
+            public String deserialize(final byte[] bytes) {
+                return delegate.deserialize(bytes);
+            }
+        };
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(0).offHeap(1 << 20, serializer)
+                .makeCacheMap(new CountingFunction<Integer>());
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals("value" + i, map.get(i));
+            }
+        }
+        assertEquals(20, serializations.get());
+    }
+
+    @Test
+    public void writesReplaceTheOffHeapCopy() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumSize(0).offHeap(1 << 20,
+                new JavaSerializer<String>()).makeCacheMap(new CountingFunction<Integer>());
+        map.put(1, "old");
+        assertFalse(map.containsKey(1));
+        map.put(1, "new");
+        assertEquals("new", map.get(1));
+
+        map.remove(1);
+        assertEquals("value1", map.get(1));
+    }
+
+    @Test
+    public void expirationAppliesOffHeap() {
+        final FakeTicker ticker = new FakeTicker();
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(10)
+                .expireAfterWrite(10, TimeUnit.SECONDS).offHeap(1 << 20, new JavaSerializer<String>()).ticker(
+                        ticker).makeCacheMap(converter);
+        for (int i = 0; i < 20; i++) {
+            map.get(i);
+        }
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertEquals("value0", map.get(0));
+        assertEquals(20, converter.calls.get());
+
+        ticker.advance(5, TimeUnit.SECONDS);
+        for (int i = 20; i < 40; i++) {
+            map.get(i);
+        }
+        converter.calls.set(0);
+        assertEquals("value1", map.get(1));
+        assertEquals("Bringing it back did not renew it", 1, converter.calls.get());
+    }
+
+    @Test
+    public void valuesThatCannotBeSerializedAreDropped() {
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>();
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(0).offHeap(
+                1 << 20, new PickySerializer()).makeCacheMap(converter);
+        map.get(1);
+        map.get(2);
+        assertEquals(0, map.size());
+        map.get(1);
+        map.get(2);
+        assertEquals(3, converter.calls.get());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void theTierNeedsAMaximumSize() {
+        new CacheMapMaker().offHeap(1 << 20, new JavaSerializer<String>()).makeCacheMap(
+                new CountingFunction<Integer>());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void theBudgetMustBePositive() {
+        new CacheMapMaker().offHeap(0, new JavaSerializer<String>());
+    }
+}
@@ -0,0 +1,121 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class OffHeapStoreTest extends FrameworkTest {
+
+    private static byte[] bytes(final int length, final int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void valuesRoundTrip() {
+        final OffHeapStore<String> store = new OffHeapStore<String>(1 << 16);
+        assertTrue(store.put("a", bytes(10, 1), 5L, Long.MAX_VALUE));
+        assertTrue(store.put("b", bytes(1000, 2), 6L, Long.MAX_VALUE));
+        assertEquals(2, store.size());
+        assertEquals(1010, store.usedBytes());
+
+        final OffHeapStore.Copy copy = store.read("b", 0L);
+        assertTrue(Arrays.equals(bytes(1000, 2), copy.bytes));
+        assertEquals(6L, copy.writeTime);
+        assertTrue("Reading keeps the value", store.containsKey("b"));
+        store.remove("b");
+        assertNull(store.read("b", 0L));
+        assertTrue(Arrays.equals(bytes(10, 1), store.read("a", 0L).bytes));
+        assertEquals(10, store.usedBytes());
+    }
+
+    @Test
+    public void readingAValueKeepsItLonger() {
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(4096);
+        for (int i = 0; i < 39; i++) {
+            store.put(i, bytes(100, i), 0L, Long.MAX_VALUE);
+        }
+        store.read(0, 0L);
+        store.put(39, bytes(100, 39), 0L, Long.MAX_VALUE);
+        assertTrue(store.containsKey(0));
+        assertFalse(store.containsKey(1));
+    }
+
+    @Test
+    public void theOldestValuesOfAClassMakeRoom() {
+        // One slab of 4096 bytes, cut into chunks of 104 bytes for these values.
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(4096);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(store.put(i, bytes(100, i), 0L, Long.MAX_VALUE));
+        }
+        assertEquals(4096, store.allocatedBytes());
+        assertEquals(4096 / 104, store.size());
+        assertFalse(store.containsKey(0));
+        assertTrue(store.containsKey(49));
+        assertTrue(Arrays.equals(bytes(100, 49), store.read(49, 0L).bytes));
+    }
+
+    @Test
+    public void freedChunksAreReused() {
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(4096);
+        for (int i = 0; i < 1000; i++) {
+            store.put(i % 10, bytes(100, i), 0L, Long.MAX_VALUE);
+        }
+        assertEquals(10, store.size());
+        store.clear();
+        assertEquals(0, store.size());
+        assertTrue(store.put(1, bytes(4000, 1), 0L, Long.MAX_VALUE));
+        assertEquals("The slab was reused", 4096, store.allocatedBytes());
+    }
+
+    @Test
+    public void oversizedValuesAreRejected() {
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(4096);
+        assertFalse(store.put(1, bytes(4097, 1), 0L, Long.MAX_VALUE));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void aClassWithoutValuesTakesASlabFromAnother() {
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(4096);
+        assertTrue(store.put(1, bytes(100, 1), 0L, Long.MAX_VALUE));
+        assertTrue(store.put(2, bytes(2000, 2), 0L, Long.MAX_VALUE));
+        assertFalse("The slab's values went with it", store.containsKey(1));
+        assertTrue(Arrays.equals(bytes(2000, 2), store.read(2, 0L).bytes));
+
+        assertTrue("An empty class takes the slab in turn", store.put(3, bytes(1500, 3), 0L, Long.MAX_VALUE));
+        assertTrue(store.put(4, bytes(100, 4), 0L, Long.MAX_VALUE));
+        assertFalse(store.containsKey(3));
+    }
+
+    @Test
+    public void budgetsAreSplitIntoSlabs() {
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(1 << 20);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.put(i, bytes(100 + i * 10, i), 0L, Long.MAX_VALUE));
+        }
+        assertEquals(100, store.size());
+        assertTrue(store.allocatedBytes() <= (1 << 20));
+        assertFalse("Slabs are a sixteenth of the budget", store.put(-1, bytes(70000, 1), 0L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void expiredValuesAreNotTaken() {
+        final OffHeapStore<Integer> store = new OffHeapStore<Integer>(4096);
+        store.put(1, bytes(10, 1), 0L, 100L);
+        assertNotNull(store.read(1, 99L));
+        assertNull(store.read(1, 100L));
+        assertEquals(0, store.size());
+        store.put(2, bytes(10, 2), 0L, 100L);
+        assertTrue(store.touch(2, 200L));
+        assertNotNull(store.read(2, 150L));
+        assertFalse(store.touch(3, 200L));
+    }
+}
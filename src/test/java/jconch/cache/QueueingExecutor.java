@@ -0,0 +1,35 @@
+package jconch.cache;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that holds on to its tasks until the test runs them.
+ */
+final class QueueingExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+    public synchronized void execute(final Runnable task) {
+        tasks.add(task);
+    }
+
+    synchronized int pending() {
+        return tasks.size();
+    }
+
+    /**
+     * Runs the queued tasks, including any they queue themselves.
+     */
+    void runAll() {
+        Runnable task;
+        while ((task = poll()) != null) {
+            task.run();
+        }
+    }
+
+    private synchronized Runnable poll() {
+        return tasks.poll();
+    }
+}
@@ -0,0 +1,109 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class RefreshingCacheMapTest extends FrameworkTest {
+
+    /**
+     * The collaborators of one test: TestNG shares the test instance, so these
+     * cannot be fields.
+     */
+    private static final class Fixture {
+
+        final FakeTicker ticker = new FakeTicker();
+
+        final QueueingExecutor executor = new QueueingExecutor();
+
+        final CountingFunction<Integer> converter = new CountingFunction<Integer>(true);
+
+        final CacheMap<Integer, String> map = new CacheMapMaker().refreshAfterWrite(1, TimeUnit.MINUTES)
+                .executor(executor).ticker(ticker).makeCacheMap(converter);
+    }
+
+    @Test
+    public void servesOldValueWhileReloading() {
+        final Fixture f = new Fixture();
+        final CacheMap<Integer, String> map = f.map;
+        assertEquals("value1#1", map.get(1));
+        f.ticker.advance(2, TimeUnit.MINUTES);
+        assertEquals("value1#1", map.get(1));
+        assertEquals("value1#1", map.get(1));
+        assertEquals("Only one reload", 1, f.executor.pending());
+
+        f.executor.runAll();
+        assertEquals("value1#2", map.get(1));
+        assertEquals(0, f.executor.pending());
+        assertEquals(1, map.stats().getRefreshCount());
+    }
+
+    @Test
+    public void failedReloadKeepsOldValue() {
+        final Fixture f = new Fixture();
+        final CacheMap<Integer, String> map = f.map;
+        map.get(1);
+        f.ticker.advance(2, TimeUnit.MINUTES);
+        f.converter.fail.set(true);
+        map.get(1);
+        f.executor.runAll();
+        assertEquals("value1#1", map.get(1));
+        assertEquals(1, map.stats().getRefreshFailureCount());
+        assertEquals(0, map.stats().getRefreshCount());
+
+        // The next read tries again.
+        f.converter.fail.set(false);
+        f.executor.runAll();
+        assertEquals("value1#2", map.get(1));
+    }
+
+    @Test
+    public void writeDuringReloadWins() {
+        final Fixture f = new Fixture();
+        final CacheMap<Integer, String> map = f.map;
+        map.get(1);
+        f.ticker.advance(2, TimeUnit.MINUTES);
+        map.get(1);
+        map.put(1, "written");
+        f.executor.runAll();
+        assertEquals("written", map.get(1));
+        assertEquals(0, map.stats().getRefreshCount());
+    }
+
+    @Test
+    public void rejectedReloadCountsAsFailure() {
+        final FakeTicker ticker = new FakeTicker();
+        final CacheMap<Integer, String> map = new CacheMapMaker().refreshAfterWrite(1, TimeUnit.SECONDS).executor(
+                new Executor() {
+                    public void execute(final Runnable command) {
+                        throw new RejectedExecutionException();
+                    }
+                }).ticker(ticker).makeCacheMap(new CountingFunction<Integer>(true));
+        map.get(1);
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertEquals("value1#1", map.get(1));
+        assertEquals(1, map.stats().getRefreshFailureCount());
+    }
+
+    @Test
+    public void freshEntriesAreNotReloaded() {
+        final Fixture f = new Fixture();
+        final CacheMap<Integer, String> map = f.map;
+        map.get(1);
+        f.ticker.advance(59, TimeUnit.SECONDS);
+        map.get(1);
+        assertEquals(0, f.executor.pending());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void refreshAfterWriteExplodesOnZero() {
+        new CacheMapMaker().refreshAfterWrite(0, TimeUnit.SECONDS);
+    }
+
+}
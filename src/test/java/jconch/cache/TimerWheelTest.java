@@ -0,0 +1,101 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jconch.cache.LocalCache.Node;
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class TimerWheelTest extends FrameworkTest {
+
+    private static final class RecordingWheel extends TimerWheel<Long, Long> {
+
+        final List<Long> expired = new ArrayList<Long>();
+
+        private long now;
+
+        RecordingWheel(final long now) {
+            super(now);
+            this.now = now;
+        }
+
+        @Override
+        boolean expire(final Node<Long, Long> node) {
+            assertTrue("Expired early", node.timerTime <= now);
+            expired.add(node.key);
+            return true;
+        }
+
+        void advanceTo(final long time) {
+            now = time;
+            advance(time);
+        }
+    }
+
+    private static Node<Long, Long> node(final long expiresAt) {
+        final Node<Long, Long> node = new Node<Long, Long>(expiresAt, 0, expiresAt);
+        node.timerTime = expiresAt;
+        return node;
+    }
+
+    @Test
+    public void expiresEntriesAtEveryLevel() {
+        final RecordingWheel wheel = new RecordingWheel(0L);
+        final long[] times = { TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(90),
+                TimeUnit.HOURS.toNanos(3), TimeUnit.DAYS.toNanos(2), TimeUnit.DAYS.toNanos(30) };
+        for (final long time : times) {
+            wheel.schedule(node(time));
+        }
+
+        // Walk through the first day a second at a time, as a busy cache would.
+        final long step = TimeUnit.SECONDS.toNanos(1);
+        for (long time = 0; time <= TimeUnit.DAYS.toNanos(1); time += step) {
+            wheel.advanceTo(time);
+        }
+        assertEquals(3, wheel.expired.size());
+
+        wheel.advanceTo(TimeUnit.DAYS.toNanos(40));
+        assertEquals(5, wheel.expired.size());
+    }
+
+    @Test
+    public void entriesBeyondTheWheelWaitForTheirTime() {
+        final RecordingWheel wheel = new RecordingWheel(0L);
+        wheel.schedule(node(TimeUnit.DAYS.toNanos(400)));
+        wheel.advanceTo(TimeUnit.DAYS.toNanos(300));
+        assertTrue(wheel.expired.isEmpty());
+        wheel.advanceTo(TimeUnit.DAYS.toNanos(399));
+        assertTrue(wheel.expired.isEmpty());
+        wheel.advanceTo(TimeUnit.DAYS.toNanos(401));
+        assertEquals(1, wheel.expired.size());
+    }
+
+    @Test
+    public void descheduledEntriesDoNotExpire() {
+        final RecordingWheel wheel = new RecordingWheel(0L);
+        final Node<Long, Long> node = node(TimeUnit.SECONDS.toNanos(5));
+        wheel.schedule(node);
+        wheel.deschedule(node);
+        wheel.advanceTo(TimeUnit.MINUTES.toNanos(5));
+        assertTrue(wheel.expired.isEmpty());
+    }
+
+    @Test
+    public void rescheduledEntriesExpireAtTheirNewTime() {
+        final RecordingWheel wheel = new RecordingWheel(0L);
+        final Node<Long, Long> node = node(TimeUnit.SECONDS.toNanos(5));
+        wheel.schedule(node);
+        node.timerTime = TimeUnit.SECONDS.toNanos(100);
+        wheel.reschedule(node);
+        wheel.advanceTo(TimeUnit.SECONDS.toNanos(50));
+        assertTrue(wheel.expired.isEmpty());
+        wheel.advanceTo(TimeUnit.SECONDS.toNanos(102));
+        assertEquals(1, wheel.expired.size());
+    }
+
+}
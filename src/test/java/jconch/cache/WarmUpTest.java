@@ -0,0 +1,176 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class WarmUpTest extends FrameworkTest {
+
+    private static final class CountingFunction implements Function<Integer, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String apply(final Integer key) {
+            calls.incrementAndGet();
+            if (key < 0) {
+                throw new IllegalArgumentException("negative key: " + key);
+            }
+            return "value" + key;
+        }
+    }
+
+    private static List<Integer> range(final int from, final int to) {
+        final List<Integer> keys = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            keys.add(i);
+        }
+        return keys;
+    }
+
+    @Test
+    public void hotKeysAreRankedByFrequency() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(1).maximumSize(100).makeCacheMap(
+                new CountingFunction());
+        for (int i = 0; i < 50; i++) {
+            map.get(i);
+        }
+        for (int i = 0; i < 10; i++) {
+            map.get(7);
+        }
+        for (int i = 0; i < 5; i++) {
+            map.get(3);
+        }
+        assertEquals(Arrays.asList(7, 3), map.hotKeys(2));
+        assertEquals(50, map.hotKeys(1000).size());
+        assertEquals(0, map.hotKeys(0).size());
+    }
+
+    @Test
+    public void aSavedSnapshotPreloadsANewMap() throws IOException, InterruptedException {
+        final File file = File.createTempFile("jconch-hot", ".keys");
+        try {
+            final CacheMap<Integer, String> before = new CacheMapMaker().maximumSize(100).makeCacheMap(
+                    new CountingFunction());
+            for (int i = 0; i < 100; i++) {
+                before.get(i);
+            }
+            assertEquals(20, before.saveHotKeys(file, 20, new JavaSerializer<Integer>()));
+
+            final CountingFunction converter = new CountingFunction();
+            final CacheMap<Integer, String> after = new CacheMapMaker().maximumSize(100).makeCacheMap(converter);
+            final WarmUp warmUp = after.preload(file, new JavaSerializer<Integer>(), 4, 1, TimeUnit.MINUTES);
+            assertTrue(warmUp.await(10, TimeUnit.SECONDS));
+            assertEquals(20, warmUp.getKeyCount());
+            assertEquals(20, warmUp.getLoadedCount());
+            assertEquals(0, warmUp.getSkippedCount());
+            assertEquals(20, converter.calls.get());
+            assertEquals(20, after.size());
+            for (final Integer key : before.hotKeys(20)) {
+                assertTrue(after.containsKey(key));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void onlySnapshotsArePreloaded() throws IOException {
+        final File file = File.createTempFile("jconch-hot", ".keys");
+        try {
+            new CacheMap<Integer, String>(new CountingFunction()).preload(file, new JavaSerializer<Integer>(), 1, 1,
+                    TimeUnit.MINUTES);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void bulkLoadersLoadInBatches() {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        final Function<Collection<Integer>, Map<Integer, String>> bulkLoader;
+        bulkLoader = new Function<Collection<Integer>, Map<Integer, String>>() {
+            public Map<Integer, String> apply(final Collection<Integer> keys) {
+                synchronized (batchSizes) {
+                    batchSizes.add(keys.size());
+                }
+                final Map<Integer, String> values = new HashMap<Integer, String>();
+                for (final Integer key : keys) {
+                    values.put(key, "bulk" + key);
+                }
+                return values;
+            }
+        };
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(executor).makeCacheMap(
+                new CountingFunction(), bulkLoader);
+        final WarmUp warmUp = map.preload(range(0, 200), 2, 1, TimeUnit.MINUTES);
+        assertEquals("The parallelism bounds the tasks", 2, executor.pending());
+        assertFalse(warmUp.isDone());
+
+        executor.runAll();
+        assertTrue(warmUp.isDone());
+        assertEquals(Arrays.asList(64, 64, 64, 8), batchSizes);
+        assertEquals(200, warmUp.getLoadedCount());
+        assertEquals("bulk199", map.get(199));
+    }
+
+    @Test
+    public void failuresAreCounted() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(executor).makeCacheMap(
+                new CountingFunction());
+        final WarmUp warmUp = map.preload(range(-3, 7), 3, 1, TimeUnit.MINUTES);
+        executor.runAll();
+        assertEquals(7, warmUp.getLoadedCount());
+        assertEquals(3, warmUp.getFailedCount());
+        assertEquals(0, warmUp.getSkippedCount());
+    }
+
+    @Test
+    public void theRestIsSkippedWhenTimeRunsOut() throws InterruptedException {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CountingFunction converter = new CountingFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(executor).makeCacheMap(converter);
+        final WarmUp warmUp = map.preload(range(0, 10), 1, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(10);
+        executor.runAll();
+        assertTrue(warmUp.isDone());
+        assertEquals(10, warmUp.getSkippedCount());
+        assertEquals(0, converter.calls.get());
+    }
+
+    @Test
+    public void aCancelledWarmUpSkipsTheRest() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CountingFunction converter = new CountingFunction();
+        final CacheMap<Integer, String> map = new CacheMapMaker().executor(executor).makeCacheMap(converter);
+        final WarmUp warmUp = map.preload(range(0, 10), 1, 1, TimeUnit.MINUTES);
+        warmUp.cancel();
+        executor.runAll();
+        assertEquals(10, warmUp.getSkippedCount());
+        assertEquals(0, converter.calls.get());
+    }
+
+    @Test
+    public void nothingToPreloadIsDoneAtOnce() {
+        final WarmUp warmUp = new CacheMap<Integer, String>(new CountingFunction()).preload(
+                new ArrayList<Integer>(), 4, 1, TimeUnit.MINUTES);
+        assertTrue(warmUp.isDone());
+        assertEquals(0, warmUp.getKeyCount());
+    }
+}
@@ -0,0 +1,163 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class WeightedCacheMapTest extends FrameworkTest {
+
+    /**
+     * Makes values of a length given by the key: key 3007 maps to a string of
+     * 7 characters.
+     */
+    private static final class SizedFunction implements Function<Integer, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String apply(final Integer key) {
+            calls.incrementAndGet();
+            final char[] chars = new char[key % 1000];
+            Arrays.fill(chars, 'x');
+            return new String(chars);
+        }
+    }
+
+    private static final Weigher<Integer, String> LENGTH = new Weigher<Integer, String>() {
+        public int weigh(final Integer key, final String value) {
+            return value.length();
+        }
+    };
+
+    private static CacheMap<Integer, String> newMap(final SizedFunction converter, final long maximumWeight) {
+        return new CacheMapMaker().concurrencyLevel(1).maximumWeight(maximumWeight, LENGTH).makeCacheMap(converter);
+    }
+
+    private static long totalWeight(final CacheMap<Integer, String> map) {
+        long total = 0;
+        for (final String value : map.values()) {
+            total += value.length();
+        }
+        return total;
+    }
+
+    @Test
+    public void theTotalWeightIsBounded() {
+        final CacheMap<Integer, String> map = newMap(new SizedFunction(), 1000);
+        for (int i = 0; i < 500; i++) {
+            map.get((i * 1000) + 10 + (i % 90));
+        }
+        assertTrue(totalWeight(map) <= 1000);
+        assertTrue("The budget is put to use", totalWeight(map) > 800);
+        assertTrue(map.stats().getSizeEvictionCount() > 0);
+    }
+
+    @Test
+    public void lightEntriesOutnumberHeavyOnes() {
+        final CacheMap<Integer, String> map = newMap(new SizedFunction(), 1000);
+        for (int i = 0; i < 200; i++) {
+            map.get((i * 1000) + 5);
+        }
+        assertEquals(200, map.size());
+        for (int i = 200; i < 400; i++) {
+            map.get((i * 1000) + 500);
+        }
+        assertTrue(map.size() <= 3);
+    }
+
+    @Test
+    public void anEntryHeavierThanTheBudgetDisplacesNothing() {
+        final SizedFunction converter = new SizedFunction();
+        final CacheMap<Integer, String> map = newMap(converter, 100);
+        for (int i = 0; i < 5; i++) {
+            map.get((i * 1000) + 10);
+        }
+        assertEquals(200, map.get(200).length());
+        assertEquals(5, map.size());
+        assertFalse(map.containsKey(200));
+        assertEquals(1, map.stats().getSizeEvictionCount());
+
+        map.get(200);
+        assertEquals("Not retained, so computed again", 7, converter.calls.get());
+    }
+
+    @Test
+    public void anEntryHeavierThanASegmentsShareIsKept() {
+        final SizedFunction converter = new SizedFunction();
+        // With the default concurrency level, a share is 1/16 of 1000.
+        final CacheMap<Integer, String> map = new CacheMapMaker().maximumWeight(1000, LENGTH).makeCacheMap(
+                converter);
+        for (int i = 0; i < 50; i++) {
+            map.get((i * 1000) + 5);
+        }
+        assertEquals(700, map.get(700).length());
+        assertEquals(700, map.get(700).length());
+        assertEquals("Retained, so computed once", 51, converter.calls.get());
+        assertTrue(map.containsKey(700));
+        assertTrue(totalWeight(map) <= 1000);
+        assertEquals(1, map.stats().getHitCount());
+    }
+
+    @Test
+    public void segmentsShareTheBudget() {
+        final CacheMap<Integer, String> map = new CacheMapMaker().concurrencyLevel(16).maximumWeight(1000, LENGTH)
+                .makeCacheMap(new SizedFunction());
+        for (int i = 0; i < 2000; i++) {
+            map.get((i * 1000) + 10 + (i % 90));
+            assertTrue(totalWeight(map) <= 1000);
+        }
+        assertTrue("The budget is put to use", totalWeight(map) > 800);
+        assertTrue(map.stats().getSizeEvictionCount() > 0);
+    }
+
+    @Test
+    public void aHeavierValueMakesRoom() {
+        final CacheMap<Integer, String> map = newMap(new SizedFunction(), 100);
+        for (int i = 0; i < 10; i++) {
+            map.get((i * 1000) + 10);
+        }
+        assertEquals(10, map.size());
+        map.put(0, "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+        assertTrue(totalWeight(map) <= 100);
+        assertTrue(map.size() < 10);
+
+        map.put(1, new String(new char[101]));
+        assertFalse(map.containsKey(1));
+    }
+
+    @Test
+    public void weightlessEntriesAreFree() {
+        final CacheMap<Integer, String> map = newMap(new SizedFunction(), 0);
+        for (int i = 0; i < 100; i++) {
+            map.get(i * 1000);
+        }
+        assertEquals(100, map.size());
+        map.get(1);
+        assertFalse(map.containsKey(1));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void negativeWeightsAreRejected() {
+        new CacheMapMaker().maximumWeight(10, new Weigher<Integer, String>() {
+            public int weigh(final Integer key, final String value) {
+                return -1;
+            }
+        }).makeCacheMap(new SizedFunction()).get(1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void sizeAndWeightAreExclusive() {
+        new CacheMapMaker().maximumSize(10).maximumWeight(10, LENGTH);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void weightAndSizeAreExclusive() {
+        new CacheMapMaker().maximumWeight(10, LENGTH).maximumSize(10);
+    }
+}
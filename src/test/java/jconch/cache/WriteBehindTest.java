@@ -0,0 +1,230 @@
+package jconch.cache;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+
+public class WriteBehindTest extends FrameworkTest {
+
+    private static final Function<String, String> UPPER = new Function<String, String>() {
+        public String apply(final String key) {
+            return key.toUpperCase();
+        }
+    };
+
+    /**
+     * Keeps the batches it is given, and fails while it is told to.
+     */
+    private static class RecordingWriter implements CacheWriter<String, String> {
+
+        final List<Map<String, String>> batches = new ArrayList<Map<String, String>>();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        volatile boolean failing;
+
+        public synchronized void write(final Map<String, String> entries) {
+            if (failing) {
+                throw new IllegalStateException("the store is down");
+            }
+            batches.add(new LinkedHashMap<String, String>(entries));
+            threads.add(Thread.currentThread());
+            notifyAll();
+        }
+
+        synchronized void awaitBatches(final int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (batches.size() < count) {
+                final long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Timed out waiting for " + count + " batches", remaining > 0);
+                wait(remaining);
+            }
+        }
+
+        synchronized int writtenCount() {
+            int count = 0;
+            for (final Map<String, String> batch : batches) {
+                count += batch.size();
+            }
+            return count;
+        }
+    }
+
+    private static Map<String, String> entries(final String... keysAndValues) {
+        final Map<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            entries.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return entries;
+    }
+
+    @Test
+    public void putsAreCoalescedIntoBatches() throws InterruptedException {
+        final RecordingWriter writer = new RecordingWriter();
+        final CacheMap<String, String> map = new CacheMapMaker().writeBehind(writer, 3, 1, TimeUnit.HOURS, 100)
+                .makeCacheMap(UPPER);
+        map.put("a", "1");
+        map.put("a", "2");
+        map.put("b", "3");
+        assertEquals("The cache sees the put at once", "2", map.get("a"));
+        map.put("c", "4");
+        writer.awaitBatches(1);
+        assertEquals(entries("a", "2", "b", "3", "c", "4"), writer.batches.get(0));
+    }
+
+    @Test
+    public void aPartialBatchIsWrittenAfterTheDelay() throws InterruptedException {
+        final RecordingWriter writer = new RecordingWriter();
+        final CacheMap<String, String> map = new CacheMapMaker().writeBehind(writer, 100, 50, TimeUnit.MILLISECONDS,
+                100).makeCacheMap(UPPER);
+        final long start = System.nanoTime();
+        map.put("a", "1");
+        writer.awaitBatches(1);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+        assertEquals(entries("a", "1"), writer.batches.get(0));
+        assertEquals(0, map.getPendingWriteCount());
+    }
+
+    @Test
+    public void whatABatchLeavesWaitsForItsOwnDelay() throws InterruptedException {
+        final RecordingWriter writer = new RecordingWriter();
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<String, String> map = new CacheMapMaker().executor(executor).writeBehind(writer, 3, 400,
+                TimeUnit.MILLISECONDS, 100).makeCacheMap(UPPER);
+        map.put("a", "1");
+        Thread.sleep(300);
+        map.put("b", "2");
+        map.put("c", "3");
+        final long start = System.nanoTime();
+        map.put("d", "4");
+
+        // The flusher writes the full batch, then waits for the rest.
+        executor.runAll();
+        assertEquals(Arrays.asList(entries("a", "1", "b", "2", "c", "3"), entries("d", "4")), writer.batches);
+        assertTrue("The leftover write went out early",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 350);
+    }
+
+    @Test
+    public void loadsAndRemovalsAreNotWritten() {
+        final RecordingWriter writer = new RecordingWriter();
+        final CacheMap<String, String> map = new CacheMapMaker().executor(new QueueingExecutor()).writeBehind(writer,
+                10, 1, TimeUnit.HOURS, 100).makeCacheMap(UPPER);
+        assertEquals("X", map.get("x"));
+        map.put("y", "1");
+        map.remove("y");
+        map.flushWrites();
+        assertEquals(Arrays.asList(entries("y", "1")), writer.batches);
+    }
+
+    @Test
+    public void flushingWritesEverythingOnce() throws InterruptedException {
+        final RecordingWriter writer = new RecordingWriter();
+        final CacheMap<String, String> map = new CacheMapMaker().writeBehind(writer, 10, 1, TimeUnit.HOURS, 100)
+                .makeCacheMap(UPPER);
+        for (int i = 0; i < 25; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        map.flushWrites();
+        assertEquals(0, map.getPendingWriteCount());
+        assertEquals(25, writer.writtenCount());
+        final Map<String, String> written = new HashMap<String, String>();
+        for (final Map<String, String> batch : writer.batches) {
+            written.putAll(batch);
+        }
+        assertEquals(25, written.size());
+    }
+
+    @Test
+    public void aFullQueueMakesThePutterWrite() {
+        final RecordingWriter writer = new RecordingWriter();
+        final QueueingExecutor executor = new QueueingExecutor();
+        final CacheMap<String, String> map = new CacheMapMaker().executor(executor).writeBehind(writer, 2, 1,
+                TimeUnit.HOURS, 4).makeCacheMap(UPPER);
+        for (final String key : Arrays.asList("a", "b", "c", "d")) {
+            map.put(key, key);
+        }
+        map.put("a", "again");
+        assertEquals("A queued key needs no room", 0, writer.batches.size());
+
+        map.put("e", "e");
+        assertEquals(Arrays.asList(entries("a", "again", "b", "b")), writer.batches);
+        assertSame(Thread.currentThread(), writer.threads.get(0));
+        assertEquals(3, map.getPendingWriteCount());
+    }
+
+    @Test
+    public void aFailingWriterFailsThePutThatWaitsForIt() {
+        final RecordingWriter writer = new RecordingWriter();
+        final CacheMap<String, String> map = new CacheMapMaker().executor(new QueueingExecutor()).writeBehind(writer,
+                2, 1, TimeUnit.HOURS, 2).makeCacheMap(UPPER);
+        map.put("a", "1");
+        map.put("b", "2");
+        writer.failing = true;
+        try {
+            map.put("c", "3");
+            fail("The put should have failed");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        assertFalse("Nothing was stored", map.containsKey("c"));
+        assertEquals(2, map.getPendingWriteCount());
+
+        writer.failing = false;
+        map.flushWrites();
+        assertEquals(Arrays.asList(entries("a", "1", "b", "2")), writer.batches);
+    }
+
+    @Test
+    public void aFailedBatchGivesWayToNewerValues() {
+        final QueueingExecutor executor = new QueueingExecutor();
+        final Map<String, CacheMap<String, String>> holder = new HashMap<String, CacheMap<String, String>>();
+        final RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public synchronized void write(final Map<String, String> entries) {
+                if (batches.isEmpty() && !failing) {
+                    failing = true;
+                    holder.get("map").put("a", "newer");
+                    throw new IllegalStateException("the store is down");
+                }
+                failing = false;
+                super.write(entries);
+            }
+        };
+        final CacheMap<String, String> map = new CacheMapMaker().executor(executor).writeBehind(writer, 10, 1,
+                TimeUnit.HOURS, 10).makeCacheMap(UPPER);
+        holder.put("map", map);
+        map.put("a", "older");
+        map.put("b", "1");
+        try {
+            map.flushWrites();
+            fail("The flush should have failed");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        map.flushWrites();
+        assertEquals(Arrays.asList(entries("b", "1", "a", "newer")), writer.batches);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void theBoundMustHoldABatch() {
+        new CacheMapMaker().writeBehind(new RecordingWriter(), 10, 1, TimeUnit.SECONDS, 9);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void asyncMapsDoNotWriteBehind() {
+        new CacheMapMaker().writeBehind(new RecordingWriter(), 10, 1, TimeUnit.SECONDS, 10).makeAsyncCacheMap(UPPER);
+    }
+}
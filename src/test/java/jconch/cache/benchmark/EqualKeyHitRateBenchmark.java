@@ -0,0 +1,90 @@
+package jconch.cache.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
+import jconch.multikey.SimpleTriKey;
+
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+
+/**
+ * <p>
+ * Shows what comparing keys by identity costs when callers build a new key for
+ * every look-up, as they do with strings and multi-keys. Each request builds a
+ * fresh {@link SimpleTriKey} that is equal to, but not the same object as, the
+ * keys requested before it.
+ * </p>
+ * <p>
+ * The "identity" map is the soft-keyed computing map that {@link CacheMap} used
+ * to be built on; it finds an entry only through the very key that created it,
+ * so it grows by one entry per request until the collector steps in.
+ * </p>
+ *
+ * <pre>
+ * java -Xmx128m jconch.cache.benchmark.EqualKeyHitRateBenchmark [keys] [cacheSize] [requests] [skew]
+ * </pre>
+ */
+public final class EqualKeyHitRateBenchmark {
+
+    private EqualKeyHitRateBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    public static void main(final String[] args) {
+        final int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        final int cacheSize = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        final int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 200000;
+        final double skew = (args.length > 3) ? Double.parseDouble(args[3]) : 0.9;
+
+        System.out.println(String.format("%d keys, %d requests, skew %.2f, cache size %d", keyCount, requests,
+                skew, cacheSize));
+
+        final LoadCounter identityLoads = new LoadCounter();
+        final Map<SimpleTriKey<Object>, String> identityMap = new MapMaker().softKeys().makeComputingMap(
+                identityLoads);
+        report("identity", run(identityMap, keyCount, requests, skew), identityLoads, requests);
+
+        final LoadCounter softLoads = new LoadCounter();
+        report("soft values", run(new CacheMap<SimpleTriKey<Object>, String>(softLoads), keyCount, requests, skew),
+                softLoads, requests);
+
+        final LoadCounter boundedLoads = new LoadCounter();
+        report("maximumSize", run(new CacheMapMaker().maximumSize(cacheSize).makeCacheMap(boundedLoads),
+                keyCount, requests, skew), boundedLoads, requests);
+    }
+
+    private static Map<SimpleTriKey<Object>, String> run(final Map<SimpleTriKey<Object>, String> map,
+            final int keyCount, final int requests, final double skew) {
+        final ZipfianGenerator generator = new ZipfianGenerator(keyCount, skew, 42L);
+        final long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            final int id = generator.nextInt();
+            map.get(new SimpleTriKey<Object>("account", id, "profile:" + id));
+        }
+        System.out.print(String.format("%6d ms  ", (System.nanoTime() - start) / 1000000L));
+        return map;
+    }
+
+    private static void report(final String name, final Map<?, ?> map, final LoadCounter loads,
+            final int requests) {
+        final double hitRate = 100.0 * (requests - loads.count.get()) / requests;
+        System.out.println(String.format("%-12s hit rate %6.2f%%  (%d loads, %d entries at end)", name,
+                hitRate, loads.count.get(), map.size()));
+    }
+
+    /**
+     * The "expensive" look-up, which counts its calls.
+     */
+    private static final class LoadCounter implements Function<SimpleTriKey<Object>, String> {
+
+        final AtomicLong count = new AtomicLong();
+
+        public String apply(final SimpleTriKey<Object> key) {
+            count.incrementAndGet();
+            return "value of " + key;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package jconch.cache.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
+import jconch.cache.CompactCacheMap;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Reports how many bytes of heap each entry of a cache map costs, for the
+ * soft-valued {@link CacheMap}, for a {@link CacheMap} built by a
+ * {@link CacheMapMaker}, and for a {@link CompactCacheMap}. The keys and the
+ * values are allocated before any map is filled, and shared by all of them, so
+ * the report counts only what the maps add: their tables, their entries,
+ * their references and their locks.
+ * </p>
+ * <p>
+ * The soft-valued map has to keep every value, so give the JVM a heap large
+ * enough that the collector never clears them:
+ * </p>
+ *
+ * <pre>
+ * java -Xmx2g jconch.cache.benchmark.FootprintBenchmark [entries]
+ * </pre>
+ */
+public final class FootprintBenchmark {
+
+    private FootprintBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    public static void main(final String[] args) {
+        final int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        final Integer[] keys = new Integer[entries];
+        final String[] values = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = Integer.valueOf(i);
+            values[i] = "value" + i;
+        }
+        final Function<Integer, String> loader = new Function<Integer, String>() {
+            public String apply(final Integer key) {
+                return values[key];
+            }
+        };
+
+        System.out.println(String.format("%d entries (%s %s)", entries, System.getProperty("java.vm.name"),
+                System.getProperty("java.version")));
+        final long baseline = usedHeap();
+
+        CacheMap<Integer, String> soft = new CacheMap<Integer, String>(loader);
+        for (final Integer key : keys) {
+            soft.get(key);
+        }
+        report("CacheMap (soft values)", usedHeap() - baseline, soft.size(), entries);
+        soft = null;
+
+        CacheMap<Integer, String> local = new CacheMapMaker().maximumSize(entries).makeCacheMap(loader);
+        for (final Integer key : keys) {
+            local.get(key);
+        }
+        report("CacheMap (maker)", usedHeap() - baseline, local.size(), entries);
+        local = null;
+
+        CompactCacheMap<Integer, String> compact = new CacheMapMaker().maximumSize(entries).makeCompactCacheMap(
+                loader);
+        for (final Integer key : keys) {
+            compact.get(key);
+        }
+        report("CompactCacheMap", usedHeap() - baseline, compact.size(), entries);
+        compact = null;
+
+        // Keep the keys and values reachable until the last measurement.
+        System.out.println(String.format("(checksum %d)", keys.length + values[entries - 1].length()));
+    }
+
+    private static void report(final String name, final long bytes, final int size, final int entries) {
+        System.out.println(String.format("  %-24s %,14d bytes  %8.1f bytes per entry  (%d of %d entries kept)", name,
+                bytes, (double) bytes / Math.max(1, size), size, entries));
+    }
+
+    /**
+     * @return The bytes of heap in use once the collector has run until it
+     *         stops finding garbage.
+     */
+    private static long usedHeap() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            final long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                return now;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,75 @@
+package jconch.cache.benchmark;
+
+import groovy.lang.Closure;
+
+import jconch.functor.GroovyClosureFunction;
+
+import org.codehaus.groovy.runtime.GeneratedClosure;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Measures the cost of calling a one-argument Groovy closure the way a
+ * {@link jconch.cache.GroovyCacheMap} does on each miss: through
+ * {@link Closure#call(Object)}, which dispatches dynamically, and through a
+ * {@link GroovyClosureFunction}, which calls the closure's
+ * <code>doCall</code> method directly. The closure is shaped like the class
+ * the Groovy compiler makes of <code>{ k -&gt; k.length() }</code>, and does
+ * next to nothing, so the time is all in the call.
+ * </p>
+ *
+ * <pre>
+ * java jconch.cache.benchmark.GroovyClosureBenchmark [calls]
+ * </pre>
+ */
+public final class GroovyClosureBenchmark {
+
+    private GroovyClosureBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    @SuppressWarnings("serial")
+    public static final class Length extends Closure implements GeneratedClosure {
+
+        public Length() {
+            super(null);
+        }
+
+        public Object doCall(final Object k) {
+            return ((String) k).length();
+        }
+    }
+
+    public static void main(final String[] args) {
+        final int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 5000000;
+        final String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+        final Closure closure = new Length();
+        final Function<Object, Object> function = new GroovyClosureFunction(closure);
+
+        System.out.println(String.format("%d calls", calls));
+        for (int round = 0; round < 3; round++) {
+            long begin = System.nanoTime();
+            long sink = 0;
+            for (int i = 0; i < calls; i++) {
+                sink += (Integer) closure.call(keys[i & 1023]);
+            }
+            report("Closure.call", System.nanoTime() - begin, calls, sink);
+
+            begin = System.nanoTime();
+            sink = 0;
+            for (int i = 0; i < calls; i++) {
+                sink += (Integer) function.apply(keys[i & 1023]);
+            }
+            report("fast path", System.nanoTime() - begin, calls, sink);
+        }
+    }
+
+    private static void report(final String name, final long nanos, final int calls, final long sink) {
+        System.out.println(String.format("%-13s %8d ms  %6.1f ns/call  (%d)", name, nanos / 1000000L, (double) nanos
+                / calls, sink));
+    }
+}
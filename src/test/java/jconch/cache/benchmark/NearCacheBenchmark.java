@@ -0,0 +1,96 @@
+package jconch.cache.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Measures the hit throughput of a bounded {@link CacheMap} read by many
+ * threads at once, with and without a {@link CacheMapMaker#nearCache(int)
+ * near cache}. Every key is loaded before the clock starts and the map never
+ * changes, which is the case the near cache is meant for; the difference
+ * grows with the number of cores, as hits on the shared map contend on the
+ * locks and counters they record themselves with.
+ * </p>
+ *
+ * <pre>
+ * java jconch.cache.benchmark.NearCacheBenchmark [threads] [hotKeys] [readsPerThread]
+ * </pre>
+ */
+public final class NearCacheBenchmark {
+
+    private NearCacheBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+                .availableProcessors();
+        final int hotKeys = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        final int reads = (args.length > 2) ? Integer.parseInt(args[2]) : 5000000;
+
+        System.out.println(String.format("%d threads, %d hot keys, %d reads per thread", threads, hotKeys, reads));
+        for (int round = 0; round < 3; round++) {
+            report("shared only", run(new CacheMapMaker().maximumSize(10000).makeCacheMap(LOADER), threads,
+                    hotKeys, reads), threads, reads);
+            report("near cache", run(new CacheMapMaker().maximumSize(10000).nearCache(hotKeys * 4).makeCacheMap(
+                    LOADER), threads, hotKeys, reads), threads, reads);
+        }
+    }
+
+    private static final Function<Integer, String> LOADER = new Function<Integer, String>() {
+        public String apply(final Integer key) {
+            return "value" + key;
+        }
+    };
+
+    /**
+     * @return The elapsed time, in nanoseconds.
+     */
+    private static long run(final Map<Integer, String> map, final int threads, final int hotKeys, final int reads)
+            throws InterruptedException {
+        final Integer[] keys = new Integer[hotKeys];
+        for (int i = 0; i < hotKeys; i++) {
+            keys[i] = i;
+            map.get(keys[i]);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong sink = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    long length = 0;
+                    for (int i = 0; i < reads; i++) {
+                        length += map.get(keys[(i + offset) % hotKeys]).length();
+                    }
+                    sink.addAndGet(length);
+                    done.countDown();
+                }
+            }.start();
+        }
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    private static void report(final String name, final long nanos, final int threads, final int reads) {
+        final double total = (double) threads * reads;
+        System.out.println(String.format("%-12s %8d ms  %8.1f M hits/s", name, nanos / 1000000L, total * 1000.0
+                / nanos));
+    }
+}
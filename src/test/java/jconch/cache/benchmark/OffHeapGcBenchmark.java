@@ -0,0 +1,107 @@
+package jconch.cache.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
+import jconch.cache.Serializer;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Compares the garbage collection cost of keeping a large working set in a
+ * soft-valued {@link CacheMap} on the heap against keeping it in the off-heap
+ * tier behind a bounded one a tenth of its size. Keys follow a Zipfian
+ * distribution, and every request also allocates some short-lived garbage, as
+ * application code does, so that the collector keeps running and has to deal
+ * with whatever the cache leaves on the heap.
+ * </p>
+ * <p>
+ * Run each mode in its own JVM, with the same heap. The defaults hold about
+ * 500 MB of values, which the soft-valued map cannot keep on a 512 MB heap:
+ * </p>
+ *
+ * <pre>
+ * java -Xmx512m -XX:MaxDirectMemorySize=1g jconch.cache.benchmark.OffHeapGcBenchmark heap [entries] [bytes] [reqs]
+ * java -Xmx512m -XX:MaxDirectMemorySize=1g jconch.cache.benchmark.OffHeapGcBenchmark offheap [entries] [bytes] [reqs]
+ * </pre>
+ */
+public final class OffHeapGcBenchmark {
+
+    private OffHeapGcBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    public static void main(final String[] args) {
+        final boolean offHeap = (args.length > 0) && "offheap".equals(args[0]);
+        final int entries = (args.length > 1) ? Integer.parseInt(args[1]) : 500000;
+        final int valueBytes = (args.length > 2) ? Integer.parseInt(args[2]) : 1024;
+        final int requests = (args.length > 3) ? Integer.parseInt(args[3]) : 2000000;
+
+        final Function<Integer, byte[]> loader = new Function<Integer, byte[]>() {
+            public byte[] apply(final Integer key) {
+                return new byte[valueBytes];
+            }
+        };
+        final Map<Integer, byte[]> map;
+        if (offHeap) {
+            map = new CacheMapMaker().maximumSize(entries / 10).offHeap(entries * (valueBytes + (valueBytes / 4L)),
+                    new Serializer<byte[]>() {
+                        public byte[] serialize(final byte[] value) {
+                            return value;
+                        }
+
+                        public byte[] deserialize(final byte[] bytes) {
+                            return bytes;
+                        }
+                    }).makeCacheMap(loader);
+        } else {
+            map = new CacheMap<Integer, byte[]>(loader);
+        }
+
+        for (int i = 0; i < entries; i++) {
+            map.get(i);
+        }
+        System.gc();
+
+        final long gcCountBefore = gcCount();
+        final long gcTimeBefore = gcTime();
+        final long start = System.nanoTime();
+        final ZipfianGenerator generator = new ZipfianGenerator(entries, 0.9, 42L);
+        final byte[][] garbage = new byte[1024][];
+        long checksum = 0;
+        for (int i = 0; i < requests; i++) {
+            checksum += map.get(generator.nextInt()).length;
+            garbage[i & 1023] = new byte[256];
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long collections = gcCount() - gcCountBefore;
+        final long gcMillis = gcTime() - gcTimeBefore;
+
+        System.out.println(String.format("%s: %d entries of %d bytes, %d requests (checksum %d)", offHeap ? "offheap"
+                : "heap", entries, valueBytes, requests, checksum));
+        System.out.println(String.format("  %d ms elapsed, %d collections, %d ms collecting, %.2f ms per collection",
+                elapsed / 1000000L, collections, gcMillis, (collections == 0) ? 0.0 : ((double) gcMillis
+                        / collections)));
+        System.out.println(String.format("  %d entries on the heap at the end", map.size()));
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0L, bean.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,133 @@
+package jconch.cache.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
+import jconch.cache.LongCacheMap;
+import jconch.cache.LongFunction;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Compares look-ups that hit through the boxed {@link CacheMap} against the
+ * same look-ups through a {@link LongCacheMap}. Every key is loaded before the
+ * clock starts, and the bounded maps have room for twice the keys, since each
+ * segment enforces its own share of the bound; the misses are reported to show
+ * that the timed requests are hits.
+ * </p>
+ * <p>
+ * The bytes allocated per request are read from the HotSpot thread bean when
+ * the JVM provides it; the boxed maps allocate a {@link Long} for every key
+ * outside the small-value cache, while the primitive map should show none.
+ * </p>
+ *
+ * <pre>
+ * java jconch.cache.benchmark.PrimitiveKeyBenchmark [keys] [requests] [rounds]
+ * </pre>
+ */
+public final class PrimitiveKeyBenchmark {
+
+    private PrimitiveKeyBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    public static void main(final String[] args) {
+        final int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000;
+        final int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println(String.format("%d keys, %d hits per round, last of %d rounds", keyCount, requests,
+                rounds));
+
+        final Map<Long, String> soft = new CacheMap<Long, String>(BOXED);
+        final CacheMap<Long, String> bounded = new CacheMapMaker().maximumSize(keyCount * 2).makeCacheMap(BOXED);
+        final LongCacheMap<String> primitive = new CacheMapMaker().maximumSize(keyCount * 2).makeLongCacheMap(
+                PRIMITIVE);
+        for (long key = 0; key < keyCount; key++) {
+            soft.get(key);
+            bounded.get(key);
+            primitive.get(key);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            final boolean last = (round == (rounds - 1));
+            report("soft values", runBoxed(soft, keyCount, requests), requests, last);
+            report("maximumSize", runBoxed(bounded, keyCount, requests), requests, last);
+            report("LongCacheMap", runPrimitive(primitive, keyCount, requests), requests, last);
+        }
+        System.out.println(String.format("misses after loading: maximumSize %d, LongCacheMap %d",
+                bounded.stats().getMissCount() - keyCount, primitive.stats().getMissCount() - keyCount));
+    }
+
+    private static final Function<Long, String> BOXED = new Function<Long, String>() {
+        public String apply(final Long key) {
+            return "value" + key;
+        }
+    };
+
+    private static final LongFunction<String> PRIMITIVE = new LongFunction<String>() {
+        public String apply(final long key) {
+            return "value" + key;
+        }
+    };
+
+    /**
+     * A cheap, allocation-free walk over the keys that does not run in order.
+     */
+    private static long nextKey(final long previous, final int keyCount) {
+        return (previous + 7919L) % keyCount;
+    }
+
+    private static long[] runBoxed(final Map<Long, String> map, final int keyCount, final int requests) {
+        final long bytes = allocatedBytes();
+        final long start = System.nanoTime();
+        long key = 0;
+        int sink = 0;
+        for (int i = 0; i < requests; i++) {
+            key = nextKey(key, keyCount);
+            sink += map.get(key).length();
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes() - bytes, sink };
+    }
+
+    private static long[] runPrimitive(final LongCacheMap<String> map, final int keyCount, final int requests) {
+        final long bytes = allocatedBytes();
+        final long start = System.nanoTime();
+        long key = 0;
+        int sink = 0;
+        for (int i = 0; i < requests; i++) {
+            key = nextKey(key, keyCount);
+            sink += map.get(key).length();
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes() - bytes, sink };
+    }
+
+    private static void report(final String name, final long[] result, final int requests, final boolean print) {
+        if (!print) {
+            return;
+        }
+        final double nanosPerHit = (double) result[0] / requests;
+        final String allocated = (result[1] < 0) ? "n/a" : String.format("%.1f", (double) result[1] / requests);
+        System.out.println(String.format("%-12s %8.1f ns/hit  %10.1f M hits/s  %6s bytes/hit", name, nanosPerHit,
+                1000.0 / nanosPerHit, allocated));
+    }
+
+    /**
+     * @return The bytes allocated by this thread so far, or <code>-1</code>
+     *         if the JVM does not say.
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) bean;
+            if (hotSpot.isThreadAllocatedMemorySupported() && hotSpot.isThreadAllocatedMemoryEnabled()) {
+                return hotSpot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
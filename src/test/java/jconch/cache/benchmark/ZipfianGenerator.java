@@ -0,0 +1,48 @@
+package jconch.cache.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates integers in <code>[0, n)</code> following a Zipf distribution: the
+ * item of rank <i>k</i> is drawn with probability proportional to
+ * <code>1 / k<sup>s</sup></code>. Real look-up traffic is usually skewed like
+ * this, with a few very popular keys and a long tail of rare ones.
+ */
+public final class ZipfianGenerator {
+
+    private final double[] cumulative;
+
+    private final Random random;
+
+    /**
+     * Constructor.
+     *
+     * @param items
+     *            The number of distinct items.
+     * @param skew
+     *            The exponent <i>s</i>; larger is more skewed.
+     * @param seed
+     *            The seed, so that runs can be repeated.
+     */
+    public ZipfianGenerator(final int items, final double skew, final long seed) {
+        cumulative = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < items; i++) {
+            cumulative[i] /= sum;
+        }
+        random = new Random(seed);
+    }
+
+    /**
+     * @return The next item, where 0 is the most popular.
+     */
+    public int nextInt() {
+        final int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min((index >= 0) ? index : -(index + 1), cumulative.length - 1);
+    }
+}
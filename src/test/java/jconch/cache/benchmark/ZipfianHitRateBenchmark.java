@@ -0,0 +1,122 @@
+package jconch.cache.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jconch.cache.CacheMap;
+import jconch.cache.CacheMapMaker;
+
+import com.google.common.base.Function;
+
+/**
+ * <p>
+ * Compares the hit rates of a soft-valued {@link CacheMap}, a size-bounded one,
+ * and a plain LRU map of the same size on a Zipfian key stream.
+ * </p>
+ * <p>
+ * The soft-valued map only loses entries when the collector needs the memory,
+ * so run this with a small heap (say <code>-Xmx128m</code>) to see it under the
+ * pressure it would face in production:
+ * </p>
+ *
+ * <pre>
+ * java -Xmx128m jconch.cache.benchmark.ZipfianHitRateBenchmark [keys] [cacheSize] [requests] [skew] [payloadBytes]
+ * </pre>
+ */
+public final class ZipfianHitRateBenchmark {
+
+    private ZipfianHitRateBenchmark() {
+        // NO INSTANTIATION!
+    }
+
+    public static void main(final String[] args) {
+        final int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int cacheSize = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        final int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 2000000;
+        final double skew = (args.length > 3) ? Double.parseDouble(args[3]) : 0.9;
+        final int payload = (args.length > 4) ? Integer.parseInt(args[4]) : 256;
+
+        System.out.println(String.format("%d keys, %d requests, skew %.2f, cache size %d, %d byte values",
+                keyCount, requests, skew, cacheSize, payload));
+
+        final LoadCounter softLoads = new LoadCounter(payload);
+        report("soft values", run(new CacheMap<Integer, byte[]>(softLoads), keyCount, requests, skew), softLoads,
+                requests);
+
+        final LoadCounter lruLoads = new LoadCounter(payload);
+        report("LRU", run(new LruMap(cacheSize, lruLoads), keyCount, requests, skew), lruLoads, requests);
+
+        final LoadCounter boundedLoads = new LoadCounter(payload);
+        report("maximumSize", run(new CacheMapMaker().maximumSize(cacheSize).makeCacheMap(boundedLoads),
+                keyCount, requests, skew), boundedLoads, requests);
+    }
+
+    private static Map<Integer, byte[]> run(final Map<Integer, byte[]> map, final int keyCount,
+            final int requests, final double skew) {
+        // Keys are boxed per request, the way callers' code produces them.
+        final ZipfianGenerator generator = new ZipfianGenerator(keyCount, skew, 42L);
+        for (int i = 0; i < requests; i++) {
+            map.get(generator.nextInt());
+        }
+        return map;
+    }
+
+    private static void report(final String name, final Map<Integer, byte[]> map, final LoadCounter loads,
+            final int requests) {
+        final double hitRate = 100.0 * (requests - loads.count.get()) / requests;
+        System.out.println(String.format("%-12s hit rate %6.2f%%  (%d loads, %d entries at end)", name,
+                hitRate, loads.count.get(), map.size()));
+    }
+
+    /**
+     * The "expensive" look-up: counts its calls and allocates a payload.
+     */
+    private static final class LoadCounter implements Function<Integer, byte[]> {
+
+        final AtomicLong count = new AtomicLong();
+
+        private final int payload;
+
+        LoadCounter(final int payload) {
+            this.payload = payload;
+        }
+
+        public byte[] apply(final Integer key) {
+            count.incrementAndGet();
+            return new byte[payload];
+        }
+    }
+
+    /**
+     * A single-threaded, computing LRU map, as the baseline policy.
+     */
+    @SuppressWarnings("serial")
+    private static final class LruMap extends LinkedHashMap<Integer, byte[]> {
+
+        private final int maximumSize;
+
+        private final Function<Integer, byte[]> loader;
+
+        LruMap(final int maximumSize, final Function<Integer, byte[]> loader) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+            this.loader = loader;
+        }
+
+        @Override
+        public byte[] get(final Object key) {
+            byte[] value = super.get(key);
+            if (value == null) {
+                value = loader.apply((Integer) key);
+                put((Integer) key, value);
+            }
+            return value;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, byte[]> eldest) {
+            return size() > maximumSize;
+        }
+    }
+}
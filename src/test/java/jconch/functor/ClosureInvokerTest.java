@@ -0,0 +1,153 @@
+package jconch.functor;
+
+import static org.testng.AssertJUnit.*;
+
+import groovy.lang.Closure;
+import groovy.lang.DelegatingMetaClass;
+import groovy.lang.MissingMethodException;
+
+import java.io.IOException;
+
+import jconch.test.FrameworkTest;
+
+import org.codehaus.groovy.runtime.GeneratedClosure;
+import org.codehaus.groovy.runtime.InvokerInvocationException;
+import org.testng.annotations.Test;
+
+public class ClosureInvokerTest extends FrameworkTest {
+
+    /**
+     * Shaped like the class the Groovy compiler makes of <code>{ it + "!" }</code>.
+     */
+    @SuppressWarnings("serial")
+    public static class Exclaim extends Closure implements GeneratedClosure {
+
+        int calls;
+
+        public Exclaim() {
+            super(null);
+        }
+
+        public Object doCall(final Object it) throws IOException {
+            calls++;
+            if ("io".equals(it)) {
+                throw new IOException("cannot exclaim");
+            }
+            if ("state".equals(it)) {
+                throw new IllegalStateException("cannot exclaim");
+            }
+            return it + "!";
+        }
+
+        public Object doCall() throws IOException {
+            return doCall(null);
+        }
+    }
+
+    /**
+     * Shaped like the class the Groovy compiler makes of
+     * <code>{ int i -> i * 2 }</code>.
+     */
+    @SuppressWarnings("serial")
+    public static class Twice extends Closure implements GeneratedClosure {
+
+        public Twice() {
+            super(null);
+        }
+
+        public Object doCall(final int i) {
+            return i * 2;
+        }
+    }
+
+    @Test
+    public void compiledClosuresAreCalledDirectly() {
+        final Exclaim closure = new Exclaim();
+        final ClosureInvoker invoker = new ClosureInvoker(closure);
+        assertTrue(invoker.isDirect());
+        assertEquals("a!", invoker.call("a"));
+        assertEquals("null!", invoker.call(null));
+        assertEquals(2, closure.calls);
+        assertTrue(new ClosureInvoker(new Twice()).isDirect());
+    }
+
+    @Test
+    public void otherClosuresAreCalledThroughGroovy() {
+        final Closure curried = new Exclaim().curry(new Object[] { "a" });
+        final ClosureInvoker invoker = new ClosureInvoker(curried);
+        assertFalse(invoker.isDirect());
+        assertEquals("a!", new ClosureInvoker(new Exclaim().curry(new Object[0])).call("a"));
+    }
+
+    @Test
+    public void argumentsTheMethodDoesNotTakeGoThroughGroovy() {
+        final ClosureInvoker invoker = new ClosureInvoker(new Twice());
+        assertEquals(6, invoker.call(3));
+        try {
+            invoker.call(null);
+            fail("Called an int closure with null");
+        } catch (final MissingMethodException e) {
+            assertEquals(new Twice().getClass(), e.getType());
+        }
+        try {
+            invoker.call(3L);
+            fail("Called an int closure with a long");
+        } catch (final MissingMethodException e) {
+            // As Groovy does.
+        }
+    }
+
+    @Test
+    public void exceptionsAreThrownAsGroovyThrowsThem() {
+        final Exclaim closure = new Exclaim();
+        final ClosureInvoker invoker = new ClosureInvoker(closure);
+        for (final Object arg : new Object[] { "io", "state" }) {
+            Throwable direct = null;
+            Throwable dynamic = null;
+            try {
+                invoker.call(arg);
+            } catch (final RuntimeException e) {
+                direct = e;
+            }
+            try {
+                closure.call(arg);
+            } catch (final RuntimeException e) {
+                dynamic = e;
+            }
+            assertNotNull(direct);
+            assertEquals(dynamic.getClass(), direct.getClass());
+            assertEquals(dynamic.getMessage(), direct.getMessage());
+        }
+        try {
+            invoker.call("io");
+            fail("Exclaimed io");
+        } catch (final InvokerInvocationException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void aReplacedMetaClassIsHonoured() {
+        final Exclaim closure = new Exclaim();
+        final ClosureInvoker invoker = new ClosureInvoker(closure);
+        final int[] dispatched = new int[1];
+        closure.setMetaClass(new DelegatingMetaClass(closure.getMetaClass()) {
+            @Override
+            public Object invokeMethod(final Object object, final String methodName, final Object[] arguments) {
+                dispatched[0]++;
+                return super.invokeMethod(object, methodName, arguments);
+            }
+        });
+        assertEquals("a!", invoker.call("a"));
+        assertEquals(1, dispatched[0]);
+        assertEquals(1, closure.calls);
+    }
+
+    @Test
+    public void functionsAndTransformersUseTheFastPath() {
+        final Exclaim closure = new Exclaim();
+        assertEquals("a!", new GroovyClosureFunction(closure).apply("a"));
+        assertEquals("b!", new GroovyClosureTransformer(closure).transform("b"));
+        assertEquals(2, closure.calls);
+    }
+}
@@ -5,6 +5,7 @@ import static test.utils.MemoryTestUtils.*;
 
 import java.util.*;
 
+import jconch.stats.HeavyHitters;
 import jconch.test.FrameworkTest;
 
 import org.testng.annotations.Test;
@@ -150,4 +151,25 @@ public abstract class AbstractLogEqLockTest<LOCK_T, T extends AbstractLogEqLock<
         assertSame("Lock for old data after GC is different", lockOne, lockOneTwo);
     }
 
+    @Test
+    public void trackedLockRequestsAreCounted() {
+        final T lockMaker = this.createTestInstance();
+        final HeavyHitters<Object> tracker = new HeavyHitters<Object>(4);
+        lockMaker.trackHotKeys(tracker);
+        assertSame(tracker, lockMaker.getHotKeyTracker());
+        for (int i = 0; i < 10; i++) {
+            lockMaker.getLock(new Long(7L));
+        }
+        lockMaker.getLock(new Long(8L));
+        lockMaker.getLock(null);
+        assertEquals(new Long(7L), tracker.top(1).get(0).getItem());
+        assertEquals(10, tracker.top(1).get(0).getCount());
+        assertEquals(12, tracker.getCount());
+
+        lockMaker.trackHotKeys(null);
+        lockMaker.getLock(new Long(7L));
+        assertNull(lockMaker.getHotKeyTracker());
+        assertEquals(12, tracker.getCount());
+    }
+
 }
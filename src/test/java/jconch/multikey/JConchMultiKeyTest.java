@@ -0,0 +1,28 @@
+package jconch.multikey;
+
+import static org.testng.AssertJUnit.*;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class JConchMultiKeyTest extends FrameworkTest {
+
+    @Test
+    public void equalKeysHaveEqualHashCodes() {
+        final TriKey<String, Integer, String> key = new TriKey<String, Integer, String>("a", 1, "b");
+        final TriKey<String, Integer, String> other = new TriKey<String, Integer, String>(new String("a"), 1,
+                new String("b"));
+        assertNotSame(key, other);
+        assertEquals(key, other);
+        assertEquals(key.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void hashCodesDependOnTheKeys() {
+        final int hashCode = new SimpleTriKey<Integer>(1, 2, 3).hashCode();
+        assertTrue(hashCode != new SimpleTriKey<Integer>(1, 2, 4).hashCode());
+        assertTrue(hashCode != new SimpleTriKey<Integer>(1, 2, null).hashCode());
+        assertTrue(new SimpleDuoKey<Integer>(1, 2).hashCode() != new SimpleDuoKey<Integer>(1, 3).hashCode());
+    }
+}
@@ -0,0 +1,144 @@
+package jconch.stats;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import jconch.test.FrameworkTest;
+
+import org.testng.annotations.Test;
+
+public class HeavyHittersTest extends FrameworkTest {
+
+    @Test
+    public void countsAreExactWhileEveryItemHasACounter() {
+        final HeavyHitters<String> hitters = new HeavyHitters<String>(10);
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j <= i; j++) {
+                hitters.offer("item" + i);
+            }
+        }
+        final List<HeavyHitters.Entry<String>> top = hitters.top(3);
+        assertEquals(3, top.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("item" + (4 - i), top.get(i).getItem());
+            assertEquals(5 - i, top.get(i).getCount());
+            assertEquals(0, top.get(i).getError());
+        }
+        assertEquals(15, hitters.getCount());
+    }
+
+    @Test
+    public void heavyItemsAreFoundInALongTail() {
+        final HeavyHitters<Integer> hitters = new HeavyHitters<Integer>(20);
+        final Map<Integer, Integer> truth = new HashMap<Integer, Integer>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // One key in four is one of three hot keys; the rest are spread
+            // over ten thousand cold ones.
+            final int key = (random.nextInt(4) == 0) ? random.nextInt(3) : (100 + random.nextInt(10000));
+            hitters.offer(key);
+            final Integer count = truth.get(key);
+            truth.put(key, (count == null) ? 1 : (count + 1));
+        }
+        final List<HeavyHitters.Entry<Integer>> top = hitters.top(3);
+        for (final HeavyHitters.Entry<Integer> entry : top) {
+            assertTrue("Cold key " + entry, entry.getItem() < 3);
+        }
+        for (final HeavyHitters.Entry<Integer> entry : hitters.top(20)) {
+            final int actual = truth.get(entry.getItem());
+            assertTrue(entry.toString(), entry.getCount() >= actual);
+            assertTrue(entry.toString(), entry.getGuaranteedCount() <= actual);
+        }
+    }
+
+    @Test
+    public void memoryIsBounded() {
+        final HeavyHitters<Integer> hitters = new HeavyHitters<Integer>(16);
+        for (int i = 0; i < 10000; i++) {
+            hitters.offer(i);
+        }
+        assertEquals(16, hitters.top(100).size());
+        assertEquals(10000, hitters.getCount());
+    }
+
+    @Test
+    public void sampledCountsAreScaledUp() {
+        final HeavyHitters<String> hitters = new HeavyHitters<String>(4, 5);
+        assertEquals(8, hitters.getSampleRate());
+        for (int i = 0; i < 80000; i++) {
+            hitters.offer("hot");
+        }
+        final long count = hitters.top(1).get(0).getCount();
+        assertTrue("Counted " + count, (count > 72000) && (count < 88000));
+        assertEquals(0, count % 8);
+        assertEquals(count, hitters.getCount());
+    }
+
+    @Test
+    public void nullIsAnItem() {
+        final HeavyHitters<String> hitters = new HeavyHitters<String>(4);
+        hitters.offer(null);
+        hitters.offer(null);
+        hitters.offer("a");
+        assertNull(hitters.top(1).get(0).getItem());
+        assertEquals(2, hitters.top(1).get(0).getCount());
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        final HeavyHitters<String> hitters = new HeavyHitters<String>(4);
+        hitters.offer("a");
+        hitters.clear();
+        assertTrue(hitters.top(10).isEmpty());
+        assertEquals(0, hitters.getCount());
+        hitters.offer("b");
+        assertEquals("b", hitters.top(10).get(0).getItem());
+    }
+
+    @Test
+    public void concurrentOffersAreAllCounted() throws InterruptedException {
+        final HeavyHitters<Integer> hitters = new HeavyHitters<Integer>(8);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        hitters.offer(i & 3);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, hitters.getCount());
+        for (final HeavyHitters.Entry<Integer> entry : hitters.top(4)) {
+            assertEquals(10000, entry.getCount());
+        }
+    }
+
+    @Test
+    public void argumentsAreChecked() {
+        final int[][] bad = { { 0, 1 }, { 1, 0 }, { -1, 1 } };
+        for (final int[] arguments : bad) {
+            try {
+                new HeavyHitters<String>(arguments[0], arguments[1]);
+                fail("Accepted " + arguments[0] + ", " + arguments[1]);
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        try {
+            new HeavyHitters<String>(1).top(-1);
+            fail("Accepted a negative limit");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}